@@ -23,6 +23,8 @@ import android.content.Context;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.provider.Settings.Secure;
 import android.util.Log;
@@ -30,8 +32,10 @@ import android.util.Log;
 import androidx.annotation.RequiresApi;
 
 import com.googleresearch.capturesync.softwaresync.ClientInfo;
+import com.googleresearch.capturesync.softwaresync.LeaderHandoff;
 import com.googleresearch.capturesync.softwaresync.NetworkHelpers;
 import com.googleresearch.capturesync.softwaresync.RpcCallback;
+import com.googleresearch.capturesync.softwaresync.RpcLatencyStats;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncBase;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncClient;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
@@ -40,6 +44,7 @@ import com.googleresearch.capturesync.softwaresync.phasealign.PeriodCalculator;
 
 import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.R;
+import net.sourceforge.opencamera.preview.PreviewAnalyzer;
 import net.sourceforge.opencamera.recsync.SoftwareSyncHelper;
 import net.sourceforge.opencamera.recsync.SyncSettingsContainer;
 
@@ -48,10 +53,18 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Controller managing setup and tear down the SoftwareSync object. Needs Network permissions.
@@ -66,8 +79,48 @@ public class SoftwareSyncController implements Closeable {
     private String mSyncStatus;
     private SoftwareSyncBase mSoftwareSync;
     private AlignPhasesTask mAlignPhasesTask;
+    /**
+     * The last settings received from the leader, which settings deltas are relative to. A delta
+     * relative to other settings is answered with {@link #METHOD_SETTINGS_NACK}.
+     */
+    private SyncSettingsContainer mLastReceivedSettings;
+
+    /**
+     * Name, local address and RPCs shared by the leader and the clients, kept to recreate
+     * SoftwareSync on a leader change.
+     */
+    private String mName;
+    private InetAddress mLocalAddress;
+    private InetAddress mInitialLeaderAddress;
+    private Map<Integer, RpcCallback> mSharedRpcs;
+
+    private volatile boolean mIsLeader;
+
+    /**
+     * Whether this device relays the leader to the clients connected to its own hotspot.
+     */
+    private boolean mIsRelay;
+
+    /**
+     * Reports the preview quality metrics of this device every {@link #PREVIEW_METRICS_PERIOD_MS}.
+     */
+    private final ScheduledExecutorService mPreviewMetricsScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Runs fired triggers on the UI thread ahead of any queued work.
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The last preview quality metrics of each device, only filled on the leader. Clients are keyed
+     * by the host address they register with, as in {@link SoftwareSyncLeader#getClients()}, since
+     * names are not unique, and the leader itself by {@link #LOCAL_DEVICE_METRICS_KEY}.
+     */
+    private final Map<String, DeviceMetrics> mDeviceMetrics = new ConcurrentHashMap<>();
+
+    private static final String LOCAL_DEVICE_METRICS_KEY = "";
 
-    private boolean mIsLeader;
     private boolean mIsPeriodCalculated = false;
     private boolean mIsVideoPreparationNeeded = false;
     private State mState = State.IDLE;
@@ -83,11 +136,12 @@ public class SoftwareSyncController implements Closeable {
         RECORDING // A video is being recorded.
     }
 
-    /*
-     * In the original softwaresync this was used to tell devices to save the frame at the requested
+    /**
+     * Tell devices to start or stop video recording at the given leader synchronized time. In the
+     * original softwaresync this was used to tell devices to save the frame at the requested
      * trigger time.
-     * public static final int METHOD_SET_TRIGGER_TIME = 200_000;
      */
+    public static final int METHOD_SET_TRIGGER_TIME = 200_000;
     /**
      * Tell devices to calculate frames period and phase align.
      */
@@ -104,6 +158,57 @@ public class SoftwareSyncController implements Closeable {
      * Tell devices to remove video recording preparation.
      */
     public static final int METHOD_STOP_PREPARE = 200_004;
+    /**
+     * Tell the leader how late a client started recording relative to the requested trigger time.
+     */
+    public static final int METHOD_REPORT_TRIGGER_SKEW = 200_005;
+    /**
+     * Tell the leader the exposure and sharpness of a client's preview, as "host address,metrics"
+     * with the metrics of {@link #serializePreviewMetrics}.
+     */
+    public static final int METHOD_REPORT_PREVIEW_METRICS = 200_006;
+    /**
+     * Tell the leader that a client could not apply a settings delta, as "host address", so that
+     * the full settings are sent to it.
+     */
+    public static final int METHOD_SETTINGS_NACK = 200_007;
+
+    /**
+     * Period of the preview quality metrics reports.
+     */
+    private static final long PREVIEW_METRICS_PERIOD_MS = 1000;
+    /**
+     * Metrics older than this are not reported or shown, e.g. while a client is recording video.
+     */
+    private static final long PREVIEW_METRICS_MAX_AGE_MS = 3 * PREVIEW_METRICS_PERIOD_MS;
+    /**
+     * A device is shown as overexposed if more than this fraction of its preview is clipped.
+     */
+    private static final float PREVIEW_METRICS_CLIPPED_WARNING = 0.02f;
+    /**
+     * A device is shown as out of focus if its sharpness is less than this fraction of the median
+     * sharpness of all the devices.
+     */
+    private static final float PREVIEW_METRICS_SHARPNESS_WARNING = 0.5f;
+
+    /**
+     * Preview quality metrics received from a device, and when they were received.
+     */
+    private static class DeviceMetrics {
+        final PreviewAnalyzer.QualityMetrics metrics;
+        final long receivedTimeMs;
+
+        DeviceMetrics(PreviewAnalyzer.QualityMetrics metrics, long receivedTimeMs) {
+            this.metrics = metrics;
+            this.receivedTimeMs = receivedTimeMs;
+        }
+    }
+
+    /**
+     * RPC lane of the camera control methods, which are handled in order but must not delay
+     * heartbeats and offset updates.
+     */
+    private static final String CAMERA_RPC_LANE = "camera";
 
     /**
      * Constructor passed in with: - context - For setting UI elements and triggering captures. -
@@ -119,6 +224,10 @@ public class SoftwareSyncController implements Closeable {
         mSoftwareSyncHelper = new SoftwareSyncHelper(mainActivity, this);
 
         setupSoftwareSync();
+
+        mMainActivity.getPreview().setPreviewQualityMetricsEnabled(true);
+        mPreviewMetricsScheduler.scheduleAtFixedRate(
+                this::reportPreviewMetrics, PREVIEW_METRICS_PERIOD_MS, PREVIEW_METRICS_PERIOD_MS, TimeUnit.MILLISECONDS);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -132,13 +241,15 @@ public class SoftwareSyncController implements Closeable {
         InetAddress localAddress;
 
         // Use last 4 digits of the serial as the name of the client.
-        String name = lastFourSerial();
-        Log.w(TAG, "Name/Serial# (Last 4 digits): " + name);
+        mName = lastFourSerial();
+        Log.w(TAG, "Name/Serial# (Last 4 digits): " + mName);
 
         // Determine leadership.
         try {
             NetworkHelpers networkHelper = new NetworkHelpers(wifiManager);
-            mIsLeader = networkHelper.isLeader();
+            // A relay runs a hotspot for its own clients but is a client of the leader over WiFi.
+            mIsRelay = mMainActivity.getApplicationInterface().getPrefs().isRecSyncRelayEnabled();
+            mIsLeader = !mIsRelay && networkHelper.isLeader();
 
             if (mIsLeader) {
                 // IP determination is not yet implemented for a leader.
@@ -152,8 +263,8 @@ public class SoftwareSyncController implements Closeable {
             Log.w(
                     TAG,
                     String.format(
-                            "Current IP: %s , Leader IP: %s | Leader? %s",
-                            localAddress, leaderAddress, mIsLeader ? "Y" : "N"));
+                            "Current IP: %s , Leader IP: %s | Leader? %s | Relay? %s",
+                            localAddress, leaderAddress, mIsLeader ? "Y" : "N", mIsRelay ? "Y" : "N"));
         } catch (SocketException e) {
             Log.e(TAG, "Error: " + e);
             throw new IllegalStateException(
@@ -164,6 +275,9 @@ public class SoftwareSyncController implements Closeable {
                     "Unable to get IP addresses, check Network permissions.", e);
         }
 
+        mLocalAddress = localAddress;
+        mInitialLeaderAddress = leaderAddress;
+
         // Set up shared rpcs.
         Map<Integer, RpcCallback> sharedRpcs = new HashMap<>();
 
@@ -188,16 +302,25 @@ public class SoftwareSyncController implements Closeable {
                 payload -> {
                     Log.d(TAG, "Received payload with settings: " + payload);
 
-                    if (mState != State.IDLE && mState != State.SETTINGS_APPLICATION) {
-                        Log.d(TAG, "Settings cannot be applied at state " + mState);
-                        return;
-                    }
-
+                    // Deserialize before checking the state, so that the following deltas can be
+                    // applied even if these settings are not.
                     SyncSettingsContainer settings = null;
                     try {
-                        settings = SyncSettingsContainer.deserializeFromString(payload);
+                        settings = SyncSettingsContainer.deserializeFromString(payload, mLastReceivedSettings);
+                        mLastReceivedSettings = settings;
                     } catch (IOException e) {
                         Log.e(TAG, "Failed to deserialize the settings string: " + payload + "\n" + e.getMessage());
+                        // A delta relative to settings this client missed is followed by the full
+                        // settings, a corrupt full encoding is not asked for again.
+                        if (!mIsLeader && SyncSettingsContainer.isDeltaString(payload)) {
+                            ((SoftwareSyncClient) mSoftwareSync).sendReliableRpcToLeader(
+                                    METHOD_SETTINGS_NACK, mLocalAddress.getHostAddress());
+                        }
+                    }
+
+                    if (mState != State.IDLE && mState != State.SETTINGS_APPLICATION) {
+                        Log.d(TAG, "Settings cannot be applied at state " + mState);
+                        return;
                     }
 
                     if (settings != null) {
@@ -233,86 +356,359 @@ public class SoftwareSyncController implements Closeable {
                             "Received record request with payload: %s. Current recording status: %s.",
                             payload, mMainActivity.getPreview().isVideoRecording()));
 
-                    if (mState != State.IDLE && mState != State.RECORDING) {
-                        Log.d(TAG, "Recording status cannot be switched at state " + mState);
+                    switchRecordingStatus(Boolean.parseBoolean(payload), null);
+                });
+
+        // Switch the recording status as METHOD_RECORD does, but at the given leader time.
+        sharedRpcs.put(
+                METHOD_SET_TRIGGER_TIME,
+                payload -> {
+                    Log.d(TAG, "Received scheduled record request with payload: " + payload);
+
+                    String[] parts = payload.split(",");
+                    if (parts.length != 2) {
+                        Log.e(TAG, "Scheduled record request has the wrong format, expected 2 comma-delimited parts: "
+                                + payload + ". Skipping.");
                         return;
                     }
+                    final long triggerTimeNs = Long.parseLong(parts[0]);
+                    final boolean recordingStatus = Boolean.parseBoolean(parts[1]);
+
+                    // Recording is started from the UI thread. The trigger thread does the wait, and
+                    // the fired action skips the UI thread queue so that it is not held up by it.
+                    mSoftwareSync.getTriggerScheduler().schedule(
+                            triggerTimeNs,
+                            runnable -> mMainHandler.postAtFrontOfQueue(runnable),
+                            firedLeaderTimeNs -> {
+                                final long firedLateNs = firedLeaderTimeNs - triggerTimeNs;
+                                final long handoffNs = mSoftwareSync.getLeaderTimeNs() - firedLeaderTimeNs;
+                                switchRecordingStatus(
+                                        recordingStatus,
+                                        () -> reportTriggerSkew(
+                                                firedLateNs, handoffNs, mSoftwareSync.getLeaderTimeNs() - triggerTimeNs));
+                            });
+                });
+
+        mSharedRpcs = sharedRpcs;
+
+        if (mIsLeader) {
+            startLeader(null);
+        } else {
+            startClient(leaderAddress);
+        }
+    }
 
-                    if (!mMainActivity.getPreview().isVideo()) {
-                        // This should not happen as capture mode is to be synced before recording.
-                        throw new IllegalStateException("Received recording request in photo mode");
+    /**
+     * Starts SoftwareSync as the leader.
+     *
+     * @param handoff state of a failed leader to take over, or null to start a new leader time
+     *                domain.
+     */
+    private void startLeader(LeaderHandoff handoff) {
+        // Create rpc mapping specific to leader.
+        Map<Integer, RpcCallback> leaderRpcs = new HashMap<>(mSharedRpcs);
+
+        // Update status text when the status changes.
+        leaderRpcs.put(SyncConstants.METHOD_MSG_ADDED_CLIENT, payload -> updateClientsUI());
+        leaderRpcs.put(SyncConstants.METHOD_MSG_REMOVED_CLIENT, payload -> updateClientsUI());
+        leaderRpcs.put(SyncConstants.METHOD_MSG_SYNCING, payload -> updateClientsUI());
+        leaderRpcs.put(SyncConstants.METHOD_MSG_OFFSET_UPDATED, payload -> updateClientsUI());
+
+        // Log how late each client started recording relative to the trigger time.
+        leaderRpcs.put(
+                METHOD_REPORT_TRIGGER_SKEW,
+                payload -> {
+                    String[] parts = payload.split(",");
+                    if (parts.length != 4) {
+                        Log.e(TAG, "Trigger skew report has the wrong format: " + payload);
+                        return;
                     }
-                    if (mMainActivity.getPreview().isVideoRecording() == Boolean.parseBoolean(payload)) {
-                        if (mState == State.RECORDING) { // Need to stop recording.
-                            mMainActivity.runOnUiThread(() -> {
-                                mMainActivity.takePicturePressed(false, false);
-                                mState = State.IDLE;
-                            });
-                        } else { // Need to start recording.
-                            mState = State.RECORDING;
-                            if (!mSoftwareSyncHelper.startPreparedVideoRecording()) {
-                                mState = State.IDLE;
-                                // TODO: inform user that preparation is required.
-                            }
-                        }
+                    logTriggerSkew(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3]));
+                });
+
+        // Send the full settings to a client which missed the base of a settings delta.
+        leaderRpcs.put(METHOD_SETTINGS_NACK, payload -> mSoftwareSyncHelper.resendSettings(payload));
+
+        // Show the exposure and sharpness of each client.
+        leaderRpcs.put(
+                METHOD_REPORT_PREVIEW_METRICS,
+                payload -> {
+                    // The host address does not contain commas, unlike the metrics.
+                    int separator = payload.indexOf(',');
+                    PreviewAnalyzer.QualityMetrics metrics =
+                            separator > 0 ? deserializePreviewMetrics(payload.substring(separator + 1)) : null;
+                    if (metrics == null) {
+                        Log.e(TAG, "Preview metrics report has the wrong format: " + payload);
+                        return;
                     }
+                    onPreviewMetrics(payload.substring(0, separator), metrics);
                 });
 
-        if (mIsLeader) {
-            // Leader.
+        // Another leader took precedence after a failover, follow it.
+        leaderRpcs.put(
+                SyncConstants.METHOD_MSG_LEADER_CHANGED,
+                payload -> mMainActivity.runOnUiThread(() -> stepDown(payload)));
+
+        final SoftwareSyncLeader leader;
+        if (handoff == null) {
             long initTimeNs = SystemClock.elapsedRealtimeNanos();
+            leader = new SoftwareSyncLeader(mName, initTimeNs, mLocalAddress, leaderRpcs);
+        } else {
+            leader = new SoftwareSyncLeader(mName, mLocalAddress, leaderRpcs, handoff);
+        }
+        leader.setBroadcastFanOutEnabled(
+                mMainActivity.getApplicationInterface().getPrefs().isRecSyncBroadcastEnabled());
+        mSoftwareSync = leader;
+        mIsLeader = true;
+        // The clients may hold the settings of a previous leader.
+        mSoftwareSyncHelper.resetBroadcastSettings();
+        setCameraRpcLane();
+
+        if (handoff == null) {
+            mMainActivity.runOnUiThread(
+                    () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_leader, mSoftwareSync.getName()));
+        } else {
+            updateClientsUI();
+        }
+    }
+
+    /**
+     * Starts SoftwareSync as a client of the leader with the given address.
+     */
+    private void startClient(InetAddress leaderAddress) {
+        Map<Integer, RpcCallback> clientRpcs = new HashMap<>(mSharedRpcs);
+
+        // Adjust the state when waiting to connect to a leader.
+        clientRpcs.put(
+                SyncConstants.METHOD_MSG_WAITING_FOR_LEADER,
+                payload -> {
+                    mSoftwareSyncHelper.removeVideoRecordingPreparation();
+                    mIsVideoPreparationNeeded = false;
+                    mMainActivity.runOnUiThread(
+                            () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_waiting_for_leader, mSoftwareSync.getName()));
+                });
+
+        // Adjust the state when establishing a connection to a leader.
+        clientRpcs.put(
+                SyncConstants.METHOD_MSG_SYNCING,
+                payload -> {
+                    mIsVideoPreparationNeeded = false;
+                    mMainActivity.runOnUiThread(
+                            () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_waiting_for_sync, mSoftwareSync.getName()));
+                });
 
-            // Create rpc mapping specific to leader.
-            Map<Integer, RpcCallback> leaderRpcs = new HashMap<>(sharedRpcs);
+        // Adjust the state after connecting to a leader.
+        clientRpcs.put(
+                SyncConstants.METHOD_MSG_OFFSET_UPDATED,
+                payload ->
+                        mMainActivity.runOnUiThread(() -> mSyncStatus =
+                                mMainActivity.getString(
+                                        R.string.rec_sync_synced_to_leader,
+                                        mSoftwareSync.getName(), mSoftwareSync.getLeaderAddress())));
+
+        // Follow a new leader after a failover.
+        clientRpcs.put(
+                SyncConstants.METHOD_MSG_LEADER_CHANGED,
+                payload ->
+                        mMainActivity.runOnUiThread(() -> mSyncStatus =
+                                mMainActivity.getString(
+                                        R.string.rec_sync_synced_to_leader,
+                                        mSoftwareSync.getName(), mSoftwareSync.getLeaderAddress())));
+
+        // Replace the failed leader.
+        clientRpcs.put(
+                SyncConstants.METHOD_MSG_LEADER_ELECTED,
+                payload -> mMainActivity.runOnUiThread(this::takeOverLeadership));
+
+        mSoftwareSync = new SoftwareSyncClient(mName, mLocalAddress, leaderAddress, clientRpcs, mIsRelay);
+        mIsLeader = false;
+        setCameraRpcLane();
 
-            // Update status text when the status changes.
-            leaderRpcs.put(SyncConstants.METHOD_MSG_ADDED_CLIENT, payload -> updateClientsUI());
-            leaderRpcs.put(SyncConstants.METHOD_MSG_REMOVED_CLIENT, payload -> updateClientsUI());
-            leaderRpcs.put(SyncConstants.METHOD_MSG_SYNCING, payload -> updateClientsUI());
-            leaderRpcs.put(SyncConstants.METHOD_MSG_OFFSET_UPDATED, payload -> updateClientsUI());
+        mMainActivity.runOnUiThread(
+                () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_client, mSoftwareSync.getName()));
+    }
 
-            mSoftwareSync = new SoftwareSyncLeader(name, initTimeNs, localAddress, leaderRpcs);
-        } else {
-            // Client.
-            Map<Integer, RpcCallback> clientRpcs = new HashMap<>(sharedRpcs);
-
-            // Adjust the state when waiting to connect to a leader.
-            clientRpcs.put(
-                    SyncConstants.METHOD_MSG_WAITING_FOR_LEADER,
-                    payload -> {
-                        mSoftwareSyncHelper.removeVideoRecordingPreparation();
-                        mIsVideoPreparationNeeded = false;
-                        mMainActivity.runOnUiThread(
-                                () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_waiting_for_leader, mSoftwareSync.getName()));
-                    });
-
-            // Adjust the state when establishing a connection to a leader.
-            clientRpcs.put(
-                    SyncConstants.METHOD_MSG_SYNCING,
-                    payload -> {
-                        mIsVideoPreparationNeeded = false;
-                        mMainActivity.runOnUiThread(
-                                () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_waiting_for_sync, mSoftwareSync.getName()));
-                    });
-
-            // Adjust the state after connecting to a leader.
-            clientRpcs.put(
-                    SyncConstants.METHOD_MSG_OFFSET_UPDATED,
-                    payload ->
-                            mMainActivity.runOnUiThread(() -> mSyncStatus =
-                                    mMainActivity.getString(
-                                            R.string.rec_sync_synced_to_leader,
-                                            mSoftwareSync.getName(), mSoftwareSync.getLeaderAddress())));
+    /**
+     * Replaces the client by a leader taking over the clients, saved settings and time domain of
+     * the failed leader. Should be called on the UI thread.
+     */
+    private void takeOverLeadership() {
+        if (!(mSoftwareSync instanceof SoftwareSyncClient)) {
+            return;
+        }
+        Log.w(TAG, "Leader lost, taking over the leadership.");
+        final LeaderHandoff handoff = ((SoftwareSyncClient) mSoftwareSync).getLeaderHandoff();
+        closeSoftwareSync();
+        startLeader(handoff);
+        mMainActivity.getMainUI().reloadButtons();
+    }
+
+    /**
+     * Replaces the leader by a client of the leader with the given address, after another device
+     * took precedence in a failover. Should be called on the UI thread.
+     *
+     * @param leaderAddress host address of the leader to follow, empty for the initial leader.
+     */
+    private void stepDown(String leaderAddress) {
+        if (!(mSoftwareSync instanceof SoftwareSyncLeader)) {
+            return;
+        }
+        final InetAddress address;
+        try {
+            address = leaderAddress.isEmpty() ? mInitialLeaderAddress : InetAddress.getByName(leaderAddress);
+        } catch (UnknownHostException e) {
+            Log.e(TAG, "Cannot follow leader with corrupt address " + leaderAddress);
+            return;
+        }
+        if (address == null) {
+            Log.e(TAG, "Cannot follow the initial leader, its address is unknown");
+            return;
+        }
+        Log.w(TAG, "Stepping down in favor of leader " + leaderAddress);
+        closeSoftwareSync();
+        startClient(address);
+        mMainActivity.getMainUI().reloadButtons();
+    }
+
+    /**
+     * Switches the recording status (starts or stops video recording) if the current recording
+     * status equals the given one.
+     *
+     * @param recordingStatus the recording status of the device which requested the switch.
+     * @param onStarted       a {@link Runnable} to be run on the UI thread right after the
+     *                        recording is started, may be null.
+     */
+    private void switchRecordingStatus(boolean recordingStatus, Runnable onStarted) {
+        if (mState != State.IDLE && mState != State.RECORDING) {
+            Log.d(TAG, "Recording status cannot be switched at state " + mState);
+            return;
+        }
 
-            mSoftwareSync = new SoftwareSyncClient(name, localAddress, leaderAddress, clientRpcs);
+        if (!mMainActivity.getPreview().isVideo()) {
+            // This should not happen as capture mode is to be synced before recording.
+            throw new IllegalStateException("Received recording request in photo mode");
         }
+        if (mMainActivity.getPreview().isVideoRecording() == recordingStatus) {
+            if (mState == State.RECORDING) { // Need to stop recording.
+                mMainActivity.runOnUiThread(() -> {
+                    mMainActivity.takePicturePressed(false, false);
+                    mState = State.IDLE;
+                });
+            } else { // Need to start recording.
+                mState = State.RECORDING;
+                if (!mSoftwareSyncHelper.startPreparedVideoRecording(onStarted)) {
+                    mState = State.IDLE;
+                    // TODO: inform user that preparation is required.
+                }
+            }
+        }
+    }
 
+    /**
+     * Logs the recording start skew on the leader, or sends it to the leader from a client.
+     *
+     * @param firedLateNs time between the trigger time and the trigger firing.
+     * @param handoffNs   time between the trigger firing and the action running on the UI thread.
+     * @param skewNs      time between the trigger time and the actual recording start.
+     */
+    private void reportTriggerSkew(long firedLateNs, long handoffNs, long skewNs) {
         if (mIsLeader) {
-            mMainActivity.runOnUiThread(
-                    () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_leader, mSoftwareSync.getName()));
+            logTriggerSkew(mSoftwareSync.getName(), firedLateNs, handoffNs, skewNs);
         } else {
-            mMainActivity.runOnUiThread(
-                    () -> mSyncStatus = mMainActivity.getString(R.string.rec_sync_client, mSoftwareSync.getName()));
+            ((SoftwareSyncClient) mSoftwareSync).sendReliableRpcToLeader(
+                    METHOD_REPORT_TRIGGER_SKEW,
+                    mSoftwareSync.getName() + "," + firedLateNs + "," + handoffNs + "," + skewNs);
+        }
+    }
+
+    /**
+     * @param firedLateNs time between the trigger time and the trigger firing on the device, which
+     *                    is more than {@link SyncConstants#TRIGGER_LATE_TOLERANCE_NS} if the device
+     *                    received the trigger too late or was busy, and so is out of sync.
+     * @param handoffNs   time between the trigger firing and the action running on the UI thread.
+     * @param skewNs      time between the trigger time and the actual recording start.
+     */
+    private void logTriggerSkew(String deviceName, long firedLateNs, long handoffNs, long skewNs) {
+        if (firedLateNs > SyncConstants.TRIGGER_LATE_TOLERANCE_NS) {
+            Log.e(TAG, String.format(Locale.ENGLISH,
+                    "Device %s fired the trigger %.3f ms late and is out of sync, handed it over in %.3f ms, started recording %.3f ms after the trigger time.",
+                    deviceName, firedLateNs / 1e6, handoffNs / 1e6, skewNs / 1e6));
+        } else {
+            Log.i(TAG, String.format(Locale.ENGLISH,
+                    "Device %s handed the trigger over in %.3f ms, started recording %.3f ms after the trigger time.",
+                    deviceName, handoffNs / 1e6, skewNs / 1e6));
+        }
+    }
+
+    /**
+     * Sends the latest preview quality metrics of this device to the leader, or records them if
+     * this device is the leader. Run by {@link #mPreviewMetricsScheduler}.
+     */
+    private void reportPreviewMetrics() {
+        final SoftwareSyncBase softwareSync = mSoftwareSync;
+        if (softwareSync == null) {
+            return;
+        }
+        final PreviewAnalyzer.QualityMetrics metrics =
+                mMainActivity.getPreview().getPreviewQualityMetrics(PREVIEW_METRICS_MAX_AGE_MS);
+        if (metrics == null) {
+            return;
+        }
+        try {
+            if (softwareSync instanceof SoftwareSyncClient) {
+                // Identify this device by its registered address, which is also unique behind a relay.
+                ((SoftwareSyncClient) softwareSync).sendRpcToLeader(
+                        METHOD_REPORT_PREVIEW_METRICS,
+                        mLocalAddress.getHostAddress() + "," + serializePreviewMetrics(metrics));
+            } else {
+                onPreviewMetrics(LOCAL_DEVICE_METRICS_KEY, metrics);
+            }
+        } catch (RuntimeException e) {
+            // Don't let a failed report cancel the following ones.
+            Log.e(TAG, "Failed to report preview metrics", e);
+        }
+    }
+
+    /**
+     * Records the metrics of a device.
+     *
+     * @param deviceKey the host address of a client, or {@link #LOCAL_DEVICE_METRICS_KEY}.
+     */
+    private void onPreviewMetrics(String deviceKey, PreviewAnalyzer.QualityMetrics metrics) {
+        Log.v(TAG, String.format(Locale.ENGLISH,
+                "Device %s preview: mean luma %.1f, clipped %.2f%%, sharpness %.1f.",
+                deviceKey.equals(LOCAL_DEVICE_METRICS_KEY) ? "leader" : deviceKey,
+                metrics.mean_luma, metrics.clipped_fraction * 100.0f, metrics.sharpness));
+        mDeviceMetrics.put(deviceKey, new DeviceMetrics(metrics, SystemClock.elapsedRealtime()));
+        if (mSoftwareSync instanceof SoftwareSyncLeader) {
+            updateClientsUI();
+        }
+    }
+
+    /**
+     * Serializes the metrics as "mean luma,clipped fraction,sharpness".
+     */
+    public static String serializePreviewMetrics(PreviewAnalyzer.QualityMetrics metrics) {
+        return String.format(Locale.ENGLISH, "%.2f,%.5f,%.2f",
+                metrics.mean_luma, metrics.clipped_fraction, metrics.sharpness);
+    }
+
+    /**
+     * Inverse of {@link #serializePreviewMetrics}.
+     *
+     * @return the metrics, or null if the string has the wrong format.
+     */
+    public static PreviewAnalyzer.QualityMetrics deserializePreviewMetrics(String serialized) {
+        String[] parts = serialized.split(",");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new PreviewAnalyzer.QualityMetrics(
+                    Float.parseFloat(parts[0]), Float.parseFloat(parts[1]), Float.parseFloat(parts[2]));
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
@@ -382,7 +778,31 @@ public class SoftwareSyncController implements Closeable {
      */
     private void updateClientsUI() {
         SoftwareSyncLeader leader = ((SoftwareSyncLeader) mSoftwareSync);
-        final int clientCount = leader.getClients().size();
+        // Use a single snapshot, so that the count and the list agree.
+        final Map<InetAddress, ClientInfo> clients = leader.getClients();
+        final int clientCount = clients.size();
+        // Only show the metrics of devices which reported recently, by name where known. Clients
+        // behind a relay are not registered with the leader, so are shown by address.
+        final Map<String, String> clientNames = new HashMap<>();
+        for (ClientInfo client : clients.values()) {
+            clientNames.put(client.address().getHostAddress(), client.name());
+        }
+        final long nowMs = SystemClock.elapsedRealtime();
+        final Map<String, PreviewAnalyzer.QualityMetrics> metrics = new TreeMap<>();
+        final Map<String, String> deviceLabels = new HashMap<>();
+        for (Entry<String, DeviceMetrics> entry : mDeviceMetrics.entrySet()) {
+            if (nowMs - entry.getValue().receivedTimeMs <= PREVIEW_METRICS_MAX_AGE_MS) {
+                final String deviceKey = entry.getKey();
+                metrics.put(deviceKey, entry.getValue().metrics);
+                if (deviceKey.equals(LOCAL_DEVICE_METRICS_KEY)) {
+                    deviceLabels.put(deviceKey, mSoftwareSync.getName());
+                } else {
+                    final String name = clientNames.get(deviceKey);
+                    deviceLabels.put(deviceKey, name != null ? name : deviceKey);
+                }
+            }
+        }
+        final float medianSharpness = medianSharpness(metrics.values());
         mMainActivity.runOnUiThread(
                 () -> {
                     StringBuilder msg = new StringBuilder();
@@ -390,7 +810,7 @@ public class SoftwareSyncController implements Closeable {
                             mMainActivity.getString(
                                     R.string.rec_sync_leader_clients, mSoftwareSync.getName(),
                                     mMainActivity.getResources().getQuantityString(R.plurals.clients_num, clientCount, clientCount)));
-                    for (Entry<InetAddress, ClientInfo> entry : leader.getClients().entrySet()) {
+                    for (Entry<InetAddress, ClientInfo> entry : clients.entrySet()) {
                         ClientInfo client = entry.getValue();
                         if (client.syncAccuracy() == 0) {
                             msg.append(mMainActivity.getString(R.string.rec_sync_client_syncing, client.name()));
@@ -400,14 +820,61 @@ public class SoftwareSyncController implements Closeable {
                                             R.string.rec_sync_client_synced, client.name(), client.syncAccuracy() / 1e6));
                         }
                     }
+                    for (Entry<String, PreviewAnalyzer.QualityMetrics> entry : metrics.entrySet()) {
+                        PreviewAnalyzer.QualityMetrics deviceMetrics = entry.getValue();
+                        msg.append(
+                                mMainActivity.getString(
+                                        R.string.rec_sync_device_metrics, deviceLabels.get(entry.getKey()), deviceMetrics.mean_luma,
+                                        deviceMetrics.clipped_fraction * 100.0f, deviceMetrics.sharpness));
+                        if (deviceMetrics.clipped_fraction > PREVIEW_METRICS_CLIPPED_WARNING) {
+                            msg.append(mMainActivity.getString(R.string.rec_sync_device_overexposed));
+                        }
+                        if (metrics.size() > 1
+                                && deviceMetrics.sharpness < PREVIEW_METRICS_SHARPNESS_WARNING * medianSharpness) {
+                            msg.append(mMainActivity.getString(R.string.rec_sync_device_out_of_focus));
+                        }
+                        msg.append('\n');
+                    }
                     mSyncStatus = msg.toString();
                 });
     }
 
+    private static float medianSharpness(Collection<PreviewAnalyzer.QualityMetrics> metrics) {
+        if (metrics.isEmpty()) {
+            return 0.0f;
+        }
+        float[] sharpness = new float[metrics.size()];
+        int i = 0;
+        for (PreviewAnalyzer.QualityMetrics deviceMetrics : metrics) {
+            sharpness[i++] = deviceMetrics.sharpness;
+        }
+        Arrays.sort(sharpness);
+        return sharpness[sharpness.length / 2];
+    }
+
     @Override
     public void close() {
         Log.w(TAG, "close SoftwareSyncController");
+        mPreviewMetricsScheduler.shutdownNow();
+        mMainActivity.getPreview().setPreviewQualityMetricsEnabled(false);
+        closeSoftwareSync();
+    }
+
+    private void setCameraRpcLane() {
+        mSoftwareSync.setRpcLane(
+                CAMERA_RPC_LANE,
+                METHOD_SET_TRIGGER_TIME,
+                METHOD_DO_PHASE_ALIGN,
+                METHOD_SET_SETTINGS,
+                METHOD_RECORD,
+                METHOD_STOP_PREPARE);
+    }
+
+    private void closeSoftwareSync() {
         if (mSoftwareSync != null) {
+            for (RpcLatencyStats stats : mSoftwareSync.getRpcLatencyStats().values()) {
+                Log.d(TAG, "RPC latency " + stats);
+            }
             try {
                 mSoftwareSync.close();
             } catch (IOException e) {
@@ -0,0 +1,111 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import net.sourceforge.opencamera.recsync.SyncSettingsContainer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State handed from a failed leader to the client elected to replace it: the clients known to the
+ * leader, the leader's saved settings and the leader time base.
+ *
+ * <p>The leader replicates its clients and saved settings to every client with {@link
+ * SyncConstants#METHOD_LEADER_STATE}. The elected client adds its own synchronized offset, so that
+ * the new leader continues the leader time domain of the failed one and already synchronized
+ * clients stay synchronized.
+ */
+public final class LeaderHandoff {
+    private static final String TAG = "LeaderHandoff";
+
+    private final List<ClientInfo> mPeers;
+    private final SyncSettingsContainer mSavedSettings;
+    private final long mLeaderFromLocalNs;
+    private final long mSyncAccuracyNs;
+
+    LeaderHandoff(
+            List<ClientInfo> peers,
+            SyncSettingsContainer savedSettings,
+            long leaderFromLocalNs,
+            long syncAccuracyNs) {
+        mPeers = Collections.unmodifiableList(new ArrayList<>(peers));
+        mSavedSettings = savedSettings;
+        mLeaderFromLocalNs = leaderFromLocalNs;
+        mSyncAccuracyNs = syncAccuracyNs;
+    }
+
+    /**
+     * Clients of the failed leader, other than the elected one.
+     */
+    List<ClientInfo> peers() {
+        return mPeers;
+    }
+
+    /**
+     * Settings saved on the failed leader for new clients, may be null.
+     */
+    SyncSettingsContainer savedSettings() {
+        return mSavedSettings;
+    }
+
+    /**
+     * Offset of the elected client to the leader time domain, to be kept as the new leader's one.
+     */
+    long leaderFromLocalNs() {
+        return mLeaderFromLocalNs;
+    }
+
+    long syncAccuracyNs() {
+        return mSyncAccuracyNs;
+    }
+
+    /**
+     * Encodes clients as "name@address@syncAccuracy;...".
+     */
+    static String encodePeers(Collection<ClientInfo> peers) {
+        StringBuilder builder = new StringBuilder();
+        for (ClientInfo peer : peers) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(peer.name())
+                    .append('@').append(peer.address().getHostAddress())
+                    .append('@').append(peer.syncAccuracy());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes clients encoded by {@link #encodePeers(Collection)}, skipping corrupt entries.
+     */
+    static List<ClientInfo> decodePeers(String encoded) {
+        List<ClientInfo> peers = new ArrayList<>();
+        if (encoded.isEmpty()) {
+            return peers;
+        }
+        for (String entry : encoded.split(";")) {
+            final String[] parts = entry.split("@");
+            if (parts.length != 3) {
+                Log.e(TAG, "Corrupt peer entry: " + entry);
+                continue;
+            }
+            try {
+                peers.add(
+                        ClientInfo.create(
+                                parts[0],
+                                InetAddress.getByName(parts[1]),
+                                /*offset=*/ 0,
+                                Long.parseLong(parts[2]),
+                                /*lastHeartbeat=*/ 0));
+            } catch (UnknownHostException | NumberFormatException e) {
+                Log.e(TAG, "Corrupt peer entry: " + entry);
+            }
+        }
+        return peers;
+    }
+}
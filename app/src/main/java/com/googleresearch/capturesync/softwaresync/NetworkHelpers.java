@@ -24,8 +24,13 @@ import android.net.wifi.WifiManager;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Helper functions for determining local IP address and host IP address on the network.
@@ -98,6 +103,94 @@ public final class NetworkHelpers {
         }
     }
 
+    /**
+     * Returns the subnet broadcast address of the local network interface which is on the same
+     * subnet as the given peer, such as the hotspot interface of a leader for one of its clients.
+     *
+     * @param peer address of a device on the subnet.
+     * @return the broadcast address, or null if no local interface is on the peer's subnet.
+     * @throws SocketException if the network interfaces cannot be listed.
+     */
+    public static InetAddress getBroadcastAddressFor(InetAddress peer) throws SocketException {
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+            for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                InetAddress broadcast = interfaceAddress.getBroadcast();
+                if (broadcast != null
+                        && isSameSubnet(
+                        interfaceAddress.getAddress(), peer, interfaceAddress.getNetworkPrefixLength())) {
+                    return broadcast;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the addresses of all network interfaces of this device which are up.
+     *
+     * @throws SocketException if the network interfaces cannot be listed.
+     */
+    public static Set<InetAddress> getLocalAddresses() throws SocketException {
+        Set<InetAddress> addresses = new HashSet<>();
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (networkInterface.isUp()) {
+                addresses.addAll(Collections.list(networkInterface.getInetAddresses()));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Determines if the address belongs to one of this device's network interfaces.
+     */
+    public static boolean isLocalAddress(InetAddress address) {
+        if (address.isLoopbackAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Orders addresses by their unsigned bytes, giving every device the same order of a set of
+     * addresses, e.g. to rank leader election candidates.
+     */
+    public static int compareAddresses(InetAddress first, InetAddress second) {
+        byte[] firstBytes = first.getAddress();
+        byte[] secondBytes = second.getAddress();
+        if (firstBytes.length != secondBytes.length) {
+            return firstBytes.length - secondBytes.length;
+        }
+        for (int i = 0; i < firstBytes.length; i++) {
+            int difference = (firstBytes[i] & 0xff) - (secondBytes[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isSameSubnet(InetAddress first, InetAddress second, int prefixLength) {
+        byte[] firstBytes = first.getAddress();
+        byte[] secondBytes = second.getAddress();
+        if (firstBytes.length != secondBytes.length) {
+            return false;
+        }
+        for (int bit = 0; bit < prefixLength && bit < firstBytes.length * 8; bit++) {
+            int mask = 0x80 >> (bit % 8);
+            if ((firstBytes[bit / 8] & mask) != (secondBytes[bit / 8] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private byte[] addressIntToBytes(int address) {
         // DhcpInfo and ConnectionInfo integer addresses are Little Endian and
         // InetAddresses.fromInteger() are Big Endian so reverse the bytes before converting.
@@ -0,0 +1,130 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Journal of the leader_from_local offsets in effect during a recording, used to convert local
+ * timestamps of every recorded stream to the leader time domain consistently.
+ *
+ * <p>Each entry holds the local time an offset took effect at, the offset and the sync accuracy
+ * reported for it. A local timestamp is converted with the offset in effect at that timestamp,
+ * rather than with the offset in effect when the conversion happens, so frames, sensor events and
+ * flash timestamps are mapped identically no matter when or on which thread they are written.
+ * Timestamps before the first entry use the first entry.
+ *
+ * <p>Journals are started with {@link SoftwareSyncBase#startOffsetJournal()}, which records every
+ * subsequent offset change until {@link SoftwareSyncBase#stopOffsetJournal(OffsetJournal)}.
+ */
+public final class OffsetJournal implements TimeDomainConverter {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] mLocalTimesNs = new long[INITIAL_CAPACITY];
+    private long[] mLeaderFromLocalNs = new long[INITIAL_CAPACITY];
+    private long[] mSyncAccuraciesNs = new long[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    OffsetJournal(long localTimeNs, long leaderFromLocalNs, long syncAccuracyNs) {
+        record(localTimeNs, leaderFromLocalNs, syncAccuracyNs);
+    }
+
+    /**
+     * Appends an offset taking effect at the given local time. Offsets are expected in increasing
+     * local time order; an entry older than the last one takes effect at the last one's time.
+     */
+    synchronized void record(long localTimeNs, long leaderFromLocalNs, long syncAccuracyNs) {
+        if (mSize == mLocalTimesNs.length) {
+            mLocalTimesNs = Arrays.copyOf(mLocalTimesNs, mSize * 2);
+            mLeaderFromLocalNs = Arrays.copyOf(mLeaderFromLocalNs, mSize * 2);
+            mSyncAccuraciesNs = Arrays.copyOf(mSyncAccuraciesNs, mSize * 2);
+        }
+        mLocalTimesNs[mSize] = mSize == 0 ? localTimeNs : Math.max(localTimeNs, mLocalTimesNs[mSize - 1]);
+        mLeaderFromLocalNs[mSize] = leaderFromLocalNs;
+        mSyncAccuraciesNs[mSize] = syncAccuracyNs;
+        mSize++;
+    }
+
+    /**
+     * Number of offsets recorded, including the one in effect when the journal was started.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Index of the entry in effect at the given local time.
+     */
+    private int entryAt(long localTimeNs) {
+        // Index of the last entry with a local time <= localTimeNs, or the first entry.
+        int low = 1;
+        int high = mSize - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (mLocalTimesNs[middle] <= localTimeNs) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Calculates the leader time of the given local time with the offset in effect at that time.
+     *
+     * @param localTimeNs given local time (local clock SystemClock.elapsedRealtimeNanos() domain).
+     * @return leader synchronized time in nanoseconds.
+     */
+    @Override
+    public synchronized long leaderTimeForLocalTimeNs(long localTimeNs) {
+        return localTimeNs - mLeaderFromLocalNs[entryAt(localTimeNs)];
+    }
+
+    /**
+     * Sync accuracy reported for the offset in effect at the given local time, 0 if unknown.
+     */
+    public synchronized long syncAccuracyForLocalTimeNs(long localTimeNs) {
+        return mSyncAccuraciesNs[entryAt(localTimeNs)];
+    }
+
+    /**
+     * Converts a batch of local timestamps to leader time, with the same result as {@link
+     * #leaderTimeForLocalTimeNs(long)} for each of them. Timestamps in increasing order are converted
+     * in a single pass over the journal.
+     *
+     * @param localTimesNs local timestamps to convert.
+     * @param leaderTimesNs receives the converted timestamps, may be the same array as localTimesNs.
+     * @param count number of timestamps to convert.
+     */
+    public synchronized void leaderTimesForLocalTimesNs(
+            long[] localTimesNs, long[] leaderTimesNs, int count) {
+        int entry = 0;
+        long previousNs = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            final long localTimeNs = localTimesNs[i];
+            if (localTimeNs < previousNs) {
+                // Out of order timestamp, restart the search.
+                entry = entryAt(localTimeNs);
+            } else {
+                while (entry + 1 < mSize && mLocalTimesNs[entry + 1] <= localTimeNs) {
+                    entry++;
+                }
+            }
+            previousNs = localTimeNs;
+            leaderTimesNs[i] = localTimeNs - mLeaderFromLocalNs[entry];
+        }
+    }
+
+    /**
+     * Writes the journal as CSV rows of "local_time_ns,leader_from_local_ns,sync_accuracy_ns", so
+     * that recorded local timestamps can also be re-mapped after the fact.
+     */
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        for (int i = 0; i < mSize; i++) {
+            writer.append(Long.toString(mLocalTimesNs[i])).append(',')
+                    .append(Long.toString(mLeaderFromLocalNs[i])).append(',')
+                    .append(Long.toString(mSyncAccuraciesNs[i])).append('\n');
+        }
+    }
+}
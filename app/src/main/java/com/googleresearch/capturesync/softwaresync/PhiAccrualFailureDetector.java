@@ -0,0 +1,103 @@
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Phi accrual failure detector for one peer, replacing a fixed stale timeout.
+ *
+ * <p>The detector keeps a window of the intervals between heartbeats of the peer and estimates
+ * their normal distribution. Instead of a binary alive/stale state it reports phi, the negative
+ * decimal logarithm of the probability that a heartbeat arrives even later than the time elapsed
+ * since the peer was last heard from. A phi of 1 means a 10% chance that the peer is still alive,
+ * a phi of 8 a chance of 10^-8. Since the distribution follows the observed intervals, a congested
+ * network with jittery heartbeats raises the suspicion more slowly than a quiet one, and a single
+ * late heartbeat does not make the peer stale.
+ *
+ * <p>Heartbeats update the interval statistics. Any other traffic from the peer only proves that it
+ * is alive, see {@link #onTraffic(long)}, so that piggy-backed status does not skew the expected
+ * heartbeat interval.
+ */
+final class PhiAccrualFailureDetector {
+    private final long[] mIntervalsNs = new long[SyncConstants.PHI_WINDOW_SIZE];
+    private int mCount = 0;
+    private int mNext = 0;
+    private double mSumNs = 0;
+    private double mSumSquaresNs = 0;
+
+    private long mLastHeartbeatNs;
+    private long mLastHeardNs;
+
+    /**
+     * Creates a detector for a peer first heard from at the given time, expecting heartbeats with
+     * the given period until actual intervals have been observed.
+     */
+    PhiAccrualFailureDetector(long nowNs, long expectedIntervalNs) {
+        mLastHeartbeatNs = nowNs;
+        mLastHeardNs = nowNs;
+        // Bootstrap with two samples around the expected interval, a standard deviation of a
+        // quarter of it.
+        addInterval(expectedIntervalNs - expectedIntervalNs / 4);
+        addInterval(expectedIntervalNs + expectedIntervalNs / 4);
+    }
+
+    /**
+     * Records a heartbeat of the peer.
+     */
+    synchronized void onHeartbeat(long nowNs) {
+        final long intervalNs = nowNs - mLastHeartbeatNs;
+        if (intervalNs > 0) {
+            addInterval(intervalNs);
+        }
+        mLastHeartbeatNs = nowNs;
+        mLastHeardNs = Math.max(mLastHeardNs, nowNs);
+    }
+
+    /**
+     * Records other traffic from the peer, which proves it alive without being a heartbeat.
+     */
+    synchronized void onTraffic(long nowNs) {
+        mLastHeardNs = Math.max(mLastHeardNs, nowNs);
+    }
+
+    private void addInterval(long intervalNs) {
+        if (mCount == mIntervalsNs.length) {
+            final long evictedNs = mIntervalsNs[mNext];
+            mSumNs -= evictedNs;
+            mSumSquaresNs -= (double) evictedNs * evictedNs;
+        } else {
+            mCount++;
+        }
+        mIntervalsNs[mNext] = intervalNs;
+        mNext = (mNext + 1) % mIntervalsNs.length;
+        mSumNs += intervalNs;
+        mSumSquaresNs += (double) intervalNs * intervalNs;
+    }
+
+    /**
+     * Suspicion level of the peer having failed at the given time.
+     */
+    synchronized double phi(long nowNs) {
+        final double elapsedNs = nowNs - mLastHeardNs;
+        final double meanNs = mSumNs / mCount + SyncConstants.PHI_ACCEPTABLE_PAUSE_NS;
+        final double varianceNs = Math.max(0, mSumSquaresNs / mCount - (mSumNs / mCount) * (mSumNs / mCount));
+        final double stdDevNs = Math.max(Math.sqrt(varianceNs), SyncConstants.PHI_MIN_STD_DEV_NS);
+
+        // Logistic approximation of the normal cumulative distribution function.
+        final double y = (elapsedNs - meanNs) / stdDevNs;
+        final double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        final double probabilityLater = elapsedNs > meanNs ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+        return -Math.log10(Math.max(probabilityLater, Double.MIN_VALUE));
+    }
+
+    /**
+     * Whether the peer is not suspected to have failed at the given time.
+     */
+    boolean isAvailable(long nowNs) {
+        return phi(nowNs) < SyncConstants.PHI_SUSPECT_THRESHOLD;
+    }
+
+    /**
+     * Local time the peer was last heard from.
+     */
+    synchronized long lastHeardNs() {
+        return mLastHeardNs;
+    }
+}
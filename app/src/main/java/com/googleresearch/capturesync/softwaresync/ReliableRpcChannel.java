@@ -0,0 +1,364 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acknowledged delivery of RPCs on top of the unreliable UDP rpc socket of {@link
+ * SoftwareSyncBase}.
+ *
+ * <p>A reliable RPC is wrapped into a {@link SyncConstants#METHOD_RELIABLE_RPC} envelope of the
+ * form "sequence,method,targets,payload", where targets is empty for unicast envelopes. The
+ * receiver answers every envelope with a {@link
+ * SyncConstants#METHOD_RELIABLE_RPC_ACK} carrying the sequence number, and only dispatches the
+ * wrapped RPC the first time a sequence number is seen from a given sender. The sender
+ * retransmits to every target that has not acknowledged yet, doubling the timeout after each
+ * attempt, until all targets confirm or {@link SyncConstants#RELIABLE_RPC_MAX_ATTEMPTS} is
+ * reached.
+ *
+ * <p>Optionally, a subnet broadcast address can be given for an RPC. Then, as long as at least
+ * {@link SyncConstants#BROADCAST_FAN_OUT_MIN_CLIENTS} targets have not acknowledged it, each
+ * attempt costs a single broadcast packet instead of one packet per target. Broadcast envelopes
+ * list the targets which have not acknowledged yet, separated by semicolons, so that other devices
+ * on the subnet and this device itself, to which the broadcast loops back, neither acknowledge
+ * nor dispatch them.
+ */
+final class ReliableRpcChannel implements Closeable {
+    private static final String TAG = "ReliableRpcChannel";
+
+    private final SoftwareSyncBase mSoftwareSync;
+
+    /**
+     * Sequence numbers are seeded from the local clock, so that a restarted sender does not reuse
+     * numbers still remembered by the receivers' duplicate filters.
+     */
+    private final AtomicLong mNextSequence;
+
+    /**
+     * Deliveries waiting for acknowledges, by sequence number.
+     */
+    private final Map<Long, RpcDelivery> mPendingDeliveries = new ConcurrentHashMap<>();
+
+    /**
+     * Recently received sequence numbers per sender, used for duplicate suppression.
+     */
+    private final Map<InetAddress, SequenceWindow> mReceivedSequences = new HashMap<>();
+
+    private final Object mReceivedSequencesLock = new Object();
+
+    /**
+     * Host addresses of this device's network interfaces, refreshed every {@link
+     * SyncConstants#LOCAL_ADDRESSES_REFRESH_NS} instead of listing the interfaces per envelope.
+     */
+    private Set<String> mLocalAddresses = Collections.emptySet();
+
+    private long mLocalAddressesRefreshTimeNs;
+
+    private final Object mLocalAddressesLock = new Object();
+
+    /**
+     * Sends and retransmits envelopes off the caller's thread.
+     */
+    private final ScheduledExecutorService mRetransmitScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
+    ReliableRpcChannel(SoftwareSyncBase softwareSync, long initialSequence) {
+        mSoftwareSync = softwareSync;
+        mNextSequence = new AtomicLong(initialSequence);
+    }
+
+    /**
+     * Sends an RPC to the given addresses, retransmitting until every address acknowledges it or
+     * the attempts are exhausted.
+     *
+     * @return the delivery future reporting which addresses confirmed the RPC.
+     * @throws IllegalArgumentException if the wrapped payload is too big even when fragmented.
+     */
+    RpcDelivery send(int method, String payload, Collection<InetAddress> addresses) {
+        return send(method, payload, addresses, null);
+    }
+
+    /**
+     * Sends an RPC to the given addresses as {@link #send(int, String, Collection)} does, using
+     * the given subnet broadcast address to reach many of them at once.
+     *
+     * @param broadcastAddress subnet broadcast address of the addresses, may be null.
+     */
+    RpcDelivery send(
+            int method, String payload, Collection<InetAddress> addresses, InetAddress broadcastAddress) {
+        final long sequence = mNextSequence.getAndIncrement();
+        // The broadcast envelope listing all addresses is the largest one that can be sent.
+        final String largestEnvelope =
+                envelope(sequence, method, broadcastAddress != null ? addresses : null, payload);
+        if (!mSoftwareSync.canSendRpc(largestEnvelope)) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Reliable RPC arguments too big %d v %d fragments",
+                            largestEnvelope.getBytes().length, SyncConstants.MAX_RPC_FRAGMENTS));
+        }
+
+        RpcDelivery delivery = new RpcDelivery(sequence, method, addresses);
+        if (addresses.isEmpty()) {
+            delivery.complete();
+            return delivery;
+        }
+        mPendingDeliveries.put(sequence, delivery);
+        schedule(() -> transmit(delivery, payload, broadcastAddress), 0);
+        return delivery;
+    }
+
+    /**
+     * Builds an envelope, naming the targets if it is broadcast.
+     *
+     * @param targets the addresses a broadcast envelope is meant for, null for unicast envelopes.
+     */
+    private static String envelope(
+            long sequence, int method, Collection<InetAddress> targets, String payload) {
+        StringBuilder envelope = new StringBuilder();
+        envelope.append(sequence).append(',').append(method).append(',');
+        if (targets != null) {
+            boolean first = true;
+            for (InetAddress target : targets) {
+                if (!first) {
+                    envelope.append(';');
+                }
+                envelope.append(target.getHostAddress());
+                first = false;
+            }
+        }
+        return envelope.append(',').append(payload).toString();
+    }
+
+    /**
+     * Sends the envelope to every target which has not acknowledged it yet and schedules the next
+     * attempt, or completes the delivery if the attempts are exhausted.
+     */
+    private void transmit(RpcDelivery delivery, String payload, InetAddress broadcastAddress) {
+        if (delivery.isDone()) {
+            mPendingDeliveries.remove(delivery.getSequence());
+            return;
+        }
+        final int attempt = delivery.nextAttempt();
+        if (attempt > SyncConstants.RELIABLE_RPC_MAX_ATTEMPTS) {
+            Log.w(
+                    TAG,
+                    String.format(
+                            "RPC %d (method %d) unconfirmed after %d attempts by: %s",
+                            delivery.getSequence(),
+                            delivery.getMethod(),
+                            SyncConstants.RELIABLE_RPC_MAX_ATTEMPTS,
+                            delivery.getUnconfirmed()));
+            finish(delivery);
+            return;
+        }
+
+        final Set<InetAddress> unconfirmed = delivery.getUnconfirmed();
+        if (broadcastAddress != null && unconfirmed.size() >= SyncConstants.BROADCAST_FAN_OUT_MIN_CLIENTS) {
+            transmitTo(
+                    delivery,
+                    envelope(delivery.getSequence(), delivery.getMethod(), unconfirmed, payload),
+                    broadcastAddress);
+        } else {
+            final String envelope = envelope(delivery.getSequence(), delivery.getMethod(), null, payload);
+            for (InetAddress address : unconfirmed) {
+                transmitTo(delivery, envelope, address);
+            }
+        }
+
+        final long timeoutMs =
+                SyncConstants.RELIABLE_RPC_INITIAL_TIMEOUT_MS
+                        * (long) Math.pow(SyncConstants.RELIABLE_RPC_BACKOFF_MULTIPLIER, attempt - 1);
+        schedule(() -> transmit(delivery, payload, broadcastAddress), timeoutMs);
+    }
+
+    private void transmitTo(RpcDelivery delivery, String envelope, InetAddress address) {
+        try {
+            mSoftwareSync.sendRpc(SyncConstants.METHOD_RELIABLE_RPC, envelope, address);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to send RPC " + delivery.getSequence() + " to " + address + ": " + e);
+        }
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void schedule(Runnable task, long delayMs) {
+        try {
+            mRetransmitScheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The channel has been closed, pending deliveries are completed by close().
+        }
+    }
+
+    private void finish(RpcDelivery delivery) {
+        mPendingDeliveries.remove(delivery.getSequence());
+        delivery.complete();
+    }
+
+    /**
+     * Handles an acknowledge sent by the given address.
+     *
+     * @param payload the acknowledged sequence number.
+     */
+    void onAck(InetAddress address, String payload) {
+        final long sequence;
+        try {
+            sequence = Long.parseLong(payload);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Received a corrupt acknowledge: " + payload);
+            return;
+        }
+        RpcDelivery delivery = mPendingDeliveries.get(sequence);
+        if (delivery == null) {
+            // Late acknowledge of a retransmission, or of an already completed delivery.
+            return;
+        }
+        if (delivery.confirm(address)) {
+            finish(delivery);
+        }
+    }
+
+    /**
+     * Handles a reliable RPC envelope sent by the given address: acknowledges it and dispatches the
+     * wrapped RPC unless it is a duplicate or a broadcast meant for other devices.
+     *
+     * @param envelope format of "sequence,method,targets,payload".
+     */
+    void onReliableRpc(InetAddress address, String envelope) {
+        String[] parts = envelope.split(",", 4);
+        if (parts.length != 4) {
+            Log.e(TAG, "Reliable RPC has the wrong format, expected 4 comma-delimited parts. Skipping.");
+            return;
+        }
+        if (!parts[2].isEmpty() && !isTargeted(parts[2].split(";"))) {
+            // Broadcast meant for other devices, or own broadcast looped back. Not acknowledged, so
+            // that the sender keeps retransmitting to the targets which have not received it.
+            return;
+        }
+        final long sequence;
+        final int method;
+        try {
+            sequence = Long.parseLong(parts[0]);
+            method = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Reliable RPC has a corrupt header: " + parts[0] + "," + parts[1]);
+            return;
+        }
+
+        // Acknowledge every copy, since the acknowledge of the first one may have been lost.
+        mSoftwareSync.sendRpc(SyncConstants.METHOD_RELIABLE_RPC_ACK, parts[0], address);
+
+        if (!markReceived(address, sequence)) {
+            Log.v(TAG, "Dropping duplicate RPC " + sequence + " from " + address);
+            return;
+        }
+        mSoftwareSync.dispatchReceivedRpc(method, parts[3], address);
+    }
+
+    /**
+     * Determines if one of the targets of a broadcast envelope is an address of this device.
+     */
+    private boolean isTargeted(String[] targets) {
+        Set<String> localAddresses = getLocalAddresses();
+        for (String target : targets) {
+            if (localAddresses.contains(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> getLocalAddresses() {
+        synchronized (mLocalAddressesLock) {
+            final long localTimeNs = mSoftwareSync.mLocalClock.read();
+            if (mLocalAddresses.isEmpty()
+                    || localTimeNs - mLocalAddressesRefreshTimeNs
+                    >= SyncConstants.LOCAL_ADDRESSES_REFRESH_NS) {
+                Set<String> localAddresses = new HashSet<>();
+                try {
+                    for (InetAddress localAddress : NetworkHelpers.getLocalAddresses()) {
+                        localAddresses.add(localAddress.getHostAddress());
+                    }
+                } catch (SocketException e) {
+                    Log.w(TAG, "Failed to list the local addresses: " + e);
+                }
+                mLocalAddresses = localAddresses;
+                mLocalAddressesRefreshTimeNs = localTimeNs;
+            }
+            return mLocalAddresses;
+        }
+    }
+
+    /**
+     * Records the sequence number as received from the address.
+     *
+     * @return false if it had already been received.
+     */
+    private boolean markReceived(InetAddress address, long sequence) {
+        synchronized (mReceivedSequencesLock) {
+            SequenceWindow window = mReceivedSequences.get(address);
+            if (window == null) {
+                window = new SequenceWindow(SyncConstants.RELIABLE_RPC_DUPLICATE_WINDOW);
+                mReceivedSequences.put(address, window);
+            }
+            return window.add(sequence);
+        }
+    }
+
+    /**
+     * Stops retransmissions and completes all pending deliveries with the acknowledges received so
+     * far.
+     */
+    @Override
+    public void close() {
+        mRetransmitScheduler.shutdownNow();
+        for (RpcDelivery delivery : mPendingDeliveries.values()) {
+            delivery.complete();
+        }
+        mPendingDeliveries.clear();
+    }
+
+    /**
+     * Bounded set of the most recently received sequence numbers of one sender.
+     */
+    static final class SequenceWindow {
+        private final int mCapacity;
+        private final LinkedHashSet<Long> mSequences = new LinkedHashSet<>();
+
+        SequenceWindow(int capacity) {
+            mCapacity = capacity;
+        }
+
+        /**
+         * Adds the sequence number, evicting the oldest one if the window is full.
+         *
+         * @return false if the sequence number is already in the window.
+         */
+        boolean add(long sequence) {
+            if (!mSequences.add(sequence)) {
+                return false;
+            }
+            if (mSequences.size() > mCapacity) {
+                Iterator<Long> oldest = mSequences.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            return true;
+        }
+    }
+}
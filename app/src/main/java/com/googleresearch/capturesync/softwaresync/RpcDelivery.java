@@ -0,0 +1,173 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion future of an RPC sent with acknowledged delivery through {@link ReliableRpcChannel}.
+ *
+ * <p>The delivery completes once every target has acknowledged the RPC, once the retransmission
+ * attempts are exhausted, or once it is cancelled. Its result is the set of targets that confirmed
+ * the RPC.
+ */
+public final class RpcDelivery implements Future<Set<InetAddress>> {
+
+    /**
+     * Callback invoked once a delivery completes.
+     */
+    public interface Listener {
+        void onDeliveryComplete(RpcDelivery delivery);
+    }
+
+    private final long mSequence;
+    private final int mMethod;
+    private final Set<InetAddress> mTargets;
+    private final Set<InetAddress> mConfirmed = new HashSet<>();
+    private final List<Listener> mListeners = new ArrayList<>();
+    private final CountDownLatch mCompleted = new CountDownLatch(1);
+    private int mAttempts = 0;
+    private boolean mCancelled = false;
+
+    RpcDelivery(long sequence, int method, Collection<InetAddress> targets) {
+        mSequence = sequence;
+        mMethod = method;
+        mTargets = Collections.unmodifiableSet(new HashSet<>(targets));
+    }
+
+    /**
+     * Sequence number identifying this RPC on the sender.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public int getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Number of times the RPC has been transmitted so far.
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    public Set<InetAddress> getTargets() {
+        return mTargets;
+    }
+
+    public synchronized Set<InetAddress> getConfirmed() {
+        return new HashSet<>(mConfirmed);
+    }
+
+    public synchronized Set<InetAddress> getUnconfirmed() {
+        Set<InetAddress> unconfirmed = new HashSet<>(mTargets);
+        unconfirmed.removeAll(mConfirmed);
+        return unconfirmed;
+    }
+
+    /**
+     * Indicates whether every target has acknowledged the RPC.
+     */
+    public synchronized boolean isFullyConfirmed() {
+        return mConfirmed.containsAll(mTargets);
+    }
+
+    /**
+     * Registers a listener to be called once the delivery completes. If it has already completed,
+     * the listener is called immediately on the calling thread.
+     */
+    public void whenComplete(Listener listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onDeliveryComplete(this);
+    }
+
+    /**
+     * Records an acknowledge from the given address.
+     *
+     * @return true if all targets have now confirmed the RPC.
+     */
+    synchronized boolean confirm(InetAddress address) {
+        if (mTargets.contains(address)) {
+            mConfirmed.add(address);
+        }
+        return isFullyConfirmed();
+    }
+
+    /**
+     * Increments and returns the number of transmission attempts.
+     */
+    synchronized int nextAttempt() {
+        return ++mAttempts;
+    }
+
+    /**
+     * Marks the delivery as completed and notifies listeners. Completing more than once has no
+     * effect.
+     */
+    void complete() {
+        final List<Listener> listeners;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            mCompleted.countDown();
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        for (Listener listener : listeners) {
+            listener.onDeliveryComplete(this);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mCancelled = true;
+        }
+        complete();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mCompleted.getCount() == 0;
+    }
+
+    @Override
+    public Set<InetAddress> get() throws InterruptedException {
+        mCompleted.await();
+        return getConfirmed();
+    }
+
+    @Override
+    public Set<InetAddress> get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        if (!mCompleted.await(timeout, unit)) {
+            throw new TimeoutException("RPC delivery " + mSequence + " has not completed yet");
+        }
+        return getConfirmed();
+    }
+}
@@ -0,0 +1,136 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches received RPCs to their handlers on named lanes, each a single thread executor.
+ *
+ * <p>RPCs of the same lane are handled one after the other in the order received, while
+ * different lanes run independently, so that a slow handler only delays RPCs of its own lane. The
+ * {@link #SYNC_LANE} handles heartbeats, offset updates and reliable RPC envelopes and
+ * acknowledges, whose timely handling synchronization depends on. Methods not assigned to a lane
+ * with {@link #assignLane(String, int...)} are handled on the {@link #DEFAULT_LANE}.
+ *
+ * <p>Queueing and execution latency is recorded per method, see {@link RpcLatencyStats}.
+ */
+final class RpcDispatcher implements Closeable {
+    private static final String TAG = "RpcDispatcher";
+
+    static final String SYNC_LANE = "sync";
+    static final String DEFAULT_LANE = "default";
+
+    private final Ticker mClock;
+    private final Map<String, ExecutorService> mLanes = new HashMap<>();
+    private final ConcurrentMap<Integer, ExecutorService> mMethodLanes = new ConcurrentHashMap<>();
+    private final ExecutorService mDefaultLane;
+    private final ConcurrentMap<Integer, RpcLatencyStats> mStats = new ConcurrentHashMap<>();
+
+    RpcDispatcher(Ticker clock) {
+        mClock = clock;
+        mDefaultLane = getOrCreateLane(DEFAULT_LANE);
+        assignLane(
+                SYNC_LANE,
+                SyncConstants.METHOD_HEARTBEAT,
+                SyncConstants.METHOD_HEARTBEAT_ACK,
+                SyncConstants.METHOD_OFFSET_UPDATE,
+                SyncConstants.METHOD_RELIABLE_RPC,
+                SyncConstants.METHOD_RELIABLE_RPC_ACK);
+    }
+
+    private synchronized ExecutorService getOrCreateLane(String lane) {
+        ExecutorService executor = mLanes.get(lane);
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor();
+            mLanes.put(lane, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Handles the given methods on the named lane from now on, creating the lane if needed.
+     */
+    void assignLane(String lane, int... methods) {
+        final ExecutorService executor = getOrCreateLane(lane);
+        for (int method : methods) {
+            mMethodLanes.put(method, executor);
+        }
+    }
+
+    /**
+     * Runs the handler of an RPC of the given method on the method's lane.
+     */
+    void dispatch(int method, Runnable handler) {
+        ExecutorService lane = mMethodLanes.get(method);
+        if (lane == null) {
+            lane = mDefaultLane;
+        }
+        final long receivedNs = mClock.read();
+        try {
+            lane.execute(
+                    () -> {
+                        final long startNs = mClock.read();
+                        try {
+                            handler.run();
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Handler of RPC method " + method + " failed: " + e);
+                        } finally {
+                            record(method, startNs - receivedNs, mClock.read() - startNs);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            // The dispatcher has been closed.
+        }
+    }
+
+    private void record(int method, long queueNs, long executionNs) {
+        RpcLatencyStats stats = mStats.get(method);
+        if (stats == null) {
+            final RpcLatencyStats newStats = new RpcLatencyStats(method);
+            stats = mStats.putIfAbsent(method, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        stats.record(queueNs, executionNs);
+        if (queueNs + executionNs > SyncConstants.RPC_SLOW_DISPATCH_NS) {
+            Log.w(
+                    TAG,
+                    String.format(
+                            "Slow RPC method %d: queued %,.1f ms, executed %,.1f ms",
+                            method,
+                            TimeUtils.nanosToMillis((double) queueNs),
+                            TimeUtils.nanosToMillis((double) executionNs)));
+        }
+    }
+
+    /**
+     * Returns a snapshot of the latency statistics by method.
+     */
+    Map<Integer, RpcLatencyStats> getLatencyStats() {
+        Map<Integer, RpcLatencyStats> snapshot = new HashMap<>();
+        for (RpcLatencyStats stats : mStats.values()) {
+            snapshot.put(stats.method(), stats.snapshot());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Stops all lanes once the RPCs already queued are handled, rejecting new ones.
+     */
+    @Override
+    public synchronized void close() {
+        for (ExecutorService executor : mLanes.values()) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Fragmentation and reassembly of RPCs too big for a single packet of the rpc socket.
+ *
+ * <p>An RPC whose payload does not fit into {@link SyncConstants#RPC_BUFFER_SIZE} is optionally
+ * deflated and split into {@link SyncConstants#METHOD_RPC_FRAGMENT} packets of the form
+ * [int METHOD_RPC_FRAGMENT][long message id][int method][short index][short count][byte flags]
+ * [data]. The receiver collects the fragments of a message per sender and dispatches the RPC once
+ * all of them arrived. Messages missing fragments for {@link
+ * SyncConstants#RPC_REASSEMBLY_TIMEOUT_NS} are dropped, so a lost fragment loses the whole RPC as a
+ * lost packet does, and reliable RPCs are retransmitted in full.
+ *
+ * <p>RPCs fitting into a single packet are not affected.
+ */
+final class RpcFragments {
+    private static final String TAG = "RpcFragments";
+
+    static final int HEADER_SIZE = 4 + 8 + 4 + 2 + 2 + 1;
+    private static final int MAX_DATA_SIZE = SyncConstants.RPC_BUFFER_SIZE - HEADER_SIZE;
+    private static final byte FLAG_DEFLATED = 1;
+
+    private final Ticker mClock;
+    private final AtomicLong mNextMessageId;
+
+    /**
+     * Messages being reassembled, only accessed on the rpc thread.
+     */
+    private final Map<MessageKey, PartialMessage> mPartialMessages = new HashMap<>();
+
+    private volatile boolean mCompressionEnabled = true;
+
+    /**
+     * A reassembled RPC.
+     */
+    static final class Message {
+        final int method;
+        final String payload;
+
+        Message(int method, String payload) {
+            this.method = method;
+            this.payload = payload;
+        }
+    }
+
+    RpcFragments(Ticker clock) {
+        mClock = clock;
+        mNextMessageId = new AtomicLong(clock.read());
+    }
+
+    /**
+     * Enables deflating fragmented payloads. A payload is only sent deflated if that makes it
+     * smaller.
+     */
+    void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    /**
+     * Whether a payload can be sent, as a single packet or as fragments.
+     */
+    boolean canSend(byte[] payload) {
+        final int maxSize = SyncConstants.MAX_RPC_FRAGMENTS * MAX_DATA_SIZE;
+        return payload.length <= maxSize || (mCompressionEnabled && deflate(payload).length <= maxSize);
+    }
+
+    /**
+     * Splits an RPC into fragment packets.
+     *
+     * @throws IllegalArgumentException if the RPC needs more than {@link
+     *                                  SyncConstants#MAX_RPC_FRAGMENTS} fragments.
+     */
+    List<byte[]> split(int method, byte[] payload) {
+        byte[] data = payload;
+        byte flags = 0;
+        if (mCompressionEnabled) {
+            final byte[] deflated = deflate(payload);
+            if (deflated.length < payload.length) {
+                data = deflated;
+                flags = FLAG_DEFLATED;
+            }
+        }
+        final int count = (data.length + MAX_DATA_SIZE - 1) / MAX_DATA_SIZE;
+        if (count > SyncConstants.MAX_RPC_FRAGMENTS) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "RPC arguments too big %d v %d even when fragmented",
+                            data.length, SyncConstants.MAX_RPC_FRAGMENTS * MAX_DATA_SIZE));
+        }
+
+        final long messageId = mNextMessageId.getAndIncrement();
+        final List<byte[]> packets = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            final int offset = index * MAX_DATA_SIZE;
+            final int length = Math.min(MAX_DATA_SIZE, data.length - offset);
+            packets.add(
+                    ByteBuffer.allocate(HEADER_SIZE + length)
+                            .putInt(SyncConstants.METHOD_RPC_FRAGMENT)
+                            .putLong(messageId)
+                            .putInt(method)
+                            .putShort((short) index)
+                            .putShort((short) count)
+                            .put(flags)
+                            .put(data, offset, length)
+                            .array());
+        }
+        return packets;
+    }
+
+    /**
+     * Adds a received fragment packet.
+     *
+     * @return the reassembled RPC if this was its last missing fragment, otherwise null.
+     */
+    Message onFragment(InetAddress sender, byte[] packet, int length) {
+        if (length < HEADER_SIZE) {
+            Log.e(TAG, "Fragment from " + sender + " too short, skipping.");
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(packet, 0, length);
+        buffer.getInt(); // METHOD_RPC_FRAGMENT.
+        final long messageId = buffer.getLong();
+        final int method = buffer.getInt();
+        final int index = buffer.getShort();
+        final int count = buffer.getShort();
+        final byte flags = buffer.get();
+        if (count <= 0 || count > SyncConstants.MAX_RPC_FRAGMENTS || index < 0 || index >= count) {
+            Log.e(TAG, "Fragment " + index + "/" + count + " from " + sender + " is corrupt, skipping.");
+            return null;
+        }
+
+        final long now = mClock.read();
+        dropExpiredMessages(now);
+        final MessageKey key = new MessageKey(sender, messageId);
+        PartialMessage message = mPartialMessages.get(key);
+        if (message == null) {
+            message = new PartialMessage(method, count, flags, now);
+            mPartialMessages.put(key, message);
+        }
+        if (!message.add(index, Arrays.copyOfRange(packet, HEADER_SIZE, length))) {
+            return null;
+        }
+
+        mPartialMessages.remove(key);
+        try {
+            return new Message(message.method, new String(message.assemble()));
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Failed to inflate RPC " + messageId + " from " + sender + ": " + e);
+            return null;
+        }
+    }
+
+    private void dropExpiredMessages(long now) {
+        final Iterator<Map.Entry<MessageKey, PartialMessage>> it = mPartialMessages.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<MessageKey, PartialMessage> entry = it.next();
+            if (now - entry.getValue().firstReceivedNs > SyncConstants.RPC_REASSEMBLY_TIMEOUT_NS) {
+                Log.w(
+                        TAG,
+                        String.format(
+                                "Dropping RPC %d from %s, %d of %d fragments missing.",
+                                entry.getKey().messageId,
+                                entry.getKey().sender,
+                                entry.getValue().missing,
+                                entry.getValue().fragments.length));
+                it.remove();
+            }
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2);
+            final byte[] chunk = new byte[SyncConstants.RPC_BUFFER_SIZE];
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            final byte[] chunk = new byte[SyncConstants.RPC_BUFFER_SIZE];
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(chunk);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated deflated data");
+                }
+                output.write(chunk, 0, inflated);
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static final class MessageKey {
+        final InetAddress sender;
+        final long messageId;
+
+        MessageKey(InetAddress sender, long messageId) {
+            this.sender = sender;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MessageKey)) {
+                return false;
+            }
+            MessageKey other = (MessageKey) o;
+            return messageId == other.messageId && sender.equals(other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sender.hashCode() + (int) (messageId ^ (messageId >>> 32));
+        }
+    }
+
+    private static final class PartialMessage {
+        final int method;
+        final byte flags;
+        final long firstReceivedNs;
+        final byte[][] fragments;
+        int missing;
+
+        PartialMessage(int method, int count, byte flags, long firstReceivedNs) {
+            this.method = method;
+            this.flags = flags;
+            this.firstReceivedNs = firstReceivedNs;
+            fragments = new byte[count][];
+            missing = count;
+        }
+
+        /**
+         * @return true if the message is complete.
+         */
+        boolean add(int index, byte[] data) {
+            if (index < fragments.length && fragments[index] == null) {
+                fragments[index] = data;
+                missing--;
+            }
+            return missing == 0;
+        }
+
+        byte[] assemble() throws DataFormatException {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(fragments.length * MAX_DATA_SIZE);
+            for (byte[] fragment : fragments) {
+                output.write(fragment, 0, fragment.length);
+            }
+            final byte[] data = output.toByteArray();
+            return (flags & FLAG_DEFLATED) != 0 ? inflate(data) : data;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import java.util.Locale;
+
+/**
+ * Queueing and execution latency of the received RPCs of one method, see {@link RpcDispatcher}.
+ * Queueing latency is the time an RPC waited in its lane between being received and its handler
+ * starting, execution latency the time its handler ran.
+ */
+public final class RpcLatencyStats {
+    private final int mMethod;
+    private long mCount;
+    private long mTotalQueueNs;
+    private long mMaxQueueNs;
+    private long mTotalExecutionNs;
+    private long mMaxExecutionNs;
+
+    RpcLatencyStats(int method) {
+        mMethod = method;
+    }
+
+    private RpcLatencyStats(RpcLatencyStats other) {
+        mMethod = other.mMethod;
+        mCount = other.mCount;
+        mTotalQueueNs = other.mTotalQueueNs;
+        mMaxQueueNs = other.mMaxQueueNs;
+        mTotalExecutionNs = other.mTotalExecutionNs;
+        mMaxExecutionNs = other.mMaxExecutionNs;
+    }
+
+    synchronized void record(long queueNs, long executionNs) {
+        mCount++;
+        mTotalQueueNs += queueNs;
+        mMaxQueueNs = Math.max(mMaxQueueNs, queueNs);
+        mTotalExecutionNs += executionNs;
+        mMaxExecutionNs = Math.max(mMaxExecutionNs, executionNs);
+    }
+
+    /**
+     * Returns a copy which is not affected by later RPCs.
+     */
+    synchronized RpcLatencyStats snapshot() {
+        return new RpcLatencyStats(this);
+    }
+
+    public int method() {
+        return mMethod;
+    }
+
+    public synchronized long count() {
+        return mCount;
+    }
+
+    public synchronized long meanQueueNs() {
+        return mCount == 0 ? 0 : mTotalQueueNs / mCount;
+    }
+
+    public synchronized long maxQueueNs() {
+        return mMaxQueueNs;
+    }
+
+    public synchronized long meanExecutionNs() {
+        return mCount == 0 ? 0 : mTotalExecutionNs / mCount;
+    }
+
+    public synchronized long maxExecutionNs() {
+        return mMaxExecutionNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.US,
+                "method %d: %d rpcs, queue mean %.2f ms max %.2f ms, execution mean %.2f ms max %.2f ms",
+                mMethod,
+                mCount,
+                TimeUtils.nanosToMillis((double) meanQueueNs()),
+                TimeUtils.nanosToMillis((double) mMaxQueueNs),
+                TimeUtils.nanosToMillis((double) meanExecutionNs()),
+                TimeUtils.nanosToMillis((double) mMaxExecutionNs));
+    }
+}
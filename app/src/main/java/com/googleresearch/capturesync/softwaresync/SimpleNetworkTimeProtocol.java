@@ -40,6 +40,11 @@ import java.util.concurrent.TimeUnit;
  *
  * <p>Provides a doSNTP function allowing the leader to initiate synchronization with a client
  * address. The SntpListener class is used by the clients to handle responding to these messages.
+ *
+ * <p>The synchronizing host is either the leader or a relay client synchronizing its own clients
+ * (see {@link SoftwareSyncRelay}). Offsets sent to clients are in the leader time domain, and their
+ * sync accuracy includes the host's own sync accuracy, so that the uncertainty accumulated over
+ * relays is reported to the clients.
  */
 public class SimpleNetworkTimeProtocol implements AutoCloseable {
     private static final String TAG = "SNTP";
@@ -58,15 +63,15 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
     private final Set<InetAddress> mClientSyncTasks = new HashSet<>();
 
     private final Object mClientSyncTasksLock = new Object();
-    private final SoftwareSyncLeader mLeader;
+    private final SoftwareSyncBase mHost;
     private final Ticker mLocalClock;
 
     public SimpleNetworkTimeProtocol(
-            Ticker localClock, DatagramSocket nptpSocket, int nptpPort, SoftwareSyncLeader leader) {
+            Ticker localClock, DatagramSocket nptpSocket, int nptpPort, SoftwareSyncBase host) {
         mLocalClock = localClock;
         mNptpSocket = nptpSocket;
         mNptpPort = nptpPort;
-        mLeader = leader;
+        mHost = host;
     }
 
     /**
@@ -91,7 +96,7 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
         mNptpExecutor.submit(
                 () -> {
                     // If the client no longer exists, no need to synchronize.
-                    if (!mLeader.getClients().containsKey(clientAddress)) {
+                    if (!mHost.hasSntpClient(clientAddress)) {
                         Log.w(TAG, "Client was removed, exiting SNTP routine.");
                         return true;
                     }
@@ -103,15 +108,23 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
 
                     if (response.status()) {
                         // Apply local offsetNs to bestOffset so everyone has the same offsetNs.
-                        final long alignedOffset = response.offsetNs() + mLeader.getLeaderFromLocalNs();
+                        final long alignedOffset = response.offsetNs() + mHost.getLeaderFromLocalNs();
+                        // Add the host's own uncertainty, which is non-zero for relays.
+                        response =
+                                SntpOffsetResponse.create(
+                                        response.offsetNs(),
+                                        response.syncAccuracyNs() + mHost.getSyncAccuracyNs(),
+                                        true);
 
                         // Update client sync accuracy locally.
-                        mLeader.updateClientWithOffsetResponse(clientAddress, response);
+                        mHost.updateClientWithOffsetResponse(clientAddress, response);
 
                         // Send an RPC to update the offsetNs on the client.
                         Log.d(TAG, "Sending offsetNs update to " + clientAddress + ": " + alignedOffset);
-                        mLeader.sendRpc(
-                                SyncConstants.METHOD_OFFSET_UPDATE, String.valueOf(alignedOffset), clientAddress);
+                        mHost.sendRpc(
+                                SyncConstants.METHOD_OFFSET_UPDATE,
+                                alignedOffset + "," + response.syncAccuracyNs(),
+                                clientAddress);
                     }
 
                     // Pop client from the queue regardless of success state. Clients  will be added back in
@@ -121,7 +134,7 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
                     }
 
                     if (response.status()) {
-                        mLeader.onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, clientAddress.toString());
+                        mHost.onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, clientAddress.toString());
                     }
 
                     return response.status();
@@ -85,9 +85,10 @@ public class SntpListener extends Thread {
                 buffer.putLong(2 * longSize, t1);
                 byte[] bufferArray = buffer.array();
 
-                // Send SNTP response back.
+                // Send SNTP response back to the sender's port, which is mNptpPort for the leader
+                // but an ephemeral port for a relay.
                 DatagramPacket response =
-                        new DatagramPacket(bufferArray, bufferArray.length, packet.getAddress(), mNptpPort);
+                        new DatagramPacket(bufferArray, bufferArray.length, packet.getAddress(), packet.getPort());
                 mNptpSocket.send(response);
             } catch (SocketTimeoutException e) {
                 // It is normal to time out most of the time, continue.
@@ -32,10 +32,12 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * SoftwareSyncBase is the abstract base class to SoftwareSyncLeader and SoftwareSyncClient, holding
@@ -48,14 +50,26 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     static final String TAG = "SoftwareSyncBase";
 
     private final ClientInfo mLocalClientInfo; // Client info for this device.
-    private final InetAddress mLeaderAddress;
+    private volatile InetAddress mLeaderAddress;
     final Ticker mLocalClock;
 
     /**
      * Offset to convert local time to leader time. leader_time = local_elapsed_time -
      * leader_from_local.
      */
-    private long mLeaderFromLocalNs = 0;
+    private volatile long mLeaderFromLocalNs = 0;
+
+    /**
+     * Accuracy of the current offset as reported by the leader, 0 if unknown.
+     */
+    private volatile long mSyncAccuracyNs = 0;
+
+    /**
+     * Journals recording offset changes for ongoing recordings.
+     */
+    private final List<OffsetJournal> mOffsetJournals = new CopyOnWriteArrayList<>();
+
+    private final Object mOffsetLock = new Object();
 
     /* SNTP Setup */
     final int mSntpPort;
@@ -67,9 +81,21 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     private final RpcThread mRpcListenerThread;
     final Map<Integer, RpcCallback> mRpcMap = new HashMap<>();
     /**
-     * Handle onRPC events on a separate thread.
+     * Handle onRPC events on separate threads, one per lane of methods.
      */
-    private final ExecutorService mRpcExecutor = Executors.newSingleThreadExecutor();
+    private final RpcDispatcher mRpcDispatcher;
+    /**
+     * Splits and reassembles RPCs too big for a single packet.
+     */
+    private final RpcFragments mRpcFragments;
+    /**
+     * Acknowledged delivery of RPCs on top of the rpc socket.
+     */
+    private final ReliableRpcChannel mReliableRpcChannel;
+    /**
+     * Runs actions at leader synchronized times.
+     */
+    private final TriggerScheduler mTriggerScheduler;
 
     SoftwareSyncBase(String name, Ticker localClock, InetAddress address, InetAddress leaderAddress) {
         mRpcPort = SyncConstants.RPC_PORT;
@@ -86,6 +112,7 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
         try {
             mRpcSocket = new DatagramSocket(null);
             mRpcSocket.setReuseAddress(true);
+            mRpcSocket.setBroadcast(true);
             mRpcSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
             mRpcSocket.bind(new InetSocketAddress(SyncConstants.RPC_PORT));
 
@@ -100,6 +127,11 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
             throw new IllegalArgumentException("Unable to open Sockets: " + e);
         }
 
+        mRpcDispatcher = new RpcDispatcher(localClock);
+        mRpcFragments = new RpcFragments(localClock);
+        mReliableRpcChannel = new ReliableRpcChannel(this, localClock.read());
+        mTriggerScheduler = new TriggerScheduler(localClock, this);
+
         // Start an RPC thread loop that listens for packets on the rpc socket, processes and calls
         // onRpc with the processed method and payload.
         mRpcListenerThread = new RpcThread();
@@ -128,6 +160,13 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
         return localTimeNs - mLeaderFromLocalNs;
     }
 
+    /**
+     * Returns the scheduler used to run actions at leader synchronized times on this device.
+     */
+    public TriggerScheduler getTriggerScheduler() {
+        return mTriggerScheduler;
+    }
+
     public String getName() {
         return mLocalClientInfo.name();
     }
@@ -140,6 +179,13 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
         return mLeaderAddress;
     }
 
+    /**
+     * Changes the leader address, after a leader failover.
+     */
+    void setLeaderAddress(InetAddress leaderAddress) {
+        mLeaderAddress = leaderAddress;
+    }
+
     /**
      * Returns get the localClock offsetNs between this devices local elapsed time and the leader in
      * nanoseconds.
@@ -149,10 +195,51 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     }
 
     /**
-     * Set the offsetNs between this device's local elapsed time and the leader synchronized time.
+     * Returns the accuracy of the current offset in nanoseconds as reported by the leader, 0 if
+     * unknown.
+     */
+    public long getSyncAccuracyNs() {
+        return mSyncAccuracyNs;
+    }
+
+    /**
+     * Set the offsetNs between this device's local elapsed time and the leader synchronized time, and
+     * record the change in every started {@link OffsetJournal}.
+     *
+     * @param value          the new leader_from_local offset.
+     * @param syncAccuracyNs accuracy of the new offset, 0 if unknown.
+     */
+    void setLeaderFromLocalNs(long value, long syncAccuracyNs) {
+        synchronized (mOffsetLock) {
+            mLeaderFromLocalNs = value;
+            mSyncAccuracyNs = syncAccuracyNs;
+            final long localTimeNs = mLocalClock.read();
+            for (OffsetJournal journal : mOffsetJournals) {
+                journal.record(localTimeNs, value, syncAccuracyNs);
+            }
+        }
+    }
+
+    /**
+     * Starts journaling offset changes, typically for the duration of a recording. The journal starts
+     * with the offset currently in effect.
+     *
+     * @return the journal, to be stopped with {@link #stopOffsetJournal(OffsetJournal)}.
      */
-    void setLeaderFromLocalNs(long value) {
-        mLeaderFromLocalNs = value;
+    public OffsetJournal startOffsetJournal() {
+        synchronized (mOffsetLock) {
+            OffsetJournal journal =
+                    new OffsetJournal(mLocalClock.read(), mLeaderFromLocalNs, mSyncAccuracyNs);
+            mOffsetJournals.add(journal);
+            return journal;
+        }
+    }
+
+    /**
+     * Stops recording offset changes in the journal. The journal stays usable for conversions.
+     */
+    public void stopOffsetJournal(OffsetJournal journal) {
+        mOffsetJournals.remove(journal);
     }
 
     void addPublicRpcCallbacks(Map<Integer, RpcCallback> callbacks) {
@@ -168,20 +255,33 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     }
 
     /**
-     * Sends a message with arguments to the specified address over the rpc socket.
+     * Sends a message with arguments to the specified address over the rpc socket. Messages too
+     * big for a single packet are sent as fragments, see {@link RpcFragments}.
+     *
+     * @throws IllegalArgumentException if the message is too big even when fragmented.
      */
     void sendRpc(int method, String arguments, InetAddress address) {
         byte[] messagePayload = arguments.getBytes();
         if (messagePayload.length + 4 > SyncConstants.RPC_BUFFER_SIZE) {
-            throw new IllegalArgumentException(
-                    String.format(
-                            "RPC arguments too big %d v %d",
-                            messagePayload.length + 4, SyncConstants.RPC_BUFFER_SIZE));
+            for (byte[] fragment : mRpcFragments.split(method, messagePayload)) {
+                sendPacket(fragment, address);
+            }
+            return;
         }
 
         byte[] fullPayload =
                 ByteBuffer.allocate(messagePayload.length + 4).putInt(method).put(messagePayload).array();
+        sendPacket(fullPayload, address);
+    }
 
+    /**
+     * Whether a message with the given arguments is small enough to be sent, possibly as fragments.
+     */
+    boolean canSendRpc(String arguments) {
+        return mRpcFragments.canSend(arguments.getBytes());
+    }
+
+    private void sendPacket(byte[] fullPayload, InetAddress address) {
         DatagramPacket packet = new DatagramPacket(fullPayload, fullPayload.length, address, mRpcPort);
         try {
             mRpcSocket.send(packet);
@@ -190,6 +290,44 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
         }
     }
 
+    /**
+     * Enables deflating RPCs which are sent as fragments, when that makes them smaller. Enabled by
+     * default.
+     */
+    public void setRpcCompressionEnabled(boolean enabled) {
+        mRpcFragments.setCompressionEnabled(enabled);
+    }
+
+    /**
+     * Sends a message with arguments to the specified address with acknowledged delivery, see
+     * {@link ReliableRpcChannel}. The receiver dispatches the message at most once.
+     *
+     * @return the delivery future reporting whether the address confirmed the message.
+     */
+    RpcDelivery sendReliableRpc(int method, String arguments, InetAddress address) {
+        return sendReliableRpc(method, arguments, Collections.singleton(address));
+    }
+
+    /**
+     * Sends a message with arguments to all the specified addresses with acknowledged delivery.
+     *
+     * @return the delivery future reporting which addresses confirmed the message.
+     */
+    RpcDelivery sendReliableRpc(int method, String arguments, Collection<InetAddress> addresses) {
+        return mReliableRpcChannel.send(method, arguments, addresses);
+    }
+
+    /**
+     * Sends a message with arguments to all the specified addresses with acknowledged delivery,
+     * using the given subnet broadcast address to reach many of them with a single packet.
+     *
+     * @return the delivery future reporting which addresses confirmed the message.
+     */
+    RpcDelivery sendReliableRpc(
+            int method, String arguments, Collection<InetAddress> addresses, InetAddress broadcastAddress) {
+        return mReliableRpcChannel.send(method, arguments, addresses, broadcastAddress);
+    }
+
     /**
      * RPC thread loop that listens for packets on the rpc socket, processes and calls onRpc with the
      * processed method and payload.
@@ -222,11 +360,22 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
                     // First 4 bytes is the integer method.
                     ByteBuffer packetByteBuffer = ByteBuffer.wrap(packet.getData());
                     int method = packetByteBuffer.getInt(); // From first 4 bytes.
-                    // Rest of the bytes are the payload.
-                    String payload = new String(packet.getData(), 4, packet.getLength() - 4);
 
-                    // Call onRpc with the method and payload in a separate thread.
-                    mRpcExecutor.submit(() -> onRpc(method, payload));
+                    InetAddress sender = packet.getAddress();
+                    onTrafficFrom(sender);
+
+                    if (method == SyncConstants.METHOD_RPC_FRAGMENT) {
+                        // Binary fragment, dispatched once the message is complete.
+                        RpcFragments.Message message =
+                                mRpcFragments.onFragment(sender, packet.getData(), packet.getLength());
+                        if (message != null) {
+                            routeReceivedRpc(message.method, message.payload, sender);
+                        }
+                    } else {
+                        // Rest of the bytes are the payload.
+                        String payload = new String(packet.getData(), 4, packet.getLength() - 4);
+                        routeReceivedRpc(method, payload, sender);
+                    }
 
                 } catch (SocketTimeoutException e) {
                     // Do nothing since this is a normal timeout of the receive.
@@ -241,6 +390,83 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
         }
     }
 
+    /**
+     * Called on the rpc thread for every packet received, so that any traffic from a peer proves it
+     * alive in addition to its heartbeats. Must be cheap.
+     */
+    void onTrafficFrom(InetAddress sender) {
+    }
+
+    /**
+     * Calls onRpc with the method and payload on the lane of the method. Reliable RPC envelopes and
+     * acknowledges need the sender address and are handled by the reliable channel instead.
+     */
+    private void routeReceivedRpc(int method, String payload, InetAddress sender) {
+        if (method == SyncConstants.METHOD_RELIABLE_RPC) {
+            mRpcDispatcher.dispatch(method, () -> mReliableRpcChannel.onReliableRpc(sender, payload));
+        } else if (method == SyncConstants.METHOD_RELIABLE_RPC_ACK) {
+            mRpcDispatcher.dispatch(method, () -> mReliableRpcChannel.onAck(sender, payload));
+        } else {
+            dispatchReceivedRpc(method, payload, sender);
+        }
+    }
+
+    /**
+     * Handles an RPC received over the network on the lane of its method.
+     */
+    void dispatchReceivedRpc(int method, String payload, InetAddress sender) {
+        mRpcDispatcher.dispatch(method, () -> onReceivedRpc(method, payload, sender));
+    }
+
+    /**
+     * Handles the given RPC methods on the named lane, one after the other in the order received,
+     * independently of the RPCs of other lanes. Heartbeats and offset updates have their own lane,
+     * other methods share a default lane unless assigned to one.
+     *
+     * @param lane    name of the lane, created on first use.
+     * @param methods user RPC method ids, must be greater than {@link
+     *                SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+     */
+    public void setRpcLane(String lane, int... methods) {
+        for (int method : methods) {
+            if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+                throw new IllegalArgumentException(
+                        String.format(
+                                "Given method id %s, User method ids must" + " be >= %s",
+                                method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+            }
+        }
+        mRpcDispatcher.assignLane(lane, methods);
+    }
+
+    /**
+     * Returns the queueing and execution latency of the RPCs received so far, by method.
+     */
+    public Map<Integer, RpcLatencyStats> getRpcLatencyStats() {
+        return mRpcDispatcher.getLatencyStats();
+    }
+
+    /**
+     * Handles an RPC received from the given address over the network, by default the same way as
+     * any other RPC.
+     */
+    void onReceivedRpc(int method, String payload, InetAddress sender) {
+        onRpc(method, payload);
+    }
+
+    /**
+     * Whether the address belongs to a client this device synchronizes with SNTP.
+     */
+    boolean hasSntpClient(InetAddress address) {
+        return false;
+    }
+
+    /**
+     * Records the SNTP result of a client this device synchronizes.
+     */
+    void updateClientWithOffsetResponse(InetAddress clientAddress, SntpOffsetResponse response) {
+    }
+
     /**
      * Handle RPCs using the existing RPC map.
      */
@@ -258,6 +484,9 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     @Override
     public void close() throws IOException {
         mRpcListenerThread.stopRunning();
+        mReliableRpcChannel.close();
+        mRpcDispatcher.close();
+        mTriggerScheduler.close();
         mRpcSocket.close();
         mSntpSocket.close();
     }
@@ -21,10 +21,17 @@ package com.googleresearch.capturesync.softwaresync;
 
 import android.util.Log;
 
+import net.sourceforge.opencamera.recsync.SyncSettingsContainer;
+
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -64,18 +71,79 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
      * Time of last leader response received in the clock domain of the leader's
      * SystemClock.elapsedRealTimeNanos().
      */
-    private long mLastLeaderResponseTimeNs;
+    private volatile long mLastLeaderResponseTimeNs;
+
+    private volatile long mLastLeaderOffsetResponseTimeNs;
+
+    /**
+     * Detects a failure of the leader from its heartbeat acknowledges and any other traffic, null
+     * until the leader first responded.
+     */
+    private volatile PhiAccrualFailureDetector mLeaderDetector;
+
+    /**
+     * Current period between heartbeats, only used on the heartbeat thread.
+     */
+    private long mHeartbeatPeriodNs = SyncConstants.HEARTBEAT_PERIOD_NS;
+
+    private volatile long mLastHeartbeatSentNs;
+
+    /**
+     * Local time of the last RPC other than a heartbeat sent to the leader.
+     */
+    private volatile long mLastTrafficToLeaderNs;
 
-    private long mLastLeaderOffsetResponseTimeNs;
+    /**
+     * Offset validity reported to the leader with the last heartbeat.
+     */
+    private volatile boolean mReportedValidOffset;
 
     private SntpListener mSntpThread;
 
+    /**
+     * Leader address given on creation, which an announce without an address refers to.
+     */
+    private final InetAddress mInitialLeaderAddress;
+
+    /**
+     * Clients of the leader as of the last replicated leader state, the leader election candidates.
+     */
+    private volatile List<ClientInfo> mPeers = Collections.emptyList();
+
+    /**
+     * Serialized settings saved on the leader as of the last replicated leader state, empty if none.
+     */
+    private volatile String mLeaderSavedSettings = "";
+
+    /**
+     * Whether this client has claimed the leadership after a leader failure.
+     */
+    private volatile boolean mLeadershipClaimed = false;
+
+    /**
+     * Sub-leader role for clients of this device, null unless the client is a relay.
+     */
+    private final SoftwareSyncRelay mRelay;
+
     public SoftwareSyncClient(
             String name,
             InetAddress address,
             InetAddress leaderAddress,
             Map<Integer, RpcCallback> rpcCallbacks) {
-        this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks);
+        this(name, address, leaderAddress, rpcCallbacks, false);
+    }
+
+    /**
+     * Creates a client which, if isRelay is set, also acts as a leader for devices connected to it,
+     * see {@link SoftwareSyncRelay}.
+     */
+    public SoftwareSyncClient(
+            String name,
+            InetAddress address,
+            InetAddress leaderAddress,
+            Map<Integer, RpcCallback> rpcCallbacks,
+            boolean isRelay) {
+        this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks, isRelay);
     }
 
     @SuppressWarnings("FutureReturnValueIgnored")
@@ -84,8 +152,11 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
             Ticker localClock,
             InetAddress address,
             InetAddress leaderAddress,
-            Map<Integer, RpcCallback> rpcCallbacks) {
+            Map<Integer, RpcCallback> rpcCallbacks,
+            boolean isRelay) {
         super(name, localClock, address, leaderAddress);
+        mInitialLeaderAddress = leaderAddress;
+        mRelay = isRelay ? new SoftwareSyncRelay(this, localClock) : null;
 
         // Add client-specific RPC callbacks.
 
@@ -93,7 +164,7 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
         mRpcMap.put(
                 SyncConstants.METHOD_HEARTBEAT_ACK,
                 payload -> {
-                    mLastLeaderResponseTimeNs = localClock.read();
+                    onLeaderResponse(/*isHeartbeat=*/ true);
                     Log.v(TAG, "Heartbeat acknowledge received from leader.");
                     updateState();
                 });
@@ -105,11 +176,39 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
 
                     Log.d(TAG, "Received offsetNs update: (" + payload + "), stopping sntp sync request.");
                     // Set the time offsetNs to the offsetNs passed in by the leader and update state.
-                    setLeaderFromLocalNs(Long.parseLong(payload));
+                    // Payload is "offset,syncAccuracy", older leaders send the offset only.
+                    final String[] parts = payload.split(",");
+                    final long previousSyncAccuracyNs = getSyncAccuracyNs();
+                    setLeaderFromLocalNs(
+                            Long.parseLong(parts[0]), parts.length > 1 ? Long.parseLong(parts[1]) : 0);
                     updateState();
+                    maybeReportOffsetValidity();
+                    if (mRelay != null) {
+                        mRelay.onLeaderOffsetChanged(previousSyncAccuracyNs);
+                    }
                     onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, Long.toString(getLeaderFromLocalNs()));
                 });
 
+        // Keep the replicated leader state for failover.
+        mRpcMap.put(
+                SyncConstants.METHOD_LEADER_STATE,
+                payload -> {
+                    String[] parts = payload.split(",", 2);
+                    if (parts.length != 2) {
+                        Log.e(TAG, "Leader state has the wrong format: " + payload + ". Skipping.");
+                        return;
+                    }
+                    mPeers = LeaderHandoff.decodePeers(parts[0]);
+                    mLeaderSavedSettings = parts[1];
+                });
+        // A new leader took over, follow it.
+        mRpcMap.put(SyncConstants.METHOD_LEADER_ANNOUNCE, this::processLeaderAnnounce);
+
+        if (mRelay != null) {
+            // Clients of the relay register with it as with a leader.
+            mRpcMap.put(SyncConstants.METHOD_HEARTBEAT, mRelay::processHeartbeat);
+        }
+
         // Add callbacks passed by user.
         addPublicRpcCallbacks(rpcCallbacks);
 
@@ -117,8 +216,7 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
         reset();
 
         // Start periodically sending out a heartbeat to the leader.
-        mHeartbeatScheduler.scheduleAtFixedRate(
-                this::sendHeartbeat, 0, SyncConstants.HEARTBEAT_PERIOD_NS, TimeUnit.NANOSECONDS);
+        scheduleHeartbeat(0);
     }
 
     /* Resets the client synchronization state. */
@@ -129,62 +227,369 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
         updateState();
     }
 
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void scheduleHeartbeat(long delayNs) {
+        try {
+            mHeartbeatScheduler.schedule(this::heartbeatTick, delayNs, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The client has been closed.
+        }
+    }
+
     /**
-     * Sends a heartbeat to the leader and waits for an acknowledge response. If there is a response,
-     * it updates the last known leader response time. It then calls updateState() to see if there is
-     * a state transition needed. It also posts a delayed request to heartbeatHandler to run this
-     * again in HEARTBEAT_TIME_MS.
+     * Updates the client state, sends a heartbeat to the leader unless it is piggy-backed on other
+     * traffic, and schedules the next run after the current heartbeat period.
      */
-    private void sendHeartbeat() {
-        // First update current client state based on time since last response.
-        updateState();
+    private void heartbeatTick() {
+        try {
+            // First update current client state based on time since last response.
+            updateState();
+            maybeClaimLeadership();
+
+            final long now = mLocalClock.read();
+            if (!canSkipHeartbeat(now)) {
+                sendHeartbeat(now);
+            }
+            mHeartbeatPeriodNs = nextHeartbeatPeriodNs(now);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to send a heartbeat: " + e);
+        } finally {
+            scheduleHeartbeat(mHeartbeatPeriodNs);
+        }
+    }
 
+    /**
+     * Sends a heartbeat to the leader, expecting an acknowledge response. The heartbeat reports
+     * whether the client holds a valid offset, rather than whether the leader currently responds,
+     * so that a client which only missed a few acknowledges does not request a new SNTP run.
+     */
+    private void sendHeartbeat(long now) {
         // Generate heartbeat message containing the client address and the
         // string value of the synchronization state.
-        final String heartbeatMsg;
-        synchronized (mSyncLock) {
-            // Note: Send messages using strings for simplicity.
-            heartbeatMsg =
-                    String.format(
-                            "%s,%s,%s",
-                            getLocalClientInfo().name(),
-                            getLocalClientInfo().address().getHostAddress(),
-                            Boolean.toString(mSynced));
-        }
+        final boolean validOffset = hasValidOffset(now);
+        // Note: Send messages using strings for simplicity.
+        final String heartbeatMsg =
+                String.format(
+                        "%s,%s,%s",
+                        getLocalClientInfo().name(),
+                        getLocalClientInfo().address().getHostAddress(),
+                        Boolean.toString(validOffset));
+        mReportedValidOffset = validOffset;
+        mLastHeartbeatSentNs = now;
 
         // Send heartbeat RPC to leader, expecting a METHOD_HEARTBEAT_ACK rpc back from leader.
         sendRpc(SyncConstants.METHOD_HEARTBEAT, heartbeatMsg, getLeaderAddress());
     }
 
     /**
-     * Propagate state machine depending on lastLeaderResponseTimeNs and currentState. This should be
-     * called periodically, such as every time a heartbeat is sent, and after it receives an offsetNs
-     * update RPC.
+     * A heartbeat is redundant if, within the current period, other RPCs were exchanged with the
+     * leader in both directions, proving both sides alive, and the status to report is unchanged.
+     * A heartbeat is still sent at least every {@link SyncConstants#MAX_HEARTBEAT_PERIOD_NS}.
      */
-    private void updateState() {
-        final long timestamp = mLocalClock.read();
-        final long timeSinceLastLeaderResponseNs = timestamp - mLastLeaderResponseTimeNs;
-        final long timeSinceLastLeaderOffsetResponseNs = timestamp - mLastLeaderOffsetResponseTimeNs;
-        updateState(timeSinceLastLeaderResponseNs, timeSinceLastLeaderOffsetResponseNs);
+    private boolean canSkipHeartbeat(long now) {
+        return now - mLastTrafficToLeaderNs < mHeartbeatPeriodNs
+                && now - mLastLeaderResponseTimeNs < mHeartbeatPeriodNs
+                && now - mLastHeartbeatSentNs < SyncConstants.MAX_HEARTBEAT_PERIOD_NS
+                && mReportedValidOffset == hasValidOffset(now);
+    }
+
+    /**
+     * The heartbeat period backs off towards {@link SyncConstants#MAX_HEARTBEAT_PERIOD_NS} while
+     * the client is synchronized and the leader responds in time, and falls back to {@link
+     * SyncConstants#HEARTBEAT_PERIOD_NS} as soon as a response is late.
+     */
+    private long nextHeartbeatPeriodNs(long now) {
+        final PhiAccrualFailureDetector detector = mLeaderDetector;
+        if (!isSynced() || detector == null || detector.phi(now) >= SyncConstants.PHI_ON_TIME_THRESHOLD) {
+            return SyncConstants.HEARTBEAT_PERIOD_NS;
+        }
+        return Math.min(
+                mHeartbeatPeriodNs + mHeartbeatPeriodNs * SyncConstants.HEARTBEAT_PERIOD_GROWTH_PERCENT / 100,
+                SyncConstants.MAX_HEARTBEAT_PERIOD_NS);
+    }
+
+    /**
+     * Sends a heartbeat right away if the offset validity changed since the last one, instead of
+     * waiting for the next period.
+     */
+    private void maybeReportOffsetValidity() {
+        if (mReportedValidOffset == hasValidOffset(mLocalClock.read())) {
+            return;
+        }
+        try {
+            mHeartbeatScheduler.execute(() -> sendHeartbeat(mLocalClock.read()));
+        } catch (RejectedExecutionException e) {
+            // The client has been closed.
+        }
+    }
+
+    private boolean hasValidOffset(long now) {
+        return mLastLeaderOffsetResponseTimeNs != 0
+                && now - mLastLeaderOffsetResponseTimeNs < SyncConstants.STALE_OFFSET_TIME_NS;
+    }
+
+    /**
+     * Records a response of the leader: a heartbeat acknowledge, or any other RPC which proves the
+     * leader alive just as well.
+     */
+    private void onLeaderResponse(boolean isHeartbeat) {
+        final long now = mLocalClock.read();
+        mLastLeaderResponseTimeNs = now;
+        final PhiAccrualFailureDetector detector = mLeaderDetector;
+        if (detector == null) {
+            mLeaderDetector = new PhiAccrualFailureDetector(now, SyncConstants.HEARTBEAT_PERIOD_NS);
+        } else if (isHeartbeat) {
+            detector.onHeartbeat(now);
+        } else {
+            detector.onTraffic(now);
+        }
+    }
+
+    @Override
+    void onTrafficFrom(InetAddress sender) {
+        if (sender.equals(getLeaderAddress())) {
+            onLeaderResponse(/*isHeartbeat=*/ false);
+        } else if (mRelay != null) {
+            mRelay.onTrafficFrom(sender);
+        }
+    }
+
+    @Override
+    void sendRpc(int method, String arguments, InetAddress address) {
+        super.sendRpc(method, arguments, address);
+        if (method != SyncConstants.METHOD_HEARTBEAT && address.equals(getLeaderAddress())) {
+            mLastTrafficToLeaderNs = mLocalClock.read();
+        }
+    }
+
+    /**
+     * Claims the leadership if the leader is suspected to have failed and has not responded for
+     * {@link SyncConstants#LEADER_FAILOVER_TIMEOUT_NS} plus one {@link
+     * SyncConstants#LEADER_ELECTION_SLOT_NS} per candidate ranked before this client. Candidates
+     * are the clients of the last replicated leader state ordered by address, so every client
+     * computes the same ranking, and a candidate only claims if no one ranked before it announced
+     * itself in time. Only clients which have been synchronized can keep the leader time domain.
+     */
+    private void maybeClaimLeadership() {
+        if (mLeadershipClaimed || mLastLeaderResponseTimeNs == 0 || mLastLeaderOffsetResponseTimeNs == 0) {
+            return;
+        }
+        final int rank = getElectionRank();
+        if (rank < 0) {
+            return;
+        }
+        final long now = mLocalClock.read();
+        final PhiAccrualFailureDetector detector = mLeaderDetector;
+        if (detector == null || detector.isAvailable(now)) {
+            return;
+        }
+        final long timeSinceLastLeaderResponseNs = now - mLastLeaderResponseTimeNs;
+        if (timeSinceLastLeaderResponseNs
+                > SyncConstants.LEADER_FAILOVER_TIMEOUT_NS + rank * SyncConstants.LEADER_ELECTION_SLOT_NS) {
+            mLeadershipClaimed = true;
+            Log.w(
+                    TAG,
+                    String.format(
+                            "Leader lost for %,.0f ms, claiming the leadership with rank %d.",
+                            TimeUtils.nanosToMillis((double) timeSinceLastLeaderResponseNs), rank));
+            onRpc(SyncConstants.METHOD_MSG_LEADER_ELECTED, null);
+        }
+    }
+
+    /**
+     * Returns the position of this client among the election candidates, or -1 if it is not one.
+     */
+    private int getElectionRank() {
+        final InetAddress localAddress = getLocalClientInfo().address();
+        if (localAddress == null) {
+            return -1;
+        }
+        boolean isCandidate = false;
+        int rank = 0;
+        for (ClientInfo peer : mPeers) {
+            final int order = NetworkHelpers.compareAddresses(peer.address(), localAddress);
+            if (order == 0) {
+                isCandidate = true;
+            } else if (order < 0) {
+                rank++;
+            }
+        }
+        return isCandidate ? rank : -1;
+    }
+
+    /**
+     * Returns the state needed to replace the leader: the replicated leader state and this
+     * client's offset to the leader time domain.
+     */
+    public LeaderHandoff getLeaderHandoff() {
+        final InetAddress localAddress = getLocalClientInfo().address();
+        final List<ClientInfo> peers = new ArrayList<>();
+        for (ClientInfo peer : mPeers) {
+            if (!peer.address().equals(localAddress)) {
+                peers.add(peer);
+            }
+        }
+        SyncSettingsContainer savedSettings = null;
+        if (!mLeaderSavedSettings.isEmpty()) {
+            try {
+                savedSettings = SyncSettingsContainer.deserializeFromString(mLeaderSavedSettings);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to deserialize the leader's saved settings: " + e.getMessage());
+            }
+        }
+        return new LeaderHandoff(peers, savedSettings, getLeaderFromLocalNs(), getSyncAccuracyNs());
     }
 
     /**
-     * SoftwareSyncClient only has two states: WAITING_FOR_LEADER (false) and SYNCED (true).
+     * Follows the leader announced after a leader failure. The new leader keeps the leader time
+     * domain, so the current offset stays valid and no new SNTP synchronization is needed.
      *
-     * <p>The state is determined based on the time since the last leader heartbeat acknowledge and
-     * the time since the last offsetNs was given by the leader.
+     * @param payload format of "LeaderName,LeaderAddress", where an empty address refers to the
+     *                initial leader.
+     */
+    private void processLeaderAnnounce(String payload) {
+        String[] parts = payload.split(",", 2);
+        if (parts.length != 2) {
+            Log.e(TAG, "Leader announce has the wrong format: " + payload + ". Skipping.");
+            return;
+        }
+        final InetAddress leaderAddress;
+        try {
+            leaderAddress = parts[1].isEmpty() ? mInitialLeaderAddress : InetAddress.getByName(parts[1]);
+        } catch (UnknownHostException e) {
+            Log.e(TAG, "Leader announce with corrupt host address: " + payload);
+            return;
+        }
+        if (leaderAddress.equals(getLocalClientInfo().address())) {
+            return; // Own announce, this device is the leader now.
+        }
+
+        final boolean isNewLeader = !leaderAddress.equals(getLeaderAddress());
+        Log.i(TAG, "Following leader " + parts[0] + " at " + leaderAddress);
+        setLeaderAddress(leaderAddress);
+        mLastLeaderResponseTimeNs = mLocalClock.read();
+        if (isNewLeader) {
+            mLeaderDetector =
+                    new PhiAccrualFailureDetector(mLastLeaderResponseTimeNs, SyncConstants.HEARTBEAT_PERIOD_NS);
+        }
+        mLeadershipClaimed = false;
+        updateState();
+        if (isNewLeader) {
+            onRpc(SyncConstants.METHOD_MSG_LEADER_CHANGED, leaderAddress.getHostAddress());
+        }
+    }
+
+    /**
+     * Whether this device is a relay for other clients.
+     */
+    public boolean isRelay() {
+        return mRelay != null;
+    }
+
+    /**
+     * Returns the clients registered with this relay, empty if the client is not a relay.
+     */
+    public Map<InetAddress, ClientInfo> getRelayClients() {
+        return mRelay != null ? mRelay.getClients() : Collections.<InetAddress, ClientInfo>emptyMap();
+    }
+
+    @Override
+    boolean hasSntpClient(InetAddress address) {
+        return mRelay != null && mRelay.hasClient(address);
+    }
+
+    @Override
+    void updateClientWithOffsetResponse(InetAddress clientAddress, SntpOffsetResponse response) {
+        if (mRelay != null) {
+            mRelay.updateClientWithOffsetResponse(clientAddress, response);
+        }
+    }
+
+    /**
+     * A relay forwards user RPCs of the leader to its clients, and those of its clients to the
+     * leader instead of handling them itself.
+     */
+    @Override
+    void onReceivedRpc(int method, String payload, InetAddress sender) {
+        if (mRelay != null && isForwardedMethod(method)) {
+            if (sender.equals(getLeaderAddress())) {
+                mRelay.forwardToClients(method, payload);
+            } else if (mRelay.hasClient(sender)) {
+                mRelay.forwardToLeader(method, payload);
+                return;
+            }
+        }
+        super.onReceivedRpc(method, payload, sender);
+    }
+
+    /**
+     * User RPC methods are forwarded, except the local notification messages.
+     */
+    private static boolean isForwardedMethod(int method) {
+        return method >= SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS
+                && (method < SyncConstants.METHOD_MSG_ADDED_CLIENT
+                || method > SyncConstants.METHOD_MSG_LEADER_CHANGED);
+    }
+
+    boolean isSynced() {
+        synchronized (mSyncLock) {
+            return mSynced;
+        }
+    }
+
+    /**
+     * Public-facing RPC to the leader with acknowledged delivery, for non-softwaresync RPC methods
+     * only.
      *
-     * <p>If the time since the leader has responded is longer than STALE_TIME_NS or the last offsetNs
-     * received happened longer than STALE_OFFSET_TIME_NS ago, then transition to the not synced
-     * WAITING_FOR_LEADER state. Otherwise, transition to the SYNCED state.
+     * @param method  int type of RPC, must be greater than {@link
+     *                SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+     * @param payload String payload.
+     * @return the delivery future reporting whether the leader confirmed the message.
      */
-    private void updateState(
-            final long timeSinceLastLeaderResponseNs, final long timeSinceLastLeaderOffsetResponseNs) {
+    public RpcDelivery sendReliableRpcToLeader(int method, String payload) {
+        if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Given method id %s, User method ids must" + " be >= %s",
+                            method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+        }
+        return sendReliableRpc(method, payload, getLeaderAddress());
+    }
+
+    /**
+     * Public-facing RPC to the leader without acknowledgement, for non-softwaresync RPC methods
+     * only. Suited to periodic reports, where a lost message is superseded by the next one.
+     *
+     * @param method  int type of RPC, must be greater than {@link
+     *                SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+     * @param payload String payload.
+     */
+    public void sendRpcToLeader(int method, String payload) {
+        if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Given method id %s, User method ids must" + " be >= %s",
+                            method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+        }
+        sendRpc(method, payload, getLeaderAddress());
+    }
+
+    /**
+     * Propagate state machine depending on the leader failure detector and currentState. This
+     * should be called periodically, such as every time a heartbeat is sent, and after it receives
+     * an offsetNs update RPC.
+     *
+     * <p>SoftwareSyncClient only has two states: WAITING_FOR_LEADER (false) and SYNCED (true).
+     *
+     * <p>If the leader is suspected to have failed (see {@link PhiAccrualFailureDetector}) or the
+     * last offsetNs received happened longer than STALE_OFFSET_TIME_NS ago, then transition to the
+     * not synced WAITING_FOR_LEADER state. Otherwise, transition to the SYNCED state.
+     */
+    private void updateState() {
+        final long timestamp = mLocalClock.read();
+        final PhiAccrualFailureDetector detector = mLeaderDetector;
         final boolean newSyncState =
-                (mLastLeaderResponseTimeNs != 0
-                        && mLastLeaderOffsetResponseTimeNs != 0
-                        && timeSinceLastLeaderResponseNs < SyncConstants.STALE_TIME_NS
-                        && timeSinceLastLeaderOffsetResponseNs < SyncConstants.STALE_OFFSET_TIME_NS);
+                detector != null && detector.isAvailable(timestamp) && hasValidOffset(timestamp);
         synchronized (mSyncLock) {
             if (newSyncState == mSynced) {
                 return; // No state change, do nothing.
@@ -230,6 +635,9 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
     @Override
     public void close() throws IOException {
         maybeStopSntpThread();
+        if (mRelay != null) {
+            mRelay.close();
+        }
         // Stop the heartbeat scheduler.
         mHeartbeatScheduler.shutdown();
         try {
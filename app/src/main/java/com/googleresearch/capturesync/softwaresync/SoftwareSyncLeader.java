@@ -27,14 +27,18 @@ import net.sourceforge.opencamera.recsync.SyncSettingsContainer;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -55,14 +59,19 @@ import java.util.concurrent.TimeUnit;
 public class SoftwareSyncLeader extends SoftwareSyncBase {
 
     /**
-     * List of connected clients.
+     * Registry of connected clients. Entries are immutable and replaced atomically per client, so
+     * heartbeats of different clients never contend on a shared lock.
      */
-    private final Map<InetAddress, ClientInfo> mClients = new HashMap<>();
+    private final ConcurrentMap<InetAddress, ClientInfo> mClients = new ConcurrentHashMap<>();
 
-    private final Object mClientsLock = new Object();
+    /**
+     * Failure detectors of the connected clients, fed by heartbeats and any other client traffic.
+     */
+    private final ConcurrentMap<InetAddress, PhiAccrualFailureDetector> mClientDetectors =
+            new ConcurrentHashMap<>();
 
     /**
-     * Keeps track of how long since each client heartbeat was received, removing when stale.
+     * Periodically removes clients suspected to have failed.
      */
     private final ScheduledExecutorService mStaleClientChecker = Executors.newScheduledThreadPool(1);
 
@@ -79,13 +88,37 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     /**
      * Saved settings for broadcasts to new clients.
      */
-    private SyncSettingsContainer mSavedSettings;
+    private volatile SyncSettingsContainer mSavedSettings;
+
+    /**
+     * Whether broadcast RPCs may be sent as subnet broadcast packets.
+     */
+    private volatile boolean mBroadcastFanOutEnabled = false;
+
+    /**
+     * Subnet broadcast address of the clients, determined on first use.
+     */
+    private volatile InetAddress mBroadcastAddress;
 
     public SoftwareSyncLeader(
             String name, long initialTime, InetAddress address, Map<Integer, RpcCallback> rpcCallbacks) {
         this(name, new SystemTicker(), initialTime, address, rpcCallbacks);
     }
 
+    /**
+     * Creates a leader replacing a failed one, see {@link LeaderHandoff}. The leader keeps the time
+     * domain of the failed leader, takes over its clients and saved settings, and announces itself
+     * to the clients.
+     */
+    public SoftwareSyncLeader(
+            String name, InetAddress address, Map<Integer, RpcCallback> rpcCallbacks, LeaderHandoff handoff) {
+        this(name, new SystemTicker(), /*initialTime=*/ 0, address, rpcCallbacks);
+        setLeaderFromLocalNs(handoff.leaderFromLocalNs(), handoff.syncAccuracyNs());
+        mSavedSettings = handoff.savedSettings();
+        restoreClients(handoff.peers());
+        announceLeadership(handoff.peers(), address);
+    }
+
     @SuppressWarnings("FutureReturnValueIgnored")
     private SoftwareSyncLeader(
             String name,
@@ -103,7 +136,7 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
         // device.
         // For convenience, all devices could instead be shifted to the leader device UTC time,
         // ex. initialTimeNs = TimeUtils.millisToNanos(System.currentTimeMillis())
-        setLeaderFromLocalNs(localClock.read() - initialTime);
+        setLeaderFromLocalNs(localClock.read() - initialTime, /*syncAccuracyNs=*/ 0);
 
         // Add client-specific RPC callbacks.
 
@@ -120,6 +153,9 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
                     }
                 });
 
+        // Another device claims the leadership, keep it or step down.
+        mRpcMap.put(SyncConstants.METHOD_LEADER_ANNOUNCE, this::processLeaderAnnounce);
+
         // Add callbacks passed by user.
         addPublicRpcCallbacks(rpcCallbacks);
 
@@ -128,84 +164,257 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
 
         // Start periodically checking for stale clients and removing as needed.
         mStaleClientChecker.scheduleAtFixedRate(
-                this::removeStaleClients, 0, SyncConstants.STALE_TIME_NS, TimeUnit.NANOSECONDS);
+                this::removeStaleClients, 0, SyncConstants.HEARTBEAT_PERIOD_NS, TimeUnit.NANOSECONDS);
+
+        // Start periodically replicating the leader state to the clients for failover.
+        mStaleClientChecker.scheduleAtFixedRate(
+                this::sendLeaderState,
+                SyncConstants.LEADER_STATE_PERIOD_NS,
+                SyncConstants.LEADER_STATE_PERIOD_NS,
+                TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * Returns a consistent snapshot of the connected clients, which is not affected by later
+     * changes of the registry.
+     */
     public Map<InetAddress, ClientInfo> getClients() {
-        synchronized (mClientsLock) {
-            return Collections.unmodifiableMap(mClients);
-        }
+        return Collections.unmodifiableMap(new HashMap<>(mClients));
+    }
+
+    /**
+     * Checks if the client with the given address is currently connected, without taking a
+     * snapshot of all clients.
+     */
+    public boolean hasClient(InetAddress address) {
+        return mClients.containsKey(address);
     }
 
     /**
      * Checks if the address is already associated with one of the clients in the list of tracked
      * clients. If so, just update the last heartbeat, otherwise create a new client entry in the
      * list.
+     *
+     * @return true if the client is new.
      */
-    private void addOrUpdateClient(String name, InetAddress address) {
-        // Check if it's a new client, so we don't add again.
-        synchronized (mClientsLock) {
-            boolean clientExists = mClients.containsKey(address);
-            // Add or replace entry with an updated ClientInfo.
-            long offsetNs = 0;
-            long syncAccuracyNs = 0;
-            if (clientExists) {
-                offsetNs = mClients.get(address).offset();
-                syncAccuracyNs = mClients.get(address).syncAccuracy();
-            }
-            ClientInfo updatedClient =
-                    ClientInfo.create(name, address, offsetNs, syncAccuracyNs, mLocalClock.read());
-            mClients.put(address, updatedClient);
-
-            if (!clientExists) {
-                // Notify via message on interface if client is new.
-                onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, updatedClient.name());
-                // Broadcast the saved settings if any.
-                if (mSavedSettings != null) {
-                    sendRpc(SoftwareSyncController.METHOD_SET_SETTINGS, mSavedSettings.serializeToString(), address);
+    private boolean addOrUpdateClient(String name, InetAddress address) {
+        final long heartbeatNs = mLocalClock.read();
+        PhiAccrualFailureDetector detector = mClientDetectors.get(address);
+        if (detector != null) {
+            detector.onHeartbeat(heartbeatNs);
+        }
+        // Add or replace entry with an updated ClientInfo, retrying if the entry was changed
+        // concurrently (e.g. by an offset update).
+        while (true) {
+            ClientInfo client = mClients.get(address);
+            if (client == null) {
+                ClientInfo newClient = ClientInfo.create(name, address, 0, 0, heartbeatNs);
+                if (mClients.putIfAbsent(address, newClient) == null) {
+                    mClientDetectors.put(
+                            address, new PhiAccrualFailureDetector(heartbeatNs, SyncConstants.HEARTBEAT_PERIOD_NS));
+                    onClientAdded(newClient);
+                    return true;
+                }
+            } else {
+                ClientInfo updatedClient =
+                        ClientInfo.create(name, address, client.offset(), client.syncAccuracy(), heartbeatNs);
+                if (mClients.replace(address, client, updatedClient)) {
+                    return false;
                 }
             }
         }
     }
 
+    private void onClientAdded(ClientInfo client) {
+        // Notify via message on interface if client is new.
+        onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, client.name());
+        // Broadcast the saved settings if any.
+        SyncSettingsContainer savedSettings = mSavedSettings;
+        if (savedSettings != null) {
+            sendReliableRpc(
+                    SoftwareSyncController.METHOD_SET_SETTINGS, savedSettings.serializeToString(), client.address());
+        }
+    }
+
     /**
-     * Removes clients whose last heartbeat was longer than STALE_TIME_NS ago.
+     * Removes clients whose failure detector suspects them to have failed.
      */
     private void removeStaleClients() {
         long t = mLocalClock.read();
-        synchronized (mClientsLock) {
-            // Use iterator to avoid concurrent modification exception.
-            Iterator<Entry<InetAddress, ClientInfo>> clientIterator = mClients.entrySet().iterator();
-            while (clientIterator.hasNext()) {
-                ClientInfo client = clientIterator.next().getValue();
-                long timeSince = t - client.lastHeartbeat();
-                if (timeSince > SyncConstants.STALE_TIME_NS) {
-                    Log.w(
-                            TAG,
-                            String.format(
-                                    "Stale client %s : time since %,d seconds",
-                                    client.name(), TimeUtils.nanosToSeconds(timeSince)));
-
-                    // Remove entry from the client list first.
-                    clientIterator.remove();
-                    // Client hasn't responded in a while, remove from list.
-                    onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
+        for (ClientInfo client : mClients.values()) {
+            final PhiAccrualFailureDetector detector = mClientDetectors.get(client.address());
+            // A client without a detector has just been added.
+            if (detector != null && !detector.isAvailable(t)) {
+                // Remove entry from the client list first, unless a heartbeat has just replaced it.
+                if (!mClients.remove(client.address(), client)) {
+                    continue;
                 }
+                mClientDetectors.remove(client.address(), detector);
+                final long timeSince = t - detector.lastHeardNs();
+                Log.w(
+                        TAG,
+                        String.format(
+                                "Stale client %s : time since %,.0f ms",
+                                client.name(), TimeUtils.nanosToMillis((double) timeSince)));
+
+                // Client hasn't responded in a while, remove from list.
+                onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
+            }
+        }
+    }
+
+    /**
+     * Sends the clients list and the saved settings to every client, in the format
+     * "peers,settings" (see {@link LeaderHandoff}), so that they can take over if this leader
+     * fails. Peers are dropped from the end of the list if the state is too big to be sent.
+     */
+    private void sendLeaderState() {
+        final List<ClientInfo> peers = new ArrayList<>(mClients.values());
+        if (peers.isEmpty()) {
+            return;
+        }
+        final SyncSettingsContainer savedSettings = mSavedSettings;
+        final String settings = savedSettings != null ? savedSettings.serializeToString() : "";
+        String payload = LeaderHandoff.encodePeers(peers) + "," + settings;
+        while (!canSendRpc(payload) && !peers.isEmpty()) {
+            peers.remove(peers.size() - 1);
+            payload = LeaderHandoff.encodePeers(peers) + "," + settings;
+        }
+        if (peers.size() < mClients.size()) {
+            Log.w(TAG, "Leader state too big, only " + peers.size() + " clients can take over.");
+        }
+        for (InetAddress address : mClients.keySet()) {
+            try {
+                sendRpc(SyncConstants.METHOD_LEADER_STATE, payload, address);
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                Log.w(TAG, "Failed to send the leader state to " + address + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Adds the clients of a failed leader, as if they had just sent a heartbeat. Clients which do
+     * not follow this leader are removed as stale.
+     */
+    private void restoreClients(List<ClientInfo> peers) {
+        final long heartbeatNs = mLocalClock.read();
+        for (ClientInfo peer : peers) {
+            if (mClients.putIfAbsent(
+                    peer.address(),
+                    ClientInfo.create(peer.name(), peer.address(), peer.offset(), peer.syncAccuracy(), heartbeatNs))
+                    == null) {
+                mClientDetectors.put(
+                        peer.address(), new PhiAccrualFailureDetector(heartbeatNs, SyncConstants.HEARTBEAT_PERIOD_NS));
+            }
+        }
+    }
+
+    private String getLeaderAnnouncePayload() {
+        final InetAddress address = getLocalClientInfo().address();
+        return getName() + "," + (address != null ? address.getHostAddress() : "");
+    }
+
+    /**
+     * Tells the given clients to follow this leader. Other devices, such as clients which joined
+     * after the last replicated state, are reached with a subnet broadcast.
+     *
+     * @param subnetPeer an address on the subnet to broadcast to.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void announceLeadership(List<ClientInfo> peers, InetAddress subnetPeer) {
+        final String payload = getLeaderAnnouncePayload();
+        final List<InetAddress> addresses = new ArrayList<>();
+        for (ClientInfo peer : peers) {
+            addresses.add(peer.address());
+        }
+        if (!addresses.isEmpty()) {
+            sendReliableRpc(SyncConstants.METHOD_LEADER_ANNOUNCE, payload, addresses);
+        }
+        mRpcMessageExecutor.submit(
+                () -> {
+                    try {
+                        InetAddress broadcastAddress = NetworkHelpers.getBroadcastAddressFor(subnetPeer);
+                        if (broadcastAddress != null) {
+                            sendRpc(SyncConstants.METHOD_LEADER_ANNOUNCE, payload, broadcastAddress);
+                        }
+                    } catch (SocketException | IllegalStateException e) {
+                        Log.w(TAG, "Failed to broadcast the leadership announce: " + e);
+                    }
+                });
+    }
+
+    /**
+     * Resolves two leaders after a failover: the initial leader running the hotspot or else the one
+     * with the lowest address keeps the leadership and announces it again, the other steps down.
+     *
+     * @param payload format of "LeaderName,LeaderAddress", where an empty address refers to the
+     *                initial leader.
+     */
+    private void processLeaderAnnounce(String payload) {
+        String[] parts = payload.split(",", 2);
+        if (parts.length != 2) {
+            Log.e(TAG, "Leader announce has the wrong format: " + payload + ". Skipping.");
+            return;
+        }
+        final InetAddress localAddress = getLocalClientInfo().address();
+        if (parts[1].isEmpty()) {
+            if (localAddress != null) {
+                Log.w(TAG, "Initial leader " + parts[0] + " is back, stepping down.");
+                onRpc(SyncConstants.METHOD_MSG_LEADER_CHANGED, "");
             }
+            // Otherwise this is the initial leader and the announce is its own one looped back.
+            return;
+        }
+        final InetAddress otherLeader;
+        try {
+            otherLeader = InetAddress.getByName(parts[1]);
+        } catch (UnknownHostException e) {
+            Log.e(TAG, "Leader announce with corrupt host address: " + payload);
+            return;
+        }
+        if (NetworkHelpers.isLocalAddress(otherLeader)) {
+            return; // Own announce looped back.
+        }
+
+        if (localAddress != null && NetworkHelpers.compareAddresses(otherLeader, localAddress) < 0) {
+            Log.w(TAG, "Leader " + parts[0] + " at " + otherLeader + " takes precedence, stepping down.");
+            onRpc(SyncConstants.METHOD_MSG_LEADER_CHANGED, otherLeader.getHostAddress());
+        } else {
+            // Make the other leader step down, and the devices following it follow this leader.
+            Log.w(TAG, "Leader " + parts[0] + " at " + otherLeader + " claimed the leadership, asking it to step down.");
+            sendRpc(SyncConstants.METHOD_LEADER_ANNOUNCE, getLeaderAnnouncePayload(), otherLeader);
+            announceLeadership(new ArrayList<>(mClients.values()), otherLeader);
         }
     }
 
+    /**
+     * Any packet of a client, e.g. an acknowledge or a user RPC, proves it alive just as a heartbeat.
+     */
+    @Override
+    void onTrafficFrom(InetAddress sender) {
+        final PhiAccrualFailureDetector detector = mClientDetectors.get(sender);
+        if (detector != null) {
+            detector.onTraffic(mLocalClock.read());
+        }
+    }
+
+    @Override
+    boolean hasSntpClient(InetAddress address) {
+        return hasClient(address);
+    }
+
     /**
      * Finds and updates client sync accuracy within list.
      */
+    @Override
     void updateClientWithOffsetResponse(InetAddress clientAddress, SntpOffsetResponse response) {
-        // Update client sync accuracy locally.
-        synchronized (mClientsLock) {
-            if (!mClients.containsKey(clientAddress)) {
+        // Update client sync accuracy locally, retrying if a heartbeat replaced the entry meanwhile.
+        while (true) {
+            final ClientInfo client = mClients.get(clientAddress);
+            if (client == null) {
                 Log.w(TAG, "Tried to update a client info that is no longer in the list, Skipping.");
                 return;
             }
-            final ClientInfo client = mClients.get(clientAddress);
             ClientInfo updatedClient =
                     ClientInfo.create(
                             client.name(),
@@ -213,7 +422,9 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
                             response.offsetNs(),
                             response.syncAccuracyNs(),
                             client.lastHeartbeat());
-            mClients.put(client.address(), updatedClient);
+            if (mClients.replace(clientAddress, client, updatedClient)) {
+                return;
+            }
         }
     }
 
@@ -226,10 +437,8 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     @SuppressWarnings("FutureReturnValueIgnored")
     private void internalBroadcastRpc(int method, String payload) {
         // Send RPC message to all clients and call onRPC of self as well.
-        synchronized (mClientsLock) {
-            for (InetAddress address : mClients.keySet()) {
-                mRpcMessageExecutor.submit(() -> sendRpc(method, payload, address));
-            }
+        for (InetAddress address : mClients.keySet()) {
+            mRpcMessageExecutor.submit(() -> sendRpc(method, payload, address));
         }
 
         // Also call onRpc for self (leader).
@@ -253,6 +462,81 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
         internalBroadcastRpc(method, payload);
     }
 
+    /**
+     * Public-facing broadcast RPC to all current clients with acknowledged delivery, for
+     * non-softwaresync RPC methods only. Clients which miss the message are retransmitted to, and
+     * each client dispatches it at most once. The leader handles the message itself immediately.
+     *
+     * @param method  int type of RPC, must be greater than {@link
+     *                SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+     * @param payload String payload.
+     * @return the delivery future reporting which clients confirmed the message.
+     */
+    public RpcDelivery broadcastReliableRpc(int method, String payload) {
+        if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Given method id %s, User method ids must" + " be >= %s",
+                            method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+        }
+        final Set<InetAddress> addresses = new HashSet<>(mClients.keySet());
+        RpcDelivery delivery =
+                sendReliableRpc(method, payload, addresses, getBroadcastAddress(addresses));
+
+        // Also call onRpc for self (leader).
+        onRpc(method, payload);
+
+        return delivery;
+    }
+
+    /**
+     * Public-facing RPC to a single client with acknowledged delivery, for non-softwaresync RPC
+     * methods only. Unlike {@link #broadcastReliableRpc}, the leader does not handle the message
+     * itself.
+     *
+     * @param address the address of the client, as in {@link #getClients()}.
+     * @param method  int type of RPC, must be greater than {@link
+     *                SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+     * @param payload String payload.
+     * @return the delivery future reporting whether the client confirmed the message.
+     */
+    public RpcDelivery sendReliableRpcToClient(InetAddress address, int method, String payload) {
+        if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Given method id %s, User method ids must" + " be >= %s",
+                            method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+        }
+        return sendReliableRpc(method, payload, address);
+    }
+
+    /**
+     * Enables sending reliable broadcast RPCs to many clients as a single subnet broadcast packet
+     * per attempt, instead of one unicast packet per client. Acknowledges are still tracked per
+     * client, and unicast is used when only a few clients are left to be reached.
+     */
+    public void setBroadcastFanOutEnabled(boolean enabled) {
+        mBroadcastFanOutEnabled = enabled;
+    }
+
+    /**
+     * Returns the subnet broadcast address to reach the given clients with, or null if broadcast
+     * fan-out is disabled, not worth it or the address cannot be determined.
+     */
+    private InetAddress getBroadcastAddress(Set<InetAddress> addresses) {
+        if (!mBroadcastFanOutEnabled || addresses.size() < SyncConstants.BROADCAST_FAN_OUT_MIN_CLIENTS) {
+            return null;
+        }
+        if (mBroadcastAddress == null) {
+            try {
+                mBroadcastAddress = NetworkHelpers.getBroadcastAddressFor(addresses.iterator().next());
+            } catch (SocketException e) {
+                Log.w(TAG, "Unable to determine the broadcast address: " + e);
+            }
+        }
+        return mBroadcastAddress;
+    }
+
     @Override
     public void close() throws IOException {
         mSntp.close();
@@ -270,7 +554,7 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     /**
      * Process a heartbeat rpc call from a client by responding with a heartbeat acknowledge, adding
      * or updating the client in the tracked clients list, and submitting a new SNTP sync request if
-     * the client state is not yet synchronized.
+     * the client has no valid offset or is new.
      *
      * @param payload format of "ClientName,ClientAddress,ClientState"
      */
@@ -292,10 +576,11 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
         sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, payload, clientAddress);
 
         // Add or update client in clients.
-        addOrUpdateClient(clientName, clientAddress);
+        final boolean isNewClient = addOrUpdateClient(clientName, clientAddress);
 
-        // If the client state is not yet synchronized, add it to the SNTP queue.
-        if (!clientSyncState) {
+        // If the client state is not yet synchronized, add it to the SNTP queue. A new client may
+        // hold an offset to another leader time domain, e.g. of this leader before a restart.
+        if (!clientSyncState || isNewClient) {
             mSntp.submitNewSyncRequest(clientAddress);
         }
     }
@@ -0,0 +1,278 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import com.googleresearch.capturesync.SoftwareSyncController;
+
+import net.sourceforge.opencamera.recsync.SyncSettingsContainer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sub-leader role of a {@link SoftwareSyncClient}, for rigs with more devices than one hotspot can
+ * hold. The relay device is a client of the leader over WiFi and runs its own hotspot for its own
+ * clients, which see the relay as their leader.
+ *
+ * <p>Once the relay itself is synchronized, it acknowledges heartbeats of its clients and runs
+ * {@link SimpleNetworkTimeProtocol} with them, giving them offsets in the leader time domain with
+ * the relay's own sync accuracy added. When the relay's offset changes, the offsets of its clients
+ * are corrected without another SNTP run. RPCs from the leader are forwarded to the clients, and
+ * RPCs from the clients are forwarded to the leader.
+ *
+ * <p>The relay initiates SNTP from an ephemeral port, since the SNTP port is used to answer the
+ * leader, so its clients have to answer SNTP requests to the sender's port.
+ */
+final class SoftwareSyncRelay implements Closeable {
+    private static final String TAG = "SoftwareSyncRelay";
+
+    private final SoftwareSyncClient mClient;
+    private final Ticker mLocalClock;
+
+    /**
+     * Clients of the relay, replaced atomically per client as in {@link SoftwareSyncLeader}.
+     */
+    private final ConcurrentMap<InetAddress, ClientInfo> mClients = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<InetAddress, PhiAccrualFailureDetector> mClientDetectors =
+            new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService mStaleClientChecker = Executors.newScheduledThreadPool(1);
+    private final DatagramSocket mSntpSocket;
+    private final SimpleNetworkTimeProtocol mSntp;
+
+    /**
+     * The last settings received from the leader, which settings deltas are relative to.
+     */
+    private SyncSettingsContainer mLastSettings;
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    SoftwareSyncRelay(SoftwareSyncClient client, Ticker localClock) {
+        mClient = client;
+        mLocalClock = localClock;
+
+        try {
+            mSntpSocket = new DatagramSocket();
+            mSntpSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
+        } catch (SocketException e) {
+            throw new IllegalArgumentException("Unable to open the relay SNTP socket: " + e);
+        }
+        mSntp = new SimpleNetworkTimeProtocol(localClock, mSntpSocket, SyncConstants.SNTP_PORT, client);
+
+        mStaleClientChecker.scheduleAtFixedRate(
+                this::removeStaleClients, 0, SyncConstants.HEARTBEAT_PERIOD_NS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns a consistent snapshot of the clients of the relay.
+     */
+    Map<InetAddress, ClientInfo> getClients() {
+        return Collections.unmodifiableMap(new HashMap<>(mClients));
+    }
+
+    boolean hasClient(InetAddress address) {
+        return mClients.containsKey(address);
+    }
+
+    /**
+     * Processes a heartbeat of a client of the relay as the leader does. Heartbeats are left
+     * unanswered while the relay is not synchronized, so that its clients wait as well.
+     *
+     * @param payload format of "ClientName,ClientAddress,ClientState"
+     */
+    void processHeartbeat(String payload) {
+        if (!mClient.isSynced()) {
+            return;
+        }
+        List<String> parts = Arrays.asList(payload.split(","));
+        if (parts.size() != 3) {
+            Log.e(TAG, "Heartbeat message has the wrong format: " + payload + ". Skipping.");
+            return;
+        }
+        final InetAddress clientAddress;
+        try {
+            clientAddress = InetAddress.getByName(parts.get(1));
+        } catch (UnknownHostException e) {
+            Log.e(TAG, "Processed heartbeat with corrupt host address: " + payload);
+            return;
+        }
+
+        mClient.sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, payload, clientAddress);
+        final boolean isNewClient = addOrUpdateClient(parts.get(0), clientAddress);
+        if (!Boolean.parseBoolean(parts.get(2)) || isNewClient) {
+            mSntp.submitNewSyncRequest(clientAddress);
+        }
+    }
+
+    /**
+     * @return true if the client is new.
+     */
+    private boolean addOrUpdateClient(String name, InetAddress address) {
+        final long heartbeatNs = mLocalClock.read();
+        final PhiAccrualFailureDetector detector = mClientDetectors.get(address);
+        if (detector != null) {
+            detector.onHeartbeat(heartbeatNs);
+        }
+        while (true) {
+            ClientInfo client = mClients.get(address);
+            if (client == null) {
+                if (mClients.putIfAbsent(address, ClientInfo.create(name, address, 0, 0, heartbeatNs)) == null) {
+                    mClientDetectors.put(
+                            address, new PhiAccrualFailureDetector(heartbeatNs, SyncConstants.HEARTBEAT_PERIOD_NS));
+                    mClient.onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, name);
+                    return true;
+                }
+            } else if (mClients.replace(
+                    address,
+                    client,
+                    ClientInfo.create(name, address, client.offset(), client.syncAccuracy(), heartbeatNs))) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Any packet of a client of the relay proves it alive just as a heartbeat.
+     */
+    void onTrafficFrom(InetAddress sender) {
+        final PhiAccrualFailureDetector detector = mClientDetectors.get(sender);
+        if (detector != null) {
+            detector.onTraffic(mLocalClock.read());
+        }
+    }
+
+    private void removeStaleClients() {
+        final long t = mLocalClock.read();
+        for (ClientInfo client : mClients.values()) {
+            final PhiAccrualFailureDetector detector = mClientDetectors.get(client.address());
+            if (detector != null
+                    && !detector.isAvailable(t)
+                    && mClients.remove(client.address(), client)) {
+                mClientDetectors.remove(client.address(), detector);
+                Log.w(TAG, "Stale relay client " + client.name());
+                mClient.onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
+            }
+        }
+    }
+
+    /**
+     * Records the SNTP result of a client, whose offset is kept relative to the relay's local clock
+     * and whose accuracy includes the relay's one.
+     */
+    void updateClientWithOffsetResponse(InetAddress clientAddress, SntpOffsetResponse response) {
+        while (true) {
+            final ClientInfo client = mClients.get(clientAddress);
+            if (client == null) {
+                return;
+            }
+            ClientInfo updatedClient =
+                    ClientInfo.create(
+                            client.name(),
+                            client.address(),
+                            response.offsetNs(),
+                            response.syncAccuracyNs(),
+                            client.lastHeartbeat());
+            if (mClients.replace(clientAddress, client, updatedClient)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Corrects the offsets of the synchronized clients after the relay's own offset to the leader
+     * time domain changed, and adds the relay's new accuracy to theirs.
+     *
+     * @param previousSyncAccuracyNs the relay's accuracy the clients' accuracies include.
+     */
+    void onLeaderOffsetChanged(long previousSyncAccuracyNs) {
+        final long leaderFromLocalNs = mClient.getLeaderFromLocalNs();
+        final long syncAccuracyNs = mClient.getSyncAccuracyNs();
+        for (ClientInfo client : mClients.values()) {
+            if (client.syncAccuracy() == 0) {
+                continue; // Not synchronized yet.
+            }
+            final long clientAccuracyNs = client.syncAccuracy() - previousSyncAccuracyNs + syncAccuracyNs;
+            updateClientWithOffsetResponse(
+                    client.address(), SntpOffsetResponse.create(client.offset(), clientAccuracyNs, true));
+            try {
+                mClient.sendRpc(
+                        SyncConstants.METHOD_OFFSET_UPDATE,
+                        (client.offset() + leaderFromLocalNs) + "," + clientAccuracyNs,
+                        client.address());
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Failed to correct the offset of " + client.name() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Forwards an RPC received from the leader to every client of the relay, with acknowledged
+     * delivery. Settings are forwarded as full settings, since the clients of the relay may not
+     * have received the settings a delta is relative to.
+     */
+    void forwardToClients(int method, String payload) {
+        final List<InetAddress> addresses = new ArrayList<>(mClients.keySet());
+        if (addresses.isEmpty()) {
+            return;
+        }
+        String forwardedPayload = payload;
+        if (method == SoftwareSyncController.METHOD_SET_SETTINGS) {
+            try {
+                mLastSettings = SyncSettingsContainer.deserializeFromString(payload, mLastSettings);
+                forwardedPayload = mLastSettings.serializeToString();
+            } catch (IOException e) {
+                if (SyncSettingsContainer.isDeltaString(payload)) {
+                    // Ask for the full settings, which are forwarded once they arrive. The relay
+                    // starts without settings, so it may miss the base the device itself holds.
+                    Log.w(TAG, "Not forwarding a settings delta to unknown settings: " + e.getMessage());
+                    mClient.sendReliableRpcToLeader(
+                            SoftwareSyncController.METHOD_SETTINGS_NACK,
+                            mClient.getLocalClientInfo().address().getHostAddress());
+                    return;
+                }
+                Log.e(TAG, "Forwarding settings which cannot be deserialized: " + e.getMessage());
+            }
+        }
+        try {
+            mClient.sendReliableRpc(method, forwardedPayload, addresses);
+        } catch (IllegalArgumentException e) {
+            // Too big once wrapped into the reliable envelope, fall back to plain RPCs.
+            for (InetAddress address : addresses) {
+                mClient.sendRpc(method, forwardedPayload, address);
+            }
+        }
+    }
+
+    /**
+     * Forwards an RPC received from a client of the relay to the leader.
+     */
+    void forwardToLeader(int method, String payload) {
+        try {
+            mClient.sendReliableRpc(method, payload, mClient.getLeaderAddress());
+        } catch (IllegalArgumentException e) {
+            mClient.sendRpc(method, payload, mClient.getLeaderAddress());
+        }
+    }
+
+    @Override
+    public void close() {
+        mSntp.close();
+        mStaleClientChecker.shutdown();
+        mSntpSocket.close();
+    }
+}
@@ -26,16 +26,56 @@ public class SyncConstants {
     public static final int SOCKET_WAIT_TIME_MS = 500;
 
     /**
-     * Heartbeat period between clients and leader.
+     * Heartbeat period between clients and leader while a client is not synchronized or its leader
+     * responds late.
      */
     public static final long HEARTBEAT_PERIOD_NS = TimeUtils.secondsToNanos(1);
 
     /**
-     * Time until a lack of a heartbeat acknowledge from leader means a lost connection. Similarly the
-     * time until a lack of a heartbeat from a client means the client is stale.
+     * Longest heartbeat period a synchronized client backs off to while its leader responds in time.
+     */
+    public static final long MAX_HEARTBEAT_PERIOD_NS = 2 * HEARTBEAT_PERIOD_NS;
+
+    /**
+     * Growth of the heartbeat period after each heartbeat acknowledged in time, in percent.
+     */
+    public static final int HEARTBEAT_PERIOD_GROWTH_PERCENT = 25;
+
+    /**
+     * Nominal time until a lack of a heartbeat acknowledge from leader means a lost connection.
+     * Actual loss is detected with {@link PhiAccrualFailureDetector}, which adapts this to the
+     * observed heartbeat intervals.
      */
     public static final long STALE_TIME_NS = 2 * HEARTBEAT_PERIOD_NS;
 
+    /* Failure detection, see PhiAccrualFailureDetector. */
+    /**
+     * Phi at which a peer is considered failed, a 10^-8 probability of its heartbeat still arriving.
+     */
+    public static final double PHI_SUSPECT_THRESHOLD = 8.0;
+
+    /**
+     * Phi below which the leader is considered to respond in time, letting the heartbeat period grow.
+     */
+    public static final double PHI_ON_TIME_THRESHOLD = 1.0;
+
+    /**
+     * Number of recent heartbeat intervals the expected interval is estimated from.
+     */
+    public static final int PHI_WINDOW_SIZE = 100;
+
+    /**
+     * Lower bound of the estimated standard deviation of heartbeat intervals, so that perfectly
+     * regular heartbeats do not make the detector over-sensitive.
+     */
+    public static final long PHI_MIN_STD_DEV_NS = TimeUtils.millisToNanos(250);
+
+    /**
+     * Delay of a heartbeat which is tolerated on top of the expected interval, e.g. a WiFi power
+     * save wake-up or a burst of retransmissions.
+     */
+    public static final long PHI_ACCEPTABLE_PAUSE_NS = HEARTBEAT_PERIOD_NS;
+
     /**
      * Time until a given offsetNs by the leader is considered stale.
      */
@@ -47,6 +87,54 @@ public class SyncConstants {
     public static final int RPC_PORT = 8244;
     public static final int RPC_BUFFER_SIZE = 1024;
 
+    /**
+     * Maximum number of packets an RPC too big for one packet is split into, ~64 KB of possibly
+     * deflated payload.
+     */
+    public static final int MAX_RPC_FRAGMENTS = 64;
+
+    /**
+     * Time after the first fragment of an RPC until it is dropped if fragments are still missing.
+     */
+    public static final long RPC_REASSEMBLY_TIMEOUT_NS = TimeUtils.secondsToNanos(2);
+
+    /**
+     * Time to wait for the acknowledges of a reliable RPC before its first retransmission.
+     */
+    public static final long RELIABLE_RPC_INITIAL_TIMEOUT_MS = 50;
+
+    /**
+     * Factor by which the acknowledge timeout grows after each retransmission.
+     */
+    public static final int RELIABLE_RPC_BACKOFF_MULTIPLIER = 2;
+
+    /**
+     * Maximum number of transmissions of a reliable RPC, ~1.5 seconds of retries in total.
+     */
+    public static final int RELIABLE_RPC_MAX_ATTEMPTS = 5;
+
+    /**
+     * Minimum number of clients still to be reached for a broadcast RPC to be sent as a single
+     * subnet broadcast packet instead of one unicast packet per client, when enabled.
+     */
+    public static final int BROADCAST_FAN_OUT_MIN_CLIENTS = 3;
+
+    /**
+     * Number of recent reliable RPC sequence numbers remembered per sender to drop duplicates.
+     */
+    public static final int RELIABLE_RPC_DUPLICATE_WINDOW = 256;
+
+    /**
+     * Time for which the local interface addresses are cached by the reliable RPC receiver, so that
+     * a change of network is picked up without listing the interfaces for every envelope.
+     */
+    public static final long LOCAL_ADDRESSES_REFRESH_NS = TimeUtils.secondsToNanos(2);
+
+    /**
+     * Queueing plus execution time of a received RPC above which it is logged as slow.
+     */
+    public static final long RPC_SLOW_DISPATCH_NS = TimeUtils.millisToNanos(100);
+
     /*
      * RPC Method ids.
      * [0 - 9,999] Reserved for SoftwareSync.
@@ -57,6 +145,11 @@ public class SyncConstants {
     public static final int METHOD_HEARTBEAT = 1;
     public static final int METHOD_HEARTBEAT_ACK = 2;
     public static final int METHOD_OFFSET_UPDATE = 3;
+    public static final int METHOD_RELIABLE_RPC = 4;
+    public static final int METHOD_RELIABLE_RPC_ACK = 5;
+    public static final int METHOD_LEADER_STATE = 6;
+    public static final int METHOD_LEADER_ANNOUNCE = 7;
+    public static final int METHOD_RPC_FRAGMENT = 8;
 
     /* Define user RPC method ids using values greater or equal to this. */
     public static final int START_NON_SOFTWARESYNC_METHOD_IDS = 1_000;
@@ -66,8 +159,58 @@ public class SyncConstants {
     public static final int METHOD_MSG_WAITING_FOR_LEADER = 1_103;
     public static final int METHOD_MSG_SYNCING = 1_104;
     public static final int METHOD_MSG_OFFSET_UPDATED = 1_105;
+    public static final int METHOD_MSG_LEADER_ELECTED = 1_106;
+    public static final int METHOD_MSG_LEADER_CHANGED = 1_107;
 
 
+    /* Leader failover. */
+    /**
+     * Period at which the leader replicates its client list and saved settings to the clients, so
+     * that any of them can take over.
+     */
+    public static final long LEADER_STATE_PERIOD_NS = TimeUtils.secondsToNanos(2);
+
+    /**
+     * Time without a leader response after which the clients elect a new leader.
+     */
+    public static final long LEADER_FAILOVER_TIMEOUT_NS = STALE_TIME_NS + HEARTBEAT_PERIOD_NS;
+
+    /**
+     * Additional time each election candidate waits per candidate ranked before it, giving those a
+     * chance to claim the leadership first.
+     */
+    public static final long LEADER_ELECTION_SLOT_NS = HEARTBEAT_PERIOD_NS;
+
+    /* Scheduled triggers. */
+    /**
+     * Time from the first transmission of a reliable RPC to its last retransmission, i.e. the sum
+     * of the acknowledge timeouts before each retransmission.
+     */
+    public static final long RELIABLE_RPC_LAST_ATTEMPT_MS = reliableRpcLastAttemptMs();
+
+    /**
+     * Time allowed after the last retransmission of a scheduled trigger for it to reach a client
+     * and be armed.
+     */
+    public static final long TRIGGER_DELIVERY_MARGIN_MS = 250;
+
+    /**
+     * Time between a leader broadcasting a scheduled trigger and the trigger time, long enough for
+     * the last retransmission of the reliable RPC to arrive before the trigger time.
+     */
+    public static final long TRIGGER_LEAD_TIME_NS =
+            TimeUtils.millisToNanos(RELIABLE_RPC_LAST_ATTEMPT_MS + TRIGGER_DELIVERY_MARGIN_MS);
+
+    /**
+     * Time before a trigger during which the trigger thread busy-waits instead of sleeping.
+     */
+    public static final long TRIGGER_SPIN_WINDOW_NS = TimeUtils.millisToNanos(2);
+
+    /**
+     * A trigger fired later than this after its trigger time is reported as out of sync.
+     */
+    public static final long TRIGGER_LATE_TOLERANCE_NS = TimeUtils.millisToNanos(1);
+
     /* Clock Sync - Simple Network Time Protocol (SNTP). */
     public static final int SNTP_PORT = 9428;
     public static final int SNTP_BUFFER_SIZE = 512;
@@ -90,4 +233,14 @@ public class SyncConstants {
 
     private SyncConstants() {
     }
+
+    private static long reliableRpcLastAttemptMs() {
+        long totalMs = 0;
+        long timeoutMs = RELIABLE_RPC_INITIAL_TIMEOUT_MS;
+        for (int attempt = 1; attempt < RELIABLE_RPC_MAX_ATTEMPTS; attempt++) {
+            totalMs += timeoutMs;
+            timeoutMs *= RELIABLE_RPC_BACKOFF_MULTIPLIER;
+        }
+        return totalMs;
+    }
 }
@@ -0,0 +1,139 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs actions at a given time in the leader synchronized clock domain.
+ *
+ * <p>An action is armed with a coarse scheduled delay which ends {@link
+ * SyncConstants#TRIGGER_SPIN_WINDOW_NS} before the trigger time, and then busy-waits on the local
+ * clock for the remaining time. The conversion to leader time is re-evaluated while waiting, so an
+ * offset update received between arming and firing is taken into account.
+ *
+ * <p>Actions which must run on another thread (e.g. the UI thread) are handed over to its executor
+ * only once the trigger thread has fired, so that the other thread is never blocked by the
+ * busy-wait. The executor should therefore bypass any queued work (e.g. with {@link
+ * android.os.Handler#postAtFrontOfQueue}), and the action is told the time it was fired at to
+ * measure the handover latency. Actions fired more than {@link
+ * SyncConstants#TRIGGER_LATE_TOLERANCE_NS} late are logged as errors.
+ */
+public final class TriggerScheduler implements Closeable {
+    private static final String TAG = "TriggerScheduler";
+
+    private final Ticker mLocalClock;
+    private final TimeDomainConverter mTimeDomainConverter;
+    private final ScheduledExecutorService mTriggerExecutor =
+            Executors.newSingleThreadScheduledExecutor(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "TriggerSchedulerThread");
+                        thread.setPriority(Thread.MAX_PRIORITY);
+                        return thread;
+                    });
+
+    /**
+     * Action run at a trigger time.
+     */
+    public interface TriggerAction {
+        /**
+         * @param firedLeaderTimeNs leader time at which the trigger thread fired, which is before
+         *                          the action runs if it was handed over to another executor.
+         */
+        void run(long firedLeaderTimeNs);
+    }
+
+    TriggerScheduler(Ticker localClock, TimeDomainConverter timeDomainConverter) {
+        mLocalClock = localClock;
+        mTimeDomainConverter = timeDomainConverter;
+    }
+
+    private long leaderTimeNs() {
+        return mTimeDomainConverter.leaderTimeForLocalTimeNs(mLocalClock.read());
+    }
+
+    /**
+     * Arms the action to be run on the trigger thread at the given leader time. Actions whose
+     * trigger time has already passed are run as soon as possible.
+     *
+     * @param triggerLeaderTimeNs time to run the action at, in the leader clock domain.
+     * @param action              the action to be run.
+     */
+    public void schedule(long triggerLeaderTimeNs, Runnable action) {
+        schedule(triggerLeaderTimeNs, null, firedLeaderTimeNs -> action.run());
+    }
+
+    /**
+     * Arms the action to be handed over to the given executor at the given leader time. Actions
+     * whose trigger time has already passed are run as soon as possible.
+     *
+     * @param triggerLeaderTimeNs time to run the action at, in the leader clock domain.
+     * @param fireExecutor        executor to run the action on, or null to run it on the trigger
+     *                            thread.
+     * @param action              the action to be run.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void schedule(long triggerLeaderTimeNs, Executor fireExecutor, TriggerAction action) {
+        final long earlyNs = SyncConstants.TRIGGER_SPIN_WINDOW_NS;
+        final long delayNs = triggerLeaderTimeNs - leaderTimeNs() - earlyNs;
+        if (delayNs < -earlyNs) {
+            Log.e(
+                    TAG,
+                    String.format(
+                            Locale.ENGLISH,
+                            "Trigger received %.3f ms after the trigger time, it will be out of sync.",
+                            TimeUtils.nanosToMillis((double) (-delayNs - earlyNs))));
+        }
+        try {
+            mTriggerExecutor.schedule(
+                    () -> fire(triggerLeaderTimeNs, fireExecutor, action),
+                    Math.max(delayNs, 0),
+                    TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Trigger scheduler is closed, dropping trigger at " + triggerLeaderTimeNs);
+        }
+    }
+
+    private void fire(long triggerLeaderTimeNs, Executor fireExecutor, TriggerAction action) {
+        long now = leaderTimeNs();
+        while (now < triggerLeaderTimeNs) {
+            now = leaderTimeNs();
+        }
+        final long skewNs = now - triggerLeaderTimeNs;
+        if (skewNs > SyncConstants.TRIGGER_LATE_TOLERANCE_NS) {
+            Log.e(
+                    TAG,
+                    String.format(
+                            Locale.ENGLISH,
+                            "Trigger fired late, %.3f ms after the trigger time.",
+                            TimeUtils.nanosToMillis((double) skewNs)));
+        } else {
+            Log.d(TAG, String.format(Locale.ENGLISH, "Trigger fired with skew %,d ns.", skewNs));
+        }
+        final long firedLeaderTimeNs = now;
+        final Runnable run = () -> {
+            try {
+                action.run(firedLeaderTimeNs);
+            } catch (RuntimeException e) {
+                // Would otherwise be swallowed by the executor, or crash the UI thread.
+                Log.e(TAG, "Trigger action at " + triggerLeaderTimeNs + " failed", e);
+            }
+        };
+        if (fireExecutor == null) {
+            run.run();
+        } else {
+            fireExecutor.execute(run);
+        }
+    }
+
+    @Override
+    public void close() {
+        mTriggerExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,197 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/** Decodes jpegs to bitmaps for the ImageSaver. Bursts are decoded on a shared executor with a
+ *  bounded number of threads, rather than starting a new thread per image, so that a long expo
+ *  bracketing burst doesn't decode every image at once (each full resolution decode needing as
+ *  much memory as the bitmap itself).
+ *  Bitmaps no longer needed can be released to the pool, and are then reused via
+ *  BitmapFactory.Options.inBitmap for later decodes of the same or smaller size, avoiding
+ *  allocating (and garbage collecting) a new full resolution bitmap for every image of a burst.
+ */
+class BitmapDecodePool {
+    private static final String TAG = "BitmapDecodePool";
+
+    private static final int memory_per_thread_c = 64; // in MB, roughly the transient memory of decoding a large jpeg
+    private static final long keep_alive_time_c = 5000; // in ms
+
+    private final ThreadPoolExecutor executor;
+    private final List<Bitmap> reusable_bitmaps = new ArrayList<>();
+    private final long max_reusable_bytes;
+    private long reusable_bytes;
+
+    BitmapDecodePool(int large_heap_memory) {
+        int n_threads = computeNThreads(Runtime.getRuntime().availableProcessors(), large_heap_memory);
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_threads: " + n_threads);
+        final AtomicInteger thread_count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(n_threads, n_threads, keep_alive_time_c, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "BitmapDecode-" + thread_count.incrementAndGet());
+                        return thread;
+                    }
+                });
+        // no need to keep the threads around between photos
+        executor.allowCoreThreadTimeOut(true);
+        // only keep a few full resolution bitmaps around
+        max_reusable_bytes = Runtime.getRuntime().maxMemory()/8;
+    }
+
+    /** Returns the number of threads to decode with, limited by both the number of cores and the
+     *  device's memory (large heap, in MB).
+     */
+    static int computeNThreads(int n_cores, int large_heap_memory) {
+        return Math.max(1, Math.min(n_cores, large_heap_memory/memory_per_thread_c));
+    }
+
+    /** Decodes a jpeg on the calling thread.
+     * @param mutable Whether the bitmap should be mutable. Note that a reused bitmap is always
+     *                mutable.
+     * @param inSampleSize The sample size, see ImageSaver.setBitmapOptionsSampleSize(); bitmaps are
+     *                     only reused when this is 1.
+     * @return The bitmap, or null if decoding failed.
+     */
+    Bitmap decode(byte [] jpeg, boolean mutable, int inSampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = mutable;
+        ImageSaver.setBitmapOptionsSampleSize(options, inSampleSize);
+
+        Bitmap reuse_bitmap = null;
+        if( inSampleSize == 1 ) {
+            BitmapFactory.Options bounds_options = new BitmapFactory.Options();
+            bounds_options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds_options);
+            if( bounds_options.outWidth > 0 && bounds_options.outHeight > 0 ) {
+                // jpegs are decoded as ARGB_8888
+                reuse_bitmap = takeReusableBitmap(4L * bounds_options.outWidth * bounds_options.outHeight);
+            }
+        }
+
+        if( reuse_bitmap != null ) {
+            options.inBitmap = reuse_bitmap;
+            options.inMutable = true;
+            try {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+                if( bitmap != null )
+                    return bitmap;
+            }
+            catch(IllegalArgumentException e) {
+                // the bitmap can't be reused after all, so fall back to a new one
+                if( MyDebug.LOG )
+                    Log.e(TAG, "failed to reuse bitmap: " + e.getMessage());
+            }
+            reuse_bitmap.recycle();
+            options.inBitmap = null;
+            options.inMutable = mutable;
+        }
+
+        if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
+            // setting is ignored in Android 5 onwards
+            options.inPurgeable = true;
+        }
+        return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+    }
+
+    /** Decodes a jpeg on the pool's threads.
+     */
+    Future<Bitmap> submit(final byte [] jpeg, final boolean mutable, final int inSampleSize) {
+        return executor.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return decode(jpeg, mutable, inSampleSize);
+            }
+        });
+    }
+
+    /** Returns the smallest pooled bitmap with at least the requested allocation size, removing
+     *  it from the pool, or null if there is none.
+     */
+    private synchronized Bitmap takeReusableBitmap(long bytes) {
+        Bitmap best = null;
+        for(Bitmap bitmap : reusable_bitmaps) {
+            if( bitmap.getAllocationByteCount() >= bytes && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount()) ) {
+                best = bitmap;
+            }
+        }
+        if( best != null ) {
+            reusable_bitmaps.remove(best);
+            reusable_bytes -= best.getAllocationByteCount();
+            if( MyDebug.LOG )
+                Log.d(TAG, "reusing bitmap of " + best.getAllocationByteCount() + " bytes for " + bytes + " bytes");
+        }
+        return best;
+    }
+
+    /** Gives up a bitmap that is no longer needed, instead of recycling it. The caller must not use
+     *  the bitmap afterwards. Bitmaps that can't be reused, or that don't fit into the pool, are
+     *  recycled.
+     */
+    void release(Bitmap bitmap) {
+        if( bitmap == null || bitmap.isRecycled() )
+            return;
+        if( bitmap.isMutable() && bitmap.getConfig() == Bitmap.Config.ARGB_8888 && bitmap.getAllocationByteCount() <= max_reusable_bytes ) {
+            synchronized(this) {
+                if( !reusable_bitmaps.contains(bitmap) ) {
+                    // make room by recycling the oldest bitmaps
+                    evictReusableBitmaps(max_reusable_bytes - bitmap.getAllocationByteCount());
+                    reusable_bitmaps.add(bitmap);
+                    reusable_bytes += bitmap.getAllocationByteCount();
+                }
+            }
+            return;
+        }
+        bitmap.recycle();
+    }
+
+    /** Recycles the oldest pooled bitmaps until the pool holds at most max_bytes.
+     */
+    private synchronized void evictReusableBitmaps(long max_bytes) {
+        Iterator<Bitmap> iter = reusable_bitmaps.iterator();
+        while( reusable_bytes > max_bytes && iter.hasNext() ) {
+            Bitmap bitmap = iter.next();
+            iter.remove();
+            reusable_bytes -= bitmap.getAllocationByteCount();
+            bitmap.recycle();
+        }
+    }
+
+    /** Recycles all pooled bitmaps, e.g., once there are no more images to save.
+     */
+    void clear() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "clear");
+        evictReusableBitmaps(0);
+    }
+
+    /** Stops the decode threads once pending decodes are done, and recycles the pooled bitmaps.
+     */
+    void onDestroy() {
+        executor.shutdown();
+        clear();
+    }
+}
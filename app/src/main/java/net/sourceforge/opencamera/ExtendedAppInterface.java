@@ -20,6 +20,8 @@ import androidx.annotation.RequiresApi;
 
 import com.googleresearch.capturesync.PhaseAlignController;
 import com.googleresearch.capturesync.SoftwareSyncController;
+import com.googleresearch.capturesync.softwaresync.OffsetJournal;
+import com.googleresearch.capturesync.softwaresync.SoftwareSyncBase;
 import com.googleresearch.capturesync.softwaresync.phasealign.PeriodCalculator;
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
 
@@ -33,8 +35,12 @@ import net.sourceforge.opencamera.sensorlogging.VideoPhaseInfo;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
@@ -48,6 +54,7 @@ import java.util.concurrent.BlockingQueue;
  */
 public class ExtendedAppInterface extends MyApplicationInterface {
     private static final String TAG = "ExtendedAppInterface";
+    private static final String OFFSET_JOURNAL_FILE_SUFFIX = "_recsync_offsets";
 
     private final RawSensorInfo mRawSensorInfo;
     private final FlashController mFlashController;
@@ -60,6 +67,9 @@ public class ExtendedAppInterface extends MyApplicationInterface {
     private PhaseAlignController mPhaseAlignController;
     private PeriodCalculator mPeriodCalculator;
     private BroadcastReceiver mConnectionStatusChecker = null;
+    private SoftwareSyncBase mJournaledSoftwareSync = null;
+    private OffsetJournal mOffsetJournal = null;
+    private String mOffsetJournalFileSuffix = null;
 
     ExtendedAppInterface(MainActivity mainActivity, Bundle savedInstanceState) {
         super(mainActivity, savedInstanceState);
@@ -104,6 +114,16 @@ public class ExtendedAppInterface extends MyApplicationInterface {
         );
     }
 
+    /**
+     * Provides the journal of RecSync time offsets of the current recording, which converts local
+     * timestamps of all recorded streams to the leader time domain consistently.
+     *
+     * @return the journal, or null if RecSync was not running when the recording started.
+     */
+    public OffsetJournal getOffsetJournal() {
+        return mOffsetJournal;
+    }
+
     public FlashController getFlashController() {
         return mFlashController;
     }
@@ -180,6 +200,11 @@ public class ExtendedAppInterface extends MyApplicationInterface {
             Log.d(TAG, "starting video");
         }
 
+        // Should be started before the recorded streams, so that it covers all of their timestamps
+        if (isSoftwareSyncRunning()) {
+            startOffsetJournal();
+        }
+
         if (mPrefs.isIMURecordingEnabled() && useCamera2() && mPrefs.isIMUSensorEnabled()) {
             // Extracting sample rates from shared preferences
             try {
@@ -246,6 +271,10 @@ public class ExtendedAppInterface extends MyApplicationInterface {
             mFlashController.stopRecording();
         }
 
+        if (mOffsetJournal != null) {
+            stopOffsetJournal();
+        }
+
         super.stoppingVideo();
 
         if (isSoftwareSyncRunning() && !mSoftwareSyncController.isLeader()) {
@@ -345,7 +374,10 @@ public class ExtendedAppInterface extends MyApplicationInterface {
         wantSensorRecordingMap.put(Sensor.TYPE_LINEAR_ACCELERATION, mPrefs.isLinearEnabled());
         wantSensorRecordingMap.put(Sensor.TYPE_ROTATION_VECTOR, mPrefs.isRotationEnabled());
         wantSensorRecordingMap.put(Sensor.TYPE_ORIENTATION, mPrefs.isOrientationEnabled());
-        mRawSensorInfo.startRecording(mMainActivity, currentDate, wantSensorRecordingMap);
+        mRawSensorInfo.startRecording(
+                mMainActivity, currentDate, wantSensorRecordingMap,
+                mPrefs.isIMURecSyncTimestampsEnabled() ? mOffsetJournal : null
+        );
     }
 
     /**
@@ -474,6 +506,35 @@ public class ExtendedAppInterface extends MyApplicationInterface {
         }
     }
 
+    private void startOffsetJournal() {
+        mJournaledSoftwareSync = mSoftwareSyncController.getSoftwareSync();
+        mOffsetJournal = mJournaledSoftwareSync.startOffsetJournal();
+        mOffsetJournalFileSuffix = OFFSET_JOURNAL_FILE_SUFFIX +
+                (mSoftwareSyncController.isLeader() ? "_leader_" : "_client_") +
+                mJournaledSoftwareSync.getName();
+    }
+
+    /**
+     * Stops the offset journal of the current recording and saves it next to the recorded
+     * timestamps, so that they can be re-mapped to the leader time domain afterwards.
+     */
+    private void stopOffsetJournal() {
+        mJournaledSoftwareSync.stopOffsetJournal(mOffsetJournal);
+        try {
+            File journalFile = getStorageUtils().createOutputCaptureInfo(
+                    StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, "csv", mOffsetJournalFileSuffix, mLastVideoDate
+            );
+            try (Writer writer = new BufferedWriter(new PrintWriter(journalFile))) {
+                mOffsetJournal.writeCsv(writer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save RecSync offset journal");
+            e.printStackTrace();
+        }
+        mJournaledSoftwareSync = null;
+        mOffsetJournal = null;
+    }
+
     /**
      * Whether SoftwareSync is currently running (i.e. {@link SoftwareSyncController} is
      * initialized).
@@ -0,0 +1,44 @@
+package net.sourceforge.opencamera;
+
+/** The pixel processing needed by HDRProcessor.processHDRCore(), on images held as int [] planes
+ *  of ARGB_8888 colors (as returned by Bitmap.getPixels()). This allows the work to be done
+ *  without RenderScript, see HDRJavaBackend.
+ */
+public interface HDRBackend {
+    /** Exposure for TONEMAPALGORITHM_EXPONENTIAL, should be same value as exposure in process_hdr.rs.
+     */
+    float exposure_c = 1.2f;
+    /** Exposure bias for TONEMAPALGORITHM_FILMIC, should be same value as filmic_exposure_bias in
+     *  process_hdr.rs.
+     */
+    float filmic_exposure_bias_c = 2.0f / 255.0f;
+
+    /** Aligns the images using median threshold bitmaps, as HDRProcessor.autoAlignment() does
+     *  with use_mtb set to true.
+     * @param offsets_x     Output, the offsets such that (x+offset_x, y+offset_y) on an image
+     *                      corresponds to (x, y) on the base image.
+     * @param median_values The median luminance of each image, or -1 if the image isn't suitable
+     *                      for alignment (in which case its offsets are left at 0).
+     * @param base_image    Index of the image that is kept fixed.
+     * @param crop_to_centre Whether to only align the centre quarter of the images.
+     */
+    void autoAlignment(int [] offsets_x, int [] offsets_y, int [][] images, int width, int height, int [] median_values, int base_image, boolean crop_to_centre, int max_align_scale);
+
+    /** Merges from 2 to 7 images sorted from darkest to brightest, and tonemaps the result, as
+     *  the hdr_n kernel of process_hdr.rs does.
+     * @param parameter_A   The response function of each image is y = parameter_A * x + parameter_B.
+     * @param output        The merged image. May be the same array as images[base_image].
+     */
+    void mergeHDR(int [][] images, int width, int height, int base_image, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, float tonemap_scale, float linear_scale, float W, int [] output);
+
+    /**
+     * @param avg If true, compute the color value as the average of the rgb values. If false,
+     *            compute the color value as the maximum of the rgb values.
+     * @return The 256 bin histogram of the image.
+     */
+    int [] computeHistogram(int [] image, boolean avg);
+
+    /** Frees any threads held by the backend.
+     */
+    void onDestroy();
+}
@@ -0,0 +1,536 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/** Pure Java implementation of HDRBackend, a port of process_hdr.rs, create_mtb.rs, align_mtb.rs
+ *  and histogram_compute.rs. Images are split into tiles of rows which are processed in parallel
+ *  on a fork-join pool, so this doesn't depend on RenderScript (or how RenderScript chooses to
+ *  schedule the work), and can be run on a plain JVM.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class HDRJavaBackend implements HDRBackend {
+    private static final String TAG = "HDRJavaBackend";
+
+    private static final int tile_rows_c = 32; // rows of an image processed by a single task
+    private static final int tile_pixels_c = 65536; // pixels processed by a single task, when not working on rows
+
+    private final int n_threads;
+    private ForkJoinPool pool; // lazily created
+
+    public HDRJavaBackend() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public HDRJavaBackend(int n_threads) {
+        this.n_threads = Math.max(1, n_threads);
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if( pool == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "create pool with n_threads: " + n_threads);
+            pool = new ForkJoinPool(n_threads);
+        }
+        return pool;
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onDestroy");
+        if( pool != null ) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /** Work on the range [start, stop), of rows or pixels.
+     */
+    private interface RangeKernel {
+        void apply(int start, int stop);
+    }
+
+    /** Work on the range [start, stop), of rows or pixels, that accumulates into result.
+     */
+    private interface RangeReduceKernel {
+        void apply(int start, int stop, int [] result);
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private final RangeKernel kernel;
+        private final int start, stop, grain;
+
+        RangeAction(RangeKernel kernel, int start, int stop, int grain) {
+            this.kernel = kernel;
+            this.start = start;
+            this.stop = stop;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if( stop - start <= grain ) {
+                kernel.apply(start, stop);
+            }
+            else {
+                int mid = (start + stop) >>> 1;
+                invokeAll(new RangeAction(kernel, start, mid, grain), new RangeAction(kernel, mid, stop, grain));
+            }
+        }
+    }
+
+    private static class RangeReduceTask extends RecursiveTask<int []> {
+        private final RangeReduceKernel kernel;
+        private final int start, stop, grain, result_size;
+
+        RangeReduceTask(RangeReduceKernel kernel, int start, int stop, int grain, int result_size) {
+            this.kernel = kernel;
+            this.start = start;
+            this.stop = stop;
+            this.grain = grain;
+            this.result_size = result_size;
+        }
+
+        @Override
+        protected int [] compute() {
+            if( stop - start <= grain ) {
+                int [] result = new int[result_size];
+                kernel.apply(start, stop, result);
+                return result;
+            }
+            int mid = (start + stop) >>> 1;
+            RangeReduceTask left = new RangeReduceTask(kernel, start, mid, grain, result_size);
+            left.fork();
+            int [] result = new RangeReduceTask(kernel, mid, stop, grain, result_size).compute();
+            int [] left_result = left.join();
+            for(int i=0;i<result_size;i++) {
+                result[i] += left_result[i];
+            }
+            return result;
+        }
+    }
+
+    private void forEach(int start, int stop, int grain, RangeKernel kernel) {
+        if( stop > start )
+            getPool().invoke(new RangeAction(kernel, start, stop, grain));
+    }
+
+    private int [] reduce(int start, int stop, int grain, int result_size, RangeReduceKernel kernel) {
+        if( stop <= start )
+            return new int[result_size];
+        return getPool().invoke(new RangeReduceTask(kernel, start, stop, grain, result_size));
+    }
+
+    private static int maxRGB(int color) {
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        return Math.max(Math.max(r, g), b);
+    }
+
+    @Override
+    public void autoAlignment(final int [] offsets_x, final int [] offsets_y, final int [][] images, final int width, final int height, final int [] median_values, final int base_image, final boolean crop_to_centre, final int max_align_scale) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "autoAlignment");
+        long time_s = System.currentTimeMillis();
+        for(int i=0;i<offsets_x.length;i++) {
+            offsets_x[i] = 0;
+            offsets_y[i] = 0;
+        }
+        if( median_values[base_image] < 0 ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "base image not suitable for image alignment");
+            return;
+        }
+
+        int mtb_width = width;
+        int mtb_height = height;
+        int mtb_x = 0;
+        int mtb_y = 0;
+        if( crop_to_centre ) {
+            mtb_width = width/2;
+            mtb_height = height/2;
+            mtb_x = mtb_width/2;
+            mtb_y = mtb_height/2;
+        }
+
+        final byte [][] mtbs = new byte[images.length][];
+        for(int i=0;i<images.length;i++) {
+            if( median_values[i] < 0 ) {
+                continue;
+            }
+            final int min_diff_c = 4; // should be same value as in create_mtb.rs/create_mtb()
+            int median_value = Math.max(median_values[i], min_diff_c+1);
+            median_value = Math.min(median_value, 255-(min_diff_c+1));
+            mtbs[i] = createMTB(images[i], width, mtb_x, mtb_y, mtb_width, mtb_height, median_value, min_diff_c);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time after creating mtbs: " + (System.currentTimeMillis() - time_s));
+
+        // see HDRProcessor.autoAlignment() for details
+        int max_dim = Math.max(width, height);
+        int max_ideal_size = (max_align_scale * max_dim) / 150;
+        int initial_step_size = 1;
+        while( initial_step_size < max_ideal_size ) {
+            initial_step_size *= 2;
+        }
+
+        for(int i=0;i<images.length;i++) {
+            if( i == base_image || mtbs[i] == null ) {
+                continue;
+            }
+            int step_size = initial_step_size;
+            while( step_size > 1 ) {
+                step_size /= 2;
+                int [] errors = computeAlignErrors(mtbs[base_image], mtbs[i], mtb_width, mtb_height, offsets_x[i], offsets_y[i], step_size);
+                int best_error = -1;
+                int best_id = -1;
+                for(int j=0;j<9;j++) {
+                    if( best_id == -1 || errors[j] < best_error ) {
+                        best_error = errors[j];
+                        best_id = j;
+                    }
+                }
+                offsets_x[i] += (best_id % 3 - 1) * step_size;
+                offsets_y[i] += (best_id / 3 - 1) * step_size;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "offsets for image " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time for autoAlignment: " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Port of create_mtb.rs/create_mtb(), the resultant values are 0, 127 (for values too close to
+     *  the median to be reliable) or 255.
+     */
+    private byte [] createMTB(final int [] image, final int width, final int mtb_x, final int mtb_y, final int mtb_width, final int mtb_height, final int median_value, final int min_diff) {
+        final byte [] mtb = new byte[mtb_width*mtb_height];
+        forEach(0, mtb_height, tile_rows_c, new RangeKernel() {
+            @Override
+            public void apply(int start, int stop) {
+                for(int y=start;y<stop;y++) {
+                    int in_indx = (y+mtb_y)*width + mtb_x;
+                    int out_indx = y*mtb_width;
+                    for(int x=0;x<mtb_width;x++) {
+                        int value = maxRGB(image[in_indx++]);
+                        byte out;
+                        if( Math.abs(value - median_value) <= min_diff )
+                            out = 127;
+                        else if( value <= median_value )
+                            out = 0;
+                        else
+                            out = (byte)255;
+                        mtb[out_indx++] = out;
+                    }
+                }
+            }
+        });
+        return mtb;
+    }
+
+    /** Port of align_mtb.rs/align_mtb(), returns the errors for the 3x3 offsets around
+     *  (off_x, off_y), sampling every step_size'th pixel.
+     */
+    private int [] computeAlignErrors(final byte [] mtb0, final byte [] mtb1, final int mtb_width, final int mtb_height, final int off_x, final int off_y, final int step_size) {
+        final int stop_y = mtb_height/step_size;
+        final int stop_x = mtb_width/step_size;
+        return reduce(0, stop_y, tile_rows_c, 9, new RangeReduceKernel() {
+            @Override
+            public void apply(int start, int stop, int [] errors) {
+                for(int sy=start;sy<stop;sy++) {
+                    int y = sy*step_size;
+                    if( y+off_y < step_size || y+off_y >= mtb_height-step_size )
+                        continue;
+                    for(int sx=0;sx<stop_x;sx++) {
+                        int x = sx*step_size;
+                        if( x+off_x < step_size || x+off_x >= mtb_width-step_size )
+                            continue;
+                        byte pixel0 = mtb0[y*mtb_width + x];
+                        if( pixel0 == 127 )
+                            continue; // ignore noise - see create_mtb.rs
+                        int c = 0;
+                        for(int dy=-1;dy<=1;dy++) {
+                            int row = (y+off_y+dy*step_size)*mtb_width + x+off_x;
+                            for(int dx=-1;dx<=1;dx++) {
+                                byte pixel1 = mtb1[row + dx*step_size];
+                                if( pixel0 != pixel1 && pixel1 != 127 )
+                                    errors[c]++;
+                                c++;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void mergeHDR(final int [][] images, final int width, final int height, final int base_image, final int [] offsets_x, final int [] offsets_y, final float [] parameter_A, final float [] parameter_B, final HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, final float tonemap_scale, final float linear_scale, final float W, final int [] output) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "mergeHDR");
+        long time_s = System.currentTimeMillis();
+        final int n_images = images.length;
+        if( n_images < 2 || n_images > 7 ) {
+            // programming error
+            throw new RuntimeException("n_images not supported: " + n_images);
+        }
+        final int [] base_pixels = images[base_image];
+        final int mid_indx = (n_images-1)/2; // round down to dark image for even number of images
+        final boolean even = n_images % 2 == 0;
+        final float white_scale = 255.0f / uncharted2Tonemap(W);
+
+        forEach(0, height, tile_rows_c, new RangeKernel() {
+            @Override
+            public void apply(int start, int stop) {
+                int [] pixels = new int[n_images];
+                float [] this_A = new float[n_images];
+                float [] this_B = new float[n_images];
+                float [] hdr = new float[3];
+                for(int y=start;y<stop;y++) {
+                    for(int x=0;x<width;x++) {
+                        int indx = y*width + x;
+                        int in = base_pixels[indx];
+                        for(int i=0;i<n_images;i++) {
+                            int ix = x+offsets_x[i];
+                            int iy = y+offsets_y[i];
+                            if( ix >= 0 && iy >= 0 && ix < width && iy < height ) {
+                                pixels[i] = images[i][iy*width + ix];
+                                this_A[i] = parameter_A[i];
+                                this_B[i] = parameter_B[i];
+                            }
+                            else {
+                                pixels[i] = in;
+                                this_A[i] = parameter_A[mid_indx];
+                                this_B[i] = parameter_B[mid_indx];
+                            }
+                        }
+                        mergePixel(hdr, pixels, this_A, this_B, n_images, mid_indx, even);
+                        output[indx] = tonemap(hdr, tonemapping_algorithm, tonemap_scale, linear_scale, white_scale);
+                    }
+                }
+            }
+        });
+        if( MyDebug.LOG )
+            Log.d(TAG, "time for mergeHDR: " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Port of process_hdr.rs/hdr_n(), the merged value is stored in hdr.
+     */
+    private static void mergePixel(float [] hdr, int [] pixels, float [] parameter_A, float [] parameter_B, int n_images, int mid_indx, boolean even) {
+        final float safe_range_c = 96.0f;
+        float hdr_r, hdr_g, hdr_b;
+        float sum_weight;
+
+        int color = pixels[mid_indx];
+        float r = (color >> 16) & 0xFF;
+        float g = (color >> 8) & 0xFF;
+        float b = color & 0xFF;
+        float avg = (r+g+b) / 3.0f;
+        float diff = Math.abs( avg - 127.5f );
+        float weight = 1.0f;
+        if( diff > safe_range_c ) {
+            // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+            weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+        }
+
+        // response function
+        r = parameter_A[mid_indx] * r + parameter_B[mid_indx];
+        g = parameter_A[mid_indx] * g + parameter_B[mid_indx];
+        b = parameter_A[mid_indx] * b + parameter_B[mid_indx];
+
+        hdr_r = weight * r;
+        hdr_g = weight * g;
+        hdr_b = weight * b;
+        sum_weight = weight;
+
+        if( even ) {
+            int color1 = pixels[mid_indx+1];
+            float r1 = (color1 >> 16) & 0xFF;
+            float g1 = (color1 >> 8) & 0xFF;
+            float b1 = color1 & 0xFF;
+            float avg1 = (r1+g1+b1) / 3.0f;
+            float diff1 = Math.abs( avg1 - 127.5f );
+            float weight1 = 1.0f;
+            if( diff1 > safe_range_c ) {
+                weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
+            }
+            r1 = parameter_A[mid_indx+1] * r1 + parameter_B[mid_indx+1];
+            g1 = parameter_A[mid_indx+1] * g1 + parameter_B[mid_indx+1];
+            b1 = parameter_A[mid_indx+1] * b1 + parameter_B[mid_indx+1];
+
+            hdr_r += weight1 * r1;
+            hdr_g += weight1 * g1;
+            hdr_b += weight1 * b1;
+            sum_weight += weight1;
+
+            avg = (avg+avg1)/2.0f;
+            weight = (weight+weight1)/2.0f;
+        }
+
+        if( weight < 1.0f ) {
+            float base_r = r, base_g = g, base_b = b;
+            int adj_indx = mid_indx;
+            int step_dir = avg <= 127.5f ? 1 : -1;
+            if( even && step_dir == 1 ) {
+                adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+            }
+
+            int n_adj = (n_images-1)/2;
+            for(int k=0;k<n_adj;k++) {
+                // now look at a neighbour image
+                weight = 1.0f - weight;
+                adj_indx += step_dir;
+
+                color = pixels[adj_indx];
+                r = (color >> 16) & 0xFF;
+                g = (color >> 8) & 0xFF;
+                b = color & 0xFF;
+                if( k+1 < n_adj ) {
+                    // there will be at least one more adjacent image to look at
+                    avg = (r+g+b) / 3.0f;
+                    diff = Math.abs( avg - 127.5f );
+                    if( diff > safe_range_c ) {
+                        weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                    }
+                }
+                r = parameter_A[adj_indx] * r + parameter_B[adj_indx];
+                g = parameter_A[adj_indx] * g + parameter_B[adj_indx];
+                b = parameter_A[adj_indx] * b + parameter_B[adj_indx];
+
+                float value = Math.max(Math.max(r, g), b);
+                if( value <= 250.0f ) {
+                    // deghosting, see process_hdr.rs for details
+                    final float wiener_C_lo = 2000.0f;
+                    final float wiener_C_hi = 8000.0f;
+                    float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+                    float x = Math.abs( value - 127.5f ) - 96.0f;
+                    if( x > 0.0f ) {
+                        final float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+                        wiener_C = wiener_C_lo + x*scale;
+                    }
+                    float diff_r = base_r - r;
+                    float diff_g = base_g - g;
+                    float diff_b = base_b - b;
+                    float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+                    float ghost_weight = L/(L+wiener_C);
+                    r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+                    g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+                    b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+                }
+
+                hdr_r += weight * r;
+                hdr_g += weight * g;
+                hdr_b += weight * b;
+                sum_weight += weight;
+
+                if( diff <= safe_range_c ) {
+                    break;
+                }
+            }
+        }
+
+        hdr[0] = hdr_r / sum_weight;
+        hdr[1] = hdr_g / sum_weight;
+        hdr[2] = hdr_b / sum_weight;
+    }
+
+    private static float uncharted2Tonemap(float x) {
+        final float A = 0.15f;
+        final float B = 0.50f;
+        final float C = 0.10f;
+        final float D = 0.20f;
+        final float E = 0.02f;
+        final float F = 0.30f;
+        return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+    }
+
+    private static int clampColor(float value) {
+        return Math.max(0, Math.min(255, (int)(value+0.5f)));
+    }
+
+    /** Port of process_hdr.rs/tonemap(), returns the color.
+     */
+    private static int tonemap(float [] hdr, HDRProcessor.TonemappingAlgorithm tonemapping_algorithm, float tonemap_scale, float linear_scale, float white_scale) {
+        int r, g, b;
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                r = clampColor(hdr[0]);
+                g = clampColor(hdr[1]);
+                b = clampColor(hdr[2]);
+                break;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+                r = clampColor(linear_scale * 255.0f * (1.0f - (float)Math.exp( - exposure_c * hdr[0] / 255.0f )));
+                g = clampColor(linear_scale * 255.0f * (1.0f - (float)Math.exp( - exposure_c * hdr[1] / 255.0f )));
+                b = clampColor(linear_scale * 255.0f * (1.0f - (float)Math.exp( - exposure_c * hdr[2] / 255.0f )));
+                break;
+            case TONEMAPALGORITHM_FILMIC:
+                r = clampColor(white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr[0]));
+                g = clampColor(white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr[1]));
+                b = clampColor(white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr[2]));
+                break;
+            case TONEMAPALGORITHM_ACES:
+                r = clampColor(aces(hdr[0]));
+                g = clampColor(aces(hdr[1]));
+                b = clampColor(aces(hdr[2]));
+                break;
+            case TONEMAPALGORITHM_REINHARD:
+            default:
+            {
+                float value = Math.max(Math.max(hdr[0], hdr[1]), hdr[2]);
+                float scale = 255.0f / ( tonemap_scale + value );
+                scale *= linear_scale;
+                // shouldn't need to clamp - linear_scale should be such that values don't map to more than 255
+                r = clampColor(scale * hdr[0]);
+                g = clampColor(scale * hdr[1]);
+                b = clampColor(scale * hdr[2]);
+                break;
+            }
+        }
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static float aces(float value) {
+        final float a = 2.51f;
+        final float b = 0.03f;
+        final float c = 2.43f;
+        final float d = 0.59f;
+        final float e = 0.14f;
+        float x = value/255.0f;
+        return 255.0f * (x*(a*x+b))/(x*(c*x+d)+e);
+    }
+
+    @Override
+    public int [] computeHistogram(final int [] image, final boolean avg) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "computeHistogram");
+        return reduce(0, image.length, tile_pixels_c, 256, new RangeReduceKernel() {
+            @Override
+            public void apply(int start, int stop, int [] histogram) {
+                for(int i=start;i<stop;i++) {
+                    int color = image[i];
+                    int value;
+                    if( avg ) {
+                        // port of histogram_compute.rs/histogram_compute_by_intensity()
+                        int r = (color >> 16) & 0xFF;
+                        int g = (color >> 8) & 0xFF;
+                        int b = color & 0xFF;
+                        value = Math.min((int)((r + g + b)/3.0f + 0.5f), 255);
+                    }
+                    else {
+                        // port of histogram_compute.rs/histogram_compute_by_value()
+                        value = maxRGB(color);
+                    }
+                    histogram[value]++;
+                }
+            }
+        });
+    }
+}
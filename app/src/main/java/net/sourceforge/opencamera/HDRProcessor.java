@@ -6,19 +6,24 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.media.MediaScannerConnection;
 import android.os.Build;
 import android.os.Environment;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RSInvalidStateException;
+import android.renderscript.RSRuntimeException;
 import android.renderscript.RenderScript;
 import android.renderscript.Script;
 import android.renderscript.ScriptIntrinsicHistogram;
@@ -54,6 +59,19 @@ public class HDRProcessor {
     @SuppressWarnings("CanBeFinal")
     public int sharp_index = 0;
 
+    // If true, processHDR(), the package level autoAlignment() (when using mtb) and computeHistogram() are done on the CPU
+    // using HDRJavaBackend rather than RenderScript. The Java backend is also used if RenderScript isn't available.
+    // Public for access by testing.
+    @SuppressWarnings("CanBeFinal")
+    public boolean use_java_backend = false;
+    private HDRBackend java_backend; // lazily created
+
+    // If true, the response functions used to merge HDR images are estimated from a denser grid of samples, using a
+    // robust fit (see fitResponseFunction()), so that they are less affected by movement between the images.
+    // Public for access by testing.
+    @SuppressWarnings("CanBeFinal")
+    public boolean use_robust_response = false;
+
     private enum HDRAlgorithm {
         HDRALGORITHM_STANDARD,
         HDRALGORITHM_SINGLE_IMAGE
@@ -95,6 +113,11 @@ public class HDRProcessor {
 
         freeScripts(); // just in case
 
+        if( java_backend != null ) {
+            java_backend.onDestroy();
+            java_backend = null;
+        }
+
         if( rs != null ) {
             // need to destroy context, otherwise this isn't necessarily garbage collected - we had tests failing with out of memory
             // problems e.g. when running MainTests as a full set with Camera2 API. Although we now reduce the problem by creating
@@ -128,134 +151,20 @@ public class HDRProcessor {
             return new ResponseFunction(1.0f, 0.0f);
         }
 
-        /** Computes the response function.
+        /** Computes the response function, see fitResponseFunction().
          * We pass the context, so this inner class can be made static.
-         * @param x_samples List of Xi samples. Must be at least 3 samples.
-         * @param y_samples List of Yi samples. Must be same length as x_samples.
-         * @param weights List of weights. Must be same length as x_samples.
+         * @param x_samples Array of Xi samples.
+         * @param y_samples Array of Yi samples.
+         * @param weights Array of weights.
+         * @param n_samples The number of samples stored in the arrays. Must be at least 3 samples.
          */
-        ResponseFunction(Context context, int id, List<Double> x_samples, List<Double> y_samples, List<Double> weights) {
+        ResponseFunction(Context context, int id, double [] x_samples, double [] y_samples, double [] weights, int n_samples, boolean robust) {
             if( MyDebug.LOG )
                 Log.d(TAG, "ResponseFunction");
 
-            if( x_samples.size() != y_samples.size() ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "unequal number of samples");
-                // throw RuntimeException, as this is a programming error
-                throw new RuntimeException();
-            }
-            else if( x_samples.size() != weights.size() ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "unequal number of samples");
-                // throw RuntimeException, as this is a programming error
-                throw new RuntimeException();
-            }
-            else if( x_samples.size() <= 3 ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "not enough samples");
-                // throw RuntimeException, as this is a programming error
-                throw new RuntimeException();
-            }
-
-            // linear Y = AX + B
-            boolean done = false;
-            double sum_wx = 0.0;
-            double sum_wx2 = 0.0;
-            double sum_wxy = 0.0;
-            double sum_wy = 0.0;
-            double sum_w = 0.0;
-            for(int i=0;i<x_samples.size();i++) {
-                double x = x_samples.get(i);
-                double y = y_samples.get(i);
-                double w = weights.get(i);
-                sum_wx += w * x;
-                sum_wx2 += w * x * x;
-                sum_wxy += w * x * y;
-                sum_wy += w * y;
-                sum_w += w;
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "sum_wx = " + sum_wx);
-                Log.d(TAG, "sum_wx2 = " + sum_wx2);
-                Log.d(TAG, "sum_wxy = " + sum_wxy);
-                Log.d(TAG, "sum_wy = " + sum_wy);
-                Log.d(TAG, "sum_w = " + sum_w);
-            }
-            // need to solve:
-            // A . sum_wx + B . sum_w - sum_wy = 0
-            // A . sum_wx2 + B . sum_wx - sum_wxy = 0
-            // =>
-            // A . sum_wx^2 + B . sum_w . sum_wx - sum_wy . sum_wx = 0
-            // A . sum_w . sum_wx2 + B . sum_w . sum_wx - sum_w . sum_wxy = 0
-            // A ( sum_wx^2 - sum_w . sum_wx2 ) = sum_wy . sum_wx - sum_w . sum_wxy
-            // then plug A into:
-            // B . sum_w = sum_wy - A . sum_wx
-            double A_numer = sum_wy * sum_wx - sum_w * sum_wxy;
-            double A_denom = sum_wx * sum_wx - sum_w * sum_wx2;
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "A_numer = " + A_numer);
-                Log.d(TAG, "A_denom = " + A_denom);
-            }
-            if( Math.abs(A_denom) < 1.0e-5 ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "denom too small");
-                // will fall back to linear Y = AX
-            }
-            else {
-                parameter_A = (float)(A_numer / A_denom);
-                parameter_B = (float)((sum_wy - parameter_A * sum_wx) / sum_w);
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "parameter_A = " + parameter_A);
-                    Log.d(TAG, "parameter_B = " + parameter_B);
-                }
-                // we don't want a function that is not monotonic, or can be negative!
-                if( parameter_A < 1.0e-5 ) {
-                    if( MyDebug.LOG )
-                        Log.e(TAG, "parameter A too small or negative: " + parameter_A);
-                }
-                else if( parameter_B < 1.0e-5 ) {
-                    if( MyDebug.LOG )
-                        Log.e(TAG, "parameter B too small or negative: " + parameter_B);
-                }
-                else {
-                    done = true;
-                }
-            }
-
-            if( !done ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "falling back to linear Y = AX");
-                // linear Y = AX
-                double numer = 0.0;
-                double denom = 0.0;
-                for(int i=0;i<x_samples.size();i++) {
-                    double x = x_samples.get(i);
-                    double y = y_samples.get(i);
-                    double w = weights.get(i);
-                    numer += w*x*y;
-                    denom += w*x*x;
-                }
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "numer = " + numer);
-                    Log.d(TAG, "denom = " + denom);
-                }
-
-                if( denom < 1.0e-5 ) {
-                    if( MyDebug.LOG )
-                        Log.e(TAG, "denom too small");
-                    parameter_A = 1.0f;
-                }
-                else {
-                    parameter_A = (float)(numer / denom);
-                    // we don't want a function that is not monotonic!
-                    if( parameter_A < 1.0e-5 ) {
-                        if( MyDebug.LOG )
-                            Log.e(TAG, "parameter A too small or negative: " + parameter_A);
-                        parameter_A = 1.0e-5f;
-                    }
-                }
-                parameter_B = 0.0f;
-            }
+            float [] parameters = fitResponseFunction(x_samples, y_samples, weights, n_samples, robust);
+            parameter_A = parameters[0];
+            parameter_B = parameters[1];
 
             if( MyDebug.LOG ) {
                 Log.d(TAG, "parameter_A = " + parameter_A);
@@ -277,11 +186,11 @@ public class HDRProcessor {
                     //writer.append("Parameter," + parameter + "\n");
                     writer.append("Parameters,").append(String.valueOf(parameter_A)).append(",").append(String.valueOf(parameter_B)).append("\n");
                     writer.append("X,Y,Weight\n");
-                    for(int i=0;i<x_samples.size();i++) {
-                        //Log.d(TAG, "log: " + i + " / " + x_samples.size());
-                        double x = x_samples.get(i);
-                        double y = y_samples.get(i);
-                        double w = weights.get(i);
+                    for(int i=0;i<n_samples;i++) {
+                        //Log.d(TAG, "log: " + i + " / " + n_samples);
+                        double x = x_samples[i];
+                        double y = y_samples[i];
+                        double w = weights[i];
                         writer.append(String.valueOf(x)).append(",").append(String.valueOf(y)).append(",").append(String.valueOf(w)).append("\n");
                     }
                 }
@@ -304,6 +213,189 @@ public class HDRProcessor {
         }
     }
 
+    private static final int response_irls_max_iterations_c = 10; // max iterations for the robust fit in fitResponseFunction()
+    private static final double response_irls_huber_k_c = 1.345; // residuals beyond this many (robust) standard deviations are down-weighted
+    private static final double response_irls_min_scale_c = 1.0; // minimum standard deviation of the residuals, in pixel values
+
+    /** Estimates a response function y = parameter_A * x + parameter_B from the supplied samples,
+     *  using weighted linear least squares. If that gives a function that isn't monotonic or can be
+     *  negative, we instead fall back to y = parameter_A * x.
+     *  If robust is true, the linear fit is then refined by iteratively reweighted least squares,
+     *  using Huber weights on the residuals, so that samples that don't follow the response (e.g.,
+     *  due to movement between the images, or clipped pixels) have less influence on the fit.
+     *  Public for testing.
+     * @param x_samples Array of Xi samples.
+     * @param y_samples Array of Yi samples.
+     * @param weights   Array of weights.
+     * @param n_samples The number of samples stored in the arrays. Must be more than 3.
+     * @return Array of length 2, containing parameter_A and parameter_B.
+     */
+    public static float [] fitResponseFunction(double [] x_samples, double [] y_samples, double [] weights, int n_samples, boolean robust) {
+        if( x_samples.length < n_samples || y_samples.length < n_samples || weights.length < n_samples ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "not enough space for samples");
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException();
+        }
+        else if( n_samples <= 3 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "not enough samples");
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException();
+        }
+
+        float [] parameters = new float[2];
+        if( !fitLinearResponse(x_samples, y_samples, weights, n_samples, parameters) ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "falling back to linear Y = AX");
+            fitProportionalResponse(x_samples, y_samples, weights, n_samples, parameters);
+        }
+        else if( robust ) {
+            double [] robust_weights = new double[n_samples];
+            double [] residuals = new double[n_samples];
+            double [] sorted_residuals = new double[n_samples];
+            float [] robust_parameters = new float[2];
+            for(int iter=0;iter<response_irls_max_iterations_c;iter++) {
+                for(int i=0;i<n_samples;i++) {
+                    residuals[i] = Math.abs(y_samples[i] - (parameters[0] * x_samples[i] + parameters[1]));
+                }
+                // estimate the standard deviation of the residuals from the median absolute deviation
+                System.arraycopy(residuals, 0, sorted_residuals, 0, n_samples);
+                Arrays.sort(sorted_residuals);
+                double scale = 1.4826 * sorted_residuals[n_samples/2];
+                scale = Math.max(scale, response_irls_min_scale_c);
+                double threshold = response_irls_huber_k_c * scale;
+                for(int i=0;i<n_samples;i++) {
+                    robust_weights[i] = residuals[i] <= threshold ? weights[i] : weights[i] * threshold / residuals[i];
+                }
+
+                if( !fitLinearResponse(x_samples, y_samples, robust_weights, n_samples, robust_parameters) ) {
+                    // keep the last valid fit
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "robust fit failed at iteration " + iter);
+                    break;
+                }
+                boolean converged = Math.abs(robust_parameters[0] - parameters[0]) < 1.0e-4f && Math.abs(robust_parameters[1] - parameters[1]) < 1.0e-2f;
+                parameters[0] = robust_parameters[0];
+                parameters[1] = robust_parameters[1];
+                if( MyDebug.LOG )
+                    Log.d(TAG, "robust fit iteration " + iter + ": " + parameters[0] + " , " + parameters[1]);
+                if( converged ) {
+                    break;
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /** Fits y = A * x + B by weighted linear least squares.
+     * @param parameters Output, set to A and B if successful.
+     * @return Whether a monotonic and non-negative function was found.
+     */
+    private static boolean fitLinearResponse(double [] x_samples, double [] y_samples, double [] weights, int n_samples, float [] parameters) {
+        // linear Y = AX + B
+        double sum_wx = 0.0;
+        double sum_wx2 = 0.0;
+        double sum_wxy = 0.0;
+        double sum_wy = 0.0;
+        double sum_w = 0.0;
+        for(int i=0;i<n_samples;i++) {
+            double x = x_samples[i];
+            double y = y_samples[i];
+            double w = weights[i];
+            sum_wx += w * x;
+            sum_wx2 += w * x * x;
+            sum_wxy += w * x * y;
+            sum_wy += w * y;
+            sum_w += w;
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "sum_wx = " + sum_wx);
+            Log.d(TAG, "sum_wx2 = " + sum_wx2);
+            Log.d(TAG, "sum_wxy = " + sum_wxy);
+            Log.d(TAG, "sum_wy = " + sum_wy);
+            Log.d(TAG, "sum_w = " + sum_w);
+        }
+        // need to solve:
+        // A . sum_wx + B . sum_w - sum_wy = 0
+        // A . sum_wx2 + B . sum_wx - sum_wxy = 0
+        // =>
+        // A . sum_wx^2 + B . sum_w . sum_wx - sum_wy . sum_wx = 0
+        // A . sum_w . sum_wx2 + B . sum_w . sum_wx - sum_w . sum_wxy = 0
+        // A ( sum_wx^2 - sum_w . sum_wx2 ) = sum_wy . sum_wx - sum_w . sum_wxy
+        // then plug A into:
+        // B . sum_w = sum_wy - A . sum_wx
+        double A_numer = sum_wy * sum_wx - sum_w * sum_wxy;
+        double A_denom = sum_wx * sum_wx - sum_w * sum_wx2;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "A_numer = " + A_numer);
+            Log.d(TAG, "A_denom = " + A_denom);
+        }
+        if( Math.abs(A_denom) < 1.0e-5 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "denom too small");
+            return false;
+        }
+        float parameter_A = (float)(A_numer / A_denom);
+        float parameter_B = (float)((sum_wy - parameter_A * sum_wx) / sum_w);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "parameter_A = " + parameter_A);
+            Log.d(TAG, "parameter_B = " + parameter_B);
+        }
+        // we don't want a function that is not monotonic, or can be negative!
+        if( parameter_A < 1.0e-5 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "parameter A too small or negative: " + parameter_A);
+            return false;
+        }
+        else if( parameter_B < 1.0e-5 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "parameter B too small or negative: " + parameter_B);
+            return false;
+        }
+        parameters[0] = parameter_A;
+        parameters[1] = parameter_B;
+        return true;
+    }
+
+    /** Fits y = A * x by weighted least squares.
+     * @param parameters Output, set to A and 0.
+     */
+    private static void fitProportionalResponse(double [] x_samples, double [] y_samples, double [] weights, int n_samples, float [] parameters) {
+        // linear Y = AX
+        double numer = 0.0;
+        double denom = 0.0;
+        for(int i=0;i<n_samples;i++) {
+            double x = x_samples[i];
+            double y = y_samples[i];
+            double w = weights[i];
+            numer += w*x*y;
+            denom += w*x*x;
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "numer = " + numer);
+            Log.d(TAG, "denom = " + denom);
+        }
+
+        float parameter_A;
+        if( denom < 1.0e-5 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "denom too small");
+            parameter_A = 1.0f;
+        }
+        else {
+            parameter_A = (float)(numer / denom);
+            // we don't want a function that is not monotonic!
+            if( parameter_A < 1.0e-5 ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "parameter A too small or negative: " + parameter_A);
+                parameter_A = 1.0e-5f;
+            }
+        }
+        parameters[0] = parameter_A;
+        parameters[1] = 0.0f;
+    }
+
     @SuppressWarnings("WeakerAccess")
     public interface SortCallback {
         /** This is called when the sort order for the input bitmaps is known, from darkest to brightest.
@@ -401,115 +493,123 @@ public class HDRProcessor {
      *  match the exposure level of out_bitmap.
      *  The supplied offsets offset_x, offset_y give the offset for in_bitmap as computed by
      *  autoAlignment().
+     *  The samples are read a row at a time, see use_robust_response for the number of samples.
      */
     private ResponseFunction createFunctionFromBitmaps(int id, Bitmap in_bitmap, Bitmap out_bitmap, int offset_x, int offset_y) {
         if( MyDebug.LOG )
             Log.d(TAG, "createFunctionFromBitmaps");
-        List<Double> x_samples = new ArrayList<>();
-        List<Double> y_samples = new ArrayList<>();
-        List<Double> weights = new ArrayList<>();
 
-        final int n_samples_c = 100;
+        final int n_samples_c = use_robust_response ? 4096 : 100;
         final int n_w_samples = (int)Math.sqrt(n_samples_c);
         final int n_h_samples = n_samples_c/n_w_samples;
 
+        final int width = in_bitmap.getWidth();
+        final int height = in_bitmap.getHeight();
+        final int out_width = out_bitmap.getWidth();
+        // +1 to allow for the dummy sample below
+        double [] x_samples = new double[n_w_samples*n_h_samples+1];
+        double [] y_samples = new double[n_w_samples*n_h_samples+1];
+        double [] weights = new double[n_w_samples*n_h_samples+1];
+        int n_samples = 0;
+        int [] in_row = new int[width];
+        int [] out_row = new int[out_width];
+
         double avg_in = 0.0;
         double avg_out = 0.0;
         for(int y=0;y<n_h_samples;y++) {
             double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
-            int y_coord = (int)(alpha * in_bitmap.getHeight());
+            int y_coord = (int)(alpha * height);
+            if( y_coord + offset_y < 0 || y_coord + offset_y >= height ) {
+                continue;
+            }
+            // reading whole rows is much faster than calling getPixel() for each sample
+            in_bitmap.getPixels(in_row, 0, width, 0, y_coord + offset_y, width, 1);
+            out_bitmap.getPixels(out_row, 0, out_width, 0, y_coord, out_width, 1);
             for(int x=0;x<n_w_samples;x++) {
                 double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
-                int x_coord = (int)(beta * in_bitmap.getWidth());
+                int x_coord = (int)(beta * width);
 				/*if( MyDebug.LOG )
 					Log.d(TAG, "sample response from " + x_coord + " , " + y_coord);*/
-                if( x_coord + offset_x < 0 || x_coord + offset_x >= in_bitmap.getWidth() || y_coord + offset_y < 0 || y_coord + offset_y >= in_bitmap.getHeight() ) {
+                if( x_coord + offset_x < 0 || x_coord + offset_x >= width ) {
                     continue;
                 }
-                int in_col = in_bitmap.getPixel(x_coord + offset_x, y_coord + offset_y);
-                int out_col = out_bitmap.getPixel(x_coord, y_coord);
-                double in_value = averageRGB(in_col);
-                double out_value = averageRGB(out_col);
+                double in_value = averageRGB(in_row[x_coord + offset_x]);
+                double out_value = averageRGB(out_row[x_coord]);
                 avg_in += in_value;
                 avg_out += out_value;
-                x_samples.add(in_value);
-                y_samples.add(out_value);
+                x_samples[n_samples] = in_value;
+                y_samples[n_samples] = out_value;
+                n_samples++;
             }
         }
-        if( x_samples.size() == 0 ) {
+        if( n_samples == 0 ) {
             Log.e(TAG, "no samples for response function!");
             // shouldn't happen, but could do with a very large offset - just make up a dummy sample
             double in_value = 255.0;
             double out_value = 255.0;
             avg_in += in_value;
             avg_out += out_value;
-            x_samples.add(in_value);
-            y_samples.add(out_value);
+            x_samples[n_samples] = in_value;
+            y_samples[n_samples] = out_value;
+            n_samples++;
         }
-        avg_in /= x_samples.size();
-        avg_out /= x_samples.size();
+        avg_in /= n_samples;
+        avg_out /= n_samples;
         boolean is_dark_exposure = avg_in < avg_out;
         if( MyDebug.LOG ) {
+            Log.d(TAG, "n_samples: " + n_samples);
             Log.d(TAG, "avg_in: " + avg_in);
             Log.d(TAG, "avg_out: " + avg_out);
             Log.d(TAG, "is_dark_exposure: " + is_dark_exposure);
         }
         {
             // calculate weights
-            double min_value = x_samples.get(0);
-            double max_value = x_samples.get(0);
-            for(int i=1;i<x_samples.size();i++) {
-                double value = x_samples.get(i);
+            double min_value = x_samples[0];
+            double max_value = x_samples[0];
+            double min_value_y = y_samples[0];
+            double max_value_y = y_samples[0];
+            for(int i=1;i<n_samples;i++) {
+                double value = x_samples[i];
                 if( value < min_value )
                     min_value = value;
                 if( value > max_value )
                     max_value = value;
+                double value_y = y_samples[i];
+                if( value_y < min_value_y )
+                    min_value_y = value_y;
+                if( value_y > max_value_y )
+                    max_value_y = value_y;
             }
             double med_value = 0.5*(min_value + max_value);
+            double med_value_y = 0.5*(min_value_y + max_value_y);
             if( MyDebug.LOG ) {
                 Log.d(TAG, "min_value: " + min_value);
                 Log.d(TAG, "max_value: " + max_value);
                 Log.d(TAG, "med_value: " + med_value);
-            }
-            double min_value_y = y_samples.get(0);
-            double max_value_y = y_samples.get(0);
-            for(int i=1;i<y_samples.size();i++) {
-                double value = y_samples.get(i);
-                if( value < min_value_y )
-                    min_value_y = value;
-                if( value > max_value_y )
-                    max_value_y = value;
-            }
-            double med_value_y = 0.5*(min_value_y + max_value_y);
-            if( MyDebug.LOG ) {
                 Log.d(TAG, "min_value_y: " + min_value_y);
                 Log.d(TAG, "max_value_y: " + max_value_y);
                 Log.d(TAG, "med_value_y: " + med_value_y);
             }
-            for(int i=0;i<x_samples.size();i++) {
-                double value = x_samples.get(i);
-                double value_y = y_samples.get(i);
+            for(int i=0;i<n_samples;i++) {
+                double value = x_samples[i];
+                double weight = (value <= med_value) ? value - min_value : max_value - value;
                 if( is_dark_exposure ) {
                     // for dark exposure, also need to worry about the y values (which will be brighter than x) being overexposed
-                    double weight = (value <= med_value) ? value - min_value : max_value - value;
+                    double value_y = y_samples[i];
                     double weight_y = (value_y <= med_value_y) ? value_y - min_value_y : max_value_y - value_y;
                     if( weight_y < weight )
                         weight = weight_y;
-                    weights.add(weight);
-                }
-                else {
-                    double weight = (value <= med_value) ? value - min_value : max_value - value;
-                    weights.add(weight);
                 }
+                weights[i] = weight;
             }
         }
 
-        return new ResponseFunction(context, id, x_samples, y_samples, weights);
+        return new ResponseFunction(context, id, x_samples, y_samples, weights, n_samples, use_robust_response);
     }
 
     /** Calculates average of RGB values for the supplied color.
      */
-    private double averageRGB(int color) {
+    private static double averageRGB(int color) {
         int r = (color & 0xFF0000) >> 16;
         int g = (color & 0xFF00) >> 8;
         int b = (color & 0xFF);
@@ -530,12 +630,16 @@ public class HDRProcessor {
         if( MyDebug.LOG )
             Log.d(TAG, "processHDRCore");
 
+        if( useJavaBackend() ) {
+            processHDRCoreJava(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
+            return;
+        }
+
         long time_s = System.currentTimeMillis();
 
         int n_bitmaps = bitmaps.size();
         int width = bitmaps.get(0).getWidth();
         int height = bitmaps.get(0).getHeight();
-        ResponseFunction [] response_functions = new ResponseFunction[n_bitmaps]; // ResponseFunction for each image (the ResponseFunction entry can be left null to indicate the Identity)
         offsets_x = new int[n_bitmaps];
         offsets_y = new int[n_bitmaps];
 		/*int [][] buffers = new int[n_bitmaps][];
@@ -545,46 +649,695 @@ public class HDRProcessor {
         //float [] hdr = new float[3];
         //int [] rgb = new int[3];
 
-        initRenderscript();
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
-        // create allocations
-        Allocation [] allocations = new Allocation[n_bitmaps];
-        for(int i=0;i<n_bitmaps;i++) {
-            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+        initRenderscript();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
+        // create allocations
+        Allocation [] allocations = new Allocation[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
+        //final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
+        final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
+        // for even number of images, round up to brighter image
+
+        // perform auto-alignment
+        // if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
+        BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, 1, width, height, time_s);
+        int median_brightness = brightnessDetails.median_brightness;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "median_brightness: " + median_brightness);
+        }
+
+        //final boolean use_hdr_n = true; // test always using hdr_n
+        final boolean use_hdr_n = n_bitmaps != 3;
+
+        ResponseFunction [] response_functions = createResponseFunctions(bitmaps, offsets_x, offsets_y, base_bitmap, use_hdr_n);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
+
+		/*
+		// calculate average luminance by sampling
+		final int n_samples_c = 100;
+		final int n_w_samples = (int)Math.sqrt(n_samples_c);
+		final int n_h_samples = n_samples_c/n_w_samples;
+
+		double sum_log_luminance = 0.0;
+		int count = 0;
+		for(int y=0;y<n_h_samples;y++) {
+			double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
+			int y_coord = (int)(alpha * bm.getHeight());
+			for(int i=0;i<n_bitmaps;i++) {
+				bitmaps.get(i).getPixels(buffers[i], 0, bm.getWidth(), 0, y_coord, bm.getWidth(), 1);
+			}
+			for(int x=0;x<n_w_samples;x++) {
+				double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
+				int x_coord = (int)(beta * bm.getWidth());
+				if( MyDebug.LOG )
+					Log.d(TAG, "sample luminance from " + x_coord + " , " + y_coord);
+				calculateHDR(hdr, n_bitmaps, buffers, x_coord, response_functions);
+				double luminance = calculateLuminance(hdr[0], hdr[1], hdr[2]) + 1.0; // add 1 so we don't take log of 0..;
+				sum_log_luminance += Math.log(luminance);
+				count++;
+			}
+		}
+		float avg_luminance = (float)(Math.exp( sum_log_luminance / count ));
+		if( MyDebug.LOG )
+			Log.d(TAG, "avg_luminance: " + avg_luminance);
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after calculating average luminance: " + (System.currentTimeMillis() - time_s));
+			*/
+
+        // write new hdr image
+
+        // create RenderScript
+		/*if( processHDRScript == null ) {
+			processHDRScript = new ScriptC_process_hdr(rs);
+		}*/
+        ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
+
+        // set allocations
+        processHDRScript.set_bitmap0(allocations[0]);
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_bitmap2(allocations[2]);
+        }
+
+        // set offsets
+        processHDRScript.set_offset_x0(offsets_x[0]);
+        processHDRScript.set_offset_y0(offsets_y[0]);
+        // no offset for middle image
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_offset_x2(offsets_x[2]);
+            processHDRScript.set_offset_y2(offsets_y[2]);
+        }
+
+        // set response functions
+        processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
+        processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
+        // no response function for middle image
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
+            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
+        }
+
+        if( use_hdr_n ) {
+            // now need to set values for image 1
+            processHDRScript.set_bitmap1(allocations[1]);
+            processHDRScript.set_offset_x1(offsets_x[1]);
+            processHDRScript.set_offset_y1(offsets_y[1]);
+            processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
+            processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
+        }
+
+        if( n_bitmaps > 3 ) {
+            processHDRScript.set_bitmap3(allocations[3]);
+            processHDRScript.set_offset_x3(offsets_x[3]);
+            processHDRScript.set_offset_y3(offsets_y[3]);
+            processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
+            processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
+
+            if( n_bitmaps > 4 ) {
+                processHDRScript.set_bitmap4(allocations[4]);
+                processHDRScript.set_offset_x4(offsets_x[4]);
+                processHDRScript.set_offset_y4(offsets_y[4]);
+                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
+                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
+
+                if( n_bitmaps > 5 ) {
+                    processHDRScript.set_bitmap5(allocations[5]);
+                    processHDRScript.set_offset_x5(offsets_x[5]);
+                    processHDRScript.set_offset_y5(offsets_y[5]);
+                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
+                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
+
+                    if( n_bitmaps > 6 ) {
+                        processHDRScript.set_bitmap6(allocations[6]);
+                        processHDRScript.set_offset_x6(offsets_x[6]);
+                        processHDRScript.set_offset_y6(offsets_y[6]);
+                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
+                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
+                    }
+                }
+            }
+        }
+
+        // set globals
+
+        // set tonemapping algorithm
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: clamp");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
+                break;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: exponential");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
+                break;
+            case TONEMAPALGORITHM_REINHARD:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: reinhard");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
+                break;
+            case TONEMAPALGORITHM_FILMIC:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: filmic");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
+                break;
+            case TONEMAPALGORITHM_ACES:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: aces");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
+                break;
+        }
+
+        float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
+        //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
+        TonemapParameters tonemap_parameters = computeTonemapParameters(tonemapping_algorithm, max_possible_value, median_brightness);
+        processHDRScript.set_tonemap_scale(tonemap_parameters.tonemap_scale);
+        // algorithm specific parameters
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_EXPONENTIAL:
+            case TONEMAPALGORITHM_REINHARD:
+                processHDRScript.set_linear_scale(tonemap_parameters.linear_scale);
+                break;
+            case TONEMAPALGORITHM_FILMIC:
+                processHDRScript.set_W(tonemap_parameters.W);
+                break;
+        }
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "call processHDRScript");
+        Allocation output_allocation;
+        boolean free_output_allocation = false;
+        if( release_bitmaps ) {
+            // must use allocations[base_bitmap] as the output, as that's the image guaranteed to have no offset (otherwise we'll have
+            // problems due to the output being equal to one of the inputs)
+            output_allocation = allocations[base_bitmap];
+        }
+        else {
+            output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
+            free_output_allocation = true;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time before processHDRScript: " + (System.currentTimeMillis() - time_s));
+        if( use_hdr_n ) {
+            processHDRScript.set_n_bitmaps_g(n_bitmaps);
+            processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);
+        }
+        else {
+            processHDRScript.forEach_hdr(allocations[base_bitmap], output_allocation);
+        }
+		/*processHDRScript.set_n_bitmaps_g(n_bitmaps);
+		processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);*/
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after processHDRScript: " + (System.currentTimeMillis() - time_s));
+
+        if( release_bitmaps ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmaps");
+            // bitmaps.get(base_bitmap) will store HDR image, so free up the rest of the memory asap - we no longer need the remaining bitmaps
+            for(int i=0;i<bitmaps.size();i++) {
+                if (i != base_bitmap) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    bitmap.recycle();
+                }
+            }
+        }
+
+        if( hdr_alpha != 0.0f ) {
+            adjustHistogram(output_allocation, output_allocation, width, height, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+        }
+
+        if( release_bitmaps ) {
+            // must be the base_bitmap we copy to - see note above about using allocations[base_bitmap] as the output
+            allocations[base_bitmap].copyTo(bitmaps.get(base_bitmap));
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+
+            // make it so that we store the output bitmap as first in the list
+            bitmaps.set(0, bitmaps.get(base_bitmap));
+            for(int i=1;i<bitmaps.size();i++) {
+                bitmaps.set(i, null);
+            }
+        }
+        else {
+            output_allocation.copyTo(output_bitmap);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+        }
+
+        if( free_output_allocation )
+            output_allocation.destroy();
+        for(int i=0;i<n_bitmaps;i++) {
+            allocations[i].destroy();
+            allocations[i] = null;
+        }
+        freeScripts();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Whether to use the Java backend rather than RenderScript, see use_java_backend.
+     */
+    private boolean useJavaBackend() {
+        if( use_java_backend )
+            return true;
+        try {
+            initRenderscript();
+            return false;
+        }
+        catch(RSRuntimeException e) {
+            Log.e(TAG, "renderscript not available, falling back to java backend");
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private HDRBackend getJavaBackend() {
+        if( java_backend == null ) {
+            java_backend = new HDRJavaBackend();
+        }
+        return java_backend;
+    }
+
+    /** Returns the pixels of the bitmap as an int [] plane, for the Java backend.
+     */
+    private static int [] getPixels(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int [] pixels = new int[width*height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return pixels;
+    }
+
+    /** Computes the luminance info of each bitmap, over the region of the bitmaps that
+     *  autoAlignment() would align.
+     */
+    private LuminanceInfo [] computeLuminanceInfos(List<Bitmap> bitmaps, int width, int height, boolean crop_to_centre) {
+        int mtb_width = width;
+        int mtb_height = height;
+        int mtb_x = 0;
+        int mtb_y = 0;
+        if( crop_to_centre ) {
+            mtb_width = width/2;
+            mtb_height = height/2;
+            mtb_x = mtb_width/2;
+            mtb_y = mtb_height/2;
+        }
+        LuminanceInfo [] luminanceInfos = new LuminanceInfo[bitmaps.size()];
+        for(int i=0;i<bitmaps.size();i++) {
+            luminanceInfos[i] = computeMedianLuminance(bitmaps.get(i), mtb_x, mtb_y, mtb_width, mtb_height);
+            if( MyDebug.LOG )
+                Log.d(TAG, i + ": " + luminanceInfos[i]);
+        }
+        return luminanceInfos;
+    }
+
+    /** Returns the median values for HDRBackend.autoAlignment(), -1 for images too dark or noisy
+     *  to align.
+     */
+    private static int [] getMedianValues(LuminanceInfo [] luminanceInfos) {
+        int [] median_values = new int[luminanceInfos.length];
+        for(int i=0;i<luminanceInfos.length;i++) {
+            median_values[i] = luminanceInfos[i].noisy ? -1 : luminanceInfos[i].median_value;
+        }
+        return median_values;
+    }
+
+    /** Implementation of processHDRCore() using the Java backend, see HDRJavaBackend.
+     *  The local contrast enhancement for hdr_alpha is still done with RenderScript, and is skipped
+     *  if RenderScript isn't available.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void processHDRCoreJava(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRCoreJava");
+
+        long time_s = System.currentTimeMillis();
+
+        int n_bitmaps = bitmaps.size();
+        int width = bitmaps.get(0).getWidth();
+        int height = bitmaps.get(0).getHeight();
+        offsets_x = new int[n_bitmaps];
+        offsets_y = new int[n_bitmaps];
+        final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // see processHDRCore()
+
+        final LuminanceInfo [] luminanceInfos = computeLuminanceInfos(bitmaps, width, height, true);
+        if( !assume_sorted ) {
+            // sort from darkest to brightest, as autoAlignment() does
+            List<Integer> sort_order = new ArrayList<>();
+            for(int i=0;i<n_bitmaps;i++) {
+                sort_order.add(i);
+            }
+            Collections.sort(sort_order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return luminanceInfos[o1].compareTo(luminanceInfos[o2]);
+                }
+            });
+            List<Bitmap> sorted_bitmaps = new ArrayList<>(n_bitmaps);
+            LuminanceInfo [] sorted_luminanceInfos = new LuminanceInfo[n_bitmaps];
+            for(int i=0;i<n_bitmaps;i++) {
+                sorted_bitmaps.add(bitmaps.get(sort_order.get(i)));
+                sorted_luminanceInfos[i] = luminanceInfos[sort_order.get(i)];
+            }
+            bitmaps.clear();
+            bitmaps.addAll(sorted_bitmaps);
+            System.arraycopy(sorted_luminanceInfos, 0, luminanceInfos, 0, n_bitmaps);
+            if( MyDebug.LOG )
+                Log.d(TAG, "sort_order: " + sort_order);
+            if( sort_cb != null ) {
+                sort_cb.sortOrder(sort_order);
+            }
+        }
+        int median_brightness = luminanceInfos[base_bitmap].median_value;
+        if( MyDebug.LOG )
+            Log.d(TAG, "median_brightness: " + median_brightness);
+
+        int [][] images = new int[n_bitmaps][];
+        for(int i=0;i<n_bitmaps;i++) {
+            images[i] = getPixels(bitmaps.get(i));
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after getting pixels: " + (System.currentTimeMillis() - time_s));
+
+        HDRBackend backend = getJavaBackend();
+        backend.autoAlignment(offsets_x, offsets_y, images, width, height, getMedianValues(luminanceInfos), base_bitmap, true, 1);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
+
+        ResponseFunction [] response_functions = createResponseFunctions(bitmaps, offsets_x, offsets_y, base_bitmap, true);
+        float [] parameter_A = new float[n_bitmaps];
+        float [] parameter_B = new float[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            parameter_A[i] = response_functions[i].parameter_A;
+            parameter_B[i] = response_functions[i].parameter_B;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
+
+        float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
+        TonemapParameters tonemap_parameters = computeTonemapParameters(tonemapping_algorithm, max_possible_value, median_brightness);
+
+        if( release_bitmaps ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmaps");
+            // we now have the pixels, so free up the memory of the bitmaps other than the one that will store the HDR image
+            for(int i=0;i<bitmaps.size();i++) {
+                if (i != base_bitmap) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    bitmap.recycle();
+                }
+            }
+        }
+
+        // the base image has no offset, so it's safe to write the output over it
+        backend.mergeHDR(images, width, height, base_bitmap, offsets_x, offsets_y, parameter_A, parameter_B, tonemapping_algorithm, tonemap_parameters.tonemap_scale, tonemap_parameters.linear_scale, tonemap_parameters.W, images[base_bitmap]);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after mergeHDR: " + (System.currentTimeMillis() - time_s));
+
+        Bitmap result_bitmap = release_bitmaps ? bitmaps.get(base_bitmap) : output_bitmap;
+        if( release_bitmaps && !result_bitmap.isMutable() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "base bitmap not mutable, replace it");
+            result_bitmap.recycle();
+            result_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        result_bitmap.setPixels(images[base_bitmap], 0, width, 0, 0, width, height);
+        //noinspection UnusedAssignment
+        images = null;
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+
+        if( hdr_alpha != 0.0f ) {
+            adjustHistogram(result_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+        }
+
+        if( release_bitmaps ) {
+            // make it so that we store the output bitmap as first in the list
+            bitmaps.set(0, result_bitmap);
+            for(int i=1;i<bitmaps.size();i++) {
+                bitmaps.set(i, null);
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for processHDRCoreJava: " + (System.currentTimeMillis() - time_s));
+    }
+
+    private static final int tiled_align_size_c = 2048; // max size of the centre crop used to align in processHDRTiled()
+    private static final int tiled_sample_size_c = 1024; // max size of the downscaled images used for the response functions in processHDRTiled()
+    private static final int tiled_band_rows_c = 256; // rows merged at a time in processHDRTiled()
+
+    /** Whether HDR images of the supplied resolution should be merged with processHDRTiled() rather
+     *  than processHDR(), as holding all of the images (as well as the output) at full resolution
+     *  would take up too much of the heap.
+     * @param max_memory The maximum memory of the heap, in bytes.
+     */
+    public static boolean useTiledHDR(int width, int height, int n_images, long max_memory) {
+        long bitmap_bytes = 4L * width * height;
+        return bitmap_bytes * (n_images + 1) > max_memory / 2;
+    }
+
+    /** Merges HDR images by decoding the JPEGs band by band with BitmapRegionDecoder, so that only
+     *  the output bitmap is held at full resolution. Use this instead of processHDR() for high
+     *  resolution images, see useTiledHDR().
+     *  Alignment is done on a centre crop of the images, and the response functions are computed
+     *  from downscaled images. The bands are then merged with the Java backend, see HDRJavaBackend,
+     *  decoding each band with an overlap so that pixels offset by the alignment are available.
+     * @param jpeg_images The JPEGs, sorted from darkest to brightest.
+     * @return The HDR image.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap processHDRTiled(List<byte []> jpeg_images, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) throws HDRProcessorException, IOException {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRTiled");
+        int n_images = jpeg_images.size();
+        if( n_images < 2 || n_images > 7 ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "n_images not supported: " + n_images);
+            throw new HDRProcessorException(HDRProcessorException.INVALID_N_IMAGES);
+        }
+
+        long time_s = System.currentTimeMillis();
+        BitmapRegionDecoder [] decoders = new BitmapRegionDecoder[n_images];
+        Bitmap [] band_bitmaps = new Bitmap[n_images];
+        Bitmap output_bitmap = null;
+        try {
+            for(int i=0;i<n_images;i++) {
+                byte [] jpeg = jpeg_images.get(i);
+                decoders[i] = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+            }
+            final int width = decoders[0].getWidth();
+            final int height = decoders[0].getHeight();
+            for(int i=1;i<n_images;i++) {
+                if( decoders[i].getWidth() != width || decoders[i].getHeight() != height ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "images not of same resolution");
+                    throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES);
+                }
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "width x height: " + width + " x " + height);
+            final int base_bitmap = n_images % 2 == 0 ? n_images/2 : (n_images - 1) / 2; // see processHDRCore()
+            offsets_x = new int[n_images];
+            offsets_y = new int[n_images];
+            HDRBackend backend = getJavaBackend();
+            int median_brightness;
+
+            // align using a centre crop, as autoAlignment() only uses the centre of the images anyway
+            {
+                int crop_width = Math.min(width/2, tiled_align_size_c);
+                int crop_height = Math.min(height/2, tiled_align_size_c);
+                int crop_x = (width - crop_width)/2;
+                int crop_y = (height - crop_height)/2;
+                Rect crop_rect = new Rect(crop_x, crop_y, crop_x + crop_width, crop_y + crop_height);
+                List<Bitmap> crop_bitmaps = new ArrayList<>();
+                int [][] crop_images = new int[n_images][];
+                for(int i=0;i<n_images;i++) {
+                    Bitmap crop_bitmap = decoders[i].decodeRegion(crop_rect, null);
+                    if( crop_bitmap == null ) {
+                        throw new IOException("failed to decode crop of image " + i);
+                    }
+                    crop_bitmaps.add(crop_bitmap);
+                    crop_images[i] = getPixels(crop_bitmap);
+                }
+                LuminanceInfo [] luminanceInfos = computeLuminanceInfos(crop_bitmaps, crop_width, crop_height, false);
+                for(Bitmap crop_bitmap : crop_bitmaps) {
+                    crop_bitmap.recycle();
+                }
+                median_brightness = luminanceInfos[base_bitmap].median_value;
+                // the maximum offset should depend on the full resolution, not the crop
+                int max_align_scale = (Math.max(width, height) + Math.max(crop_width, crop_height) - 1) / Math.max(crop_width, crop_height);
+                backend.autoAlignment(offsets_x, offsets_y, crop_images, crop_width, crop_height, getMedianValues(luminanceInfos), base_bitmap, false, max_align_scale);
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "median_brightness: " + median_brightness);
+                Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
+            }
+
+            // the response functions only need a sample of the pixels, so use downscaled images
+            ResponseFunction [] response_functions;
+            {
+                int sample_size = 1;
+                while( Math.max(width, height) / (2*sample_size) >= tiled_sample_size_c ) {
+                    sample_size *= 2;
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "sample_size: " + sample_size);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sample_size;
+                List<Bitmap> sample_bitmaps = new ArrayList<>();
+                int [] sample_offsets_x = new int[n_images];
+                int [] sample_offsets_y = new int[n_images];
+                for(int i=0;i<n_images;i++) {
+                    byte [] jpeg = jpeg_images.get(i);
+                    Bitmap sample_bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+                    if( sample_bitmap == null ) {
+                        for(Bitmap bitmap : sample_bitmaps) {
+                            bitmap.recycle();
+                        }
+                        throw new IOException("failed to decode downscaled image " + i);
+                    }
+                    sample_bitmaps.add(sample_bitmap);
+                    sample_offsets_x[i] = offsets_x[i] / sample_size;
+                    sample_offsets_y[i] = offsets_y[i] / sample_size;
+                }
+                response_functions = createResponseFunctions(sample_bitmaps, sample_offsets_x, sample_offsets_y, base_bitmap, true);
+                for(Bitmap bitmap : sample_bitmaps) {
+                    bitmap.recycle();
+                }
+            }
+            float [] parameter_A = new float[n_images];
+            float [] parameter_B = new float[n_images];
+            for(int i=0;i<n_images;i++) {
+                parameter_A[i] = response_functions[i].parameter_A;
+                parameter_B[i] = response_functions[i].parameter_B;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
+
+            float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
+            TonemapParameters tonemap_parameters = computeTonemapParameters(tonemapping_algorithm, max_possible_value, median_brightness);
+
+            // each band is decoded with enough extra rows above and below for the offset images
+            int margin = 0;
+            for(int i=0;i<n_images;i++) {
+                margin = Math.max(margin, Math.abs(offsets_y[i]));
+            }
+            final int max_band_height = Math.min(height, tiled_band_rows_c + 2*margin);
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "margin: " + margin);
+                Log.d(TAG, "max_band_height: " + max_band_height);
+            }
+            int [][] band_images = new int[n_images][];
+            BitmapFactory.Options band_options = new BitmapFactory.Options();
+            for(int i=0;i<n_images;i++) {
+                // allocate up front for the largest band, so that the bitmaps can be reused for every band
+                band_bitmaps[i] = Bitmap.createBitmap(width, max_band_height, Bitmap.Config.ARGB_8888);
+                band_images[i] = new int[width*max_band_height];
+            }
+            output_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+            for(int y=0;y<height;y+=tiled_band_rows_c) {
+                int rows = Math.min(tiled_band_rows_c, height - y);
+                int band_y = Math.max(0, y - margin);
+                int band_height = Math.min(height, y + rows + margin) - band_y;
+                Rect band_rect = new Rect(0, band_y, width, band_y + band_height);
+                for(int i=0;i<n_images;i++) {
+                    band_options.inBitmap = band_bitmaps[i];
+                    Bitmap band_bitmap = decoders[i].decodeRegion(band_rect, band_options);
+                    if( band_bitmap == null ) {
+                        throw new IOException("failed to decode band " + y + " of image " + i);
+                    }
+                    if( band_bitmap != band_bitmaps[i] ) {
+                        // couldn't reuse the bitmap
+                        band_bitmaps[i].recycle();
+                        band_bitmaps[i] = band_bitmap;
+                    }
+                    band_bitmap.getPixels(band_images[i], 0, width, 0, 0, width, band_height);
+                }
+                // pixels offset outside the band (but inside the image) only occur within the margin, which isn't
+                // written to the output; the base image has no offset, so it's safe to write the output over it
+                backend.mergeHDR(band_images, width, band_height, base_bitmap, offsets_x, offsets_y, parameter_A, parameter_B, tonemapping_algorithm, tonemap_parameters.tonemap_scale, tonemap_parameters.linear_scale, tonemap_parameters.W, band_images[base_bitmap]);
+                output_bitmap.setPixels(band_images[base_bitmap], (y - band_y)*width, width, 0, y, width, rows);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after merging bands: " + (System.currentTimeMillis() - time_s));
+        }
+        catch(IOException | HDRProcessorException | RuntimeException e) {
+            if( output_bitmap != null ) {
+                output_bitmap.recycle();
+            }
+            throw e;
+        }
+        finally {
+            for(int i=0;i<n_images;i++) {
+                if( decoders[i] != null ) {
+                    decoders[i].recycle();
+                }
+                if( band_bitmaps[i] != null ) {
+                    band_bitmaps[i].recycle();
+                }
+            }
+        }
+
+        if( hdr_alpha != 0.0f ) {
+            adjustHistogram(output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
         }
         if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
-        //final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
-        final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
-        // for even number of images, round up to brighter image
+            Log.d(TAG, "### time for processHDRTiled: " + (System.currentTimeMillis() - time_s));
+        return output_bitmap;
+    }
 
-        // perform auto-alignment
-        // if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
-        BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, 1, width, height, time_s);
-        int median_brightness = brightnessDetails.median_brightness;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
-            Log.d(TAG, "median_brightness: " + median_brightness);
+    /** Applies adjustHistogram() to the bitmap in place, for the Java backend. This still needs
+     *  RenderScript, and is skipped if RenderScript isn't available.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void adjustHistogram(Bitmap bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, long time_s) {
+        try {
+            initRenderscript();
+            Allocation allocation = Allocation.createFromBitmap(rs, bitmap);
+            adjustHistogram(allocation, allocation, bitmap.getWidth(), bitmap.getHeight(), hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+            allocation.copyTo(bitmap);
+            allocation.destroy();
+            freeScripts();
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
         }
+        catch(RSRuntimeException e) {
+            Log.e(TAG, "renderscript not available, skip adjustHistogram");
+            e.printStackTrace();
+        }
+    }
 
-        //final boolean use_hdr_n = true; // test always using hdr_n
-        final boolean use_hdr_n = n_bitmaps != 3;
-
-        // compute response_functions
+    /** Computes the response functions for the bitmaps relative to the base bitmap, using the
+     *  offsets computed by autoAlignment().
+     * @param offsets_x    The offsets, which should be scaled if the bitmaps are scaled.
+     * @param use_identity Whether to create the identity response function for the base bitmap,
+     *                     rather than leaving it null.
+     */
+    private ResponseFunction [] createResponseFunctions(List<Bitmap> bitmaps, int [] offsets_x, int [] offsets_y, int base_bitmap, boolean use_identity) {
+        int n_bitmaps = bitmaps.size();
+        ResponseFunction [] response_functions = new ResponseFunction[n_bitmaps]; // ResponseFunction for each image (the ResponseFunction entry can be left null to indicate the Identity)
         for(int i=0;i<n_bitmaps;i++) {
             ResponseFunction function = null;
             if( i != base_bitmap ) {
                 function = createFunctionFromBitmaps(i, bitmaps.get(i), bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
             }
-            else if( use_hdr_n ) {
+            else if( use_identity ) {
                 // for hdr_n, need to still create the identity response function
                 function = ResponseFunction.createIdentity();
             }
             response_functions[i] = function;
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
 
         if( n_bitmaps % 2 == 0 ) {
             // need to remap so that we aim for a brightness between the middle two images
@@ -613,145 +1366,28 @@ public class HDRProcessor {
                 }
             }
         }
+        return response_functions;
+    }
 
-		/*
-		// calculate average luminance by sampling
-		final int n_samples_c = 100;
-		final int n_w_samples = (int)Math.sqrt(n_samples_c);
-		final int n_h_samples = n_samples_c/n_w_samples;
-
-		double sum_log_luminance = 0.0;
-		int count = 0;
-		for(int y=0;y<n_h_samples;y++) {
-			double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
-			int y_coord = (int)(alpha * bm.getHeight());
-			for(int i=0;i<n_bitmaps;i++) {
-				bitmaps.get(i).getPixels(buffers[i], 0, bm.getWidth(), 0, y_coord, bm.getWidth(), 1);
-			}
-			for(int x=0;x<n_w_samples;x++) {
-				double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
-				int x_coord = (int)(beta * bm.getWidth());
-				if( MyDebug.LOG )
-					Log.d(TAG, "sample luminance from " + x_coord + " , " + y_coord);
-				calculateHDR(hdr, n_bitmaps, buffers, x_coord, response_functions);
-				double luminance = calculateLuminance(hdr[0], hdr[1], hdr[2]) + 1.0; // add 1 so we don't take log of 0..;
-				sum_log_luminance += Math.log(luminance);
-				count++;
-			}
-		}
-		float avg_luminance = (float)(Math.exp( sum_log_luminance / count ));
-		if( MyDebug.LOG )
-			Log.d(TAG, "avg_luminance: " + avg_luminance);
-		if( MyDebug.LOG )
-			Log.d(TAG, "time after calculating average luminance: " + (System.currentTimeMillis() - time_s));
-			*/
-
-        // write new hdr image
-
-        // create RenderScript
-		/*if( processHDRScript == null ) {
-			processHDRScript = new ScriptC_process_hdr(rs);
-		}*/
-        ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
-
-        // set allocations
-        processHDRScript.set_bitmap0(allocations[0]);
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_bitmap2(allocations[2]);
-        }
-
-        // set offsets
-        processHDRScript.set_offset_x0(offsets_x[0]);
-        processHDRScript.set_offset_y0(offsets_y[0]);
-        // no offset for middle image
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_offset_x2(offsets_x[2]);
-            processHDRScript.set_offset_y2(offsets_y[2]);
-        }
-
-        // set response functions
-        processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
-        processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
-        // no response function for middle image
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
-            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
-        }
-
-        if( use_hdr_n ) {
-            // now need to set values for image 1
-            processHDRScript.set_bitmap1(allocations[1]);
-            processHDRScript.set_offset_x1(offsets_x[1]);
-            processHDRScript.set_offset_y1(offsets_y[1]);
-            processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
-            processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
-        }
-
-        if( n_bitmaps > 3 ) {
-            processHDRScript.set_bitmap3(allocations[3]);
-            processHDRScript.set_offset_x3(offsets_x[3]);
-            processHDRScript.set_offset_y3(offsets_y[3]);
-            processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
-            processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
-
-            if( n_bitmaps > 4 ) {
-                processHDRScript.set_bitmap4(allocations[4]);
-                processHDRScript.set_offset_x4(offsets_x[4]);
-                processHDRScript.set_offset_y4(offsets_y[4]);
-                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
-                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
-
-                if( n_bitmaps > 5 ) {
-                    processHDRScript.set_bitmap5(allocations[5]);
-                    processHDRScript.set_offset_x5(offsets_x[5]);
-                    processHDRScript.set_offset_y5(offsets_y[5]);
-                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
-                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
-
-                    if( n_bitmaps > 6 ) {
-                        processHDRScript.set_bitmap6(allocations[6]);
-                        processHDRScript.set_offset_x6(offsets_x[6]);
-                        processHDRScript.set_offset_y6(offsets_y[6]);
-                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
-                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
-                    }
-                }
-            }
-        }
-
-        // set globals
+    /** Parameters for the tonemapping of process_hdr.rs, see computeTonemapParameters().
+     */
+    private static class TonemapParameters {
+        final float tonemap_scale;
+        float linear_scale = 1.0f;
+        float W = 11.2f; // default as in process_hdr.rs
 
-        // set tonemapping algorithm
-        switch( tonemapping_algorithm ) {
-            case TONEMAPALGORITHM_CLAMP:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: clamp");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
-                break;
-            case TONEMAPALGORITHM_EXPONENTIAL:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: exponential");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
-                break;
-            case TONEMAPALGORITHM_REINHARD:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: reinhard");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
-                break;
-            case TONEMAPALGORITHM_FILMIC:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: filmic");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
-                break;
-            case TONEMAPALGORITHM_ACES:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: aces");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
-                break;
+        TonemapParameters(float tonemap_scale) {
+            this.tonemap_scale = tonemap_scale;
         }
+    }
 
-        float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
-        //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
+    /** Computes the tonemapping parameters for merging HDR images, shared by the RenderScript and
+     *  Java backends.
+     * @param max_possible_value The value of the brightest possible pixel of the darkest image
+     *                           after its response function.
+     * @param median_brightness  Median brightness of the base image.
+     */
+    private static TonemapParameters computeTonemapParameters(TonemappingAlgorithm tonemapping_algorithm, float max_possible_value, int median_brightness) {
         if( MyDebug.LOG )
             Log.d(TAG, "max_possible_value: " + max_possible_value);
         if( max_possible_value < 255.0f ) {
@@ -817,7 +1453,8 @@ public class HDRProcessor {
         // (tonemap_scale_c==255 means therefore that colours will only be made darker).
         if( MyDebug.LOG )
             Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
-        processHDRScript.set_tonemap_scale(tonemap_scale_c);
+
+        TonemapParameters tonemap_parameters = new TonemapParameters(tonemap_scale_c);
 
         // algorithm specific parameters
         switch( tonemapping_algorithm ) {
@@ -830,11 +1467,11 @@ public class HDRProcessor {
                 // so 1 = S . (1 - exp( - E * Vmax ))
                 // => S = 1 / (1 - exp( - E * Vmax ))
                 // Note that Vmax should be set to a minimum of 255, else we'll make darker images brighter.
-                float E = processHDRScript.get_exposure();
+                float E = HDRBackend.exposure_c;
                 float linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
+                tonemap_parameters.linear_scale = linear_scale;
                 break;
             }
             case TONEMAPALGORITHM_REINHARD: {
@@ -860,94 +1497,22 @@ public class HDRProcessor {
                 float linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
+                tonemap_parameters.linear_scale = linear_scale;
                 break;
             }
             case TONEMAPALGORITHM_FILMIC:
             {
                 // For filmic, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
                 // We want f(Vmax) = 1, so EVmax = W
-                float E = processHDRScript.get_filmic_exposure_bias();
+                float E = HDRBackend.filmic_exposure_bias_c;
                 float W = E * max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "filmic W: " + W);
-                processHDRScript.set_W(W);
+                tonemap_parameters.W = W;
                 break;
             }
         }
-
-        if( MyDebug.LOG )
-            Log.d(TAG, "call processHDRScript");
-        Allocation output_allocation;
-        boolean free_output_allocation = false;
-        if( release_bitmaps ) {
-            // must use allocations[base_bitmap] as the output, as that's the image guaranteed to have no offset (otherwise we'll have
-            // problems due to the output being equal to one of the inputs)
-            output_allocation = allocations[base_bitmap];
-        }
-        else {
-            output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
-            free_output_allocation = true;
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time before processHDRScript: " + (System.currentTimeMillis() - time_s));
-        if( use_hdr_n ) {
-            processHDRScript.set_n_bitmaps_g(n_bitmaps);
-            processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);
-        }
-        else {
-            processHDRScript.forEach_hdr(allocations[base_bitmap], output_allocation);
-        }
-		/*processHDRScript.set_n_bitmaps_g(n_bitmaps);
-		processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);*/
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after processHDRScript: " + (System.currentTimeMillis() - time_s));
-
-        if( release_bitmaps ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "release bitmaps");
-            // bitmaps.get(base_bitmap) will store HDR image, so free up the rest of the memory asap - we no longer need the remaining bitmaps
-            for(int i=0;i<bitmaps.size();i++) {
-                if (i != base_bitmap) {
-                    Bitmap bitmap = bitmaps.get(i);
-                    bitmap.recycle();
-                }
-            }
-        }
-
-        if( hdr_alpha != 0.0f ) {
-            adjustHistogram(output_allocation, output_allocation, width, height, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
-        }
-
-        if( release_bitmaps ) {
-            // must be the base_bitmap we copy to - see note above about using allocations[base_bitmap] as the output
-            allocations[base_bitmap].copyTo(bitmaps.get(base_bitmap));
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
-
-            // make it so that we store the output bitmap as first in the list
-            bitmaps.set(0, bitmaps.get(base_bitmap));
-            for(int i=1;i<bitmaps.size();i++) {
-                bitmaps.set(i, null);
-            }
-        }
-        else {
-            output_allocation.copyTo(output_bitmap);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
-        }
-
-        if( free_output_allocation )
-            output_allocation.destroy();
-        for(int i=0;i<n_bitmaps;i++) {
-            allocations[i].destroy();
-            allocations[i] = null;
-        }
-        freeScripts();
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+        return tonemap_parameters;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -1692,6 +2257,15 @@ public class HDRProcessor {
     void autoAlignment(int[] offsets_x, int[] offsets_y, int width, int height, List<Bitmap> bitmaps, int base_bitmap, boolean use_mtb, int max_align_scale) {
         if( MyDebug.LOG )
             Log.d(TAG, "autoAlignment");
+        if( use_mtb && useJavaBackend() ) {
+            int [][] images = new int[bitmaps.size()][];
+            for(int i=0;i<bitmaps.size();i++) {
+                images[i] = getPixels(bitmaps.get(i));
+            }
+            int [] median_values = getMedianValues(computeLuminanceInfos(bitmaps, width, height, false));
+            getJavaBackend().autoAlignment(offsets_x, offsets_y, images, width, height, median_values, base_bitmap, false, max_align_scale);
+            return;
+        }
         initRenderscript();
         Allocation [] allocations = new Allocation[bitmaps.size()];
         for(int i=0;i<bitmaps.size();i++) {
@@ -2708,6 +3282,9 @@ public class HDRProcessor {
     public int [] computeHistogram(Bitmap bitmap, boolean avg) {
         if( MyDebug.LOG )
             Log.d(TAG, "computeHistogram");
+        if( useJavaBackend() ) {
+            return getJavaBackend().computeHistogram(getPixels(bitmap), avg);
+        }
         long time_s = System.currentTimeMillis();
         initRenderscript();
         Allocation allocation_in = Allocation.createFromBitmap(rs, bitmap);
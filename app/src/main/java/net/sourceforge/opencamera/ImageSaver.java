@@ -23,6 +23,12 @@ import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -59,9 +65,45 @@ public class ImageSaver extends Thread {
 
     private final Paint p = new Paint();
 
+    // the last address found by the geocoder for the photostamp, so that a burst of photos taken at the same
+    // location only needs one lookup; access should be synchronized to geocoder_cache_lock (not p or this, as
+    // the lookup itself may need the network)
+    private final Object geocoder_cache_lock = new Object();
+    // images may be written in parallel (see writeSingleImage()), so choosing and creating a new filename should be
+    // synchronized to this
+    private final Object output_file_lock = new Object();
+    private double geocoder_cache_latitude;
+    private double geocoder_cache_longitude;
+    private Address geocoder_cache_address; // null if no address cached
+
     private final MainActivity main_activity;
     private final HDRProcessor hdrProcessor;
     private final PanoramaProcessor panoramaProcessor;
+    private final BitmapDecodePool bitmapDecodePool;
+
+    // Noise reduction bursts are averaged, and panoramas are decoded and aligned, as the images arrive on
+    // batch_executor, see IncrementalAvg and IncrementalPanorama. These have their own HDRProcessor and
+    // PanoramaProcessor, as hdrProcessor and panoramaProcessor may be in use by save_thread at the same time.
+    private final HDRProcessor batchHDRProcessor;
+    private final PanoramaProcessor batchPanoramaProcessor;
+    private final ExecutorService batch_executor;
+    private IncrementalAvg last_incremental_avg;
+    private IncrementalPanorama last_incremental_panorama;
+
+    /* Saving is pipelined in stages: this thread takes requests from the queue in capture order, and for
+     * normal JPEG requests submits the writing of each image (any post-processing, encoding, writing the
+     * file and Exif tags, see writeSingleImage()) to prepare_executor, so that several photos can be
+     * written in parallel. The requests (along with any pending written images) are then passed in order
+     * via save_queue to save_thread, which makes the images visible to the gallery (MediaStore entries,
+     * broadcasts, last image and thumbnail, see commitSingleImage()) one request at a time, so images
+     * still appear in the order they were taken.
+     * HDR, NR, panorama and RAW requests are processed entirely on save_thread.
+     * save_queue is small, to limit the number of requests held by the pipeline in addition to the
+     * queue.
+     */
+    private final ExecutorService prepare_executor;
+    private final BlockingQueue<PipelineItem> save_queue;
+    private final Thread save_thread;
 
     /* We use a separate count n_images_to_save, rather than just relying on the queue size, so we can take() an image from queue,
      * but only decrement the count when we've finished saving the image.
@@ -70,16 +112,24 @@ public class ImageSaver extends Thread {
      * Also note, main_activity.imageQueueChanged() should be called on UI thread after n_images_to_save increases or
      * decreases.
      * Access to n_images_to_save should always be synchronized to this (i.e., the ImageSaver class).
-     * n_real_images_to_save excludes "Dummy" requests, and should also be synchronized, and modified
+     * Admission to the queue is limited by memory rather than number of requests: bytes_to_save is the size of the
+     * JPEG and RAW data of the requests still to process (see computeRequestCost()), plus the bitmaps written by
+     * prepare_executor that are waiting to be committed and the memory of batches being processed as they are taken
+     * (see chargeBytes()), which is kept within queue_budget_bytes, and should also be synchronized, and modified
      * at the same time as n_images_to_save.
      */
     private int n_images_to_save = 0;
-    private int n_real_images_to_save = 0;
-    private final int queue_capacity;
+    private long bytes_to_save = 0;
+    private final long queue_budget_bytes;
     private final BlockingQueue<Request> queue;
-    private final static int queue_cost_jpeg_c = 1; // also covers WEBP
-    private final static int queue_cost_dng_c = 6;
-    //private final static int queue_cost_dng_c = 1;
+
+    // estimates of the size of the next photo, from the photos taken so far - see estimateImageBytes()
+    private volatile double jpeg_bytes_per_pixel; // 0 if no JPEG seen yet
+    private volatile long raw_image_bytes; // 0 if no RAW seen yet
+    private final static double default_jpeg_bytes_per_pixel_c = 0.5; // high quality JPEG (also covers WEBP)
+    private final static int raw_bytes_per_pixel_c = 2; // 16-bit RAW_SENSOR
+    private final static long default_jpeg_bytes_c = 5*1024*1024; // if the picture size isn't known
+    private final static long default_raw_bytes_c = 6*default_jpeg_bytes_c;
 
     // Should be same as MainActivity.app_is_paused, but we keep our own copy to make threading easier (otherwise, all
     // accesses of MainActivity.app_is_paused would need to be synchronized).
@@ -96,8 +146,7 @@ public class ImageSaver extends Thread {
     static class Request {
         enum Type {
             JPEG, // also covers WEBP
-            RAW,
-            DUMMY
+            RAW
         }
         final Type type;
         enum ProcessType {
@@ -120,8 +169,14 @@ public class ImageSaver extends Thread {
          * If process_type==HDR, this should be 1 or 3 images, and the images are combined/converted to a HDR image (if there's only 1
          * image, this uses fake HDR or "DRO").
          * If process_type==NORMAL, then multiple images are saved sequentially.
+         * If process_type==AVERAGE and incremental_avg is non-null, this only holds the images that are still needed
+         * for saving (the first image, or all of them if saving all base images).
          */
         final List<byte []> jpeg_images;
+        IncrementalAvg incremental_avg; // if non-null, the images of an AVERAGE request are averaged as they arrive
+        IncrementalPanorama incremental_panorama; // if non-null, the images of a PANORAMA request are decoded and aligned as they arrive
+        long incremental_cost; // memory held by incremental_avg or incremental_panorama, charged to bytes_to_save as the batch is taken
+        long admitted_cost; // charged to bytes_to_save by addRequest() (including incremental_cost), and released once saved
         final RawImage raw_image; // for raw
         final boolean image_capture_intent;
         final Uri image_capture_intent_uri;
@@ -275,103 +330,134 @@ public class ImageSaver extends Thread {
         this.main_activity = main_activity;
 
         ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-        this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        this.queue_budget_bytes = computeQueueBudget(activityManager.getLargeMemoryClass());
+        this.queue = new LinkedBlockingQueue<>(); // not bounded, as addRequest() blocks on queue_budget_bytes instead
 
         this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test);
         this.panoramaProcessor = new PanoramaProcessor(main_activity, hdrProcessor);
+        this.bitmapDecodePool = new BitmapDecodePool(activityManager.getLargeMemoryClass());
+        this.batchHDRProcessor = new HDRProcessor(main_activity, main_activity.is_test);
+        this.batchPanoramaProcessor = new PanoramaProcessor(main_activity, batchHDRProcessor);
+        this.batch_executor = Executors.newSingleThreadExecutor();
+
+        int n_prepare_threads = BitmapDecodePool.computeNThreads(Runtime.getRuntime().availableProcessors(), activityManager.getLargeMemoryClass());
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_prepare_threads: " + n_prepare_threads);
+        this.prepare_executor = Executors.newFixedThreadPool(n_prepare_threads);
+        this.save_queue = new ArrayBlockingQueue<>(n_prepare_threads);
+        this.save_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                saveLoop();
+            }
+        }, "ImageSaver-save");
 
         p.setAntiAlias(true);
     }
 
-    /** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-     *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+    /** Returns the number of JPEG images that fit in the image saver queue at the current resolution. In practice, the
+     *  number of images that can be taken at once before the UI blocks is 1 more than this, as 1 image will be taken off
+     *  the queue to process straight away.
      */
     public int getQueueSize() {
-        return this.queue_capacity;
+        return (int)Math.max(1, queue_budget_bytes/estimateImageBytes(false));
     }
 
-    /** Compute a sensible size for the queue, based on the device's memory (large heap).
+    /** Compute a sensible memory budget in bytes for the JPEG and RAW data held by the queue, based on the device's
+     *  memory (large heap, in MB).
      */
-    public static int computeQueueSize(int large_heap_memory) {
+    public static long computeQueueBudget(int large_heap_memory) {
         if( MyDebug.LOG )
             Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
-        int max_queue_size;
         if( MyDebug.LOG )
             Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
         if( test_small_queue_size ) {
             large_heap_memory = 0;
         }
 
-        if( large_heap_memory >= 512 ) {
-            // This should be at least 5*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a burst of 5 photos
-            // (e.g., in expo mode) with RAW+JPEG without blocking (we subtract 1, as the first image can be immediately
-            // taken off the queue).
-            // This should also be at least 19 so we can take a burst of 20 photos with JPEG without blocking (we subtract 1,
-            // as the first image can be immediately taken off the queue).
-            // This should be at most 70 for large heap 512MB (estimate based on reserving 160MB for post-processing and HDR
-            // operations, then estimate a JPEG image at 5MB).
-            max_queue_size = 34;
-        }
-        else if( large_heap_memory >= 256 ) {
-            // This should be at most 19 for large heap 256MB.
-            max_queue_size = 12;
-        }
-        else if( large_heap_memory >= 128 ) {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            // This should be at most 8 for large heap 128MB (allowing 80MB for post-processing).
-            max_queue_size = 8;
-        }
-        else {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            max_queue_size = 6;
-        }
-        //max_queue_size = 1;
-        //max_queue_size = 3;
+        // Reserve two thirds of the heap for decoding and post-processing, including HDR and NR operations, which need
+        // several full resolution bitmaps. For large heap 512MB this allows 34 5MB JPEGs (a burst of 20 photos, or a
+        // burst of 5 photos with RAW+JPEG at 12MP), for 128MB 8 5MB JPEGs. We still allow at least 30MB, so that a
+        // 12MP photo with RAW+JPEG can be taken without blocking on the smallest devices.
+        long budget_mb = Math.max(30, large_heap_memory/3);
         if( MyDebug.LOG )
-            Log.d(TAG, "max_queue_size = " + max_queue_size);
-        return max_queue_size;
+            Log.d(TAG, "queue budget = " + budget_mb + "MB");
+        return budget_mb*1024*1024;
     }
 
-    /** Computes the cost for a particular request.
-     *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
-     *  of the two requests: one RAW, one JPEG).
-     * @param is_raw Whether RAW/DNG or JPEG.
-     * @param n_images This is the number of JPEG or RAW images that are in the request.
+    /** Computes the cost of a request, as the size of its JPEG or RAW data in bytes.
      */
-    public static int computeRequestCost(boolean is_raw, int n_images) {
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "computeRequestCost");
-            Log.d(TAG, "is_raw: " + is_raw);
-            Log.d(TAG, "n_images: " + n_images);
+    private static long computeRequestCost(Request request) {
+        long cost = 0;
+        if( request.type == Request.Type.RAW ) {
+            cost = request.raw_image.getSizeInBytes();
         }
-        int cost;
-        if( is_raw )
-            cost = n_images * queue_cost_dng_c;
         else {
-            cost = n_images * queue_cost_jpeg_c;
-            //cost = (n_images > 1 ? 2 : 1) * queue_cost_jpeg_c;
+            for(byte [] image : request.jpeg_images) {
+                cost += image.length;
+            }
         }
         return cost;
     }
 
-    /** Computes the cost (in terms of number of slots on the image queue) of a new photo.
+    /** Returns the number of pixels of the current picture size, or 0 if not known.
+     */
+    private long getPicturePixels() {
+        CameraController camera_controller = main_activity.getPreview().getCameraController();
+        if( camera_controller != null ) {
+            CameraController.Size size = camera_controller.getPictureSize();
+            if( size != null )
+                return (long)size.width * size.height;
+        }
+        return 0;
+    }
+
+    /** Estimates the size of a JPEG or RAW image of the next photo, from the sizes of the photos
+     *  saved so far, scaled to the current resolution.
+     */
+    private long estimateImageBytes(boolean is_raw) {
+        long n_pixels = getPicturePixels();
+        if( is_raw ) {
+            // the RAW resolution doesn't change with the picture size
+            if( raw_image_bytes > 0 )
+                return raw_image_bytes;
+            return n_pixels > 0 ? raw_bytes_per_pixel_c*n_pixels : default_raw_bytes_c;
+        }
+        if( n_pixels == 0 )
+            return default_jpeg_bytes_c;
+        double bytes_per_pixel = jpeg_bytes_per_pixel > 0 ? jpeg_bytes_per_pixel : default_jpeg_bytes_per_pixel_c;
+        return (long)(bytes_per_pixel * n_pixels);
+    }
+
+    /** Updates the estimates of estimateImageBytes() from a request being added.
+     */
+    private void updateImageBytesEstimate(Request request, long cost) {
+        if( request.type == Request.Type.RAW ) {
+            raw_image_bytes = cost;
+        }
+        else if( request.jpeg_images.size() > 0 ) {
+            long n_pixels = getPicturePixels();
+            if( n_pixels > 0 ) {
+                jpeg_bytes_per_pixel = ((double)cost) / (request.jpeg_images.size() * n_pixels);
+            }
+        }
+    }
+
+    /** Computes the estimated cost (in terms of bytes in the image saver queue) of a new photo.
      * @param n_raw The number of JPEGs that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
-    int computePhotoCost(int n_raw, int n_jpegs) {
+    long computePhotoCost(int n_raw, int n_jpegs) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "computePhotoCost");
             Log.d(TAG, "n_raw: " + n_raw);
             Log.d(TAG, "n_jpegs: " + n_jpegs);
         }
-        int cost = 0;
+        long cost = 0;
         if( n_raw > 0 )
-            cost += computeRequestCost(true, n_raw);
+            cost += n_raw * estimateImageBytes(true);
         if( n_jpegs > 0 )
-            cost += computeRequestCost(false, n_jpegs);
+            cost += n_jpegs * estimateImageBytes(false);
         if( MyDebug.LOG )
             Log.d(TAG, "cost: " + cost);
         return cost;
@@ -382,63 +468,98 @@ public class ImageSaver extends Thread {
      * @param n_jpegs The number of JPEGs that will be taken.
      */
     boolean queueWouldBlock(int n_raw, int n_jpegs) {
-        int photo_cost = this.computePhotoCost(n_raw, n_jpegs);
+        long photo_cost = this.computePhotoCost(n_raw, n_jpegs);
         return this.queueWouldBlock(photo_cost);
     }
 
     /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
      * @param photo_cost The result returned by computePhotoCost().
      */
-    synchronized boolean queueWouldBlock(int photo_cost) {
+    synchronized boolean queueWouldBlock(long photo_cost) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "queueWouldBlock");
             Log.d(TAG, "photo_cost: " + photo_cost);
             Log.d(TAG, "n_images_to_save: " + n_images_to_save);
-            Log.d(TAG, "queue_capacity: " + queue_capacity);
+            Log.d(TAG, "bytes_to_save: " + bytes_to_save);
+            Log.d(TAG, "queue_budget_bytes: " + queue_budget_bytes);
         }
-        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-        // currently being processed
-        if( n_images_to_save == 0 ) {
-            // In theory, we should never have the extra_cost large enough to block the queue even when no images are being
+        boolean would_block = exceedsQueueBudget(bytes_to_save, photo_cost, queue_budget_bytes, getHeapHeadroom());
+        if( MyDebug.LOG )
+            Log.d(TAG, would_block ? "queue would block" : "queue would not block");
+        return would_block;
+    }
+
+    /** Returns the memory the heap can still grow by, less a reserve for decoding and
+     *  post-processing.
+     */
+    private static long getHeapHeadroom() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return runtime.maxMemory() - used - runtime.maxMemory()/8;
+    }
+
+    /** Whether adding a photo to the queue would exceed the memory available.
+     * @param bytes_to_save The cost of the requests in the queue, including any being processed.
+     * @param photo_cost The cost of the new photo.
+     * @param queue_budget The budget returned by computeQueueBudget().
+     * @param heap_headroom The memory still available on the heap.
+     */
+    public static boolean exceedsQueueBudget(long bytes_to_save, long photo_cost, long queue_budget, long heap_headroom) {
+        if( bytes_to_save == 0 ) {
+            // In theory, we should never have a photo large enough to exceed the budget even when no images are being
             // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
             // to disallow ever taking photos!
-            if( MyDebug.LOG )
-                Log.d(TAG, "queue is empty");
             return false;
         }
-        else if( n_images_to_save + photo_cost > queue_capacity + 1 ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "queue would block");
-            return true;
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "queue would not block");
-        return false;
+        // also check against the live heap, in case memory is being used elsewhere (e.g., by post-processing a previous photo);
+        // the queue will free memory as it is processed
+        return bytes_to_save + photo_cost > queue_budget || photo_cost > heap_headroom;
     }
 
     /** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
      */
     int getMaxDNG() {
-        int max_dng = (queue_capacity+1)/queue_cost_dng_c;
+        int max_dng = (int)(queue_budget_bytes/estimateImageBytes(true));
         max_dng++; // increase by 1, as the user can still take one extra photo if the queue is exactly full
         if( MyDebug.LOG )
             Log.d(TAG, "max_dng = " + max_dng);
         return max_dng;
     }
 
-    /** Returns the number of images to save, weighted by their cost (e.g., so a single RAW image
-     *  will be counted as multiple images).
+    /** Returns the number of images (or rather, requests) to save.
      */
     public synchronized int getNImagesToSave() {
         return n_images_to_save;
     }
 
-    /** Returns the number of images to save (e.g., so a single RAW image will only be counted as
-     *  one image, unlike getNImagesToSave()).
+    /** Returns the cost of the images to save in bytes, see computePhotoCost().
+     */
+    public synchronized long getBytesToSave() {
+        return bytes_to_save;
+    }
+
+    /** Adds memory held by the pipeline in addition to the data of the requests (e.g., images written by
+     *  prepare_executor) to bytes_to_save, so that addRequest() waits until it has been freed.
+     */
+    private synchronized void chargeBytes(long bytes) {
+        bytes_to_save += bytes;
+    }
+
+    /** Releases memory charged with chargeBytes().
+     */
+    private synchronized void releaseBytes(long bytes) {
+        bytes_to_save -= bytes;
+        notifyAll();
+    }
 
+    /** Charges memory held by the incremental processing of a batch request that hasn't been added to
+     *  the queue yet, see Request.incremental_cost.
      */
-    public synchronized int getNRealImagesToSave() {
-        return n_real_images_to_save;
+    private void chargeIncrementalCost(Request request, long bytes) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "chargeIncrementalCost: " + bytes);
+        request.incremental_cost += bytes;
+        chargeBytes(bytes);
     }
 
     /** Application has paused.
@@ -466,21 +587,83 @@ public class ImageSaver extends Thread {
         if( hdrProcessor != null ) {
             hdrProcessor.onDestroy();
         }
+        if( batch_executor != null ) {
+            batch_executor.shutdown();
+        }
+        if( batchPanoramaProcessor != null ) {
+            batchPanoramaProcessor.onDestroy();
+        }
+        if( batchHDRProcessor != null ) {
+            batchHDRProcessor.onDestroy();
+        }
+        if( bitmapDecodePool != null ) {
+            bitmapDecodePool.onDestroy();
+        }
+        if( prepare_executor != null ) {
+            prepare_executor.shutdown();
+        }
+    }
+
+    /** A request passed from the ImageSaver thread to save_thread.
+     */
+    private static class PipelineItem {
+        final Request request;
+        final List<Future<WrittenImage>> written_images; // null if the images weren't submitted to prepare_executor
+
+        PipelineItem(Request request, List<Future<WrittenImage>> written_images) {
+            this.request = request;
+            this.written_images = written_images;
+        }
     }
 
     @Override
     public void run() {
         if( MyDebug.LOG )
             Log.d(TAG, "starting ImageSaver thread...");
+        save_thread.start();
         while( true ) {
             try {
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread reading from queue, size: " + queue.size());
                 Request request = queue.take(); // if empty, take() blocks until non-empty
-                // Only decrement n_images_to_save after we've actually saved the image! Otherwise waitUntilDone() will return
+                // Only decrement n_images_to_save after we've actually saved the image (on save_thread)! Otherwise waitUntilDone() will return
                 // even though we still have a last image to be saved.
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
+                List<Future<WrittenImage>> written_images = null;
+                if( canPrepareImages(request) ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "write images in parallel");
+                    written_images = new ArrayList<>();
+                    for(int i=0;i<request.jpeg_images.size();i++) {
+                        // same filenames as saveImageNow() for normal requests
+                        String filename_suffix = getFilenameSuffix(request, "_", i, false);
+                        written_images.add( submitWriteImage(request, request.jpeg_images.get(i), filename_suffix) );
+                    }
+                }
+                save_queue.put(new PipelineItem(request, written_images)); // if save_thread is busy and save_queue is full, put() blocks until it isn't full
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+                if( MyDebug.LOG )
+                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+            }
+        }
+    }
+
+    /** Runs on save_thread, saving the requests in the order they were taken.
+     */
+    private void saveLoop() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "starting ImageSaver save thread...");
+        while( true ) {
+            try {
+                PipelineItem item = save_queue.take(); // if empty, take() blocks until non-empty
+                Request request = item.request;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "ImageSaver save thread found new request, pipeline size is now: " + save_queue.size());
+                long cost = request.admitted_cost; // as charged by addRequest()
+                List<WrittenImage> written_images = null;
                 boolean success;
                 switch (request.type) {
                     case RAW:
@@ -491,12 +674,8 @@ public class ImageSaver extends Thread {
                     case JPEG:
                         if (MyDebug.LOG)
                             Log.d(TAG, "request is jpeg");
-                        success = saveImageNow(request);
-                        break;
-                    case DUMMY:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is dummy");
-                        success = true;
+                        written_images = getWrittenImages(item.written_images);
+                        success = saveImageNow(request, written_images);
                         break;
                     default:
                         if (MyDebug.LOG)
@@ -515,20 +694,29 @@ public class ImageSaver extends Thread {
                     else
                         Log.e(TAG, "ImageSaver thread failed to save image");
                 }
+                if( written_images != null ) {
+                    for(WrittenImage written_image : written_images) {
+                        if( written_image != null )
+                            cost += written_image.charged_bytes;
+                    }
+                }
                 synchronized( this ) {
                     n_images_to_save--;
-                    if( request.type != Request.Type.DUMMY )
-                        n_real_images_to_save--;
+                    bytes_to_save -= cost;
                     if( MyDebug.LOG )
                         Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
                     if( MyDebug.LOG && n_images_to_save < 0 ) {
                         Log.e(TAG, "images to save has become negative");
                         throw new RuntimeException();
                     }
-                    else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
-                        Log.e(TAG, "real images to save has become negative");
+                    else if( MyDebug.LOG && bytes_to_save < 0 ) {
+                        Log.e(TAG, "bytes to save has become negative");
                         throw new RuntimeException();
                     }
+                    if( n_images_to_save == 0 ) {
+                        // no need to keep bitmaps around for reuse until the next photo
+                        bitmapDecodePool.clear();
+                    }
                     notifyAll();
 
                     main_activity.runOnUiThread(new Runnable() {
@@ -541,9 +729,69 @@ public class ImageSaver extends Thread {
             catch(InterruptedException e) {
                 e.printStackTrace();
                 if( MyDebug.LOG )
-                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+                    Log.e(TAG, "interrupted while trying to read from ImageSaver save queue");
+            }
+        }
+    }
+
+    /** Whether the images of the request should be written in parallel on prepare_executor, before
+     *  being committed on save_thread. Applies to all normal JPEG requests, whether or not they need
+     *  post-processing, as writing the files and Exif tags is worth doing in parallel too.
+     */
+    private boolean canPrepareImages(Request request) {
+        if( request.type != Request.Type.JPEG || request.process_type != Request.ProcessType.NORMAL )
+            return false;
+        if( request.image_capture_intent ) {
+            // keep the special handling for intents in saveSingleImageNow()
+            return false;
+        }
+        // no JPEGs to write if RAW only
+        return !main_activity.getApplicationInterface().isRawOnly();
+    }
+
+    /** Submits writing an image to prepare_executor, see writeSingleImage(). The result will be
+     *  null if this failed with an exception, in which case saveSingleImageNow() should try again.
+     *  The memory of the post-processed bitmap (kept for the thumbnail) is charged to bytes_to_save,
+     *  and released by saveLoop().
+     */
+    private Future<WrittenImage> submitWriteImage(final Request request, final byte [] data, final String filename_suffix) {
+        return prepare_executor.submit(new Callable<WrittenImage>() {
+            @Override
+            public WrittenImage call() {
+                WrittenImage written_image = writeSingleImage(request, data, null, filename_suffix, false, false);
+                if( written_image.bitmap != null ) {
+                    // the bitmap is held until save_thread has created the thumbnail
+                    written_image.charged_bytes = written_image.bitmap.getByteCount();
+                    chargeBytes(written_image.charged_bytes);
+                }
+                return written_image;
+            }
+        });
+    }
+
+    /** Waits for the images submitted with submitWriteImage(). Images that failed with an exception
+     *  are returned as null.
+     */
+    private List<WrittenImage> getWrittenImages(List<Future<WrittenImage>> written_images) {
+        if( written_images == null )
+            return null;
+        List<WrittenImage> results = new ArrayList<>();
+        for(Future<WrittenImage> written_image : written_images) {
+            WrittenImage result = null;
+            try {
+                result = written_image.get();
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            catch(ExecutionException e) {
+                Log.e(TAG, "exception writing image");
+                e.printStackTrace();
             }
+            results.add(result);
         }
+        return results;
     }
 
     /** Saves a photo.
@@ -678,6 +926,10 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "startImageBatch");
             Log.d(TAG, "do_in_background? " + do_in_background);
         }
+        if( pending_image_average_request != null ) {
+            // previous batch was never finished
+            cancelIncrementalProcessing(pending_image_average_request);
+        }
         pending_image_average_request = new Request(Request.Type.JPEG,
                 processType,
                 false,
@@ -702,6 +954,52 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && processType == Request.ProcessType.AVERAGE ) {
+            // Only average one burst at a time, so that we don't hold the averaged images of two bursts at once if
+            // the previous burst is still waiting in the queue; otherwise this burst is averaged once it's taken
+            // from the queue, as before.
+            if( last_incremental_avg == null || last_incremental_avg.isFinished() ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "average images as they arrive");
+                pending_image_average_request.incremental_avg = new IncrementalAvg(batchHDRProcessor, bitmapDecodePool, batch_executor, iso, zoom_factor);
+                last_incremental_avg = pending_image_average_request.incremental_avg;
+                chargeIncrementalCost(pending_image_average_request, pending_image_average_request.incremental_avg.estimateMemoryBytes(getPicturePixels()));
+            }
+        }
+        else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && processType == Request.ProcessType.PANORAMA ) {
+            // similarly only one panorama at a time, so we don't hold the decoded images of two panoramas at once
+            if( last_incremental_panorama == null || last_incremental_panorama.isFinished() ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "align panorama images as they arrive");
+                pending_image_average_request.incremental_panorama = new IncrementalPanorama(batchPanoramaProcessor, new IncrementalPanorama.BitmapLoader() {
+                    @Override
+                    public Bitmap load(byte [] jpeg) {
+                        Bitmap bitmap = loadBitmap(jpeg, false, 1);
+                        if( bitmap != null ) {
+                            // rotate the bitmap if necessary for exif tags
+                            bitmap = rotateForExif(bitmap, jpeg);
+                        }
+                        return bitmap;
+                    }
+                }, batch_executor, MyApplicationInterface.getPanoramaPicsPerScreen());
+                last_incremental_panorama = pending_image_average_request.incremental_panorama;
+            }
+        }
+    }
+
+    /** Abandons any processing of the images of a batch that was started as they arrived.
+     */
+    private void cancelIncrementalProcessing(Request request) {
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            if( request.incremental_avg != null ) {
+                request.incremental_avg.cancel();
+            }
+            if( request.incremental_panorama != null ) {
+                request.incremental_panorama.cancel();
+            }
+        }
+        releaseBytes(request.incremental_cost);
+        request.incremental_cost = 0;
     }
 
     void addImageBatch(byte [] image, float [] gyro_rotation_matrix) {
@@ -711,7 +1009,25 @@ public class ImageSaver extends Thread {
             Log.e(TAG, "addImageBatch called but no pending_image_average_request");
             return;
         }
-        pending_image_average_request.jpeg_images.add(image);
+        IncrementalAvg incremental_avg = pending_image_average_request.incremental_avg;
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && incremental_avg != null ) {
+            incremental_avg.add(image);
+            if( MyDebug.LOG )
+                Log.d(TAG, "images being averaged: " + incremental_avg.getNImages());
+            // the first image is still needed for the Exif data of the NR image
+            if( pending_image_average_request.jpeg_images.isEmpty() || pending_image_average_request.save_base == Request.SaveBase.SAVEBASE_ALL ) {
+                pending_image_average_request.jpeg_images.add(image);
+            }
+        }
+        else {
+            pending_image_average_request.jpeg_images.add(image);
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && pending_image_average_request.incremental_panorama != null ) {
+                // the jpegs are still kept, for the Exif data and saving the base images
+                pending_image_average_request.incremental_panorama.add(image, pending_image_average_request.panorama_dir_left_to_right);
+                // each image is decoded at full resolution, and held until the panorama is saved
+                chargeIncrementalCost(pending_image_average_request, 4*getPicturePixels());
+            }
+        }
         if( gyro_rotation_matrix != null ) {
             float [] copy = new float[gyro_rotation_matrix.length];
             System.arraycopy(gyro_rotation_matrix, 0, copy, 0, gyro_rotation_matrix.length);
@@ -736,13 +1052,13 @@ public class ImageSaver extends Thread {
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(false, pending_image_average_request.jpeg_images.size());
-            addRequest(pending_image_average_request, cost);
+            addRequest(pending_image_average_request);
         }
         else {
             // wait for queue to be empty
             waitUntilDone();
             saveImageNow(pending_image_average_request);
+            releaseBytes(pending_image_average_request.incremental_cost);
         }
         pending_image_average_request = null;
     }
@@ -751,6 +1067,9 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG )
             Log.d(TAG, "flushImageBatch");
         // aside from resetting the state, this allows the allocated JPEG data to be garbage collected
+        if( pending_image_average_request != null ) {
+            cancelIncrementalProcessing(pending_image_average_request);
+        }
         pending_image_average_request = null;
     }
 
@@ -818,8 +1137,7 @@ public class ImageSaver extends Thread {
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(is_raw, is_raw ? 1 : request.jpeg_images.size());
-            addRequest(request, cost);
+            addRequest(request);
             success = true; // always return true when done in background
         }
         else {
@@ -838,9 +1156,11 @@ public class ImageSaver extends Thread {
         return success;
     }
 
-    /** Adds a request to the background queue, blocking if the queue is already full
+    /** Adds a request to the background queue, blocking if the queue is already full, i.e., if
+     *  adding it would exceed queue_budget_bytes.
      */
-    private void addRequest(Request request, int cost) {
+    private void addRequest(Request request) {
+        long cost = computeRequestCost(request);
         if( MyDebug.LOG )
             Log.d(TAG, "addRequest, cost: " + cost);
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && main_activity.isDestroyed() ) {
@@ -850,85 +1170,45 @@ public class ImageSaver extends Thread {
             Log.e(TAG, "application is destroyed, image lost!");
             return;
         }
-        // this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
-        // the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
-        boolean done = false;
-        while( !done ) {
-            try {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
-                synchronized( this ) {
-                    // see above for why we don't synchronize the queue.put call
-                    // but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
-                    // also see FindBugs warning due to inconsistent synchronisation
-                    n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
-                    if( request.type != Request.Type.DUMMY )
-                        n_real_images_to_save++;
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
-                }
-                if( queue.size() + 1 > queue_capacity ) {
-                    Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
-                    test_queue_blocked = true;
-                    //throw new RuntimeException(); // test
+        updateImageBytesEstimate(request, cost);
+        synchronized( this ) {
+            // the memory of any incremental processing of the request is already charged, and shouldn't make
+            // the request wait for itself
+            long incremental_cost = request.incremental_cost;
+            // note that wait() releases the lock, so the saver thread can still notifyAll() when it has saved an image
+            while( exceedsQueueBudget(bytes_to_save - incremental_cost, cost, queue_budget_bytes - incremental_cost, getHeapHeadroom()) ) {
+                Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + bytes_to_save);
+                test_queue_blocked = true;
+                try {
+                    wait();
                 }
-                queue.put(request); // if queue is full, put() blocks until it isn't full
-                if( MyDebug.LOG ) {
-                    synchronized( this ) { // keep FindBugs happy
-                        Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
-                        Log.d(TAG, "images still to save is now: " + n_images_to_save);
-                        Log.d(TAG, "real images still to save is now: " + n_real_images_to_save);
-                    }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "interrupted while waiting for space in ImageSaver queue");
                 }
-                done = true;
-            }
-            catch(InterruptedException e) {
-                e.printStackTrace();
-                if( MyDebug.LOG )
-                    Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
             }
+            n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
+            bytes_to_save += cost;
+            request.admitted_cost = cost + incremental_cost;
+
+            main_activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    main_activity.imageQueueChanged();
+                }
+            });
         }
-        if( cost > 0 ) {
-            // add "dummy" requests to simulate the cost
-            for(int i=0;i<cost-1;i++) {
-                addDummyRequest();
+        // queue isn't bounded, so won't block
+        queue.add(request);
+        if( MyDebug.LOG ) {
+            synchronized( this ) { // keep FindBugs happy
+                Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
+                Log.d(TAG, "images still to save is now: " + n_images_to_save);
+                Log.d(TAG, "bytes still to save is now: " + bytes_to_save);
             }
         }
     }
 
-    private void addDummyRequest() {
-        Request dummy_request = new Request(Request.Type.DUMMY,
-                Request.ProcessType.NORMAL,
-                false,
-                0,
-                Request.SaveBase.SAVEBASE_NONE,
-                null,
-                null,
-                false, null,
-                false,
-                Request.ImageFormat.STD, 0,
-                false, 0.0, null,
-                false,
-                false,
-                null,
-                null,
-                0,
-                0,
-                1.0f,
-                null, null, 0, 0, null, null, null, null, null, null,
-                false, false, null, false, 0.0,
-                0.0, false,
-                null, null,
-                1);
-        if( MyDebug.LOG )
-            Log.d(TAG, "add dummy request");
-        addRequest(dummy_request, 1); // cost must be 1, so we don't have infinite recursion!
-    }
-
     /** Wait until the queue is empty and all pending images have been saved.
      */
     void waitUntilDone() {
@@ -960,7 +1240,7 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "waitUntilDone: images all saved");
     }
 
-    private void setBitmapOptionsSampleSize(BitmapFactory.Options options, int inSampleSize) {
+    static void setBitmapOptionsSampleSize(BitmapFactory.Options options, int inSampleSize) {
         if( MyDebug.LOG )
             Log.d(TAG, "setBitmapOptionsSampleSize: " + inSampleSize);
         //options.inSampleSize = inSampleSize;
@@ -981,90 +1261,54 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "loadBitmap");
             Log.d(TAG, "mutable?: " + mutable);
         }
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        if( MyDebug.LOG )
-            Log.d(TAG, "options.inMutable is: " + options.inMutable);
-        options.inMutable = mutable;
-        setBitmapOptionsSampleSize(options, inSampleSize);
-        if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
-            // setting is ignored in Android 5 onwards
-            options.inPurgeable = true;
-        }
-        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
+        Bitmap bitmap = bitmapDecodePool.decode(jpeg_image, mutable, inSampleSize);
         if( bitmap == null ) {
             Log.e(TAG, "failed to decode bitmap");
         }
         return bitmap;
     }
 
-    /** Helper class for loadBitmaps().
-     */
-    private static class LoadBitmapThread extends Thread {
-        Bitmap bitmap;
-        final BitmapFactory.Options options;
-        final byte [] jpeg;
-        LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg) {
-            this.options = options;
-            this.jpeg = jpeg;
-        }
-
-        public void run() {
-            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
-        }
-    }
-
     /** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
+     *  The jpegs are decoded in parallel on the bitmapDecodePool's threads.
      */
     private List<Bitmap> loadBitmaps(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "loadBitmaps");
             Log.d(TAG, "mutable_id: " + mutable_id);
         }
-        BitmapFactory.Options mutable_options = new BitmapFactory.Options();
-        mutable_options.inMutable = true; // bitmap that needs to be writable
-        setBitmapOptionsSampleSize(mutable_options, inSampleSize);
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inMutable = false; // later bitmaps don't need to be writable
-        setBitmapOptionsSampleSize(options, inSampleSize);
-        if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
-            // setting is ignored in Android 5 onwards
-            mutable_options.inPurgeable = true;
-            options.inPurgeable = true;
-        }
-        LoadBitmapThread [] threads = new LoadBitmapThread[jpeg_images.size()];
-        for(int i=0;i<jpeg_images.size();i++) {
-            threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg_images.get(i) );
-        }
-        // start threads
+        List<Future<Bitmap>> futures = new ArrayList<>();
         if( MyDebug.LOG )
-            Log.d(TAG, "start threads");
+            Log.d(TAG, "submit decodes");
         for(int i=0;i<jpeg_images.size();i++) {
-            threads[i].start();
+            // only the bitmap with mutable_id needs to be writable
+            futures.add( bitmapDecodePool.submit(jpeg_images.get(i), i==mutable_id, inSampleSize) );
         }
-        // wait for threads to complete
+        // wait for decodes to complete
         boolean ok = true;
         if( MyDebug.LOG )
-            Log.d(TAG, "wait for threads to complete");
-        try {
-            for(int i=0;i<jpeg_images.size();i++) {
-                threads[i].join();
-            }
-        }
-        catch(InterruptedException e) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "threads interrupted");
-            e.printStackTrace();
-            ok = false;
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "threads completed");
-
+            Log.d(TAG, "wait for decodes to complete");
         List<Bitmap> bitmaps = new ArrayList<>();
-        for(int i=0;i<jpeg_images.size() && ok;i++) {
-            Bitmap bitmap = threads[i].bitmap;
+        for(int i=0;i<futures.size();i++) {
+            Bitmap bitmap = null;
+            try {
+                bitmap = futures.get(i).get();
+            }
+            catch(InterruptedException e) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "decodes interrupted");
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                ok = false;
+                break;
+            }
+            catch(ExecutionException e) {
+                Log.e(TAG, "exception decoding bitmap: " + i);
+                e.printStackTrace();
+            }
             if( bitmap == null ) {
-                Log.e(TAG, "failed to decode bitmap in thread: " + i);
+                Log.e(TAG, "failed to decode bitmap: " + i);
                 ok = false;
+                break;
             }
             else {
                 if( MyDebug.LOG )
@@ -1072,17 +1316,26 @@ public class ImageSaver extends Thread {
             }
             bitmaps.add(bitmap);
         }
+        if( MyDebug.LOG )
+            Log.d(TAG, "decodes completed");
 
         if( !ok ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "cleanup from failure");
-            for(int i=0;i<jpeg_images.size();i++) {
-                if( threads[i].bitmap != null ) {
-                    threads[i].bitmap.recycle();
-                    threads[i].bitmap = null;
-                }
+            int n_loaded = bitmaps.size();
+            for(Bitmap bitmap : bitmaps) {
+                bitmapDecodePool.release(bitmap);
             }
             bitmaps.clear();
+            // the remaining decodes may still be running, so wait for them before releasing their bitmaps
+            for(int i=n_loaded+1;i<futures.size();i++) {
+                try {
+                    bitmapDecodePool.release(futures.get(i).get());
+                }
+                catch(InterruptedException | ExecutionException e) {
+                    // bitmap will be garbage collected
+                }
+            }
             System.gc();
             return null;
         }
@@ -1090,6 +1343,19 @@ public class ImageSaver extends Thread {
         return bitmaps;
     }
 
+    /** Whether the HDR images of the request should be merged with HDRProcessor.processHDRTiled()
+     *  rather than decoding them all at full resolution, see HDRProcessor.useTiledHDR().
+     */
+    private boolean useTiledHDR(Request request) {
+        if( request.jpeg_images.size() < 2 )
+            return false; // DRO
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        byte [] jpeg = request.jpeg_images.get(0);
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        return HDRProcessor.useTiledHDR(options.outWidth, options.outHeight, request.jpeg_images.size(), Runtime.getRuntime().maxMemory());
+    }
+
     /** Chooses the hdr_alpha to use for contrast enhancement in the HDR algorithm, based on the user
      *  preferences and scene details.
      */
@@ -1294,6 +1560,14 @@ public class ImageSaver extends Thread {
     /** May be run in saver thread or picture callback thread (depending on whether running in background).
      */
     private boolean saveImageNow(final Request request) {
+        return saveImageNow(request, null);
+    }
+
+    /** As saveImageNow(Request), but with the images already post-processed (for normal requests).
+     * @param written_images If non-null, the results of submitWriteImage() for each of
+     *                       request.jpeg_images, see getWrittenImages().
+     */
+    private boolean saveImageNow(final Request request, List<WrittenImage> written_images) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveImageNow");
 
@@ -1349,7 +1623,21 @@ public class ImageSaver extends Thread {
 				throw new RuntimeException();
 			}*/
             Bitmap nr_bitmap;
-            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && request.incremental_avg != null ) {
+                try {
+                    long time_s = System.currentTimeMillis();
+                    // the images have already been averaged (or are still being averaged) as they arrived
+                    nr_bitmap = request.incremental_avg.finish(request.exposure_time);
+                    if( MyDebug.LOG ) {
+                        Log.d(TAG, "*** time for finishing NR image: " + (System.currentTimeMillis() - time_s));
+                    }
+                }
+                catch(HDRProcessorException e) {
+                    e.printStackTrace();
+                    throw new RuntimeException();
+                }
+            }
+            else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
                 try {
                     long time_s = System.currentTimeMillis();
                     // initialise allocation from first two bitmaps
@@ -1491,10 +1779,10 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "save NR image");
             String suffix = "_NR";
-            success = saveSingleImageNow(request, request.jpeg_images.get(0), nr_bitmap, suffix, true, true, true, false);
+            success = saveSingleImageNow(request, request.jpeg_images.get(0), nr_bitmap, suffix, true, true, true, false, null);
             if( MyDebug.LOG && !success )
                 Log.e(TAG, "saveSingleImageNow failed for nr image");
-            nr_bitmap.recycle();
+            // no need to recycle nr_bitmap, saveSingleImageNow() has already released it
             System.gc();
         }
         else if( request.process_type == Request.ProcessType.HDR ) {
@@ -1523,60 +1811,93 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "create HDR image");
             main_activity.savingImage(true);
 
-            // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
-            // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
-            // see test testTakePhotoHDRPhotoStamp.
-            int base_bitmap = (request.jpeg_images.size()-1)/2;
-            if( MyDebug.LOG )
-                Log.d(TAG, "base_bitmap: " + base_bitmap);
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
-            if( bitmaps == null ) {
+            Bitmap hdr_bitmap;
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && useTiledHDR(request) ) {
+                // merge without holding all of the images at full resolution
                 if( MyDebug.LOG )
-                    Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
-                return false;
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
-            }
-            float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, bitmaps.size());
-            if( MyDebug.LOG )
-                Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-            try {
-                if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    hdrProcessor.processHDR(bitmaps, true, null, true, null, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
-                }
-                else {
-                    Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
-                    throw new RuntimeException();
+                    Log.d(TAG, "use tiled HDR");
+                float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, request.jpeg_images.size());
+                try {
+                    hdr_bitmap = hdrProcessor.processHDRTiled(request.jpeg_images, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
                 }
-            }
-            catch(HDRProcessorException e) {
-                Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
-                e.printStackTrace();
-                if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
-                    // this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
+                catch(IOException e) {
+                    Log.e(TAG, "failed to decode images for tiled HDR");
+                    e.printStackTrace();
                     main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
-                    Log.e(TAG, "UNEQUAL_SIZES");
-                    bitmaps.clear();
-                    System.gc();
                     main_activity.savingImage(false);
                     return false;
                 }
-                else {
+                catch(HDRProcessorException e) {
+                    Log.e(TAG, "HDRProcessorException from processHDRTiled: " + e.getCode());
+                    e.printStackTrace();
+                    if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
+                        main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+                        main_activity.savingImage(false);
+                        return false;
+                    }
                     // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
                     throw new RuntimeException();
                 }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after creating tiled HDR image: " + (System.currentTimeMillis() - time_s));
+                }
             }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
+            else {
+                // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
+                // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
+                // see test testTakePhotoHDRPhotoStamp.
+                int base_bitmap = (request.jpeg_images.size()-1)/2;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "base_bitmap: " + base_bitmap);
+                List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
+                if( bitmaps == null ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "failed to load bitmaps");
+                    main_activity.savingImage(false);
+                    return false;
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+                }
+                float hdr_alpha = getHDRAlpha(request.preference_hdr_contrast_enhancement, request.exposure_time, bitmaps.size());
+                if( MyDebug.LOG )
+                    Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
+                try {
+                    if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                        hdrProcessor.processHDR(bitmaps, true, null, true, null, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+                    }
+                    else {
+                        Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
+                        throw new RuntimeException();
+                    }
+                }
+                catch(HDRProcessorException e) {
+                    Log.e(TAG, "HDRProcessorException from processHDR: " + e.getCode());
+                    e.printStackTrace();
+                    if( e.getCode() == HDRProcessorException.UNEQUAL_SIZES ) {
+                        // this can happen on OnePlus 3T with old camera API with front camera, seems to be a bug that resolution changes when exposure compensation is set!
+                        main_activity.getPreview().showToast(null, R.string.failed_to_process_hdr);
+                        Log.e(TAG, "UNEQUAL_SIZES");
+                        bitmaps.clear();
+                        System.gc();
+                        main_activity.savingImage(false);
+                        return false;
+                    }
+                    else {
+                        // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
+                        throw new RuntimeException();
+                    }
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "HDR performance: time after creating HDR image: " + (System.currentTimeMillis() - time_s));
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "after HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
+                hdr_bitmap = bitmaps.get(0);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
+                bitmaps.clear();
             }
-            if( MyDebug.LOG )
-                Log.d(TAG, "after HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
-            Bitmap hdr_bitmap = bitmaps.get(0);
-            if( MyDebug.LOG )
-                Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
-            bitmaps.clear();
             System.gc();
             main_activity.savingImage(false);
 
@@ -1586,13 +1907,13 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "base_image_id: " + base_image_id);
             String suffix = request.jpeg_images.size() == 1 ? "_DRO" : "_HDR";
-            success = saveSingleImageNow(request, request.jpeg_images.get(base_image_id), hdr_bitmap, suffix, true, true, true, false);
+            success = saveSingleImageNow(request, request.jpeg_images.get(base_image_id), hdr_bitmap, suffix, true, true, true, false, null);
             if( MyDebug.LOG && !success )
                 Log.e(TAG, "saveSingleImageNow failed for hdr image");
             if( MyDebug.LOG ) {
                 Log.d(TAG, "HDR performance: time after saving HDR image: " + (System.currentTimeMillis() - time_s));
             }
-            hdr_bitmap.recycle();
+            // no need to recycle hdr_bitmap, saveSingleImageNow() has already released it
             System.gc();
         }
         else if( request.process_type == Request.ProcessType.PANORAMA ) {
@@ -1695,7 +2016,20 @@ public class ImageSaver extends Thread {
                 Collections.reverse(request.gyro_rotation_matrix);
             }
 
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, -1, 1);
+            List<Bitmap> bitmaps;
+            List<Matrix> pair_transforms = null;
+            boolean rotated_for_exif = false;
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && request.incremental_panorama != null ) {
+                // the images have already been decoded, rotated and aligned (or are still being) as they arrived
+                IncrementalPanorama.Result result = request.incremental_panorama.finish(request.panorama_dir_left_to_right);
+                bitmaps = result != null ? result.bitmaps : null;
+                if( result != null )
+                    pair_transforms = result.pair_transforms;
+                rotated_for_exif = true;
+            }
+            else {
+                bitmaps = loadBitmaps(request.jpeg_images, -1, 1);
+            }
             if( bitmaps == null ) {
                 if( MyDebug.LOG )
                     Log.e(TAG, "failed to load bitmaps");
@@ -1706,20 +2040,22 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "panorama performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
             }
 
-            // rotate the bitmaps if necessary for exif tags
-            for(int i=0;i<bitmaps.size();i++) {
-                Bitmap bitmap = bitmaps.get(i);
-                bitmap = rotateForExif(bitmap, request.jpeg_images.get(0));
-                bitmaps.set(i, bitmap);
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "panorama performance: time after rotating for exif: " + (System.currentTimeMillis() - time_s));
+            if( !rotated_for_exif ) {
+                // rotate the bitmaps if necessary for exif tags
+                for(int i=0;i<bitmaps.size();i++) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    bitmap = rotateForExif(bitmap, request.jpeg_images.get(0));
+                    bitmaps.set(i, bitmap);
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "panorama performance: time after rotating for exif: " + (System.currentTimeMillis() - time_s));
+                }
             }
 
             Bitmap panorama;
             try {
                 if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
+                    panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop, pair_transforms);
                 }
                 else {
                     Log.e(TAG, "shouldn't have offered panorama as an option if not on Android 5");
@@ -1755,22 +2091,29 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "save panorama image");
             String suffix = "_PANO";
-            success = saveSingleImageNow(request, request.jpeg_images.get(0), panorama, suffix, true, true, true, true);
+            success = saveSingleImageNow(request, request.jpeg_images.get(0), panorama, suffix, true, true, true, true, null);
             if( MyDebug.LOG && !success )
                 Log.e(TAG, "saveSingleImageNow failed for panorama image");
-            panorama.recycle();
+            // no need to recycle panorama, saveSingleImageNow() has already released it
             System.gc();
         }
         else {
             // see note above how we used to use "_EXP" for the suffix for multiple images
             //String suffix = "_EXP";
             String suffix = "_";
-            success = saveImages(request, suffix, false, true, true);
+            success = saveImages(request, suffix, false, true, true, written_images);
         }
 
         return success;
     }
 
+    /** Returns the filename suffix for the i-th image of request.jpeg_images, see saveImages().
+     */
+    private static String getFilenameSuffix(Request request, String suffix, int i, boolean first_only) {
+        boolean multiple_jpegs = request.jpeg_images.size() > 1 && !first_only;
+        return (multiple_jpegs || request.force_suffix) ? suffix + (i + request.suffix_offset) : "";
+    }
+
     /** Saves all the JPEG images in request.jpeg_images.
      * @param request The request to save.
      * @param suffix If there is more than one image and first_only is false, the i-th image
@@ -1779,18 +2122,19 @@ public class ImageSaver extends Thread {
      * @param update_thumbnail Whether to update the thumbnail and show the animation.
      * @param share If true, the median image will be marked as the one to share (for pause preview
      *              option).
+     * @param written_images If non-null, the already written images, see saveImageNow().
      * @return Whether all images were successfully saved.
      */
-    private boolean saveImages(Request request, String suffix, boolean first_only, boolean update_thumbnail, boolean share) {
+    private boolean saveImages(Request request, String suffix, boolean first_only, boolean update_thumbnail, boolean share, List<WrittenImage> written_images) {
         boolean success = true;
         int mid_image = request.jpeg_images.size()/2;
         for(int i=0;i<request.jpeg_images.size();i++) {
             // note, even if one image fails, we still try saving the other images - might as well give the user as many images as we can...
             byte [] image = request.jpeg_images.get(i);
-            boolean multiple_jpegs = request.jpeg_images.size() > 1 && !first_only;
-            String filename_suffix = (multiple_jpegs || request.force_suffix) ? suffix + (i + request.suffix_offset) : "";
+            String filename_suffix = getFilenameSuffix(request, suffix, i, first_only);
             boolean share_image = share && (i == mid_image);
-            if( !saveSingleImageNow(request, image, null, filename_suffix, update_thumbnail, share_image, false, false) ) {
+            WrittenImage written_image = written_images != null ? written_images.get(i) : null;
+            if( !saveSingleImageNow(request, image, null, filename_suffix, update_thumbnail, share_image, false, false, written_image) ) {
                 if( MyDebug.LOG )
                     Log.e(TAG, "saveSingleImageNow failed for image: " + i);
                 success = false;
@@ -1829,7 +2173,7 @@ public class ImageSaver extends Thread {
             }
             // don't update the thumbnails, only do this for the final image - so user doesn't think it's complete, click gallery, then wonder why the final image isn't there
             // also don't mark these images as being shared
-            saveImages(base_request, suffix, base_request.save_base == Request.SaveBase.SAVEBASE_FIRST, false, false);
+            saveImages(base_request, suffix, base_request.save_base == Request.SaveBase.SAVEBASE_FIRST, false, false, null);
             // ignore return of saveImages - as for deciding whether to pause preview or not (which is all we use the success return for), all that matters is whether we saved the final HDR image
         }
     }
@@ -2063,7 +2407,6 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG ) {
             Log.d(TAG, "stampImage");
         }
-        final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
         boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
         boolean text_stamp = request.preference_textstamp.length() > 0;
         if( dategeo_stamp || text_stamp ) {
@@ -2077,161 +2420,195 @@ public class ImageSaver extends Thread {
                 }
             }
             if( bitmap != null ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "stamp info to bitmap: " + bitmap);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
-                int font_size = request.font_size;
-                int color = request.color;
-                String pref_style = request.pref_style;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "pref_style: " + pref_style);
-                String preference_stamp_dateformat = request.preference_stamp_dateformat;
-                String preference_stamp_timeformat = request.preference_stamp_timeformat;
-                String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
-                int width = bitmap.getWidth();
-                int height = bitmap.getHeight();
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "decoded bitmap size " + width + ", " + height);
-                    Log.d(TAG, "bitmap size: " + width*height*4);
-                }
-                Canvas canvas = new Canvas(bitmap);
-                p.setColor(Color.WHITE);
-                // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
-                // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
-                int smallest_size = Math.min(width, height);
-                float scale = ((float)smallest_size) / (72.0f*4.0f);
-                int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "scale: " + scale);
-                    Log.d(TAG, "font_size: " + font_size);
-                    Log.d(TAG, "font_size_pixel: " + font_size_pixel);
-                }
-                p.setTextSize(font_size_pixel);
-                int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
-                int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
-                int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
-                int ypos = height - offset_y;
-                p.setTextAlign(Align.RIGHT);
-                MyApplicationInterface.Shadow draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
-                switch( pref_style ) {
-                    case "preference_stamp_style_shadowed":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_OUTLINE;
-                        break;
-                    case "preference_stamp_style_plain":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
-                        break;
-                    case "preference_stamp_style_background":
-                        draw_shadowed = MyApplicationInterface.Shadow.SHADOW_BACKGROUND;
-                        break;
+                // look up the address before locking, so that other images can be stamped meanwhile
+                Address address = dategeo_stamp ? getStampAddress(request) : null;
+                // drawing uses the shared paint (and MyApplicationInterface's text bounds), so only stamp one image at a time
+                synchronized( p ) {
+                    drawStamp(request, bitmap, dategeo_stamp, text_stamp, address);
                 }
+            }
+        }
+        return bitmap;
+    }
+
+    /** Finds the address to stamp for the request's location, or returns null if an address isn't wanted or
+     *  can't be found. Addresses are cached for the last location looked up.
+     */
+    private Address getStampAddress(final Request request) {
+        if( !request.store_location || request.location == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no") ) {
+            return null;
+        }
+        boolean block_geocoder;
+        synchronized(this) {
+            block_geocoder = app_is_paused;
+        }
+        double latitude = request.location.getLatitude();
+        double longitude = request.location.getLongitude();
+        synchronized( geocoder_cache_lock ) {
+            if( geocoder_cache_address != null && geocoder_cache_latitude == latitude && geocoder_cache_longitude == longitude ) {
                 if( MyDebug.LOG )
-                    Log.d(TAG, "draw_shadowed: " + draw_shadowed);
-                if( dategeo_stamp ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "stamp date");
-                    // doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
-                    String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
-                    String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
+                    Log.d(TAG, "use cached address");
+                return geocoder_cache_address;
+            }
+        }
+        Address address = null;
+        // try to find an address
+        // n.b., if we update the class being used, consider whether the info on Geocoder in preference_stamp_geo_address_summary needs updating
+        if( block_geocoder ) {
+            // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
+            // has paused and we're still saving images
+            if( MyDebug.LOG )
+                Log.d(TAG, "don't call geocoder for photostamp as app is paused");
+        }
+        else if( Geocoder.isPresent() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "geocoder is present");
+            Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
+            try {
+                List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+                if( addresses != null && addresses.size() > 0 ) {
+                    address = addresses.get(0);
+                    // don't log address, in case of privacy!
                     if( MyDebug.LOG ) {
-                        Log.d(TAG, "date_stamp: " + date_stamp);
-                        Log.d(TAG, "time_stamp: " + time_stamp);
+                        Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
                     }
-                    if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
-                        String datetime_stamp = "";
-                        if( date_stamp.length() > 0 )
-                            datetime_stamp += date_stamp;
-                        if( time_stamp.length() > 0 ) {
-                            if( datetime_stamp.length() > 0 )
-                                datetime_stamp += " ";
-                            datetime_stamp += time_stamp;
-                        }
-                        applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                    synchronized( geocoder_cache_lock ) {
+                        geocoder_cache_latitude = latitude;
+                        geocoder_cache_longitude = longitude;
+                        geocoder_cache_address = address;
                     }
+                }
+            }
+            catch(Exception e) {
+                Log.e(TAG, "failed to read from geocoder");
+                e.printStackTrace();
+            }
+        }
+        else {
+            if( MyDebug.LOG )
+                Log.d(TAG, "geocoder not present");
+        }
+        return address;
+    }
+
+    /** Draws the photo stamp onto the bitmap, for stampImage(). Must be called with p locked.
+     * @param address The address to stamp, from getStampAddress().
+     */
+    private void drawStamp(final Request request, Bitmap bitmap, boolean dategeo_stamp, boolean text_stamp, Address address) {
+        final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
+        if( MyDebug.LOG )
+            Log.d(TAG, "stamp info to bitmap: " + bitmap);
+        if( MyDebug.LOG )
+            Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
+        int font_size = request.font_size;
+        int color = request.color;
+        String pref_style = request.pref_style;
+        if( MyDebug.LOG )
+            Log.d(TAG, "pref_style: " + pref_style);
+        String preference_stamp_dateformat = request.preference_stamp_dateformat;
+        String preference_stamp_timeformat = request.preference_stamp_timeformat;
+        String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "decoded bitmap size " + width + ", " + height);
+            Log.d(TAG, "bitmap size: " + width*height*4);
+        }
+        Canvas canvas = new Canvas(bitmap);
+        p.setColor(Color.WHITE);
+        // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
+        // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
+        int smallest_size = Math.min(width, height);
+        float scale = ((float)smallest_size) / (72.0f*4.0f);
+        int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "scale: " + scale);
+            Log.d(TAG, "font_size: " + font_size);
+            Log.d(TAG, "font_size_pixel: " + font_size_pixel);
+        }
+        p.setTextSize(font_size_pixel);
+        int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
+        int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
+        int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
+        int ypos = height - offset_y;
+        p.setTextAlign(Align.RIGHT);
+        MyApplicationInterface.Shadow draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
+        switch( pref_style ) {
+            case "preference_stamp_style_shadowed":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_OUTLINE;
+                break;
+            case "preference_stamp_style_plain":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
+                break;
+            case "preference_stamp_style_background":
+                draw_shadowed = MyApplicationInterface.Shadow.SHADOW_BACKGROUND;
+                break;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "draw_shadowed: " + draw_shadowed);
+        if( dategeo_stamp ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stamp date");
+            // doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
+            String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
+            String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "date_stamp: " + date_stamp);
+                Log.d(TAG, "time_stamp: " + time_stamp);
+            }
+            if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
+                String datetime_stamp = "";
+                if( date_stamp.length() > 0 )
+                    datetime_stamp += date_stamp;
+                if( time_stamp.length() > 0 ) {
+                    if( datetime_stamp.length() > 0 )
+                        datetime_stamp += " ";
+                    datetime_stamp += time_stamp;
+                }
+                applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+            }
+            ypos -= diff_y;
+            String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
+            if( gps_stamp.length() > 0 ) {
+                // don't log gps_stamp, in case of privacy!
+
+                if( address == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both") ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "display gps coords");
+                    // want GPS coords (either in addition to the address, or we don't have an address)
+                    // we'll also enter here if store_location is false, but we have geo direction to display
+                    applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
                     ypos -= diff_y;
-                    String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
+                }
+                else if( request.store_geo_direction ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "not displaying gps coords, but need to display geo direction");
+                    // we are displaying an address instead of GPS coords, but we still need to display the geo direction
+                    gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, false, null, request.store_geo_direction, request.geo_direction);
                     if( gps_stamp.length() > 0 ) {
                         // don't log gps_stamp, in case of privacy!
-
-                        Address address = null;
-                        if( request.store_location && !request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no") ) {
-                            boolean block_geocoder;
-                            synchronized(this) {
-                                block_geocoder = app_is_paused;
-                            }
-                            // try to find an address
-                            // n.b., if we update the class being used, consider whether the info on Geocoder in preference_stamp_geo_address_summary needs updating
-                            if( block_geocoder ) {
-                                // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
-                                // has paused and we're still saving images
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "don't call geocoder for photostamp as app is paused");
-                            }
-                            else if( Geocoder.isPresent() ) {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "geocoder is present");
-                                Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
-                                try {
-                                    List<Address> addresses = geocoder.getFromLocation(request.location.getLatitude(), request.location.getLongitude(), 1);
-                                    if( addresses != null && addresses.size() > 0 ) {
-                                        address = addresses.get(0);
-                                        // don't log address, in case of privacy!
-                                        if( MyDebug.LOG ) {
-                                            Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
-                                        }
-                                    }
-                                }
-                                catch(Exception e) {
-                                    Log.e(TAG, "failed to read from geocoder");
-                                    e.printStackTrace();
-                                }
-                            }
-                            else {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "geocoder not present");
-                            }
-                        }
-
-                        if( address == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both") ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "display gps coords");
-                            // want GPS coords (either in addition to the address, or we don't have an address)
-                            // we'll also enter here if store_location is false, but we have geo direction to display
-                            applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                            ypos -= diff_y;
-                        }
-                        else if( request.store_geo_direction ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "not displaying gps coords, but need to display geo direction");
-                            // we are displaying an address instead of GPS coords, but we still need to display the geo direction
-                            gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, false, null, request.store_geo_direction, request.geo_direction);
-                            if( gps_stamp.length() > 0 ) {
-                                // don't log gps_stamp, in case of privacy!
-                                applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                                ypos -= diff_y;
-                            }
-                        }
-
-                        if( address != null ) {
-                            for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
-                                // write in reverse order
-                                String addressLine = address.getAddressLine(address.getMaxAddressLineIndex()-i);
-                                applicationInterface.drawTextWithBackground(canvas, p, addressLine, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                                ypos -= diff_y;
-                            }
-                        }
+                        applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                        ypos -= diff_y;
                     }
                 }
-                if( text_stamp ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "stamp text");
-                    applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-                    //noinspection UnusedAssignment
-                    ypos -= diff_y;
+
+                if( address != null ) {
+                    for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
+                        // write in reverse order
+                        String addressLine = address.getAddressLine(address.getMaxAddressLineIndex()-i);
+                        applicationInterface.drawTextWithBackground(canvas, p, addressLine, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                        ypos -= diff_y;
+                    }
                 }
             }
         }
-        return bitmap;
+        if( text_stamp ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "stamp text");
+            applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+            //noinspection UnusedAssignment
+            ypos -= diff_y;
+        }
     }
 
     private static class PostProcessBitmapResult {
@@ -2242,6 +2619,17 @@ public class ImageSaver extends Thread {
         }
     }
 
+    private static Bitmap.CompressFormat getCompressFormat(Request.ImageFormat image_format) {
+        switch( image_format ) {
+            case WEBP:
+                return Bitmap.CompressFormat.WEBP;
+            case PNG:
+                return Bitmap.CompressFormat.PNG;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
     /** Performs post-processing on the data, or bitmap if non-null, for saveSingleImageNow.
      */
     private PostProcessBitmapResult postProcessBitmap(final Request request, byte [] data, Bitmap bitmap, boolean ignore_exif_orientation) throws IOException {
@@ -2300,11 +2688,52 @@ public class ImageSaver extends Thread {
      *                         RAW preference only affects the base images.
      * @param ignore_exif_orientation - If bitmap is non-null, then set this to true if the bitmap has already
      *                                  been rotated to account for Exif orientation tags in the data.
+     * @param written_image - If non-null, the result of writeSingleImage() for the data, already
+     *                        done on prepare_executor, so that only commitSingleImage() remains.
      */
-    @SuppressLint("SimpleDateFormat")
-    private boolean saveSingleImageNow(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
+    private boolean saveSingleImageNow(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation, WrittenImage written_image) {
         if( MyDebug.LOG )
             Log.d(TAG, "saveSingleImageNow");
+        long time_s = System.currentTimeMillis();
+
+        main_activity.savingImage(true);
+        if( written_image == null ) {
+            written_image = writeSingleImage(request, data, bitmap, filename_suffix, ignore_raw_only, ignore_exif_orientation);
+        }
+        boolean success = commitSingleImage(request, data, written_image, update_thumbnail, share_image);
+        main_activity.savingImage(false);
+
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
+        }
+        return success;
+    }
+
+    /** The result of writeSingleImage(), to be passed to commitSingleImage().
+     */
+    private static class WrittenImage {
+        boolean success; // whether the image was written, or didn't need to be (for RAW only)
+        boolean raw_only;
+        // if using SAF or image_capture_intent is true, or using scoped storage, only saveUri is non-null
+        // otherwise, only picFile is non-null
+        File picFile;
+        Uri saveUri;
+        boolean use_media_store;
+        ContentValues contentValues; // used if using scoped storage
+        Bitmap bitmap; // the post-processed bitmap, if any, kept for the thumbnail
+        long charged_bytes; // memory of bitmap charged to bytes_to_save by submitWriteImage(), 0 otherwise
+    }
+
+    /** The first stage of saveSingleImageNow(): post-processes the image, and writes it along with
+     *  its Exif tags, but doesn't make it visible to the gallery (so for scoped storage, the entry
+     *  is still pending). For normal requests this is run in parallel on prepare_executor, see
+     *  submitWriteImage(), so shouldn't modify state other than the new file.
+     *  The parameters are as for saveSingleImageNow().
+     */
+    @SuppressLint("SimpleDateFormat")
+    private WrittenImage writeSingleImage(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean ignore_raw_only, boolean ignore_exif_orientation) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "writeSingleImage");
 
         if( request.type != Request.Type.JPEG ) {
             if( MyDebug.LOG )
@@ -2320,7 +2749,7 @@ public class ImageSaver extends Thread {
         }
         long time_s = System.currentTimeMillis();
 
-        boolean success = false;
+        WrittenImage written_image = new WrittenImage();
         final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
         boolean raw_only = !ignore_raw_only && applicationInterface.isRawOnly();
         if( MyDebug.LOG )
@@ -2342,8 +2771,6 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG )
             Log.d(TAG, "extension: " + extension);
 
-        main_activity.savingImage(true);
-
         // If using SAF or image_capture_intent is true, or using scoped storage, only saveUri is non-null
         // Otherwise, only picFile is non-null
         File picFile = null;
@@ -2358,7 +2785,7 @@ public class ImageSaver extends Thread {
 
             if( raw_only ) {
                 // don't save the JPEG
-                success = true;
+                written_image.success = true;
             }
             else if( request.image_capture_intent ) {
                 if( MyDebug.LOG )
@@ -2453,7 +2880,12 @@ public class ImageSaver extends Thread {
                 }
             }
             else {
-                picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, extension, request.current_date);
+                synchronized( output_file_lock ) {
+                    picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, extension, request.current_date);
+                    // create the file straight away, so that images written in parallel are given different filenames
+                    //noinspection ResultOfMethodCallIgnored
+                    picFile.createNewFile();
+                }
                 if( MyDebug.LOG )
                     Log.d(TAG, "save to: " + picFile.getAbsolutePath());
             }
@@ -2471,19 +2903,7 @@ public class ImageSaver extends Thread {
                     if( bitmap != null ) {
                         if( MyDebug.LOG )
                             Log.d(TAG, "compress bitmap, quality " + request.image_quality);
-                        Bitmap.CompressFormat compress_format;
-                        switch( request.image_format ) {
-                            case WEBP:
-                                compress_format = Bitmap.CompressFormat.WEBP;
-                                break;
-                            case PNG:
-                                compress_format = Bitmap.CompressFormat.PNG;
-                                break;
-                            default:
-                                compress_format = Bitmap.CompressFormat.JPEG;
-                                break;
-                        }
-                        bitmap.compress(compress_format, request.image_quality, outputStream);
+                        bitmap.compress(getCompressFormat(request.image_format), request.image_quality, outputStream);
                     }
                     else {
                         outputStream.write(data);
@@ -2498,9 +2918,8 @@ public class ImageSaver extends Thread {
                     Log.d(TAG, "Save single image performance: time after saving photo: " + (System.currentTimeMillis() - time_s));
                 }
 
-                if( saveUri == null ) { // if saveUri is non-null, then we haven't succeeded until we've copied to the saveUri
-                    success = true;
-                }
+                // if saveUri is non-null, commitSingleImage() still needs to make it visible
+                written_image.success = true;
 
                 if( request.image_format == Request.ImageFormat.STD ) {
                     // handle transferring/setting Exif tags (JPEG format only)
@@ -2541,7 +2960,73 @@ public class ImageSaver extends Thread {
                         }
                     }
                 }
+            }
+        }
+        catch(FileNotFoundException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "File not found: " + e.getMessage());
+            e.printStackTrace();
+            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+            written_image.success = false;
+        }
+        catch(IOException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "I/O error writing file: " + e.getMessage());
+            e.printStackTrace();
+            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+            written_image.success = false;
+        }
+        catch(SecurityException e) {
+            // received security exception from copyFileToUri()->openOutputStream() from Google Play
+            // update: no longer have copyFileToUri() (as no longer use temporary files for SAF), but might as well keep this
+            if( MyDebug.LOG )
+                Log.e(TAG, "security exception writing file: " + e.getMessage());
+            e.printStackTrace();
+            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+            written_image.success = false;
+        }
+        catch(IllegalArgumentException e) {
+            // can happen for mediastore method if invalid ContentResolver.insert() call
+            if( MyDebug.LOG )
+                Log.e(TAG, "IllegalArgumentException writing file: " + e.getMessage());
+            e.printStackTrace();
+            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+            written_image.success = false;
+        }
+
+        written_image.raw_only = raw_only;
+        written_image.picFile = picFile;
+        written_image.saveUri = saveUri;
+        written_image.use_media_store = use_media_store;
+        written_image.contentValues = contentValues;
+        written_image.bitmap = bitmap;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "Write single image performance: total time: " + (System.currentTimeMillis() - time_s));
+        }
+        return written_image;
+    }
+
+    /** The second stage of saveSingleImageNow(): makes an image written by writeSingleImage()
+     *  visible to the gallery, and updates the last image and thumbnail. Always run on the thread
+     *  that saves requests in order, so that images appear in the order they were taken.
+     *  The parameters are as for saveSingleImageNow().
+     */
+    private boolean commitSingleImage(final Request request, byte [] data, WrittenImage written_image, boolean update_thumbnail, boolean share_image) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "commitSingleImage");
+        long time_s = System.currentTimeMillis();
 
+        boolean success = written_image.success;
+        final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
+        boolean raw_only = written_image.raw_only;
+        StorageUtils storageUtils = main_activity.getStorageUtils();
+        File picFile = written_image.picFile;
+        Uri saveUri = written_image.saveUri;
+        boolean use_media_store = written_image.use_media_store;
+        ContentValues contentValues = written_image.contentValues;
+        Bitmap bitmap = written_image.bitmap;
+        if( success && !raw_only && (picFile != null || saveUri != null) ) {
+            try {
                 if( picFile != null && saveUri == null ) {
                     // broadcast for SAF is done later, when we've actually written out the file
                     storageUtils.broadcastFile(picFile, true, false, update_thumbnail);
@@ -2560,8 +3045,6 @@ public class ImageSaver extends Thread {
                 }
 
                 if( saveUri != null ) {
-                    success = true;
-
                     if( use_media_store ) {
                         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
                             contentValues.clear();
@@ -2579,6 +3062,7 @@ public class ImageSaver extends Thread {
                             storageUtils.announceUri(saveUri, true, false);
                             // we also want to save the uri - we can use the media uri directly, rather than having to scan it
                             storageUtils.setLastMediaScanned(saveUri);
+                            storageUtils.addRecentMedia(saveUri, false, true);
                         }
                     }
                     else {
@@ -2588,33 +3072,21 @@ public class ImageSaver extends Thread {
                     main_activity.test_last_saved_imageuri = saveUri;
                 }
             }
-        }
-        catch(FileNotFoundException e) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "File not found: " + e.getMessage());
-            e.printStackTrace();
-            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
-        }
-        catch(IOException e) {
-            if( MyDebug.LOG )
-                Log.e(TAG, "I/O error writing file: " + e.getMessage());
-            e.printStackTrace();
-            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
-        }
-        catch(SecurityException e) {
-            // received security exception from copyFileToUri()->openOutputStream() from Google Play
-            // update: no longer have copyFileToUri() (as no longer use temporary files for SAF), but might as well keep this
-            if( MyDebug.LOG )
-                Log.e(TAG, "security exception writing file: " + e.getMessage());
-            e.printStackTrace();
-            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
-        }
-        catch(IllegalArgumentException e) {
-            // can happen for mediastore method if invalid ContentResolver.insert() call
-            if( MyDebug.LOG )
-                Log.e(TAG, "IllegalArgumentException writing file: " + e.getMessage());
-            e.printStackTrace();
-            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+            catch(SecurityException e) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "security exception committing file: " + e.getMessage());
+                e.printStackTrace();
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                success = false;
+            }
+            catch(IllegalArgumentException e) {
+                // can happen for mediastore method if invalid ContentResolver.update() call
+                if( MyDebug.LOG )
+                    Log.e(TAG, "IllegalArgumentException committing file: " + e.getMessage());
+                e.printStackTrace();
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                success = false;
+            }
         }
 
         if( raw_only ) {
@@ -2709,19 +3181,25 @@ public class ImageSaver extends Thread {
         }
 
         if( bitmap != null ) {
-            bitmap.recycle();
+            if( request.image_capture_intent ) {
+                // bitmap may have been passed to the intent
+                bitmap.recycle();
+            }
+            else {
+                // allow reusing the bitmap for decoding later images
+                bitmapDecodePool.release(bitmap);
+            }
         }
 
         System.gc();
 
-        main_activity.savingImage(false);
-
         if( MyDebug.LOG ) {
-            Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "Commit single image performance: total time: " + (System.currentTimeMillis() - time_s));
         }
         return success;
     }
 
+
     /** As setExifFromFile, but can read the Exif tags directly from the jpeg data rather than a file.
      */
     private void setExifFromData(final Request request, byte [] data, File to_file) throws IOException {
@@ -3174,6 +3652,7 @@ public class ImageSaver extends Thread {
                 // and mediastore method is only used on Android 10+, but keep this just in case
                 // announceUri does something in future
                 storageUtils.announceUri(saveUri, true, false);
+                storageUtils.addRecentMedia(saveUri, false, true);
             }
             else {
                 storageUtils.broadcastUri(saveUri, true, false, false, false);
@@ -0,0 +1,204 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/** Averages the images of a noise reduction burst as they arrive, rather than once the whole burst
+ *  has been taken. Each jpeg is decoded and folded into the running HDRProcessor.AvgData on the
+ *  executor as soon as it is added, so the averaging overlaps with taking the rest of the burst,
+ *  and only the averaged image and the image being folded in need to be held in memory (plus any
+ *  jpegs still waiting to be decoded).
+ *  The executor must be single threaded, so that the images are folded in the order they were
+ *  taken. The HDRProcessor should not be used on other threads at the same time, as it caches
+ *  its scripts.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+class IncrementalAvg {
+    private static final String TAG = "IncrementalAvg";
+
+    private final HDRProcessor hdrProcessor;
+    private final BitmapDecodePool bitmapDecodePool;
+    private final ExecutorService executor;
+    private final int iso;
+    private final float zoom_factor;
+    private final int inSampleSize;
+
+    private volatile int n_added; // written by add() on the caller's thread, read by finish() on the saver thread
+    private volatile boolean finished;
+
+    // the following are only accessed on the executor's thread
+    private Bitmap first_bitmap; // the first image, until the second one arrives
+    private HDRProcessor.AvgData avg_data;
+    private int width;
+    private int height;
+    private int n_folded;
+    private HDRProcessorException failure; // if non-null, averaging failed, and later images are ignored
+
+    IncrementalAvg(HDRProcessor hdrProcessor, BitmapDecodePool bitmapDecodePool, ExecutorService executor, int iso, float zoom_factor) {
+        this.hdrProcessor = hdrProcessor;
+        this.bitmapDecodePool = bitmapDecodePool;
+        this.executor = executor;
+        this.iso = iso;
+        this.zoom_factor = zoom_factor;
+        this.inSampleSize = hdrProcessor.getAvgSampleSize(iso);
+    }
+
+    /** Returns the number of images added so far.
+     */
+    int getNImages() {
+        return n_added;
+    }
+
+    /** Estimates the memory held while averaging images of the given number of pixels, for the
+     *  ImageSaver queue budget: the float accumulator (padded to 4 floats per pixel), the bitmap
+     *  being folded in and the alignment bitmap, at the sample size used.
+     */
+    long estimateMemoryBytes(long n_pixels) {
+        return (16 + 4 + 4) * n_pixels / ((long)inSampleSize*inSampleSize);
+    }
+
+    /** Whether finish() or cancel() has completed, so that the resources of the averaging have been
+     *  freed.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /** Queues the next image of the burst to be averaged.
+     */
+    void add(final byte [] jpeg) {
+        n_added++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                fold(jpeg);
+            }
+        });
+    }
+
+    private void fold(byte [] jpeg) {
+        if( finished || failure != null ) {
+            return;
+        }
+        long time_s = System.currentTimeMillis();
+        Bitmap bitmap = bitmapDecodePool.decode(jpeg, false, inSampleSize);
+        if( bitmap == null ) {
+            // average the remaining images without this one
+            Log.e(TAG, "failed to decode bitmap");
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time for loading bitmap " + n_folded + ": " + (System.currentTimeMillis() - time_s));
+
+        try {
+            if( n_folded == 0 ) {
+                first_bitmap = bitmap;
+                width = bitmap.getWidth();
+                height = bitmap.getHeight();
+            }
+            else if( n_folded == 1 ) {
+                Bitmap bitmap0 = first_bitmap;
+                first_bitmap = null;
+                // processAvg recycles both bitmaps
+                avg_data = hdrProcessor.processAvg(bitmap0, bitmap, 1.0f, iso, zoom_factor);
+            }
+            else {
+                // updateAvg recycles the bitmap
+                hdrProcessor.updateAvg(avg_data, width, height, bitmap, n_folded, iso, zoom_factor);
+            }
+            n_folded++;
+        }
+        catch(HDRProcessorException e) {
+            Log.e(TAG, "failed to average image " + n_folded + ": " + e.getCode());
+            failure = e;
+            if( !bitmap.isRecycled() ) {
+                bitmap.recycle();
+            }
+            freeResources();
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time for averaging image " + (n_folded-1) + ": " + (System.currentTimeMillis() - time_s));
+    }
+
+    /** Waits for all the added images to be averaged, and returns the brightened result (see
+     *  HDRProcessor.avgBrighten()).
+     * @throws HDRProcessorException If fewer than two images were averaged, or the averaging
+     *                               failed.
+     */
+    Bitmap finish(final long exposure_time) throws HDRProcessorException {
+        if( MyDebug.LOG )
+            Log.d(TAG, "finish: " + n_added + " images");
+        Future<Bitmap> future = executor.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws HDRProcessorException {
+                try {
+                    if( failure != null ) {
+                        throw failure;
+                    }
+                    else if( avg_data == null ) {
+                        Log.e(TAG, "need at least two images to average, only have " + n_folded);
+                        throw new HDRProcessorException(HDRProcessorException.INVALID_N_IMAGES);
+                    }
+                    long time_s = System.currentTimeMillis();
+                    Bitmap bitmap = hdrProcessor.avgBrighten(avg_data.allocation_out, width, height, iso, exposure_time);
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - time_s));
+                    return bitmap;
+                }
+                finally {
+                    freeResources();
+                }
+            }
+        });
+        try {
+            return future.get();
+        }
+        catch(ExecutionException e) {
+            if( e.getCause() instanceof HDRProcessorException ) {
+                throw (HDRProcessorException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        catch(InterruptedException e) {
+            Log.e(TAG, "interrupted while waiting for averaging");
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Abandons the averaging, e.g., if the burst wasn't completed. Images that are still queued
+     *  are ignored.
+     */
+    void cancel() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "cancel");
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                freeResources();
+            }
+        });
+    }
+
+    /** Must be called on the executor's thread.
+     */
+    private void freeResources() {
+        if( first_bitmap != null ) {
+            first_bitmap.recycle();
+            first_bitmap = null;
+        }
+        if( avg_data != null ) {
+            avg_data.destroy();
+            avg_data = null;
+        }
+        finished = true;
+    }
+}
@@ -0,0 +1,209 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/** Decodes and aligns the images of a panorama as they are taken, rather than once the whole
+ *  panorama has been taken. As each jpeg is added, it is decoded on the executor, and aligned
+ *  against the previous image with PanoramaProcessor.computePairTransform(), so that this work
+ *  overlaps with the user sweeping the device, and PanoramaProcessor.panorama() only needs to do
+ *  the steps that depend on all of the images (levelling, exposure adjustment, cropping and
+ *  blending).
+ *  The executor must be single threaded, so that the images are processed in the order they were
+ *  taken. The PanoramaProcessor should not be used on other threads at the same time, as it caches
+ *  its scripts.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+class IncrementalPanorama {
+    private static final String TAG = "IncrementalPanorama";
+
+    /** Decodes the images.
+     */
+    interface BitmapLoader {
+        /** Returns the decoded image, rotated for its Exif orientation, or null if decoding
+         *  failed.
+         */
+        Bitmap load(byte [] jpeg);
+    }
+
+    /** The images and alignments, in the order they should be passed to
+     *  PanoramaProcessor.panorama().
+     */
+    static class Result {
+        final List<Bitmap> bitmaps;
+        final List<Matrix> pair_transforms;
+
+        Result(List<Bitmap> bitmaps, List<Matrix> pair_transforms) {
+            this.bitmaps = bitmaps;
+            this.pair_transforms = pair_transforms;
+        }
+    }
+
+    private final PanoramaProcessor panoramaProcessor;
+    private final BitmapLoader bitmapLoader;
+    private final ExecutorService executor;
+    private final float panorama_pics_per_screen;
+
+    private volatile boolean finished;
+
+    // the following are only accessed on the executor's thread
+    private final List<Bitmap> bitmaps = new ArrayList<>(); // in the order taken
+    /* Entry c is the transform between the c-th and (c-1)-th images taken: for a left to right panorama, this maps
+     * image c onto image c-1; for right to left, the images are passed to panorama() in reverse order, so this maps
+     * image c-1 onto image c. Entry 0 is always null, as are entries that couldn't be computed.
+     */
+    private final List<Matrix> transforms = new ArrayList<>();
+    private Boolean transforms_dir_left_to_right; // the direction the transforms were computed for, once known
+    private boolean failed; // if true, an image couldn't be decoded
+
+    IncrementalPanorama(PanoramaProcessor panoramaProcessor, BitmapLoader bitmapLoader, ExecutorService executor, float panorama_pics_per_screen) {
+        this.panoramaProcessor = panoramaProcessor;
+        this.bitmapLoader = bitmapLoader;
+        this.executor = executor;
+        this.panorama_pics_per_screen = panorama_pics_per_screen;
+    }
+
+    /** Whether finish() or cancel() has completed, so that the images are no longer held.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /** Queues the next image of the panorama to be decoded and aligned.
+     * @param dir_left_to_right The direction of the panorama, if known. This is only used from the
+     *                          second image onwards.
+     */
+    void add(final byte [] jpeg, final boolean dir_left_to_right) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                process(jpeg, dir_left_to_right);
+            }
+        });
+    }
+
+    private void process(byte [] jpeg, boolean dir_left_to_right) {
+        if( finished || failed ) {
+            return;
+        }
+        long time_s = System.currentTimeMillis();
+        Bitmap bitmap = bitmapLoader.load(jpeg);
+        if( bitmap == null ) {
+            Log.e(TAG, "failed to decode bitmap");
+            failed = true;
+            freeBitmaps();
+            return;
+        }
+        bitmaps.add(bitmap);
+        if( MyDebug.LOG )
+            Log.d(TAG, "*** time for loading bitmap " + (bitmaps.size()-1) + ": " + (System.currentTimeMillis() - time_s));
+
+        Matrix transform = null;
+        int c = bitmaps.size()-1;
+        if( c > 0 ) {
+            if( transforms_dir_left_to_right == null ) {
+                transforms_dir_left_to_right = dir_left_to_right;
+            }
+            try {
+                if( transforms_dir_left_to_right )
+                    transform = panoramaProcessor.computePairTransform(bitmaps.get(c-1), bitmaps.get(c), c, panorama_pics_per_screen);
+                else
+                    transform = panoramaProcessor.computePairTransform(bitmaps.get(c), bitmaps.get(c-1), c, panorama_pics_per_screen);
+            }
+            catch(PanoramaProcessorException e) {
+                // leave for panorama() to deal with
+                Log.e(TAG, "failed to align image " + c + ": " + e.getCode());
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "*** time for aligning bitmap " + c + ": " + (System.currentTimeMillis() - time_s));
+        }
+        transforms.add(transform);
+    }
+
+    /** Waits for all the added images to be processed.
+     * @param dir_left_to_right The final direction of the panorama.
+     * @return The images and alignments to pass to PanoramaProcessor.panorama(), or null if an
+     *         image couldn't be decoded. The caller takes ownership of the bitmaps.
+     */
+    Result finish(final boolean dir_left_to_right) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "finish");
+        Future<Result> future = executor.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                finished = true;
+                if( failed ) {
+                    return null;
+                }
+                List<Bitmap> result_bitmaps = new ArrayList<>(bitmaps);
+                List<Matrix> pair_transforms = new ArrayList<>(transforms);
+                bitmaps.clear();
+                transforms.clear();
+                if( transforms_dir_left_to_right != null && transforms_dir_left_to_right != dir_left_to_right ) {
+                    // shouldn't happen, as the direction is known from the second image onwards
+                    Log.e(TAG, "direction changed, discard alignments");
+                    Collections.fill(pair_transforms, null);
+                }
+                if( !dir_left_to_right ) {
+                    Collections.reverse(result_bitmaps);
+                    // entry c is between the images taken c and c-1, which are at n-1-c and n-c in reverse order
+                    int n_bitmaps = result_bitmaps.size();
+                    List<Matrix> reversed_transforms = new ArrayList<>();
+                    reversed_transforms.add(null);
+                    for(int k=1;k<n_bitmaps;k++) {
+                        reversed_transforms.add(pair_transforms.get(n_bitmaps-k));
+                    }
+                    pair_transforms = reversed_transforms;
+                }
+                return new Result(result_bitmaps, pair_transforms);
+            }
+        });
+        try {
+            return future.get();
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        catch(InterruptedException e) {
+            Log.e(TAG, "interrupted while waiting for panorama images");
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Abandons the panorama, e.g., if it was cancelled. Images that are still queued are ignored.
+     */
+    void cancel() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "cancel");
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                finished = true;
+                freeBitmaps();
+            }
+        });
+    }
+
+    /** Must be called on the executor's thread.
+     */
+    private void freeBitmaps() {
+        for(Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+        transforms.clear();
+    }
+}
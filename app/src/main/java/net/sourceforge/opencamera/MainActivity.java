@@ -1857,7 +1857,7 @@ public class MainActivity extends Activity {
         }
 
         final SoftwareSyncLeader softwareSyncLeader = (SoftwareSyncLeader) softwareSyncController.getSoftwareSync();
-        softwareSyncLeader.broadcastRpc(SoftwareSyncController.METHOD_DO_PHASE_ALIGN, "");
+        softwareSyncLeader.broadcastReliableRpc(SoftwareSyncController.METHOD_DO_PHASE_ALIGN, "");
     }
 
     public void clickedAutoLevel(View view) {
@@ -3728,7 +3728,7 @@ public class MainActivity extends Activity {
         if( MyDebug.LOG )
             Log.d(TAG, "createImageSavingNotification");
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
-            int n_images_to_save = applicationInterface.getImageSaver().getNRealImagesToSave();
+            int n_images_to_save = applicationInterface.getImageSaver().getNImagesToSave();
             Notification.Builder builder = new Notification.Builder(this, CHANNEL_ID)
                     .setSmallIcon(R.drawable.ic_stat_notify_take_photo)
                     .setContentTitle(getString(R.string.app_name))
@@ -1352,7 +1352,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             }
         }
 
-        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
+        long photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
         if( imageSaver.queueWouldBlock(photo_cost) ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
@@ -1361,6 +1361,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
         // even if the queue isn't full, we may apply additional limits
         int n_images_to_save = imageSaver.getNImagesToSave();
+        long bytes_to_save = imageSaver.getBytesToSave();
         PhotoMode photo_mode = getPhotoMode();
         if( photo_mode == PhotoMode.FastBurst || photo_mode == PhotoMode.Panorama ) {
             // only allow one fast burst at a time, so require queue to be empty
@@ -1372,7 +1373,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( photo_mode == PhotoMode.NoiseReduction ) {
             // allow a max of 2 photos in memory when at max of 8 images
-            if( n_images_to_save >= 2*photo_cost ) {
+            if( bytes_to_save >= 2*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for nr");
                 return false;
@@ -1380,7 +1381,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( n_jpegs > 1 ) {
             // if in any other kind of burst mode (e.g., expo burst, HDR), allow a max of 3 photos in memory
-            if( n_images_to_save >= 3*photo_cost ) {
+            if( bytes_to_save >= 3*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for burst");
                 return false;
@@ -1388,15 +1389,15 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( n_raw > 0 ) {
             // if RAW mode, allow a max of 3 photos
-            if( n_images_to_save >= 3*photo_cost ) {
+            if( bytes_to_save >= 3*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for raw");
                 return false;
             }
         }
         // otherwise, still have a max limit of 5 photos
-        if( n_images_to_save >= 5*photo_cost ) {
-            if( main_activity.supportsNoiseReduction() && n_images_to_save <= 8 ) {
+        if( bytes_to_save >= 5*photo_cost ) {
+            if( main_activity.supportsNoiseReduction() && bytes_to_save <= imageSaver.computePhotoCost(0, CameraController.N_IMAGES_NR_DARK) ) {
                 // if we take a photo in NR mode, then switch to std mode, it doesn't make sense to suddenly block!
                 // so need to at least allow a new photo, if the number of photos is less than 1 NR photo
             }
@@ -2368,6 +2369,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
                 // we also want to save the uri - we can use the media uri directly, rather than having to scan it
                 storageUtils.setLastMediaScanned(uri);
+                storageUtils.addRecentMedia(uri, true, true);
 
                 done = true;
             }
@@ -3232,6 +3234,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             if( photo_mode == PhotoMode.Panorama ) {
                 gyro_rotation_matrix = new float[9];
                 this.gyroSensor.getRotationMatrix(gyro_rotation_matrix);
+                // the direction is known from the second image onwards, which allows the image saver to align the
+                // images as they arrive
+                imageSaver.getImageBatchRequest().panorama_dir_left_to_right = this.panorama_dir_left_to_right;
             }
 
             imageSaver.addImageBatch(images.get(0), gyro_rotation_matrix);
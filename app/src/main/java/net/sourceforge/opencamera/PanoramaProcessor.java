@@ -5,8 +5,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -43,6 +46,13 @@ public class PanoramaProcessor {
     private ScriptC_pyramid_blending pyramidBlendingScript = null;
     private ScriptC_feature_detector featureDetectorScript = null;
 
+    private ForkJoinPool matchingPool = null; // lazily created, for computing the distances between candidate matches
+
+    // allocations used by blendPyramids() that are no longer in use, kept so they can be reused for the next pair of
+    // images: every blend of a panorama is over the same dimensions, so each level of the pyramids has the same size
+    // these should be destroyed in freeScripts()
+    private final List<Allocation> freePyramidAllocations = new ArrayList<>();
+
     public PanoramaProcessor(Context context, HDRProcessor hdrProcessor) {
         this.context = context;
         this.hdrProcessor = hdrProcessor;
@@ -54,6 +64,8 @@ public class PanoramaProcessor {
 
         pyramidBlendingScript = null;
         featureDetectorScript = null;
+
+        freePyramidAllocations();
     }
     public void onDestroy() {
         if( MyDebug.LOG )
@@ -61,6 +73,11 @@ public class PanoramaProcessor {
 
         freeScripts(); // just in case
 
+        if( matchingPool != null ) {
+            matchingPool.shutdown();
+            matchingPool = null;
+        }
+
         if( rs != null ) {
             // need to destroy context, otherwise this isn't necessarily garbage collected - we had tests failing with out of memory
             // problems e.g. when running MainTests as a full set with Camera2 API. Although we now reduce the problem by creating
@@ -86,6 +103,44 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Returns a 2D allocation of the requested element and dimensions, reusing one previously
+     *  passed to releasePyramidAllocation() if possible, to avoid creating and destroying native
+     *  allocations for every pair of images that are blended. The contents of the returned
+     *  allocation are undefined.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Allocation acquirePyramidAllocation(Element element, int width, int height) {
+        for(int i=0;i<freePyramidAllocations.size();i++) {
+            Allocation allocation = freePyramidAllocations.get(i);
+            Type type = allocation.getType();
+            if( type.getX() == width && type.getY() == height && type.getElement().isCompatible(element) ) {
+                freePyramidAllocations.remove(i);
+                return allocation;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "acquirePyramidAllocation: create " + width + " x " + height);
+        return Allocation.createTyped(rs, Type.createXY(rs, element, width, height));
+    }
+
+    /** Returns an allocation obtained from acquirePyramidAllocation(), so that it can be reused. The
+     *  allocation should no longer be used by the caller.
+     */
+    private void releasePyramidAllocation(Allocation allocation) {
+        freePyramidAllocations.add(allocation);
+    }
+
+    /** Destroys the allocations kept for reuse by acquirePyramidAllocation().
+     */
+    private void freePyramidAllocations() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "freePyramidAllocations: " + freePyramidAllocations.size());
+        for(Allocation allocation : freePyramidAllocations) {
+            allocation.destroy();
+        }
+        freePyramidAllocations.clear();
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private Allocation reduceBitmap(ScriptC_pyramid_blending script, Allocation allocation) {
         if( MyDebug.LOG )
@@ -93,7 +148,7 @@ public class PanoramaProcessor {
         int width = allocation.getType().getX();
         int height = allocation.getType().getY();
 
-        Allocation reduced_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), width/2, height/2));
+        Allocation reduced_allocation = acquirePyramidAllocation(Element.RGBA_8888(rs), width/2, height/2);
 
         script.set_bitmap(allocation);
         script.forEach_reduce(reduced_allocation, reduced_allocation);
@@ -113,7 +168,7 @@ public class PanoramaProcessor {
         int height = allocation.getType().getY();
         Allocation result_allocation;
 
-        Allocation expanded_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+        Allocation expanded_allocation = acquirePyramidAllocation(Element.RGBA_8888(rs), 2*width, 2*height);
         if( MyDebug.LOG )
             Log.d(TAG, "### expandBitmap: time after creating expanded_allocation: " + (System.currentTimeMillis() - time_s));
 
@@ -124,18 +179,18 @@ public class PanoramaProcessor {
 
         final boolean use_blur_2d = false; // faster to do blue as two 1D passes
         if( use_blur_2d ) {
-            result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+            result_allocation = acquirePyramidAllocation(Element.RGBA_8888(rs), 2*width, 2*height);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after creating result_allocation: " + (System.currentTimeMillis() - time_s));
             script.set_bitmap(expanded_allocation);
             script.forEach_blur(expanded_allocation, result_allocation);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after blur: " + (System.currentTimeMillis() - time_s));
-            expanded_allocation.destroy();
+            releasePyramidAllocation(expanded_allocation);
             //result_allocation = expanded_allocation;
         }
         else {
-            Allocation temp_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), 2*width, 2*height));
+            Allocation temp_allocation = acquirePyramidAllocation(Element.RGBA_8888(rs), 2*width, 2*height);
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after creating temp_allocation: " + (System.currentTimeMillis() - time_s));
             script.set_bitmap(expanded_allocation);
@@ -150,7 +205,7 @@ public class PanoramaProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, "### expandBitmap: time after blur1dY: " + (System.currentTimeMillis() - time_s));
 
-            temp_allocation.destroy();
+            releasePyramidAllocation(temp_allocation);
         }
 
         return result_allocation;
@@ -169,7 +224,7 @@ public class PanoramaProcessor {
             Log.e(TAG, "allocations of different dimensions");
             throw new RuntimeException();
         }
-        Allocation result_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
+        Allocation result_allocation = acquirePyramidAllocation(Element.F32_3(rs), width, height);
         script.set_bitmap(allocation1);
         script.forEach_subtract(allocation0, result_allocation);
 
@@ -200,7 +255,8 @@ public class PanoramaProcessor {
             Log.d(TAG, "createGaussianPyramid");
         List<Allocation> pyramid = new ArrayList<>();
 
-        Allocation allocation = Allocation.createFromBitmap(rs, bitmap);
+        Allocation allocation = acquirePyramidAllocation(Element.RGBA_8888(rs), bitmap.getWidth(), bitmap.getHeight());
+        allocation.copyFrom(bitmap);
         pyramid.add(allocation);
         for(int i=0;i<n_levels;i++ ) {
             allocation = reduceBitmap(script, allocation);
@@ -265,9 +321,9 @@ public class PanoramaProcessor {
             pyramid.add(difference);
             //pyramid.add(this_gauss);
 
-            this_gauss.destroy();
+            releasePyramidAllocation(this_gauss);
             gaussianPyramid.set(i, null); // to help garbage collection
-            next_gauss_expanded.destroy();
+            releasePyramidAllocation(next_gauss_expanded);
             if( MyDebug.LOG )
                 Log.d(TAG, "### createLaplacianPyramid: time after level " + i + ": " + (System.currentTimeMillis() - time_s));
         }
@@ -286,7 +342,7 @@ public class PanoramaProcessor {
         for(int i=pyramid.size()-2;i>=0;i--) {
             Allocation expanded_allocation = expandBitmap(script, allocation);
             if( !first ) {
-                allocation.destroy();
+                releasePyramidAllocation(allocation);
             }
             addBitmap(script, expanded_allocation, pyramid.get(i));
             allocation = expanded_allocation;
@@ -298,7 +354,7 @@ public class PanoramaProcessor {
         Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         allocation.copyTo(bitmap);
         if( !first ) {
-            allocation.destroy();
+            releasePyramidAllocation(allocation);
         }
         return bitmap;
     }
@@ -563,6 +619,8 @@ public class PanoramaProcessor {
     /** Returns a bitmap that blends between lhs and rhs, using Laplacian pyramid blending.
      *  Note that the width of the blend region will be half of the width of the image. The blend
      *  region will follow a path in order to minimise the transition between the images.
+     *  The allocations for the pyramids are kept for the next call (see acquirePyramidAllocation()),
+     *  until freeScripts() is called.
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private Bitmap blendPyramids(Bitmap lhs, Bitmap rhs) {
@@ -634,8 +692,10 @@ public class PanoramaProcessor {
                 saveBitmap(best_path_rhs, "best_path_rhs.jpg");
             }*/
 
-            Allocation lhs_allocation = Allocation.createFromBitmap(rs, best_path_lhs);
-            Allocation rhs_allocation = Allocation.createFromBitmap(rs, best_path_rhs);
+            Allocation lhs_allocation = acquirePyramidAllocation(Element.RGBA_8888(rs), best_path_lhs.getWidth(), best_path_lhs.getHeight());
+            lhs_allocation.copyFrom(best_path_lhs);
+            Allocation rhs_allocation = acquirePyramidAllocation(Element.RGBA_8888(rs), best_path_rhs.getWidth(), best_path_rhs.getHeight());
+            rhs_allocation.copyFrom(best_path_rhs);
 
             int [] errors = new int[1];
             Allocation errorsAllocation = Allocation.createSized(rs, Element.I32(rs), 1);
@@ -688,8 +748,8 @@ public class PanoramaProcessor {
                     Log.d(TAG, "best_path [" + y + "]: " + best_path[y]);
             }
 
-            lhs_allocation.destroy();
-            rhs_allocation.destroy();
+            releasePyramidAllocation(lhs_allocation);
+            releasePyramidAllocation(rhs_allocation);
             errorsAllocation.destroy();
 
             if( best_path_lhs != lhs ) {
@@ -742,10 +802,10 @@ public class PanoramaProcessor {
         }*/
 
         for(Allocation allocation : lhs_pyramid) {
-            allocation.destroy();
+            releasePyramidAllocation(allocation);
         }
         for(Allocation allocation : rhs_pyramid) {
-            allocation.destroy();
+            releasePyramidAllocation(allocation);
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### blendPyramids: time taken: " + (System.currentTimeMillis() - time_s));
@@ -857,7 +917,13 @@ public class PanoramaProcessor {
         }
     }
 
-    private static class ComputeDistancesBetweenMatchesThread extends Thread {
+    /** Computes the distances of the matches from st_indx to nd_indx, splitting the range into
+     *  subtasks, so that the work is shared between all the threads of a work stealing pool.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static class ComputeDistancesBetweenMatchesTask extends RecursiveAction {
+        private final static int max_matches_per_task_c = 1024;
+
         private final List<FeatureMatch> matches;
         private final int st_indx;
         private final int nd_indx;
@@ -866,7 +932,7 @@ public class PanoramaProcessor {
         private final int [] pixels0;
         private final int [] pixels1;
 
-        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
+        ComputeDistancesBetweenMatchesTask(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
             this.matches = matches;
             this.st_indx = st_indx;
             this.nd_indx = nd_indx;
@@ -876,11 +942,98 @@ public class PanoramaProcessor {
             this.pixels1 = pixels1;
         }
 
-        public void run() {
-            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+        @Override
+        protected void compute() {
+            if( nd_indx - st_indx <= max_matches_per_task_c ) {
+                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+            }
+            else {
+                int mid_indx = (st_indx + nd_indx)/2;
+                invokeAll(new ComputeDistancesBetweenMatchesTask(matches, st_indx, mid_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1),
+                        new ComputeDistancesBetweenMatchesTask(matches, mid_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1));
+            }
         }
     }
 
+    /** Returns the pool used to compute the distances between candidate matches, with a thread per
+     *  core. The pool is kept between image pairs and panoramas, rather than starting new threads
+     *  for every pair of images.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private ForkJoinPool getMatchingPool() {
+        if( matchingPool == null ) {
+            int n_threads = Runtime.getRuntime().availableProcessors();
+            if( MyDebug.LOG )
+                Log.d(TAG, "create matching pool with n_threads: " + n_threads);
+            matchingPool = new ForkJoinPool(n_threads);
+        }
+        return matchingPool;
+    }
+
+    /** Returns the candidate matches: the pairs of points from points0 and points1 that are closer
+     *  than sqrt(max_match_dist2), ordered by index into points0 and then into points1.
+     *  Rather than testing every pair of points, points1 are bucketed into a grid with cells at
+     *  least as large as the maximum distance, so only the 3x3 cells around each point of points0
+     *  need to be searched.
+     */
+    private static List<FeatureMatch> findCandidateMatches(Point [] points0, Point [] points1, int width, int height, int max_match_dist2) {
+        final int cell_size = Math.max(1, (int)Math.ceil(Math.sqrt(max_match_dist2)));
+        final int n_cells_x = width/cell_size + 1;
+        final int n_cells_y = height/cell_size + 1;
+        if( MyDebug.LOG )
+            Log.d(TAG, "candidate match grid: " + n_cells_x + " x " + n_cells_y + " cells of size " + cell_size);
+
+        // counting sort of points1 into the cells, so the points of each cell are in index order
+        int [] cell_start = new int[n_cells_x*n_cells_y+1];
+        int [] point_cells = new int[points1.length];
+        for(int j=0;j<points1.length;j++) {
+            int cx = Math.min(Math.max(points1[j].x/cell_size, 0), n_cells_x-1);
+            int cy = Math.min(Math.max(points1[j].y/cell_size, 0), n_cells_y-1);
+            point_cells[j] = cy*n_cells_x + cx;
+            cell_start[point_cells[j]+1]++;
+        }
+        for(int cell=0;cell<n_cells_x*n_cells_y;cell++) {
+            cell_start[cell+1] += cell_start[cell];
+        }
+        int [] cell_fill = Arrays.copyOf(cell_start, cell_start.length);
+        int [] cell_points = new int[points1.length];
+        for(int j=0;j<points1.length;j++) {
+            cell_points[cell_fill[point_cells[j]]++] = j;
+        }
+
+        List<FeatureMatch> matches = new ArrayList<>();
+        int [] candidates = new int[points1.length];
+        for(int i=0;i<points0.length;i++) {
+            int x0 = points0[i].x;
+            int y0 = points0[i].y;
+            int cx = Math.min(Math.max(x0/cell_size, 0), n_cells_x-1);
+            int cy = Math.min(Math.max(y0/cell_size, 0), n_cells_y-1);
+            int n_candidates = 0;
+            for(int ny=Math.max(cy-1, 0);ny<=Math.min(cy+1, n_cells_y-1);ny++) {
+                for(int nx=Math.max(cx-1, 0);nx<=Math.min(cx+1, n_cells_x-1);nx++) {
+                    int cell = ny*n_cells_x + nx;
+                    for(int k=cell_start[cell];k<cell_start[cell+1];k++) {
+                        int j = cell_points[k];
+                        // only consider a match if close enough in actual distance
+                        int dx = points1[j].x - x0;
+                        int dy = points1[j].y - y0;
+                        int dist2 = dx*dx + dy*dy;
+                        if( dist2 < max_match_dist2 ) {
+                            candidates[n_candidates++] = j;
+                        }
+                    }
+                }
+            }
+            // keep the same order as testing every pair, so that matches of equal distance are
+            // still chosen in the same order after sorting
+            Arrays.sort(candidates, 0, n_candidates);
+            for(int k=0;k<n_candidates;k++) {
+                matches.add(new FeatureMatch(i, candidates[k]));
+            }
+        }
+        return matches;
+    }
+
     static class AutoAlignmentByFeatureResult {
         final int offset_x;
         final int offset_y;
@@ -1232,24 +1385,7 @@ public class PanoramaProcessor {
             Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
             Log.d(TAG, "max_match_dist2: " + max_match_dist2);
         }
-        List<FeatureMatch> matches = new ArrayList<>();
-        for(int i=0;i<points_arrays[0].length;i++) {
-            int x0 = points_arrays[0][i].x;
-            int y0 = points_arrays[0][i].y;
-            for(int j=0;j<points_arrays[1].length;j++) {
-                int x1 = points_arrays[1][j].x;
-                int y1 = points_arrays[1][j].y;
-                // only consider a match if close enough in actual distance
-                int dx = x1 - x0;
-                int dy = y1 - y0;
-                int dist2 = dx*dx + dy*dy;
-                if( dist2 < max_match_dist2 )
-                {
-                    FeatureMatch match = new FeatureMatch(i, j);
-                    matches.add(match);
-                }
-            }
-        }
+        List<FeatureMatch> matches = findCandidateMatches(points_arrays[0], points_arrays[1], width, height, max_match_dist2);
         if( MyDebug.LOG )
             Log.d(TAG, "### possible matches: " + matches.size());
         if( MyDebug.LOG )
@@ -1283,41 +1419,15 @@ public class PanoramaProcessor {
 
             final boolean use_smp = true;
             if( use_smp ) {
-                // testing shows 2 threads gives slightly better than using more threads, or not using smp
-                //int n_threads = Math.min(matches.size(), Runtime.getRuntime().availableProcessors());
-                int n_threads = Math.min(matches.size(), 2);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "n_threads: " + n_threads);
-                ComputeDistancesBetweenMatchesThread [] threads = new ComputeDistancesBetweenMatchesThread[n_threads];
-                int st_indx = 0;
-                for(int i=0;i<n_threads;i++) {
-                    int nd_indx = (((i+1)*matches.size())/n_threads);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);
-                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-                    st_indx = nd_indx;
-                }
-                // start threads
-                if( MyDebug.LOG )
-                    Log.d(TAG, "start threads");
-                for(int i=0;i<n_threads;i++) {
-                    threads[i].start();
-                }
-                // wait for threads to complete
+                // previously this started 2 new threads for every pair of images (more threads didn't help, due to the
+                // cost of starting them and the uneven split of work), now the threads of the pool are reused, and the
+                // work is split into small tasks that idle threads can steal
+                ForkJoinPool pool = getMatchingPool();
                 if( MyDebug.LOG )
-                    Log.d(TAG, "wait for threads to complete");
-                try {
-                    for(int i=0;i<n_threads;i++) {
-                        threads[i].join();
-                    }
-                }
-                catch(InterruptedException e) {
-                    Log.e(TAG, "ComputeDistancesBetweenMatchesThread threads interrupted");
-                    e.printStackTrace();
-                    Thread.currentThread().interrupt();
-                }
+                    Log.d(TAG, "compute distances with parallelism: " + pool.getParallelism());
+                pool.invoke(new ComputeDistancesBetweenMatchesTask(matches, 0, matches.size(), feature_descriptor_radius, bitmaps, pixels0, pixels1));
                 if( MyDebug.LOG )
-                    Log.d(TAG, "threads completed");
+                    Log.d(TAG, "tasks completed");
             }
             else {
                 int st_indx = 0, nd_indx = matches.size();
@@ -2556,11 +2666,131 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Computes the transform to map the i-th image of a panorama (bitmap) onto the previous image
+     *  (prev_bitmap), by aligning the regions where they overlap.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Matrix computePairTransform(Bitmap prev_bitmap, Bitmap bitmap, final int bitmap_width, final int bitmap_height,
+                                        final int offset_x, final int slice_width, final int align_hwidth,
+                                        int i, long time_s) throws PanoramaProcessorException {
+        // the alignment regions are relative to the images' own positions
+        final int align_x = 0;
+        double angle_z = 0.0;
+
+        List<Bitmap> alignment_bitmaps = new ArrayList<>();
+        //alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, offset_x+slice_width-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
+        //alignment_bitmaps.add( Bitmap.createBitmap(bitmap, offset_x-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
+        // tall:
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "    align_x: " + align_x);
+            Log.d(TAG, "    offset_x: " + offset_x);
+            Log.d(TAG, "    slice_width: " + slice_width);
+            Log.d(TAG, "    align_x+offset_x+slice_width-align_hwidth: " + (align_x + offset_x + slice_width - align_hwidth));
+            Log.d(TAG, "    bitmap(i-1) width: " + prev_bitmap.getWidth());
+        }
+
+        //final boolean use_align_by_feature = false;
+        final boolean use_align_by_feature = true;
+        float align_downsample = 1.0f;
+        if( use_align_by_feature ) {
+            // scale height to 520
+            // although in theory the alignment algorithm should work on any size, it is best to standardise, as most testing
+            // was done where input images had height 2080 or 2048, and the alignment images were downscaled by a factor of 4
+            align_downsample = bitmap_height/520.0f;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "downscale by: " + align_downsample);
+                Log.d(TAG, "### time before downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            }
+            // snap to power of 2
+            for(int k=0,power=1;k<=4;k++,power*=2) {
+                double ratio = power/align_downsample;
+                if( ratio >= 0.95f && ratio <= 1.05f ) {
+                    align_downsample = power;
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "snapped downscale to: " + align_downsample);
+                    break;
+                }
+            }
+        }
+
+        int align_bitmap_height = (3*bitmap_height)/4;
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time before creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        // n.b., we add in reverse order, so we find the transformation to map the next image (i) onto the previous image (i-1)
+        //alignment_bitmaps.add( Bitmap.createBitmap(bitmap, align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
+        //alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
+        Matrix align_scale_matrix = new Matrix();
+        align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
+        alignment_bitmaps.add( Bitmap.createBitmap(bitmap, align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+        alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+
+        /*if( use_align_by_feature ) {
+            Matrix align_scale_matrix = new Matrix();
+            align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
+            for(int j=0;j<alignment_bitmaps.size();j++) {
+                Bitmap new_bitmap = Bitmap.createBitmap(alignment_bitmaps.get(j), 0, 0, alignment_bitmaps.get(j).getWidth(), alignment_bitmaps.get(j).getHeight(), align_scale_matrix, true);
+                alignment_bitmaps.get(j).recycle();
+                alignment_bitmaps.set(j, new_bitmap);
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        }*/
+
+        // save bitmaps used for alignments
+        /*if( MyDebug.LOG ) {
+            for(int j=0;j<alignment_bitmaps.size();j++) {
+                Bitmap alignment_bitmap = alignment_bitmaps.get(j);
+                saveBitmap(alignment_bitmap, "alignment_bitmap_" + i + "_" + j +".png");
+            }
+        }*/
+
+        int this_align_x, this_align_y;
+        float y_scale = 1.0f;
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time before auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        if( use_align_by_feature ) {
+            PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, i);
+            this_align_x = res.offset_x;
+            this_align_y = res.offset_y;
+            angle_z = res.rotation;
+            y_scale = res.y_scale;
+        }
+        else {
+            final boolean use_mtb = false;
+            //final boolean use_mtb = true;
+            int [] offsets_x = new int[alignment_bitmaps.size()];
+            int [] offsets_y = new int[alignment_bitmaps.size()];
+            hdrProcessor.autoAlignment(offsets_x, offsets_y, alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, 0, use_mtb, 8);
+            this_align_x = offsets_x[1];
+            this_align_y = offsets_y[1];
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        this_align_x *= align_downsample;
+        this_align_y *= align_downsample;
+        for(Bitmap alignment_bitmap : alignment_bitmaps) {
+            alignment_bitmap.recycle();
+        }
+        alignment_bitmaps.clear();
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "    this_align_x: " + this_align_x);
+            Log.d(TAG, "    this_align_y: " + this_align_y);
+        }
+
+        Matrix this_transform = new Matrix();
+        this_transform.postRotate((float)Math.toDegrees(angle_z), align_x+offset_x-align_hwidth, 0);
+        this_transform.postScale(1.0f, y_scale);
+        this_transform.postTranslate(this_align_x, this_align_y);
+        return this_transform;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void computePanoramaTransforms(List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
                                            List<Bitmap> bitmaps, final int bitmap_width, final int bitmap_height,
                                            final int offset_x, final int slice_width, final int align_hwidth,
-                                           long time_s) throws PanoramaProcessorException {
+                                           List<Matrix> pair_transforms, long time_s) throws PanoramaProcessorException {
         Matrix cumulative_transform = new Matrix();
         int align_x = 0, align_y = 0;
         int dst_offset_x = 0;
@@ -2573,116 +2803,16 @@ public class PanoramaProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, "process bitmap: " + i);
 
-            double angle_z = 0.0;
-
             if( use_auto_align && i > 0 ) {
                 // autoalignment
-                List<Bitmap> alignment_bitmaps = new ArrayList<>();
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), offset_x+slice_width-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), offset_x-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
-                // tall:
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    align_x: " + align_x);
-                    Log.d(TAG, "    offset_x: " + offset_x);
-                    Log.d(TAG, "    slice_width: " + slice_width);
-                    Log.d(TAG, "    align_x+offset_x+slice_width-align_hwidth: " + (align_x + offset_x + slice_width - align_hwidth));
-                    Log.d(TAG, "    bitmap(i-1) width: " + bitmaps.get(i - 1).getWidth());
-                }
-
-                //final boolean use_align_by_feature = false;
-                final boolean use_align_by_feature = true;
-                float align_downsample = 1.0f;
-                if( use_align_by_feature ) {
-                    // scale height to 520
-                    // although in theory the alignment algorithm should work on any size, it is best to standardise, as most testing
-                    // was done where input images had height 2080 or 2048, and the alignment images were downscaled by a factor of 4
-                    align_downsample = bitmap_height/520.0f;
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "downscale by: " + align_downsample);
-                        Log.d(TAG, "### time before downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                    }
-                    // snap to power of 2
-                    for(int k=0,power=1;k<=4;k++,power*=2) {
-                        double ratio = power/align_downsample;
-                        if( ratio >= 0.95f && ratio <= 1.05f ) {
-                            align_downsample = power;
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "snapped downscale to: " + align_downsample);
-                            break;
-                        }
-                    }
-                }
-
-                int align_bitmap_height = (3*bitmap_height)/4;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time before creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                // n.b., we add in reverse order, so we find the transformation to map the next image (i) onto the previous image (i-1)
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
-                Matrix align_scale_matrix = new Matrix();
-                align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time after creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-
-                /*if( use_align_by_feature ) {
-                    Matrix align_scale_matrix = new Matrix();
-                    align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
-                    for(int j=0;j<alignment_bitmaps.size();j++) {
-                        Bitmap new_bitmap = Bitmap.createBitmap(alignment_bitmaps.get(j), 0, 0, alignment_bitmaps.get(j).getWidth(), alignment_bitmaps.get(j).getHeight(), align_scale_matrix, true);
-                        alignment_bitmaps.get(j).recycle();
-                        alignment_bitmaps.set(j, new_bitmap);
-                    }
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "### time after downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                }*/
-
-                // save bitmaps used for alignments
-                /*if( MyDebug.LOG ) {
-                    for(int j=0;j<alignment_bitmaps.size();j++) {
-                        Bitmap alignment_bitmap = alignment_bitmaps.get(j);
-                        saveBitmap(alignment_bitmap, "alignment_bitmap_" + i + "_" + j +".png");
-                    }
-                }*/
-
-                int this_align_x, this_align_y;
-                float y_scale = 1.0f;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time before auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                if( use_align_by_feature ) {
-                    PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, i);
-                    this_align_x = res.offset_x;
-                    this_align_y = res.offset_y;
-                    angle_z = res.rotation;
-                    y_scale = res.y_scale;
+                Matrix this_transform = pair_transforms != null ? pair_transforms.get(i) : null;
+                if( this_transform == null ) {
+                    this_transform = computePairTransform(bitmaps.get(i-1), bitmaps.get(i), bitmap_width, bitmap_height,
+                            offset_x, slice_width, align_hwidth, i, time_s);
                 }
-                else {
-                    final boolean use_mtb = false;
-                    //final boolean use_mtb = true;
-                    int [] offsets_x = new int[alignment_bitmaps.size()];
-                    int [] offsets_y = new int[alignment_bitmaps.size()];
-                    hdrProcessor.autoAlignment(offsets_x, offsets_y, alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, 0, use_mtb, 8);
-                    this_align_x = offsets_x[1];
-                    this_align_y = offsets_y[1];
+                else if( MyDebug.LOG ) {
+                    Log.d(TAG, "    already have transform for " + i + "th bitmap");
                 }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time after auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                this_align_x *= align_downsample;
-                this_align_y *= align_downsample;
-                for(Bitmap alignment_bitmap : alignment_bitmaps) {
-                    alignment_bitmap.recycle();
-                }
-                alignment_bitmaps.clear();
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    this_align_x: " + this_align_x);
-                    Log.d(TAG, "    this_align_y: " + this_align_y);
-                }
-
-                Matrix this_transform = new Matrix();
-                this_transform.postRotate((float)Math.toDegrees(angle_z), align_x+offset_x-align_hwidth, 0);
-                this_transform.postScale(1.0f, y_scale);
-                this_transform.postTranslate(this_align_x, this_align_y);
 
                 {
                     // first need to shift cumulative_transform so that it's about the origin of the new bitmap
@@ -2918,12 +3048,57 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Computes the transform to map bitmap onto prev_bitmap, where these are the i-th and (i-1)-th
+     *  images that will be passed to panorama(). As this only depends on the two images, this allows
+     *  aligning the images as they are taken, rather than once all of them have been taken; the
+     *  results can then be passed to panorama() as pair_transforms.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Matrix computePairTransform(Bitmap prev_bitmap, Bitmap bitmap, int i, float panorama_pics_per_screen) throws PanoramaProcessorException {
+        if( MyDebug.LOG )
+            Log.d(TAG, "computePairTransform: " + i);
+        long time_s = 0;
+        if( MyDebug.LOG )
+            time_s = System.currentTimeMillis();
+
+        int bitmap_width = bitmap.getWidth();
+        int bitmap_height = bitmap.getHeight();
+        if( prev_bitmap.getWidth() != bitmap_width || prev_bitmap.getHeight() != bitmap_height ) {
+            Log.e(TAG, "bitmaps not of equal sizes");
+            throw new PanoramaProcessorException(PanoramaProcessorException.UNEQUAL_SIZES);
+        }
+        // should be same values as in panorama()
+        final int slice_width = (int) (bitmap_width / panorama_pics_per_screen);
+        final int offset_x = (bitmap_width - slice_width)/2;
+        final int align_hwidth = bitmap_width/10;
+
+        Matrix this_transform = computePairTransform(prev_bitmap, bitmap, bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, i, time_s);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### computePairTransform: time taken: " + (System.currentTimeMillis() - time_s));
+        return this_transform;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+        return panorama(bitmaps, panorama_pics_per_screen, camera_angle_y, crop, null);
+    }
+
+    /** As panorama(List, float, float, boolean), but can be supplied with already computed
+     *  alignments.
+     * @param pair_transforms If non-null, the results of computePairTransform() for each of the
+     *                        bitmaps (the first entry is ignored). Entries may be null, in which
+     *                        case the transform is computed here.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop, List<Matrix> pair_transforms) throws PanoramaProcessorException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "panorama");
             Log.d(TAG, "camera_angle_y: " + camera_angle_y);
         }
+        if( pair_transforms != null && pair_transforms.size() != bitmaps.size() ) {
+            Log.e(TAG, "ignoring pair_transforms of size " + pair_transforms.size() + " for " + bitmaps.size() + " bitmaps");
+            pair_transforms = null;
+        }
 
         long time_s = 0;
         if( MyDebug.LOG )
@@ -2998,7 +3173,7 @@ public class PanoramaProcessor {
         List<Integer> dst_offset_x_values = new ArrayList<>();
 
         computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps,
-                bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, time_s);
+                bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, pair_transforms, time_s);
 
         // note that we crop the panorama_width later on, but for now we still need an estimate, before finalising
         // the transforms
@@ -20,6 +20,10 @@ public class PreferenceHandler {
         return mSharedPreferences.getBoolean(PreferenceKeys.IMURecordingPreferenceKey, false);
     }
 
+    public boolean isIMURecSyncTimestampsEnabled() {
+        return mSharedPreferences.getBoolean(PreferenceKeys.IMURecSyncTimestampsPreferenceKey, false);
+    }
+
     public boolean isRemoteRecControlEnabled() {
         return mSharedPreferences.getBoolean(PreferenceKeys.RemoteRecControlPreferenceKey, false);
     }
@@ -36,6 +40,14 @@ public class PreferenceHandler {
         return mSharedPreferences.getBoolean(PreferenceKeys.EnablePhaseAlignmentPreferenceKey, false);
     }
 
+    public boolean isRecSyncBroadcastEnabled() {
+        return mSharedPreferences.getBoolean(PreferenceKeys.RecSyncBroadcastPreferenceKey, false);
+    }
+
+    public boolean isRecSyncRelayEnabled() {
+        return mSharedPreferences.getBoolean(PreferenceKeys.RecSyncRelayPreferenceKey, false);
+    }
+
     public boolean isSyncIsoEnabled() {
         return mSharedPreferences.getBoolean(PreferenceKeys.SyncIsoPreferenceKey, false);
     }
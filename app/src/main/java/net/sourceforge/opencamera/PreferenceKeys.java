@@ -121,6 +121,10 @@ public class PreferenceKeys {
 
     public static final String EnablePhaseAlignmentPreferenceKey = "preference_enable_phase_alignment";
 
+    public static final String RecSyncBroadcastPreferenceKey = "preference_rec_sync_broadcast";
+
+    public static final String RecSyncRelayPreferenceKey = "preference_rec_sync_relay";
+
     public static final String SyncIsoPreferenceKey = "preference_sync_iso";
 
     public static final String SyncWbPreferenceKey = "preference_sync_wb";
@@ -327,6 +331,8 @@ public class PreferenceKeys {
 
     public static final String IMURecordingPreferenceKey = "preference_imu_recording";
 
+    public static final String IMURecSyncTimestampsPreferenceKey = "preference_imu_rec_sync_timestamps";
+
     public static final String RemoteRecControlPreferenceKey = "preference_remote_rec_control";
 
     public static final String AccelPreferenceKey = "preference_accel";
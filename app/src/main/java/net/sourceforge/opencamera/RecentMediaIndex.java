@@ -0,0 +1,105 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.net.Uri;
+import android.util.Log;
+
+/** In-process index of the media most recently saved to the current save location, so that
+ *  StorageUtils.getLatestMedia() doesn't need to query the whole of the MediaStore or the SAF
+ *  folder each time the gallery icon is updated.
+ *  Entries are added as media are saved (newest first), and only hold the uri: StorageUtils reads
+ *  the details of an entry when it's needed, which also validates that it still exists. Entries
+ *  that no longer exist (e.g., deleted by the user) are removed, and if the index becomes empty,
+ *  StorageUtils falls back to a full query, whose result seeds the index again.
+ *  The index is reset whenever the save location changes. Thread safe.
+ */
+class RecentMediaIndex {
+    private static final String TAG = "RecentMediaIndex";
+
+    private static final int max_entries_c = 20;
+
+    static class Entry {
+        final Uri uri;
+        final boolean video;
+        final boolean mediastore; // whether uri is from mediastore, or a SAF uri
+
+        Entry(Uri uri, boolean video, boolean mediastore) {
+            this.uri = uri;
+            this.video = video;
+            this.mediastore = mediastore;
+        }
+    }
+
+    private final LinkedList<Entry> entries = new LinkedList<>(); // newest first
+    private String location; // the save location that the entries are for
+
+    /** Returns a copy of the entries for the save location, newest first; empty if the index is
+     *  for a different location.
+     */
+    synchronized List<Entry> getEntries(String location) {
+        if( !location.equals(this.location) ) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(entries);
+    }
+
+    /** Records newly saved media as the most recent entry.
+     */
+    synchronized void add(String location, Entry entry) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "add: " + entry.uri);
+        if( !location.equals(this.location) ) {
+            entries.clear();
+            this.location = location;
+        }
+        // in case the same uri is reported twice
+        remove(entry.uri);
+        entries.addFirst(entry);
+        while( entries.size() > max_entries_c ) {
+            entries.removeLast();
+        }
+    }
+
+    /** Seeds the index with the result of a full query (which may be null if there's no media).
+     *  Entries for the location that were added while the query was running are kept, as they're
+     *  newer.
+     */
+    synchronized void seed(String location, Entry entry) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "seed: " + location);
+        if( !location.equals(this.location) ) {
+            entries.clear();
+            this.location = location;
+        }
+        if( entry != null ) {
+            remove(entry.uri);
+            entries.addLast(entry);
+        }
+    }
+
+    /** Removes an entry that no longer exists.
+     */
+    synchronized void remove(Uri uri) {
+        for(Iterator<Entry> iter = entries.iterator(); iter.hasNext(); ) {
+            if( iter.next().uri.equals(uri) ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "remove: " + uri);
+                iter.remove();
+            }
+        }
+    }
+
+    /** Discards all entries, e.g., if media was saved in a way that couldn't be recorded, so that
+     *  the next StorageUtils.getLatestMedia() does a full query.
+     */
+    synchronized void invalidate() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "invalidate");
+        entries.clear();
+        location = null;
+    }
+}
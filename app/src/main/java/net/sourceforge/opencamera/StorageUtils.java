@@ -36,6 +36,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -58,6 +59,7 @@ public class StorageUtils {
     private final Context context;
     private final MyApplicationInterface applicationInterface;
     private Uri last_media_scanned;
+    private final RecentMediaIndex recentMediaIndex = new RecentMediaIndex(); // see getLatestMedia()
 
     private final static String RELATIVE_FOLDER_BASE = Environment.DIRECTORY_DCIM;
 
@@ -85,6 +87,33 @@ public class StorageUtils {
             Log.d(TAG, "set last_media_scanned to " + last_media_scanned);
     }
 
+    /** Whether getLatestMedia() reads SAF uris, rather than mediastore uris.
+     */
+    private boolean isLatestMediaSAF() {
+        return MainActivity.useScopedStorage() && this.isUsingSAF();
+    }
+
+    /** Identifies the save location, for the entries of recentMediaIndex.
+     */
+    private String getRecentMediaLocation() {
+        if( this.isUsingSAF() ) {
+            return (isLatestMediaSAF() ? "saf:" : "saf_mediastore:") + getTreeUriSAF();
+        }
+        return "folder:" + getImageFolderPath();
+    }
+
+    /** Records a newly saved photo or video, so that getLatestMedia() can return it without
+     *  having to query all the media in the save folder.
+     * @param mediastore Whether uri is a mediastore uri, rather than a SAF uri. The uri is ignored
+     *                   if it's not the type that getLatestMedia() returns.
+     */
+    void addRecentMedia(Uri uri, boolean video, boolean mediastore) {
+        if( mediastore == isLatestMediaSAF() ) {
+            return;
+        }
+        recentMediaIndex.add(getRecentMediaLocation(), new RecentMediaIndex.Entry(uri, video, mediastore));
+    }
+
     /** Sends the intents to announce the new file to other Android applications. E.g., cloud storage applications like
      *  OwnCloud use this to listen for new photos/videos to automatically upload.
      *  Note that on Android 7 onwards, these broadcasts are deprecated and won't have any effect - see:
@@ -255,6 +284,15 @@ public class StorageUtils {
                             if( set_last_scanned ) {
                                 setLastMediaScanned(uri);
                             }
+                            if( is_new_picture || is_new_video ) {
+                                if( uri != null ) {
+                                    addRecentMedia(uri, is_new_video, true);
+                                }
+                                else if( !isLatestMediaSAF() ) {
+                                    // couldn't record the new media
+                                    recentMediaIndex.invalidate();
+                                }
+                            }
                             announceUri(uri, is_new_picture, is_new_video);
                             applicationInterface.scannedFile(file, uri);
 
@@ -291,6 +329,15 @@ public class StorageUtils {
         File real_file = getFileFromDocumentUriSAF(uri, false);
         if( MyDebug.LOG )
             Log.d(TAG, "real_file: " + real_file);
+        if( is_new_picture || is_new_video ) {
+            if( isLatestMediaSAF() ) {
+                addRecentMedia(uri, is_new_video, false);
+            }
+            else if( real_file == null ) {
+                // won't be scanned, so we can't record the mediastore uri
+                recentMediaIndex.invalidate();
+            }
+        }
         if( real_file != null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "broadcast file");
@@ -1399,9 +1446,106 @@ public class StorageUtils {
         return media;
     }
 
+    /** Reads the details of an entry of recentMediaIndex with a single row query.
+     * @return The media, or null if it no longer exists.
+     */
+    @SuppressLint("InlinedApi") // complains MediaColumns constants only available on API 29, see getLatestMediaCore()
+    private Media getRecentMedia(RecentMediaIndex.Entry entry) {
+        String [] projection;
+        if( !entry.mediastore ) {
+            projection = new String[] {DocumentsContract.Document.COLUMN_LAST_MODIFIED, DocumentsContract.Document.COLUMN_DISPLAY_NAME};
+        }
+        else if( entry.video ) {
+            projection = new String[] {VideoColumns._ID, VideoColumns.DATE_TAKEN, VideoColumns.DISPLAY_NAME};
+        }
+        else {
+            projection = new String[] {ImageColumns._ID, ImageColumns.DATE_TAKEN, ImageColumns.DISPLAY_NAME, ImageColumns.ORIENTATION};
+        }
+        Media media = null;
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(entry.uri, projection, null, null, null);
+            if( cursor != null && cursor.moveToFirst() ) {
+                if( !entry.mediastore ) {
+                    media = new Media(false, 0, entry.video, entry.uri, cursor.getLong(0), 0, cursor.getString(1));
+                }
+                else {
+                    int orientation = entry.video ? 0 : cursor.getInt(3);
+                    media = new Media(true, cursor.getLong(0), entry.video, entry.uri, cursor.getLong(1), orientation, cursor.getString(2));
+                }
+            }
+        }
+        catch(Exception e) {
+            // e.g., SAF throws if the document no longer exists
+            if( MyDebug.LOG )
+                Log.e(TAG, "Exception reading recent media: " + entry.uri);
+            e.printStackTrace();
+        }
+        finally {
+            if( cursor != null ) {
+                cursor.close();
+            }
+        }
+        return media;
+    }
+
+    /** Returns the latest media from recentMediaIndex, removing any entries that no longer exist.
+     * @return The latest media, or null if the index has no valid entries.
+     */
+    private Media getLatestRecentMedia(String location) {
+        List<RecentMediaIndex.Entry> entries = recentMediaIndex.getEntries(location);
+        for(int i=0;i<entries.size();i++) {
+            RecentMediaIndex.Entry entry = entries.get(i);
+            Media media = getRecentMedia(entry);
+            if( media == null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "recent media no longer exists: " + entry.uri);
+                recentMediaIndex.remove(entry.uri);
+                continue;
+            }
+            if( !media.video && media.filename != null && filenameIsRaw(media.filename) && i+1 < entries.size() ) {
+                // as for the full query, prefer non-RAW to RAW if the filenames without extensions match
+                Media next_media = getRecentMedia(entries.get(i+1));
+                if( next_media != null && !next_media.video && next_media.filename != null && !filenameIsRaw(next_media.filename) &&
+                        filenameWithoutExtension(next_media.filename).equals(filenameWithoutExtension(media.filename)) ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "prefer non-RAW to RAW");
+                    media = next_media;
+                }
+            }
+            return media;
+        }
+        return null;
+    }
+
+    /** Returns the latest photo or video in the save location.
+     *  Media saved by Open Camera is recorded in recentMediaIndex (see addRecentMedia()), so
+     *  normally this only needs to check that the most recent entry still exists. The full query
+     *  of the MediaStore or SAF folder, which can be slow for folders with many files, is only
+     *  done when the index has no valid entries, e.g., the first time after starting, or after
+     *  changing the save location. Note that this means media saved to the folder by other
+     *  applications isn't found until the next full query.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     Media getLatestMedia() {
-        if( MainActivity.useScopedStorage() && this.isUsingSAF() ) {
+        String location = getRecentMediaLocation();
+        Media media = getLatestRecentMedia(location);
+        if( media != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "return latest recent media: " + media.uri);
+            return media;
+        }
+
+        media = queryLatestMedia();
+        recentMediaIndex.seed(location, media == null ? null : new RecentMediaIndex.Entry(media.uri, media.video, media.mediastore));
+        return media;
+    }
+
+    /** Finds the latest media by querying all the media in the save location.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Media queryLatestMedia() {
+        if( isLatestMediaSAF() ) {
             Uri treeUri = this.getTreeUriSAF();
             return getLatestMediaSAF(treeUri);
         }
@@ -11,6 +11,7 @@ import java.util.List;
 
 import android.graphics.Rect;
 import android.location.Location;
+import android.media.Image;
 import android.media.MediaRecorder;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -270,6 +271,25 @@ public abstract class CameraController {
         void onVideoCaptureSessionClosed();
     }
 
+    /** Interface to define a callback for frames of the preview analysis stream, see
+     *  setPreviewAnalysisCallback().
+     */
+    public interface PreviewAnalysisCallback {
+        /** Called on a background thread with the latest frame of the preview, in YUV_420_888
+         *  format. The image is closed when this returns, so it shouldn't be kept.
+         */
+        void onPreviewAnalysisFrame(Image image);
+
+        /** Called with frames of the video frame stream (see initVideoRecorderPostPrepare()'s
+         *  want_save_timestamps) while video recording is prepared or in progress, as the capture
+         *  session then has no preview analysis stream. The frames are at the video resolution, in
+         *  YUV_420_888 format, and are delivered on the thread that receives the video frames (the
+         *  UI thread for CameraController2), so the frame should be copied and processed on another
+         *  thread. The image is closed when this returns.
+         */
+        void onVideoAnalysisFrame(Image image);
+    }
+
     /** Interface to define callback for autofocus completing. This callback may be called on the UI thread (CameraController1)
      *  or a background thread (CameraController2).
      */
@@ -545,6 +565,18 @@ public abstract class CameraController {
     public void updatePreviewTexture() {
         // dummy implementation
     }
+    /** Requests a low resolution YUV stream of the preview for analysis (histograms etc), as an
+     *  alternative to reading back the preview surface. Only supported by CameraController2, and
+     *  only for the photo preview when not capturing RAW. The stream is only created with the
+     *  capture session, so if the preview is already running it starts from the next time the
+     *  session is created. Frames are dropped if the callback is still busy. When video
+     *  recording is prepared with want_save_timestamps, frames of the video frame stream are
+     *  passed to PreviewAnalysisCallback.onVideoAnalysisFrame() instead.
+     * @param cb The callback, or null to stop the stream.
+     */
+    public void setPreviewAnalysisCallback(PreviewAnalysisCallback cb) {
+        // dummy implementation
+    }
     /** Starts the camera preview.
      *  @throws CameraControllerException if the camera preview fails to start.
      */
@@ -212,6 +212,10 @@ public class CameraController2 extends CameraController {
     private List<int[]> ae_fps_ranges;
     private List<int[]> hs_fps_ranges;
     //private ImageReader previewImageReader;
+    private volatile PreviewAnalysisCallback preview_analysis_cb; // set on the UI thread, read on preview_analysis_thread
+    private ImageReader previewAnalysisImageReader; // low resolution YUV stream of the preview for preview_analysis_cb
+    private boolean preview_analysis_target_added; // whether previewAnalysisImageReader is a target of previewBuilder
+    private HandlerThread preview_analysis_thread; // frames of previewAnalysisImageReader are delivered on this thread
     private SurfaceTexture texture;
     private Surface surface_texture;
     private HandlerThread thread;
@@ -1284,6 +1288,12 @@ public class CameraController2 extends CameraController {
                 mVideoFrameInfoCallback.onVideoFrameTimestampAvailable(timestamp);
             }
 
+            // the video session has no preview analysis stream, so use these frames instead
+            PreviewAnalysisCallback cb = preview_analysis_cb;
+            if (cb != null) {
+                cb.onVideoAnalysisFrame(image);
+            }
+
             if (MyDebug.LOG) {
                 Log.d(TAG, "released video frame");
             }
@@ -1291,6 +1301,26 @@ public class CameraController2 extends CameraController {
         }
     }
 
+    private class OnPreviewAnalysisImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // skip any frames we didn't get round to
+            Image image = reader.acquireLatestImage();
+            if( image == null ) {
+                return;
+            }
+            try {
+                PreviewAnalysisCallback cb = preview_analysis_cb;
+                if( cb != null ) {
+                    cb.onPreviewAnalysisFrame(image);
+                }
+            }
+            finally {
+                image.close();
+            }
+        }
+    }
+
     private class OnImageAvailableListener implements ImageReader.OnImageAvailableListener {
         @Override
         public void onImageAvailable(ImageReader reader) {
@@ -2095,6 +2125,7 @@ public class CameraController2 extends CameraController {
             camera = null;
         }
         closePictureImageReader();
+        closePreviewAnalysisImageReader();
         /*if( previewImageReader != null ) {
             previewImageReader.close();
             previewImageReader = null;
@@ -5162,6 +5193,8 @@ public class CameraController2 extends CameraController {
                 surfaces = Collections.singletonList(preview_surface);
             } else if( imageReaderRaw != null ) {
                 surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), imageReaderRaw.getSurface());
+            } else if( previewAnalysisImageReader != null ) {
+                surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), previewAnalysisImageReader.getSurface());
             } else {
                 surfaces = Arrays.asList(preview_surface, imageReader.getSurface());
             }
@@ -5223,6 +5256,13 @@ public class CameraController2 extends CameraController {
                 // in some cases need to recreate picture imageReader and the texture default buffer size (e.g., see test testTakePhotoPreviewPaused())
                 createPictureImageReader();
             }
+            // only add the analysis stream for the photo preview without RAW, to stay within the stream combinations that
+            // all devices must support (preview + YUV preview size + JPEG)
+            closePreviewAnalysisImageReader();
+            if( video_recorder == null && !want_video_high_speed && imageReaderRaw == null && preview_analysis_cb != null ) {
+                createPreviewAnalysisImageReader();
+            }
+            final boolean use_preview_analysis = previewAnalysisImageReader != null;
             if( texture != null ) {
                 // need to set the texture size
                 if( MyDebug.LOG )
@@ -5326,6 +5366,13 @@ public class CameraController2 extends CameraController {
                             }
                             previewBuilder.addTarget(video_recorder_surface);
                         }
+                        if( use_preview_analysis && previewAnalysisImageReader != null && preview_analysis_cb != null ) {
+                            if( MyDebug.LOG ) {
+                                Log.d(TAG, "add previewAnalysisImageReader surface to previewBuilder");
+                            }
+                            previewBuilder.addTarget(previewAnalysisImageReader.getSurface());
+                            preview_analysis_target_added = true;
+                        }
                         try {
                             setRepeatingRequest();
                         }
@@ -7211,6 +7258,141 @@ public class CameraController2 extends CameraController {
         playSound(MediaActionSound.START_VIDEO_RECORDING);
     }
 
+    @Override
+    public void setPreviewAnalysisCallback(PreviewAnalysisCallback cb) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setPreviewAnalysisCallback: " + cb);
+        this.preview_analysis_cb = cb;
+        // if the current session already has the analysis stream, we can start or stop it without recreating the session
+        boolean update = false;
+        synchronized( background_camera_lock ) {
+            if( previewBuilder != null && previewAnalysisImageReader != null && captureSession != null ) {
+                if( cb == null && preview_analysis_target_added ) {
+                    previewBuilder.removeTarget(previewAnalysisImageReader.getSurface());
+                    preview_analysis_target_added = false;
+                    update = true;
+                }
+                else if( cb != null && !preview_analysis_target_added ) {
+                    previewBuilder.addTarget(previewAnalysisImageReader.getSurface());
+                    preview_analysis_target_added = true;
+                    update = true;
+                }
+            }
+        }
+        if( update ) {
+            try {
+                setRepeatingRequest();
+            }
+            catch(CameraAccessException e) {
+                if( MyDebug.LOG ) {
+                    Log.e(TAG, "failed to update preview analysis stream");
+                    Log.e(TAG, "reason: " + e.getReason());
+                    Log.e(TAG, "message: " + e.getMessage());
+                }
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Chooses the size of the preview analysis stream: the smallest size with the same aspect
+     *  ratio as the preview, that is at least preview_analysis_min_width_c wide; or failing that, the
+     *  largest size with the same aspect ratio.
+     * @return The chosen size, or null if no size has the same aspect ratio as the preview.
+     */
+    public static CameraController.Size choosePreviewAnalysisSize(List<CameraController.Size> sizes, int preview_width, int preview_height) {
+        final double ratio_tolerance = 0.05;
+        final int preview_analysis_min_width_c = 480;
+        double target_ratio = ((double)preview_width) / (double)preview_height;
+        CameraController.Size best_size = null;
+        for(CameraController.Size size : sizes) {
+            double ratio = ((double)size.width) / (double)size.height;
+            if( Math.abs(ratio - target_ratio) > ratio_tolerance ) {
+                continue;
+            }
+            if( best_size == null ) {
+                best_size = size;
+            }
+            else if( best_size.width < preview_analysis_min_width_c ) {
+                // prefer larger
+                if( size.width > best_size.width )
+                    best_size = size;
+            }
+            else if( size.width >= preview_analysis_min_width_c && size.width < best_size.width ) {
+                // prefer smaller, as long as it's large enough
+                best_size = size;
+            }
+        }
+        return best_size;
+    }
+
+    private void createPreviewAnalysisImageReader() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "createPreviewAnalysisImageReader");
+        if( preview_width == 0 || preview_height == 0 ) {
+            return;
+        }
+        StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if( configs == null ) {
+            return;
+        }
+        android.util.Size [] yuv_sizes = configs.getOutputSizes(ImageFormat.YUV_420_888);
+        if( yuv_sizes == null ) {
+            return;
+        }
+        List<CameraController.Size> sizes = new ArrayList<>();
+        for(android.util.Size yuv_size : yuv_sizes) {
+            sizes.add(new CameraController.Size(yuv_size.getWidth(), yuv_size.getHeight()));
+        }
+        CameraController.Size size = choosePreviewAnalysisSize(sizes, preview_width, preview_height);
+        if( size == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "no suitable size for preview analysis");
+            return;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "preview analysis size: " + size.width + " x " + size.height);
+        preview_analysis_thread = new HandlerThread("PreviewAnalysis");
+        preview_analysis_thread.start();
+        // need 2 images for acquireLatestImage()
+        previewAnalysisImageReader = ImageReader.newInstance(size.width, size.height, ImageFormat.YUV_420_888, 2);
+        previewAnalysisImageReader.setOnImageAvailableListener(new OnPreviewAnalysisImageAvailableListener(), new Handler(preview_analysis_thread.getLooper()));
+    }
+
+    private void closePreviewAnalysisImageReader() {
+        ImageReader reader;
+        synchronized( background_camera_lock ) {
+            reader = previewAnalysisImageReader;
+            if( reader != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "closePreviewAnalysisImageReader");
+                if( preview_analysis_target_added && previewBuilder != null ) {
+                    previewBuilder.removeTarget(reader.getSurface());
+                }
+                previewAnalysisImageReader = null;
+            }
+            preview_analysis_target_added = false;
+        }
+        // the analysis thread may still be reading the planes of an image, which become invalid once the reader is
+        // closed, so wait for the thread to finish before closing the reader (not holding background_camera_lock, in
+        // case the callback is waiting for it)
+        if( reader != null ) {
+            reader.setOnImageAvailableListener(null, null);
+        }
+        if( preview_analysis_thread != null ) {
+            preview_analysis_thread.quitSafely();
+            try {
+                preview_analysis_thread.join();
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+            preview_analysis_thread = null;
+        }
+        if( reader != null ) {
+            reader.close();
+        }
+    }
+
     private void closeVideoFrameImageReader() {
         if (videoFrameImageReader != null) {
             videoFrameImageReader.close();
@@ -18,10 +18,23 @@ public class RawImage {
 
     private final DngCreator dngCreator;
     private final Image image;
+    private final long size_in_bytes;
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public RawImage(DngCreator dngCreator, Image image) {
         this.dngCreator = dngCreator;
         this.image = image;
+        long size = 0;
+        for(Image.Plane plane : image.getPlanes()) {
+            size += plane.getBuffer().capacity();
+        }
+        this.size_in_bytes = size;
+    }
+
+    /** Returns the size of the image data, which remains valid after close().
+     */
+    public long getSizeInBytes() {
+        return size_in_bytes;
     }
 
     /** Writes the dng file to the supplied output.
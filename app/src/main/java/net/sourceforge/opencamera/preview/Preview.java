@@ -24,6 +24,7 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorManager;
 import android.location.Location;
 import android.media.CamcorderProfile;
+import android.media.Image;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -85,6 +86,7 @@ import net.sourceforge.opencamera.sensorlogging.VideoPhaseInfo;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.lang.ref.WeakReference;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -97,6 +99,8 @@ import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -136,12 +140,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
     private RenderScript rs; // lazily created, so we don't take up resources if application isn't using renderscript
     private ScriptC_histogram_compute histogramScript; // lazily create for performance
-    private boolean want_preview_bitmap; // whether application has requested we generate bitmap for the preview
+    private volatile boolean want_preview_bitmap; // whether application has requested we generate bitmap for the preview
     private Bitmap preview_bitmap;
     private long last_preview_bitmap_time_ms; // time the last preview_bitmap was updated
     private RefreshPreviewBitmapTask refreshPreviewBitmapTask;
 
-    private boolean want_histogram; // whether to generate a histogram, requires want_preview_bitmap==true
+    private volatile boolean want_histogram; // whether to generate a histogram, requires want_preview_bitmap==true
 
     public enum HistogramType {
         HISTOGRAM_TYPE_RGB,
@@ -150,21 +154,60 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         HISTOGRAM_TYPE_INTENSITY,
         HISTOGRAM_TYPE_LIGHTNESS
     }
-    private HistogramType histogram_type = HistogramType.HISTOGRAM_TYPE_VALUE;
+    private volatile HistogramType histogram_type = HistogramType.HISTOGRAM_TYPE_VALUE;
     private int [] histogram;
     private long last_histogram_time_ms; // time the last histogram was updated
 
-    private boolean want_zebra_stripes; // whether to generate zebra stripes bitmap, requires want_preview_bitmap==true
-    private int zebra_stripes_threshold; // pixels with max rgb value equal to or greater than this threshold are marked with zebra stripes
-    private int zebra_stripes_color_foreground;
-    private int zebra_stripes_color_background;
+    private volatile boolean want_zebra_stripes; // whether to generate zebra stripes bitmap, requires want_preview_bitmap==true
+    private volatile int zebra_stripes_threshold; // pixels with max rgb value equal to or greater than this threshold are marked with zebra stripes
+    private volatile int zebra_stripes_color_foreground;
+    private volatile int zebra_stripes_color_background;
     private Bitmap zebra_stripes_bitmap_buffer;
     private Bitmap zebra_stripes_bitmap;
 
-    private boolean want_focus_peaking; // whether to generate focus peaking bitmap, requires want_preview_bitmap==true
+    private volatile boolean want_focus_peaking; // whether to generate focus peaking bitmap, requires want_preview_bitmap==true
     private Bitmap focus_peaking_bitmap_buffer;
     private Bitmap focus_peaking_bitmap;
 
+    // When supported by the camera controller, the histogram, zebra stripes and focus peaking are computed from a low
+    // resolution YUV stream of the preview (see CameraController.setPreviewAnalysisCallback()), on the camera controller's
+    // analysis thread. Otherwise (or if the stream isn't running, e.g., when recording video), we fall back to
+    // RefreshPreviewBitmapTask. The options read by processPreviewAnalysisFrame() are set on the UI thread, so are
+    // volatile.
+    private PreviewAnalyzer previewAnalyzer; // lazily created on the analysis thread
+    private volatile long last_preview_analysis_time_ms; // time the last frame from the analysis stream was processed
+    private volatile boolean preview_analysis_result_pending; // whether a result is waiting to be set on the UI thread
+    private long last_preview_analysis_histogram_time_ms; // only accessed on the analysis thread
+    private volatile int preview_analysis_rotation; // clockwise rotation of the analysis frames to match the preview
+    private volatile boolean preview_analysis_mirror;
+    private volatile boolean want_preview_quality_metrics; // whether to compute quality metrics from the analysis stream
+    private volatile PreviewAnalyzer.QualityMetrics preview_quality_metrics;
+    private volatile long preview_quality_metrics_time_ms; // time preview_quality_metrics was computed
+    private static final int refresh_quality_metrics_rate_ms = 250;
+    // When video recording is prepared, the capture session has no analysis stream, so the quality metrics are instead
+    // computed from the video frame stream, if present (see CameraController.PreviewAnalysisCallback.onVideoAnalysisFrame()).
+    // The frames are delivered on the UI thread, so only the Y plane is copied there, and the metrics are computed on
+    // video_analysis_executor.
+    private final ThreadPoolExecutor video_analysis_executor;
+    private PreviewAnalyzer videoAnalyzer; // lazily created, only accessed on video_analysis_executor
+    private byte [] video_analysis_luma; // copy of the Y plane, only written while !video_analysis_pending
+    private volatile boolean video_analysis_pending; // whether video_analysis_luma is waiting for video_analysis_executor
+    private final CameraController.PreviewAnalysisCallback previewAnalysisCallback = new CameraController.PreviewAnalysisCallback() {
+        @Override
+        public void onPreviewAnalysisFrame(Image image) {
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                processPreviewAnalysisFrame(image);
+            }
+        }
+
+        @Override
+        public void onVideoAnalysisFrame(Image image) {
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+                processVideoAnalysisFrame(image);
+            }
+        }
+    };
+
     private final Matrix camera_to_preview_matrix = new Matrix();
     private final Matrix preview_to_camera_matrix = new Matrix();
     private double preview_targetRatio;
@@ -172,7 +215,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     //private boolean ui_placement_right = true;
 
     private boolean app_is_paused = true; // whether activity is paused
-    private boolean is_paused = true; // whether Preview.onPause() is called - note this could include the application pausing the preview, even if app_is_paused==false
+    private volatile boolean is_paused = true; // whether Preview.onPause() is called - note this could include the application pausing the preview, even if app_is_paused==false
     private boolean has_surface;
     private boolean has_aspect_ratio;
     private double aspect_ratio;
@@ -435,6 +478,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
         this.applicationInterface = applicationInterface;
 
+        // no need to keep the thread around when video recording isn't prepared
+        video_analysis_executor = new ThreadPoolExecutor(1, 1, 5000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        video_analysis_executor.allowCoreThreadTimeOut(true);
+
         Activity activity = (Activity)this.getContext();
         if( activity.getIntent() != null && activity.getIntent().getExtras() != null ) {
             // whether called from testing
@@ -972,6 +1019,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             matrix.postRotate(90 * (rotation - 2), centerX, centerY);
         }
         cameraSurface.setTransform(matrix);
+        updatePreviewAnalysisOrientation();
     }
 
     private void stopVideoPostPrepare(boolean from_restart) {
@@ -1758,6 +1806,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 Log.d(TAG, "openCamera: time after setting preview display: " + (System.currentTimeMillis() - debug_time));
             }
 
+            // must be done before the preview is started, as the analysis stream is created with the capture session
+            setupPreviewAnalysis();
+
             setupCamera(take_photo);
             if( this.using_android_l ) {
                 configureTransform();
@@ -7878,6 +7929,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         if( cameraSurface instanceof TextureView ) {
             want_preview_bitmap = true;
             recreatePreviewBitmap();
+            setupPreviewAnalysis();
         }
     }
 
@@ -7887,6 +7939,211 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         freePreviewBitmap();
         want_preview_bitmap = false;
         histogramScript = null; // to help garbage collection
+        setupPreviewAnalysis();
+        previewAnalyzer = null; // to help garbage collection
+    }
+
+    /** Whether to compute exposure and focus quality metrics of the preview, see
+     *  getPreviewQualityMetrics(). These are only available when the camera controller supports
+     *  the preview analysis stream; when video recording is prepared or in progress, they're only
+     *  available if the video frame stream is used (i.e., when saving frame timestamps, which is
+     *  always the case when software sync is running).
+     */
+    public void setPreviewQualityMetricsEnabled(boolean enabled) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setPreviewQualityMetricsEnabled: " + enabled);
+        want_preview_quality_metrics = enabled;
+        if( !enabled ) {
+            preview_quality_metrics = null;
+        }
+        setupPreviewAnalysis();
+    }
+
+    /** Returns the most recent quality metrics of the preview, or null if there are none from the
+     *  last max_age_ms milliseconds. Requires setPreviewQualityMetricsEnabled(true). May be called
+     *  on any thread.
+     */
+    public PreviewAnalyzer.QualityMetrics getPreviewQualityMetrics(long max_age_ms) {
+        PreviewAnalyzer.QualityMetrics metrics = preview_quality_metrics;
+        if( metrics == null || System.currentTimeMillis() > preview_quality_metrics_time_ms + max_age_ms ) {
+            return null;
+        }
+        return metrics;
+    }
+
+    /** Requests or stops the preview analysis stream, according to want_preview_bitmap and
+     *  want_preview_quality_metrics. If the camera controller doesn't support the stream,
+     *  RefreshPreviewBitmapTask is used instead for the preview bitmaps.
+     */
+    private void setupPreviewAnalysis() {
+        if( camera_controller == null ) {
+            return;
+        }
+        if( want_preview_bitmap || want_preview_quality_metrics ) {
+            updatePreviewAnalysisOrientation();
+            camera_controller.setPreviewAnalysisCallback(previewAnalysisCallback);
+        }
+        else {
+            camera_controller.setPreviewAnalysisCallback(null);
+        }
+    }
+
+    private void updatePreviewAnalysisOrientation() {
+        if( camera_controller == null ) {
+            return;
+        }
+        boolean is_front_facing = camera_controller.getFacing() == CameraController.Facing.FACING_FRONT;
+        preview_analysis_rotation = PreviewAnalyzer.getFrameRotation(camera_controller.getCameraOrientation(), getDisplayRotationDegrees(), is_front_facing);
+        preview_analysis_mirror = is_front_facing;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "preview_analysis_rotation: " + preview_analysis_rotation);
+            Log.d(TAG, "preview_analysis_mirror: " + preview_analysis_mirror);
+        }
+    }
+
+    /** Computes the histogram, zebra stripes, focus peaking and quality metrics from a frame of the
+     *  preview analysis stream. Called on the analysis thread; the bitmap results are set on the UI
+     *  thread. Bitmaps aren't computed for frames that arrive while the previous result hasn't been
+     *  set yet.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void processPreviewAnalysisFrame(Image image) {
+        if( is_paused || applicationInterface.isPreviewInBackground() ) {
+            return;
+        }
+        final int refresh_histogram_rate_ms = 100;
+        long time_now = System.currentTimeMillis();
+        boolean update_bitmaps = want_preview_bitmap && !preview_analysis_result_pending;
+        boolean update_histogram = update_bitmaps && want_histogram && time_now > last_preview_analysis_histogram_time_ms + refresh_histogram_rate_ms;
+        boolean update_zebra_stripes = update_bitmaps && want_zebra_stripes;
+        boolean update_focus_peaking = update_bitmaps && want_focus_peaking;
+        boolean update_quality_metrics = want_preview_quality_metrics && time_now > preview_quality_metrics_time_ms + refresh_quality_metrics_rate_ms;
+        if( !update_histogram && !update_zebra_stripes && !update_focus_peaking && !update_quality_metrics ) {
+            return;
+        }
+        long debug_time = 0;
+        if( MyDebug.LOG )
+            debug_time = System.currentTimeMillis();
+
+        PreviewAnalyzer analyzer = previewAnalyzer;
+        if( analyzer == null ) {
+            analyzer = new PreviewAnalyzer();
+            previewAnalyzer = analyzer;
+        }
+        analyzer.setFrame(image, preview_analysis_rotation, preview_analysis_mirror);
+
+        if( update_quality_metrics ) {
+            preview_quality_metrics = analyzer.computeQualityMetrics();
+            preview_quality_metrics_time_ms = time_now;
+        }
+        if( !update_histogram && !update_zebra_stripes && !update_focus_peaking ) {
+            return;
+        }
+
+        final RefreshPreviewBitmapTaskResult result = new RefreshPreviewBitmapTaskResult();
+        if( update_histogram ) {
+            result.new_histogram = analyzer.computeHistogram(histogram_type);
+            last_preview_analysis_histogram_time_ms = time_now;
+        }
+        // n.b., the pixel arrays are reused by the analyzer, so we must create each bitmap before computing the next overlay
+        if( update_zebra_stripes ) {
+            int [] pixels = analyzer.computeZebraStripes(zebra_stripes_threshold, zebra_stripes_color_foreground, zebra_stripes_color_background);
+            result.new_zebra_stripes_bitmap = Bitmap.createBitmap(pixels, analyzer.getOutputWidth(), analyzer.getOutputHeight(), Bitmap.Config.ARGB_8888);
+        }
+        if( update_focus_peaking ) {
+            int [] pixels = analyzer.computeFocusPeaking();
+            result.new_focus_peaking_bitmap = Bitmap.createBitmap(pixels, analyzer.getOutputWidth(), analyzer.getOutputHeight(), Bitmap.Config.ARGB_8888);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time for preview analysis: " + (System.currentTimeMillis() - debug_time));
+
+        last_preview_analysis_time_ms = time_now;
+        preview_analysis_result_pending = true;
+        Activity activity = (Activity)this.getContext();
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                preview_analysis_result_pending = false;
+                if( !want_preview_bitmap ) {
+                    // disabled in the meantime
+                    if( result.new_zebra_stripes_bitmap != null )
+                        result.new_zebra_stripes_bitmap.recycle();
+                    if( result.new_focus_peaking_bitmap != null )
+                        result.new_focus_peaking_bitmap.recycle();
+                    return;
+                }
+                setPreviewBitmapResult(result);
+            }
+        });
+    }
+
+    /** Computes the quality metrics from a frame of the video frame stream, for when video
+     *  recording is prepared or in progress. Called on the thread that receives the video frames
+     *  (the UI thread), so this only copies the Y plane; the frame is then downscaled to about the
+     *  width of the analysis stream on video_analysis_executor, so that the sharpness is comparable
+     *  to that from the analysis stream. Frames that arrive while the previous one is still being
+     *  processed are dropped. The preview bitmaps are still computed by RefreshPreviewBitmapTask in
+     *  this case.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void processVideoAnalysisFrame(Image image) {
+        if( !want_preview_quality_metrics || video_analysis_pending || is_paused || applicationInterface.isPreviewInBackground() ) {
+            return;
+        }
+        final int video_analysis_width_c = 480;
+        final long time_now = System.currentTimeMillis();
+        if( time_now <= preview_quality_metrics_time_ms + refresh_quality_metrics_rate_ms ) {
+            return;
+        }
+        final int width = image.getCropRect().width();
+        final int height = image.getCropRect().height();
+        final byte [] luma = PreviewAnalyzer.copyLumaPlane(image, video_analysis_luma);
+        video_analysis_luma = luma;
+        final int scale = Math.max(1, width/video_analysis_width_c);
+        video_analysis_pending = true;
+        video_analysis_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long debug_time = 0;
+                if( MyDebug.LOG )
+                    debug_time = System.currentTimeMillis();
+                PreviewAnalyzer analyzer = videoAnalyzer;
+                if( analyzer == null ) {
+                    analyzer = new PreviewAnalyzer();
+                    videoAnalyzer = analyzer;
+                }
+                analyzer.setLumaFrame(ByteBuffer.wrap(luma), width, 0, 0, width, height, scale);
+                if( want_preview_quality_metrics ) {
+                    preview_quality_metrics = analyzer.computeQualityMetrics();
+                    preview_quality_metrics_time_ms = time_now;
+                }
+                video_analysis_pending = false;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "time for video frame quality metrics: " + (System.currentTimeMillis() - debug_time));
+            }
+        });
+    }
+
+    /** Sets the results of RefreshPreviewBitmapTask or processPreviewAnalysisFrame(). Must be
+     *  called on the UI thread.
+     */
+    private void setPreviewBitmapResult(RefreshPreviewBitmapTaskResult result) {
+        if( result.new_histogram != null )
+            histogram = result.new_histogram;
+        /*if( MyDebug.LOG && histogram != null ) {
+            for(int i=0;i<histogram.length;i++)
+                Log.d(TAG, "    histogram[" + i + "]: " + histogram[i]);
+        }*/
+
+        if( zebra_stripes_bitmap != null ) {
+            zebra_stripes_bitmap.recycle();
+        }
+        zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
+
+        if( focus_peaking_bitmap != null ) {
+            focus_peaking_bitmap.recycle();
+        }
+        focus_peaking_bitmap = result.new_focus_peaking_bitmap;
     }
 
     public boolean isPreviewBitmapEnabled() {
@@ -8435,22 +8692,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 return;
             }
 
-            if( result.new_histogram != null )
-                preview.histogram = result.new_histogram;
-			/*if( MyDebug.LOG && preview.histogram != null ) {
-				for(int i=0;i<preview.histogram.length;i++)
-					Log.d(TAG, "    histogram[" + i + "]: " + preview.histogram[i]);
-			}*/
-
-            if( preview.zebra_stripes_bitmap != null ) {
-                preview.zebra_stripes_bitmap.recycle();
-            }
-            preview.zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
-
-            if( preview.focus_peaking_bitmap != null ) {
-                preview.focus_peaking_bitmap.recycle();
-            }
-            preview.focus_peaking_bitmap = result.new_focus_peaking_bitmap;
+            preview.setPreviewBitmapResult(result);
 
             preview.refreshPreviewBitmapTask = null;
 
@@ -8473,8 +8715,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private void refreshPreviewBitmap() {
         final int refresh_histogram_rate_ms = 200;
         final long refresh_time = (want_zebra_stripes || want_focus_peaking) ? 40 : refresh_histogram_rate_ms;
+        final long preview_analysis_timeout_ms = 500; // fall back to reading the TextureView if the analysis stream stops
         long time_now = System.currentTimeMillis();
         if( want_preview_bitmap && preview_bitmap != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                time_now > last_preview_analysis_time_ms + preview_analysis_timeout_ms &&
                 !is_paused && !applicationInterface.isPreviewInBackground() &&
                 !refreshPreviewBitmapTaskIsRunning() && time_now > last_preview_bitmap_time_ms + refresh_time ) {
             if( MyDebug.LOG )
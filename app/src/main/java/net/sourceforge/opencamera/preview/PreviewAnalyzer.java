@@ -0,0 +1,452 @@
+package net.sourceforge.opencamera.preview;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.graphics.Rect;
+import android.media.Image;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+/** Computes the histogram, zebra stripes and focus peaking for the Preview from frames of the low
+ *  resolution YUV_420_888 stream (see CameraController.setPreviewAnalysisCallback()), rather than
+ *  reading back the TextureView and running RenderScript on the result. The work is done directly
+ *  on the Y and UV planes, which are copied into buffers that are reused between frames; RGB values
+ *  are only computed for the histogram types and overlays that need them.
+ *  The overlays are returned in the orientation that the frame is displayed in, see setFrame().
+ *  Not thread safe, each instance should only be used by one thread at a time.
+ */
+public class PreviewAnalyzer {
+    private int width; // dimensions of the frame
+    private int height;
+    private byte [] y_plane; // width*height
+    private byte [] u_plane; // (width/2)*(height/2)
+    private byte [] v_plane;
+    private byte [] row_buffer; // for reading rows of the planes
+    private int [] rgb; // ARGB_8888 colors, only computed when needed
+    private boolean rgb_valid;
+    private byte [] peaking_edges; // workspace for computeFocusPeaking()
+    private int [] block_sums; // workspace for setLumaFrame()
+
+    // maps a pixel (x, y) of the frame to (dx0 + dxx*x + dxy*y, dy0 + dyx*x + dyy*y) on the output
+    private int rotation = -1;
+    private boolean mirror;
+    private int out_width;
+    private int out_height;
+    private int dx0, dxx, dxy, dy0, dyx, dyy;
+    private int [] out_pixels; // returned by computeZebraStripes() and computeFocusPeaking()
+
+    /** Exposure and focus measures of a frame, see computeQualityMetrics().
+     */
+    public static class QualityMetrics {
+        public final float mean_luma; // mean of the Y plane, in the range [0, 255]
+        public final float clipped_fraction; // fraction of pixels with luma of at least clipped_luma_c
+        public final float sharpness; // variance of the Laplacian of the Y plane
+
+        public QualityMetrics(float mean_luma, float clipped_fraction, float sharpness) {
+            this.mean_luma = mean_luma;
+            this.clipped_fraction = clipped_fraction;
+            this.sharpness = sharpness;
+        }
+    }
+
+    /** Pixels with luma at least this are counted as clipped by computeQualityMetrics().
+     */
+    public static final int clipped_luma_c = 250;
+
+    /** Returns the clockwise rotation of the camera frames to display them upright, as for the
+     *  Camera API's setDisplayOrientation().
+     * @param sensor_orientation The orientation of the camera sensor, see CameraController.getCameraOrientation().
+     * @param display_rotation   The rotation of the display in degrees.
+     */
+    public static int getFrameRotation(int sensor_orientation, int display_rotation, boolean is_front_facing) {
+        if( is_front_facing ) {
+            // the frame is also mirrored, see setFrame()
+            return (sensor_orientation + display_rotation) % 360;
+        }
+        return (sensor_orientation - display_rotation + 360) % 360;
+    }
+
+    /** Copies the planes of the image into the reused buffers.
+     * @param rotation Clockwise rotation to apply to the frame for the overlays, see getFrameRotation().
+     * @param mirror   Whether to mirror the overlays horizontally after rotating (for front cameras).
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public void setFrame(Image image, int rotation, boolean mirror) {
+        Rect crop = image.getCropRect();
+        Image.Plane [] planes = image.getPlanes();
+        allocate(crop.width(), crop.height());
+        copyPlane(planes[0], crop.left, crop.top, width, height, y_plane);
+        copyPlane(planes[1], crop.left/2, crop.top/2, width/2, height/2, u_plane);
+        copyPlane(planes[2], crop.left/2, crop.top/2, width/2, height/2, v_plane);
+        rgb_valid = false;
+        setOrientation(rotation, mirror);
+    }
+
+    /** As setFrame(Image, int, boolean), but for planes that are already tightly packed.
+     */
+    public void setFrame(byte [] y, byte [] u, byte [] v, int width, int height, int rotation, boolean mirror) {
+        allocate(width, height);
+        System.arraycopy(y, 0, y_plane, 0, width*height);
+        System.arraycopy(u, 0, u_plane, 0, (width/2)*(height/2));
+        System.arraycopy(v, 0, v_plane, 0, (width/2)*(height/2));
+        rgb_valid = false;
+        setOrientation(rotation, mirror);
+    }
+
+    /** Copies the cropped Y plane of the image into dest, tightly packed, with a bulk read per
+     *  row. This is cheap enough for the thread that receives the frames, so that the image can be
+     *  closed straight away, and setLumaFrame() run on the copy on another thread.
+     * @param dest Buffer to reuse, may be null.
+     * @return dest, or a new array if dest was null or the wrong size.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public static byte [] copyLumaPlane(Image image, byte [] dest) {
+        Rect crop = image.getCropRect();
+        int width = crop.width();
+        int height = crop.height();
+        if( dest == null || dest.length != width*height ) {
+            dest = new byte[width*height];
+        }
+        // the Y plane of YUV_420_888 images always has a pixel stride of 1
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int row_stride = plane.getRowStride();
+        for(int y=0;y<height;y++) {
+            buffer.position((crop.top+y)*row_stride + crop.left);
+            buffer.get(dest, y*width, width);
+        }
+        return dest;
+    }
+
+    /** Copies a Y plane with a pixel stride of 1 into the reused buffer, averaged over blocks of
+     *  scale x scale pixels, so that computeQualityMetrics() can be used on frames that are much
+     *  larger than the analysis stream (e.g., the video frame stream) at a similar cost and scale.
+     *  Any pixels beyond the last whole block in each direction are ignored. There are no chroma
+     *  planes, so only computeQualityMetrics() should be called until the next setFrame().
+     */
+    public void setLumaFrame(ByteBuffer buffer, int row_stride, int left, int top, int frame_width, int frame_height, int scale) {
+        allocate(frame_width/scale, frame_height/scale);
+        final int row_length = width*scale;
+        final int block_area = scale*scale;
+        if( row_buffer == null || row_buffer.length < row_length ) {
+            row_buffer = new byte[row_length];
+        }
+        if( block_sums == null ) {
+            block_sums = new int[width];
+        }
+        for(int y=0;y<height;y++) {
+            Arrays.fill(block_sums, 0);
+            for(int j=0;j<scale;j++) {
+                buffer.position((top+y*scale+j)*row_stride + left);
+                buffer.get(row_buffer, 0, row_length);
+                for(int x=0,i=0;x<width;x++) {
+                    int sum = 0;
+                    for(int k=0;k<scale;k++,i++) {
+                        sum += row_buffer[i] & 0xFF;
+                    }
+                    block_sums[x] += sum;
+                }
+            }
+            for(int x=0,i=y*width;x<width;x++,i++) {
+                y_plane[i] = (byte)(block_sums[x]/block_area);
+            }
+        }
+        rgb_valid = false;
+    }
+
+    private void allocate(int width, int height) {
+        if( y_plane == null || this.width != width || this.height != height ) {
+            this.width = width;
+            this.height = height;
+            y_plane = new byte[width*height];
+            u_plane = new byte[(width/2)*(height/2)];
+            v_plane = new byte[(width/2)*(height/2)];
+            rgb = null;
+            peaking_edges = null;
+            block_sums = null;
+            out_pixels = null;
+            rotation = -1; // force the orientation to be recomputed
+        }
+    }
+
+    private void copyPlane(Image.Plane plane, int left, int top, int plane_width, int plane_height, byte [] dest) {
+        ByteBuffer buffer = plane.getBuffer();
+        int row_stride = plane.getRowStride();
+        int pixel_stride = plane.getPixelStride();
+        int row_length = (plane_width-1)*pixel_stride + 1;
+        if( pixel_stride != 1 && (row_buffer == null || row_buffer.length < row_length) ) {
+            row_buffer = new byte[row_length];
+        }
+        for(int y=0;y<plane_height;y++) {
+            buffer.position((top+y)*row_stride + left*pixel_stride);
+            if( pixel_stride == 1 ) {
+                buffer.get(dest, y*plane_width, plane_width);
+            }
+            else {
+                // the last row may not be padded to the full stride, so only read what we need
+                buffer.get(row_buffer, 0, row_length);
+                for(int x=0,i=y*plane_width;x<plane_width;x++,i++) {
+                    dest[i] = row_buffer[x*pixel_stride];
+                }
+            }
+        }
+    }
+
+    private void setOrientation(int rotation, boolean mirror) {
+        if( rotation == this.rotation && mirror == this.mirror ) {
+            return;
+        }
+        this.rotation = rotation;
+        this.mirror = mirror;
+        switch( rotation ) {
+            case 90:
+                out_width = height;
+                out_height = width;
+                dx0 = height-1; dxx = 0; dxy = -1;
+                dy0 = 0; dyx = 1; dyy = 0;
+                break;
+            case 180:
+                out_width = width;
+                out_height = height;
+                dx0 = width-1; dxx = -1; dxy = 0;
+                dy0 = height-1; dyx = 0; dyy = -1;
+                break;
+            case 270:
+                out_width = height;
+                out_height = width;
+                dx0 = 0; dxx = 0; dxy = 1;
+                dy0 = width-1; dyx = -1; dyy = 0;
+                break;
+            default:
+                out_width = width;
+                out_height = height;
+                dx0 = 0; dxx = 1; dxy = 0;
+                dy0 = 0; dyx = 0; dyy = 1;
+                break;
+        }
+        if( mirror ) {
+            dx0 = out_width-1-dx0;
+            dxx = -dxx;
+            dxy = -dxy;
+        }
+    }
+
+    /** Width of the overlays returned by computeZebraStripes() and computeFocusPeaking().
+     */
+    public int getOutputWidth() {
+        return out_width;
+    }
+
+    /** Height of the overlays returned by computeZebraStripes() and computeFocusPeaking().
+     */
+    public int getOutputHeight() {
+        return out_height;
+    }
+
+    /** Converts the YUV planes to ARGB colors (using the full range BT.601 conversion, as for JPEG),
+     *  if not already done for this frame.
+     */
+    private void computeRGB() {
+        if( rgb_valid ) {
+            return;
+        }
+        if( rgb == null ) {
+            rgb = new int[width*height];
+        }
+        final int uv_width = width/2;
+        final int uv_height = height/2;
+        for(int y=0,i=0;y<height;y++) {
+            int uv_row = Math.min(y/2, uv_height-1)*uv_width;
+            for(int x=0;x<width;x++,i++) {
+                int uv_index = uv_row + Math.min(x/2, uv_width-1);
+                int luma = y_plane[i] & 0xFF;
+                int u = (u_plane[uv_index] & 0xFF) - 128;
+                int v = (v_plane[uv_index] & 0xFF) - 128;
+                // coefficients are 1.402, 0.344136, 0.714136, 1.772 in 16.16 fixed point
+                int r = luma + ((91881*v + 32768) >> 16);
+                int g = luma - ((22554*u + 46802*v + 32768) >> 16);
+                int b = luma + ((116130*u + 32768) >> 16);
+                r = r < 0 ? 0 : (r > 255 ? 255 : r);
+                g = g < 0 ? 0 : (g > 255 ? 255 : g);
+                b = b < 0 ? 0 : (b > 255 ? 255 : b);
+                rgb[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        rgb_valid = true;
+    }
+
+    /** Computes the histogram of the frame, in the same form as the RenderScript kernels in
+     *  histogram_compute.rs: 256 bins, or 3*256 bins (red, then green, then blue) for
+     *  HISTOGRAM_TYPE_RGB. The luminance histogram is read directly from the Y plane.
+     */
+    public int [] computeHistogram(Preview.HistogramType histogram_type) {
+        int [] histogram;
+        final int n_pixels = width*height;
+        if( histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE ) {
+            histogram = new int[256];
+            for(int i=0;i<n_pixels;i++) {
+                histogram[y_plane[i] & 0xFF]++;
+            }
+            return histogram;
+        }
+
+        computeRGB();
+        if( histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_RGB ) {
+            histogram = new int[256*3];
+            for(int i=0;i<n_pixels;i++) {
+                int color = rgb[i];
+                histogram[(color >> 16) & 0xFF]++;
+                histogram[256 + ((color >> 8) & 0xFF)]++;
+                histogram[512 + (color & 0xFF)]++;
+            }
+            return histogram;
+        }
+
+        histogram = new int[256];
+        for(int i=0;i<n_pixels;i++) {
+            int color = rgb[i];
+            int r = (color >> 16) & 0xFF;
+            int g = (color >> 8) & 0xFF;
+            int b = color & 0xFF;
+            int value;
+            switch( histogram_type ) {
+                case HISTOGRAM_TYPE_INTENSITY:
+                    // (r+g+b)/3, rounded to nearest
+                    value = (2*(r+g+b)+3)/6;
+                    break;
+                case HISTOGRAM_TYPE_LIGHTNESS:
+                    // (min+max)/2, rounded to nearest
+                    value = (Math.min(r, Math.min(g, b)) + Math.max(r, Math.max(g, b)) + 1)/2;
+                    break;
+                default:
+                    // HISTOGRAM_TYPE_VALUE
+                    value = Math.max(r, Math.max(g, b));
+                    break;
+            }
+            histogram[value]++;
+        }
+        return histogram;
+    }
+
+    /** Computes exposure and focus measures of the frame from the Y plane, cheap enough to run at
+     *  the preview frame rate. The sharpness is the variance of the 4-neighbour Laplacian, which is
+     *  higher for frames with more in-focus detail; as with any contrast measure, it also depends
+     *  on the scene, so is mainly useful for comparing cameras pointed at the same subject.
+     */
+    public QualityMetrics computeQualityMetrics() {
+        final int n_pixels = width*height;
+        if( n_pixels == 0 ) {
+            return new QualityMetrics(0.0f, 0.0f, 0.0f);
+        }
+        long sum_luma = 0;
+        int n_clipped = 0;
+        for(int i=0;i<n_pixels;i++) {
+            int luma = y_plane[i] & 0xFF;
+            sum_luma += luma;
+            if( luma >= clipped_luma_c )
+                n_clipped++;
+        }
+
+        long sum_laplacian = 0;
+        long sum_laplacian2 = 0;
+        int n_laplacian = 0;
+        for(int y=1;y<height-1;y++) {
+            for(int x=1,i=y*width+1;x<width-1;x++,i++) {
+                int value = 4*(y_plane[i] & 0xFF)
+                        - (y_plane[i-width] & 0xFF) - (y_plane[i-1] & 0xFF) - (y_plane[i+1] & 0xFF) - (y_plane[i+width] & 0xFF);
+                sum_laplacian += value;
+                sum_laplacian2 += value*value;
+            }
+            n_laplacian += width-2;
+        }
+        float sharpness = 0.0f;
+        if( n_laplacian > 0 ) {
+            double mean = ((double)sum_laplacian)/(double)n_laplacian;
+            sharpness = (float)(((double)sum_laplacian2)/(double)n_laplacian - mean*mean);
+        }
+
+        return new QualityMetrics(((float)sum_luma)/(float)n_pixels, ((float)n_clipped)/(float)n_pixels, sharpness);
+    }
+
+    private void allocateOutput() {
+        if( out_pixels == null ) {
+            out_pixels = new int[width*height];
+        }
+    }
+
+    /** Marks pixels whose maximum rgb value is at least threshold with diagonal stripes of the
+     *  foreground and background colors, as generate_zebra_stripes in histogram_compute.rs.
+     * @return The ARGB_8888 overlay, of size getOutputWidth() x getOutputHeight(). The array is
+     *         reused by the next call to computeZebraStripes() or computeFocusPeaking().
+     */
+    public int [] computeZebraStripes(int threshold, int color_foreground, int color_background) {
+        computeRGB();
+        allocateOutput();
+        final int stripe_width = Math.max(1, out_width/20);
+        for(int y=0,i=0;y<height;y++) {
+            int dx = dx0 + dxy*y;
+            int dy = dy0 + dyy*y;
+            for(int x=0;x<width;x++,i++,dx+=dxx,dy+=dyx) {
+                int color = rgb[i];
+                int value = Math.max((color >> 16) & 0xFF, Math.max((color >> 8) & 0xFF, color & 0xFF));
+                int out;
+                if( value >= threshold ) {
+                    int stripe = (dx+dy)/stripe_width;
+                    out = (stripe % 2 == 0) ? color_background : color_foreground;
+                }
+                else {
+                    out = 0;
+                }
+                out_pixels[dy*out_width+dx] = out;
+            }
+        }
+        return out_pixels;
+    }
+
+    /** Marks pixels that are on strong edges in white, as generate_focus_peaking followed by
+     *  generate_focus_peaking_filtered in histogram_compute.rs, except that the edge strength is
+     *  computed from the Y plane rather than the rgb values.
+     * @return The ARGB_8888 overlay, of size getOutputWidth() x getOutputHeight(). The array is
+     *         reused by the next call to computeZebraStripes() or computeFocusPeaking().
+     */
+    public int [] computeFocusPeaking() {
+        allocateOutput();
+        if( peaking_edges == null ) {
+            peaking_edges = new byte[width*height];
+        }
+        // laplacian: for a grey pixel, the rgb version has strength 3*value^2, so compare against (256*256)/3
+        final int threshold = (256*256)/3;
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int i = y*width+x;
+                byte edge = 0;
+                if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+                    int value = 8*(y_plane[i] & 0xFF)
+                            - (y_plane[i-width-1] & 0xFF) - (y_plane[i-width] & 0xFF) - (y_plane[i-width+1] & 0xFF)
+                            - (y_plane[i-1] & 0xFF) - (y_plane[i+1] & 0xFF)
+                            - (y_plane[i+width-1] & 0xFF) - (y_plane[i+width] & 0xFF) - (y_plane[i+width+1] & 0xFF);
+                    if( value*value > threshold )
+                        edge = 1;
+                }
+                peaking_edges[i] = edge;
+            }
+        }
+        // keep edge pixels where at least 3 of the pixel and its 4 neighbours are edges, to remove noise
+        for(int y=0,i=0;y<height;y++) {
+            int dx = dx0 + dxy*y;
+            int dy = dy0 + dyy*y;
+            for(int x=0;x<width;x++,i++,dx+=dxx,dy+=dyx) {
+                int out = 0;
+                if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+                    int count = peaking_edges[i-width] + peaking_edges[i-1] + peaking_edges[i] + peaking_edges[i+1] + peaking_edges[i+width];
+                    if( count >= 3 )
+                        out = 0xFFFFFFFF;
+                }
+                out_pixels[dy*out_width+dx] = out;
+            }
+        }
+        return out_pixels;
+    }
+}
@@ -6,7 +6,10 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.googleresearch.capturesync.SoftwareSyncController;
+import com.googleresearch.capturesync.softwaresync.ClientInfo;
+import com.googleresearch.capturesync.softwaresync.RpcDelivery;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
+import com.googleresearch.capturesync.softwaresync.SyncConstants;
 
 import net.sourceforge.opencamera.ExtendedAppInterface;
 import net.sourceforge.opencamera.MainActivity;
@@ -17,9 +20,11 @@ import net.sourceforge.opencamera.preview.Preview;
 import net.sourceforge.opencamera.ui.MainUI;
 import net.sourceforge.opencamera.ui.ManualSeekbars;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 public class SoftwareSyncHelper {
     private static final String TAG = "SoftwareSyncHelper";
@@ -30,6 +35,11 @@ public class SoftwareSyncHelper {
     private final SoftwareSyncController mSoftwareSyncController;
 
     private Runnable mApplySettingsRunnable = null;
+    /**
+     * The settings broadcast last while this device is the leader, which the following broadcasts
+     * are deltas relative to.
+     */
+    private volatile SyncSettingsContainer mLastBroadcastSettings = null;
 
     public SoftwareSyncHelper(MainActivity mainActivity, SoftwareSyncController softwareSyncController) {
         mMainActivity = mainActivity;
@@ -44,7 +54,8 @@ public class SoftwareSyncHelper {
 
     /**
      * Broadcasts a video recording request to clients. The request will be received by the leader
-     * too.
+     * too, and is executed by every device at the same leader synchronized time, {@link
+     * SyncConstants#TRIGGER_LEAD_TIME_NS} after the broadcast.
      * <p>
      * All receivers will switch their recording status to the opposite of the current status on
      * this device (i.e. if this device is recording a video, it will stop and so will all the
@@ -65,10 +76,29 @@ public class SoftwareSyncHelper {
         if (!mSoftwareSyncController.isLeader()) {
             throw new IllegalStateException("Cannot broadcast recording request from a client");
         }
-        ((SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync()).broadcastRpc(
-                SoftwareSyncController.METHOD_RECORD,
-                String.valueOf(mPreview.isVideoRecording())
-        );
+        final SoftwareSyncLeader leader = (SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync();
+        final long triggerTimeNs = leader.getLeaderTimeNs() + SyncConstants.TRIGGER_LEAD_TIME_NS;
+        leader.broadcastReliableRpc(
+                SoftwareSyncController.METHOD_SET_TRIGGER_TIME,
+                triggerTimeNs + "," + mPreview.isVideoRecording()
+        ).whenComplete(delivery -> logUnconfirmedClients(leader, delivery, "recording request"));
+    }
+
+    /**
+     * Logs the clients which have not confirmed the given delivery.
+     */
+    private void logUnconfirmedClients(SoftwareSyncLeader leader, RpcDelivery delivery, String what) {
+        if (delivery.isFullyConfirmed()) {
+            Log.d(TAG, "All " + delivery.getTargets().size() + " clients confirmed the " + what + ".");
+            return;
+        }
+        final Map<InetAddress, ClientInfo> clients = leader.getClients();
+        final List<String> names = new ArrayList<>();
+        for (InetAddress address : delivery.getUnconfirmed()) {
+            final ClientInfo client = clients.get(address);
+            names.add(client != null ? client.name() : address.getHostAddress());
+        }
+        Log.w(TAG, "Clients did not confirm the " + what + ": " + names);
     }
 
     /**
@@ -102,17 +132,27 @@ public class SoftwareSyncHelper {
      * Starts video recording if the application was previously prepared for it by calling
      * {@link #prepareVideoRecording}.
      *
+     * @param onStarted a {@link Runnable} to be run on the UI thread right after the recording is
+     *                  started, may be null.
      * @return true if the recording was started, false otherwise.
      */
-    public boolean startPreparedVideoRecording() {
+    public boolean startPreparedVideoRecording(Runnable onStarted) {
         if (!mPreview.isVideoRecordingPrepared()) return false;
 
-        mMainActivity.runOnUiThread(() -> mMainActivity.takePicturePressed(false, false));
+        mMainActivity.runOnUiThread(() -> {
+            mMainActivity.takePicturePressed(false, false);
+            if (onStarted != null) onStarted.run();
+        });
         return true;
     }
 
     /**
      * Broadcasts the current settings to clients. The settings are applied to the leader too.
+     * <p>
+     * Only the settings changed since the previous broadcast are sent, keyed by the hash of the
+     * previous settings. A client that does not hold them (e.g. it joined or restarted since)
+     * answers with {@link SoftwareSyncController#METHOD_SETTINGS_NACK}, and is sent the full
+     * settings by {@link #resendSettings(String)}.
      *
      * @param settings describes the settings to be broadcast.
      * @throws IllegalStateException if after the delay {@link SoftwareSyncController} is not
@@ -129,17 +169,55 @@ public class SoftwareSyncHelper {
         }
 
         // Send settings to all devices
-        ((SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync()).broadcastRpc(
-                SoftwareSyncController.METHOD_SET_SETTINGS,
-                settings.serializeToString()
-        );
+        final SoftwareSyncLeader leader = (SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync();
+        final SyncSettingsContainer previous = mLastBroadcastSettings;
+        final String payload = previous != null ?
+                settings.serializeDeltaToString(previous) : settings.serializeToString();
+        mLastBroadcastSettings = settings;
+        leader.broadcastReliableRpc(SoftwareSyncController.METHOD_SET_SETTINGS, payload)
+                .whenComplete(delivery -> logUnconfirmedClients(leader, delivery, "settings"));
+    }
+
+    /**
+     * Sends the full last broadcast settings to a client which could not apply a settings delta.
+     * <p>
+     * Clients behind a relay are not resent to, as the relay always forwards the full settings.
+     *
+     * @param clientAddress the host address the client registered with.
+     */
+    public void resendSettings(String clientAddress) {
+        final SyncSettingsContainer settings = mLastBroadcastSettings;
+        if (settings == null || !mSoftwareSyncController.isLeader()) {
+            Log.w(TAG, "No settings to resend to " + clientAddress);
+            return;
+        }
+
+        final SoftwareSyncLeader leader = (SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync();
+        for (InetAddress address : leader.getClients().keySet()) {
+            if (address.getHostAddress().equals(clientAddress)) {
+                Log.d(TAG, "Resending full settings to " + clientAddress);
+                leader.sendReliableRpcToClient(
+                        address, SoftwareSyncController.METHOD_SET_SETTINGS, settings.serializeToString()
+                ).whenComplete(delivery -> logUnconfirmedClients(leader, delivery, "resent settings"));
+                return;
+            }
+        }
+        Log.w(TAG, "Cannot resend settings to " + clientAddress + ", which is not a direct client");
+    }
+
+    /**
+     * Makes the next settings broadcast send the full settings, e.g. when this device becomes the
+     * leader and the clients hold the settings of another leader.
+     */
+    public void resetBroadcastSettings() {
+        mLastBroadcastSettings = null;
     }
 
     /**
      * Broadcasts a request to remove the video recording preparation.
      */
     public void broadcastClearVideoPreparationRequest() {
-        ((SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync()).broadcastRpc(
+        ((SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync()).broadcastReliableRpc(
                 SoftwareSyncController.METHOD_STOP_PREPARE, "");
     }
 
@@ -0,0 +1,191 @@
+package net.sourceforge.opencamera.recsync;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact key-value codec for {@link SyncSettingsContainer}.
+ * <p>
+ * A full encoding has the form "version;F;key=value;...", and contains every field. A delta
+ * encoding has the form "version;D;baseHash;key=value;...", and contains only the fields that
+ * differ from a base container, identified by the hash of the base's full encoding.
+ * <p>
+ * Every field has a fixed one-letter key that must never be reused for a different meaning.
+ * Unknown keys are ignored and missing keys keep their default (full encoding) or base (delta
+ * encoding) value, so that devices running different app versions can still exchange settings.
+ */
+final class SyncSettingsCodec {
+    /**
+     * Version of the encoding, to be increased when the meaning of an existing key changes.
+     */
+    static final int VERSION = 1;
+
+    private static final String KIND_FULL = "F";
+    private static final String KIND_DELTA = "D";
+
+    private static final String KEY_SYNC_ISO = "a";
+    private static final String KEY_SYNC_WB = "b";
+    private static final String KEY_SYNC_FLASH = "c";
+    private static final String KEY_SYNC_FORMAT = "d";
+    private static final String KEY_IS_VIDEO = "v";
+    private static final String KEY_EXPOSURE = "e";
+    private static final String KEY_ISO = "i";
+    private static final String KEY_WB_TEMPERATURE = "t";
+    private static final String KEY_WB_MODE = "w";
+    private static final String KEY_FLASH = "f";
+    private static final String KEY_FORMAT = "o";
+
+    private SyncSettingsCodec() {
+    }
+
+    static String encode(SyncSettingsContainer settings) {
+        return join(VERSION + ";" + KIND_FULL, toFields(settings));
+    }
+
+    /**
+     * Encodes only the fields of the settings that differ from the given base.
+     */
+    static String encodeDelta(SyncSettingsContainer settings, SyncSettingsContainer base) {
+        final Map<String, String> fields = toFields(settings);
+        final Map<String, String> baseFields = toFields(base);
+        final Map<String, String> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (!field.getValue().equals(baseFields.get(field.getKey()))) {
+                changed.put(field.getKey(), field.getValue());
+            }
+        }
+        return join(VERSION + ";" + KIND_DELTA + ";" + baseHash(base), changed);
+    }
+
+    /**
+     * Whether the string is a delta encoding, which can only be decoded with its base.
+     */
+    static boolean isDelta(String encoded) {
+        final String[] parts = encoded.split(";", 3);
+        return parts.length >= 2 && KIND_DELTA.equals(parts[1]);
+    }
+
+    /**
+     * Decodes a full or a delta encoding.
+     *
+     * @param encoded the encoded settings.
+     * @param base    the settings a delta encoding is relative to, may be null for full
+     *                encodings.
+     * @throws IOException if the string is corrupt, has an unsupported (e.g. newer) version, or
+     *                     it is a delta relative to settings other than the given base.
+     */
+    static SyncSettingsContainer decode(String encoded, SyncSettingsContainer base) throws IOException {
+        final String[] parts = encoded.split(";", -1);
+        if (parts.length < 2) {
+            throw new IOException("Settings encoding is too short");
+        }
+        final int version;
+        try {
+            version = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt settings encoding version " + parts[0]);
+        }
+        // A newer version may have changed the meaning of existing keys, so can't be decoded.
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported settings encoding version " + version);
+        }
+
+        final Map<String, String> fields;
+        final int firstField;
+        if (KIND_FULL.equals(parts[1])) {
+            fields = toFields(SyncSettingsContainer.DEFAULT);
+            firstField = 2;
+        } else if (KIND_DELTA.equals(parts[1])) {
+            if (parts.length < 3) {
+                throw new IOException("Settings delta has no base hash");
+            }
+            if (base == null || !baseHash(base).equals(parts[2])) {
+                throw new IOException("Settings delta is relative to unknown settings " + parts[2]);
+            }
+            fields = toFields(base);
+            firstField = 3;
+        } else {
+            throw new IOException("Unknown settings encoding kind " + parts[1]);
+        }
+
+        for (int i = firstField; i < parts.length; i++) {
+            final int separator = parts[i].indexOf('=');
+            if (separator <= 0) {
+                throw new IOException("Corrupt settings field " + parts[i]);
+            }
+            final String key = parts[i].substring(0, separator);
+            if (fields.containsKey(key)) {
+                fields.put(key, unescape(parts[i].substring(separator + 1)));
+            }
+        }
+
+        try {
+            return new SyncSettingsContainer(
+                    parseBoolean(fields.get(KEY_SYNC_ISO)),
+                    parseBoolean(fields.get(KEY_SYNC_WB)),
+                    parseBoolean(fields.get(KEY_SYNC_FLASH)),
+                    parseBoolean(fields.get(KEY_SYNC_FORMAT)),
+                    parseBoolean(fields.get(KEY_IS_VIDEO)),
+                    Long.parseLong(fields.get(KEY_EXPOSURE)),
+                    Integer.parseInt(fields.get(KEY_ISO)),
+                    Integer.parseInt(fields.get(KEY_WB_TEMPERATURE)),
+                    fields.get(KEY_WB_MODE),
+                    fields.get(KEY_FLASH),
+                    fields.get(KEY_FORMAT));
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt numeric settings field: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, String> toFields(SyncSettingsContainer settings) {
+        final Map<String, String> fields = new LinkedHashMap<>();
+        fields.put(KEY_SYNC_ISO, formatBoolean(settings.syncISO));
+        fields.put(KEY_SYNC_WB, formatBoolean(settings.syncWb));
+        fields.put(KEY_SYNC_FLASH, formatBoolean(settings.syncFlash));
+        fields.put(KEY_SYNC_FORMAT, formatBoolean(settings.syncFormat));
+        fields.put(KEY_IS_VIDEO, formatBoolean(settings.isVideo));
+        fields.put(KEY_EXPOSURE, Long.toString(settings.exposure));
+        fields.put(KEY_ISO, Integer.toString(settings.iso));
+        fields.put(KEY_WB_TEMPERATURE, Integer.toString(settings.wbTemperature));
+        fields.put(KEY_WB_MODE, nullToEmpty(settings.wbMode));
+        fields.put(KEY_FLASH, nullToEmpty(settings.flash));
+        fields.put(KEY_FORMAT, nullToEmpty(settings.format));
+        return fields;
+    }
+
+    private static String join(String header, Map<String, String> fields) {
+        final StringBuilder builder = new StringBuilder(header);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            builder.append(';').append(field.getKey()).append('=').append(escape(field.getValue()));
+        }
+        return builder.toString();
+    }
+
+    private static String baseHash(SyncSettingsContainer base) {
+        return Integer.toHexString(encode(base).hashCode());
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String formatBoolean(boolean value) {
+        return value ? "1" : "0";
+    }
+
+    private static boolean parseBoolean(String value) {
+        return "1".equals(value);
+    }
+
+    /**
+     * Escapes the separators, so that string values may contain any character.
+     */
+    private static String escape(String value) {
+        return value.replace("%", "%25").replace(";", "%3B").replace("=", "%3D");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("%3D", "=").replace("%3B", ";").replace("%25", "%");
+    }
+}
@@ -5,18 +5,12 @@ import net.sourceforge.opencamera.PreferenceHandler;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.preview.Preview;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Container for the values of the settings and their "to be synced" statuses for RecSync.
  */
-public class SyncSettingsContainer implements Serializable {
+public class SyncSettingsContainer {
     final public boolean syncISO;
     final public boolean syncWb;
     final public boolean syncFlash;
@@ -30,6 +24,12 @@ public class SyncSettingsContainer implements Serializable {
     final public String flash;
     final public String format;
 
+    /**
+     * Values used for fields missing from a received encoding.
+     */
+    static final SyncSettingsContainer DEFAULT = new SyncSettingsContainer(false, false, false, false,
+            false, 0, 0, 0, "", "", "");
+
     private String mAsStringCached = null;
 
     /**
@@ -93,8 +93,7 @@ public class SyncSettingsContainer implements Serializable {
     }
 
     /**
-     * Constructs a string with this settings serialized using {@link ByteArrayOutputStream} and
-     * {@link ObjectOutputStream}.
+     * Constructs a string with this settings encoded using {@link SyncSettingsCodec}.
      * <p>
      * The string is only constructed once and cached, the cached value is returned from all
      * subsequent invocations.
@@ -103,20 +102,34 @@ public class SyncSettingsContainer implements Serializable {
      */
     public String serializeToString() {
         if (mAsStringCached == null) {
-            final ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-            try {
-                final ObjectOutputStream objectWriter = new ObjectOutputStream(byteArray);
-                objectWriter.writeObject(this);
-                objectWriter.close();
-            } catch (IOException e) {
-                throw new IllegalStateException("Cannot serialize the settings object");
-            }
-            // Byte-wise ISO_8859_1 is required for the encoding and decoding to work correctly
-            mAsStringCached = new String(byteArray.toByteArray(), StandardCharsets.ISO_8859_1);
+            mAsStringCached = SyncSettingsCodec.encode(this);
         }
         return mAsStringCached;
     }
 
+    /**
+     * Constructs a string with only the settings that differ from the given previous settings,
+     * which is to be decoded by a receiver that holds the same previous settings.
+     *
+     * @param previous the settings the receiver already holds.
+     * @return a constructed string.
+     */
+    public String serializeDeltaToString(SyncSettingsContainer previous) {
+        return SyncSettingsCodec.encodeDelta(this, previous);
+    }
+
+    /**
+     * Whether the given string was constructed by {@link
+     * #serializeDeltaToString(SyncSettingsContainer)}, so can only be deserialized with the same
+     * previous settings.
+     *
+     * @param serializedSettings string containing serialized settings or a settings delta.
+     * @return true if the string contains a settings delta.
+     */
+    public static boolean isDeltaString(String serializedSettings) {
+        return SyncSettingsCodec.isDelta(serializedSettings);
+    }
+
     /**
      * The container is constructed from a string that was build using this class's
      * {@link #serializeToString()}.
@@ -126,13 +139,21 @@ public class SyncSettingsContainer implements Serializable {
      * @throws IOException if failed to deserialize the given string.
      */
     public static SyncSettingsContainer deserializeFromString(String serializedSettings) throws IOException {
-        final ByteArrayInputStream byteArray = new ByteArrayInputStream(serializedSettings.getBytes(StandardCharsets.ISO_8859_1));
-        final ObjectInputStream objectReader = new ObjectInputStream(byteArray);
+        return SyncSettingsCodec.decode(serializedSettings, null);
+    }
 
-        try {
-            return (SyncSettingsContainer) objectReader.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IllegalStateException(e);
-        }
+    /**
+     * The container is constructed from a string that was build using this class's
+     * {@link #serializeToString()} or {@link #serializeDeltaToString(SyncSettingsContainer)}.
+     *
+     * @param serializedSettings string containing serialized settings or a settings delta.
+     * @param previous           the settings a delta is relative to, may be null.
+     * @return a {@link SyncSettingsContainer} deserialized from the given string.
+     * @throws IOException if failed to deserialize the given string, or if it is a delta relative
+     *                     to settings other than the given previous ones.
+     */
+    public static SyncSettingsContainer deserializeFromString(String serializedSettings,
+                                                             SyncSettingsContainer previous) throws IOException {
+        return SyncSettingsCodec.decode(serializedSettings, previous);
     }
 }
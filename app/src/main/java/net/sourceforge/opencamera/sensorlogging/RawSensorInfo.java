@@ -9,6 +9,8 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.googleresearch.capturesync.softwaresync.OffsetJournal;
+
 import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.StorageUtils;
@@ -25,6 +27,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -35,6 +40,13 @@ import java.util.Map;
 public class RawSensorInfo implements SensorEventListener {
     private static final String TAG = "RawSensorInfo";
     private static final String CSV_SEPARATOR = ",";
+    private static final String SYNCED_TIMESTAMP_FILE_SUFFIX = "_recsync";
+    /**
+     * Number of sensor timestamps collected before they are handed to the writer thread for
+     * conversion to the leader time domain.
+     */
+    private static final int SYNCED_TIMESTAMP_BATCH_SIZE = 256;
+    private static final long SYNCED_TIMESTAMP_WRITER_TIMEOUT_MS = 1000;
     private static final List<Integer> SENSOR_TYPES = Collections.unmodifiableList(
             Arrays.asList(Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_GYROSCOPE, Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_AMBIENT_TEMPERATURE, Sensor.TYPE_GRAVITY, Sensor.TYPE_PRESSURE, Sensor.TYPE_RELATIVE_HUMIDITY, Sensor.TYPE_LINEAR_ACCELERATION, Sensor.TYPE_ROTATION_VECTOR, Sensor.TYPE_ORIENTATION)
     );
@@ -59,6 +71,9 @@ public class RawSensorInfo implements SensorEventListener {
     private final Map<Integer, Sensor> mUsedSensorMap;
     private final Map<Integer, PrintWriter> mSensorWriterMap;
     private final Map<Integer, File> mLastSensorFilesMap;
+    private final Map<Integer, SyncedTimestampBatch> mSyncedTimestampBatchMap;
+    private OffsetJournal mOffsetJournal;
+    private ExecutorService mSyncedTimestampWriter;
 
     public Map<Integer, File> getLastSensorFilesMap() {
         return mLastSensorFilesMap;
@@ -73,6 +88,7 @@ public class RawSensorInfo implements SensorEventListener {
         mUsedSensorMap = new HashMap<>();
         mSensorWriterMap = new HashMap<>();
         mLastSensorFilesMap = new HashMap<>();
+        mSyncedTimestampBatchMap = new HashMap<>();
 
         for (Integer sensorType : SENSOR_TYPES) {
             mUsedSensorMap.put(sensorType, mSensorManager.getDefaultSensor(sensorType));
@@ -107,6 +123,10 @@ public class RawSensorInfo implements SensorEventListener {
                 PrintWriter sensorWriter = mSensorWriterMap.get(event.sensor.getType());
                 if (sensorWriter != null) {
                     sensorWriter.write(sensorData.toString());
+                    SyncedTimestampBatch syncedTimestampBatch = mSyncedTimestampBatchMap.get(event.sensor.getType());
+                    if (syncedTimestampBatch != null && syncedTimestampBatch.add(event.timestamp)) {
+                        submitSyncedTimestamps(syncedTimestampBatch);
+                    }
                 } else {
                     if (MyDebug.LOG) {
                         Log.d(TAG, "Sensor writer for the requested type wasn't initialized");
@@ -131,7 +151,7 @@ public class RawSensorInfo implements SensorEventListener {
      * access.
      */
     private FileWriter getRawSensorInfoFileWriter(MainActivity mainActivity, Integer sensorType, String sensorName,
-                                                  Date lastVideoDate) throws IOException {
+                                                  Date lastVideoDate, boolean isSensorFile) throws IOException {
         StorageUtilsWrapper storageUtils = mainActivity.getStorageUtils();
         FileWriter fileWriter;
         try {
@@ -146,7 +166,7 @@ public class RawSensorInfo implements SensorEventListener {
                     fileWriter = new FileWriter(rawSensorInfoPfd.getFileDescriptor());
                     File saveFile = storageUtils.getFileFromDocumentUriSAF(saveUri, false);
                     storageUtils.broadcastFile(saveFile, true, false, true);
-                    mLastSensorFilesMap.put(sensorType, saveFile);
+                    if (isSensorFile) mLastSensorFilesMap.put(sensorType, saveFile);
                 } else {
                     throw new IOException("File descriptor was null");
                 }
@@ -158,7 +178,7 @@ public class RawSensorInfo implements SensorEventListener {
                 if (MyDebug.LOG) {
                     Log.d(TAG, "save to: " + saveFile.getAbsolutePath());
                 }
-                mLastSensorFilesMap.put(sensorType, saveFile);
+                if (isSensorFile) mLastSensorFilesMap.put(sensorType, saveFile);
                 storageUtils.broadcastFile(saveFile, false, false, false);
             }
             return fileWriter;
@@ -173,8 +193,13 @@ public class RawSensorInfo implements SensorEventListener {
 
     private PrintWriter setupRawSensorInfoWriter(MainActivity mainActivity, Integer sensorType, String sensorName,
             Date currentVideoDate) throws IOException {
+        return setupRawSensorInfoWriter(mainActivity, sensorType, sensorName, currentVideoDate, true);
+    }
+
+    private PrintWriter setupRawSensorInfoWriter(MainActivity mainActivity, Integer sensorType, String sensorName,
+            Date currentVideoDate, boolean isSensorFile) throws IOException {
         FileWriter rawSensorInfoFileWriter = getRawSensorInfoFileWriter(
-                mainActivity, sensorType, sensorName, currentVideoDate
+                mainActivity, sensorType, sensorName, currentVideoDate, isSensorFile
         );
         PrintWriter rawSensorInfoWriter = new PrintWriter(
                 new BufferedWriter(rawSensorInfoFileWriter)
@@ -183,7 +208,26 @@ public class RawSensorInfo implements SensorEventListener {
     }
 
     public void startRecording(MainActivity mainActivity, Date currentVideoDate, Map<Integer, Boolean> wantSensorRecordingMap) {
+        startRecording(mainActivity, currentVideoDate, wantSensorRecordingMap, null);
+    }
+
+    /**
+     * Starts recording the requested sensors. If an offset journal is provided, every sensor also
+     * gets a companion file with the RecSync leader time of each of its rows. Timestamps are only
+     * collected in the sensor callback, their conversion and writing happen in batches on a
+     * background writer thread.
+     *
+     * @param offsetJournal journal of the recording used for the leader time conversion, or null
+     *                      to save local timestamps only.
+     */
+    public void startRecording(MainActivity mainActivity, Date currentVideoDate, Map<Integer, Boolean> wantSensorRecordingMap,
+                               OffsetJournal offsetJournal) {
         mLastSensorFilesMap.clear();
+        mSyncedTimestampBatchMap.clear();
+        mOffsetJournal = offsetJournal;
+        if (mOffsetJournal != null) {
+            mSyncedTimestampWriter = Executors.newSingleThreadExecutor();
+        }
         try {
 /*            if (wantGyroRecording && mSensorGyro != null) {
                 mGyroBufferedWriter = setupRawSensorInfoWriter(
@@ -205,10 +249,23 @@ public class RawSensorInfo implements SensorEventListener {
                             sensorType,
                             setupRawSensorInfoWriter(mainActivity, sensorType, SENSOR_TYPE_NAMES.get(sensorType), currentVideoDate)
                     );
+                    if (mOffsetJournal != null) {
+                        mSyncedTimestampBatchMap.put(
+                                sensorType,
+                                new SyncedTimestampBatch(setupRawSensorInfoWriter(
+                                        mainActivity, sensorType,
+                                        SENSOR_TYPE_NAMES.get(sensorType) + SYNCED_TIMESTAMP_FILE_SUFFIX,
+                                        currentVideoDate, false
+                                ))
+                        );
+                    }
                 }
             }
             mIsRecording = true;
         } catch (IOException e) {
+            if (mSyncedTimestampWriter != null) {
+                stopSyncedTimestampWriter();
+            }
             e.printStackTrace();
             if (MyDebug.LOG) {
                 Log.e(TAG, "Unable to setup sensor info writer");
@@ -225,6 +282,9 @@ public class RawSensorInfo implements SensorEventListener {
                 sensorWriter.close();
             }
         }
+        if (mSyncedTimestampWriter != null) {
+            stopSyncedTimestampWriter();
+        }
         /*if (mGyroBufferedWriter != null) {
             mGyroBufferedWriter.flush();
             mGyroBufferedWriter.close();
@@ -236,6 +296,44 @@ public class RawSensorInfo implements SensorEventListener {
         mIsRecording = false;
     }
 
+    /**
+     * Hands the collected timestamps of a sensor to the writer thread.
+     */
+    private void submitSyncedTimestamps(SyncedTimestampBatch batch) {
+        final long[] timestamps = batch.takeTimestamps();
+        final int count = batch.takeCount();
+        final OffsetJournal offsetJournal = mOffsetJournal;
+        mSyncedTimestampWriter.execute(() -> {
+            offsetJournal.leaderTimesForLocalTimesNs(timestamps, timestamps, count);
+            for (int i = 0; i < count; i++) {
+                batch.mWriter.append(Long.toString(timestamps[i])).append("\n");
+            }
+        });
+    }
+
+    /**
+     * Writes the remaining timestamps, waits for the writer thread to finish and closes the
+     * companion files.
+     */
+    private void stopSyncedTimestampWriter() {
+        for (SyncedTimestampBatch batch : mSyncedTimestampBatchMap.values()) {
+            submitSyncedTimestamps(batch);
+            mSyncedTimestampWriter.execute(batch.mWriter::close);
+        }
+        mSyncedTimestampWriter.shutdown();
+        try {
+            if (!mSyncedTimestampWriter.awaitTermination(SYNCED_TIMESTAMP_WRITER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Synced timestamp writer did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for the synced timestamp writer");
+            Thread.currentThread().interrupt();
+        }
+        mSyncedTimestampWriter = null;
+        mSyncedTimestampBatchMap.clear();
+        mOffsetJournal = null;
+    }
+
     public boolean isRecording() {
         return mIsRecording;
     }
@@ -296,4 +394,38 @@ public class RawSensorInfo implements SensorEventListener {
         }
         mSensorManager.unregisterListener(this);
     }
+
+    /**
+     * Local timestamps of one sensor collected in the sensor callback and not yet handed to the
+     * writer thread. A full batch is handed over as a whole and replaced by a new array.
+     */
+    private static class SyncedTimestampBatch {
+        private final PrintWriter mWriter;
+        private long[] mTimestamps = new long[SYNCED_TIMESTAMP_BATCH_SIZE];
+        private int mCount = 0;
+
+        SyncedTimestampBatch(PrintWriter writer) {
+            mWriter = writer;
+        }
+
+        /**
+         * @return true if the batch is full.
+         */
+        boolean add(long timestamp) {
+            mTimestamps[mCount++] = timestamp;
+            return mCount == mTimestamps.length;
+        }
+
+        long[] takeTimestamps() {
+            final long[] timestamps = mTimestamps;
+            mTimestamps = new long[SYNCED_TIMESTAMP_BATCH_SIZE];
+            return timestamps;
+        }
+
+        int takeCount() {
+            final int count = mCount;
+            mCount = 0;
+            return count;
+        }
+    }
 }
@@ -6,6 +6,7 @@ import android.util.Log;
 
 import com.googleresearch.capturesync.SoftwareSyncController;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncBase;
+import com.googleresearch.capturesync.softwaresync.TimeDomainConverter;
 
 import net.sourceforge.opencamera.ExtendedAppInterface;
 import net.sourceforge.opencamera.MainActivity;
@@ -58,7 +59,7 @@ public class VideoFrameInfo implements Closeable {
     private final List<Long> durationsNs;
     private BufferedWriter mUnsyncedFrameBufferedWriter = null;
     private BufferedWriter mSyncedFrameBufferedWriter = null;
-    private SoftwareSyncBase softwareSync = null;
+    private TimeDomainConverter mTimeDomainConverter = null;
     private long mLastTimestamp = 0;
 
     private int mFrameNumber = 0;
@@ -106,7 +107,11 @@ public class VideoFrameInfo implements Closeable {
                 throw new IllegalStateException("Cannot save synced timestamps without RecSync running");
             }
             final SoftwareSyncController softwareSyncController = mAppInterface.getSoftwareSyncController();
-            softwareSync = softwareSyncController.getSoftwareSync();
+            final SoftwareSyncBase softwareSync = softwareSyncController.getSoftwareSync();
+            // Convert with the offsets journaled for the recording, so that frames are mapped the
+            // same way as the other recorded streams even if the offset changes mid-recording.
+            mTimeDomainConverter = mAppInterface.getOffsetJournal() != null ?
+                    mAppInterface.getOffsetJournal() : softwareSync;
 
             final String suffix = SYNCED_TIMESTAMP_FILE_SUFFIX +
                     (softwareSyncController.isLeader() ? "_leader_" : "_client_") +
@@ -192,7 +197,7 @@ public class VideoFrameInfo implements Closeable {
     private void writeTimestamp(long timestamp) {
         if (mUnsyncedFrameBufferedWriter != null) writeTimestamp(mUnsyncedFrameBufferedWriter, timestamp);
         if (mSyncedFrameBufferedWriter != null) writeTimestamp(mSyncedFrameBufferedWriter,
-                softwareSync.leaderTimeForLocalTimeNs(timestamp));
+                mTimeDomainConverter.leaderTimeForLocalTimeNs(timestamp));
     }
 
     private void writeTimestamp(BufferedWriter writer, long timestamp) {
@@ -0,0 +1,318 @@
+package com.googleresearch.capturesync.softwaresync;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+class Log {
+    public static void d(String tag, String text) {
+        System.out.println(tag + ": " + text);
+    }
+}
+
+/**
+ * Unit tests of the package-private parts of SoftwareSync, which are driven by explicit times
+ * instead of the system clock.
+ */
+public class SoftwareSyncUnitTest {
+    private static final String TAG = "SoftwareSyncUnitTest";
+
+    @Test
+    public void testOffsetJournal() throws IOException {
+        Log.d(TAG, "testOffsetJournal");
+
+        OffsetJournal journal = new OffsetJournal(1000, 100, 5);
+        journal.record(2000, 200, 6);
+        journal.record(3000, 300, 7);
+        assertEquals(3, journal.size());
+
+        // before the first entry, the offset the journal was started with applies
+        assertEquals(500 - 100, journal.leaderTimeForLocalTimeNs(500));
+        assertEquals(5, journal.syncAccuracyForLocalTimeNs(500));
+        // at and between entries, the offset of the last entry at or before the time applies,
+        // without interpolating towards the next one
+        assertEquals(1000 - 100, journal.leaderTimeForLocalTimeNs(1000));
+        assertEquals(1999 - 100, journal.leaderTimeForLocalTimeNs(1999));
+        assertEquals(2000 - 200, journal.leaderTimeForLocalTimeNs(2000));
+        assertEquals(2500 - 200, journal.leaderTimeForLocalTimeNs(2500));
+        assertEquals(6, journal.syncAccuracyForLocalTimeNs(2500));
+        // after the last entry, its offset is extrapolated
+        assertEquals(10000 - 300, journal.leaderTimeForLocalTimeNs(10000));
+        assertEquals(7, journal.syncAccuracyForLocalTimeNs(10000));
+
+        // an entry older than the last one takes effect at the last one's time
+        journal.record(2500, 400, 8);
+        assertEquals(2600 - 200, journal.leaderTimeForLocalTimeNs(2600));
+        assertEquals(3000 - 400, journal.leaderTimeForLocalTimeNs(3000));
+
+        // growing beyond the initial capacity
+        for (int i = 1; i <= 20; i++) {
+            journal.record(3000 + i * 1000, 400 + i, 8);
+        }
+        assertEquals(24, journal.size());
+        assertEquals(13500 - 410, journal.leaderTimeForLocalTimeNs(13500));
+
+        // batch conversion matches single conversions, also for out of order timestamps
+        long[] localTimesNs = {500, 1500, 2500, 3500, 2000, 30000, 1000};
+        long[] leaderTimesNs = new long[localTimesNs.length];
+        journal.leaderTimesForLocalTimesNs(localTimesNs, leaderTimesNs, localTimesNs.length);
+        for (int i = 0; i < localTimesNs.length; i++) {
+            assertEquals(journal.leaderTimeForLocalTimeNs(localTimesNs[i]), leaderTimesNs[i]);
+        }
+        // in place conversion
+        journal.leaderTimesForLocalTimesNs(localTimesNs, localTimesNs, localTimesNs.length);
+        assertArrayEquals(leaderTimesNs, localTimesNs);
+
+        StringWriter csv = new StringWriter();
+        journal.writeCsv(csv);
+        String[] rows = csv.toString().split("\n");
+        assertEquals(24, rows.length);
+        assertEquals("1000,100,5", rows[0]);
+        assertEquals("3000,400,8", rows[3]);
+    }
+
+    @Test
+    public void testPhiAccrualFailureDetector() {
+        Log.d(TAG, "testPhiAccrualFailureDetector");
+
+        final long periodNs = TimeUtils.secondsToNanos(1);
+        final long jitterNs = TimeUtils.millisToNanos(800);
+        Random random = new Random(42);
+
+        // one peer with perfectly regular heartbeats, one whose heartbeats are uniformly off by up
+        // to the jitter
+        long regularNs = 0;
+        long jitteryNs = 0;
+        PhiAccrualFailureDetector regular = new PhiAccrualFailureDetector(regularNs, periodNs);
+        PhiAccrualFailureDetector jittery = new PhiAccrualFailureDetector(jitteryNs, periodNs);
+        for (int i = 0; i < 2 * SyncConstants.PHI_WINDOW_SIZE; i++) {
+            regularNs += periodNs;
+            regular.onHeartbeat(regularNs);
+            jitteryNs += periodNs + (long) ((2 * random.nextDouble() - 1) * jitterNs);
+            jittery.onHeartbeat(jitteryNs);
+        }
+
+        // on time right after a heartbeat, and phi grows with the silence
+        assertTrue(regular.phi(regularNs) < SyncConstants.PHI_ON_TIME_THRESHOLD);
+        assertTrue(jittery.phi(jitteryNs) < SyncConstants.PHI_ON_TIME_THRESHOLD);
+        double lastPhi = 0;
+        for (long elapsedNs = 0; elapsedNs <= TimeUtils.secondsToNanos(10); elapsedNs += TimeUtils.millisToNanos(100)) {
+            double phi = jittery.phi(jitteryNs + elapsedNs);
+            assertTrue(phi >= lastPhi);
+            lastPhi = phi;
+        }
+
+        // a heartbeat late by the jitter is tolerated by both
+        assertTrue(regular.isAvailable(regularNs + periodNs + jitterNs));
+        assertTrue(jittery.isAvailable(jitteryNs + periodNs + jitterNs));
+        // a silence which is suspicious for regular heartbeats is still tolerated under jitter
+        final long silenceNs = TimeUtils.secondsToNanos(4);
+        Log.d(TAG, "phi after silence, regular: " + regular.phi(regularNs + silenceNs)
+                + " jittery: " + jittery.phi(jitteryNs + silenceNs));
+        assertFalse(regular.isAvailable(regularNs + silenceNs));
+        assertTrue(jittery.isAvailable(jitteryNs + silenceNs));
+        // but a long silence is suspected under jitter too
+        assertFalse(jittery.isAvailable(jitteryNs + TimeUtils.secondsToNanos(10)));
+
+        // other traffic proves the peer alive, without counting as a heartbeat interval
+        regular.onTraffic(regularNs + silenceNs);
+        assertTrue(regular.isAvailable(regularNs + silenceNs + periodNs));
+        assertEquals(regularNs + silenceNs, regular.lastHeardNs());
+        regular.onHeartbeat(regularNs + silenceNs + periodNs);
+        assertTrue(regular.phi(regularNs + silenceNs + periodNs) < SyncConstants.PHI_ON_TIME_THRESHOLD);
+    }
+
+    @Test
+    public void testSequenceWindow() {
+        Log.d(TAG, "testSequenceWindow");
+
+        ReliableRpcChannel.SequenceWindow window = new ReliableRpcChannel.SequenceWindow(4);
+        assertTrue(window.add(100));
+        assertFalse(window.add(100));
+        assertTrue(window.add(101));
+        assertTrue(window.add(103));
+        // out of order sequence numbers are accepted once
+        assertTrue(window.add(102));
+        assertFalse(window.add(103));
+        assertFalse(window.add(102));
+
+        // once the window is full, the oldest received sequence number is forgotten
+        assertTrue(window.add(104));
+        assertTrue(window.add(100));
+        assertFalse(window.add(104));
+        assertFalse(window.add(102));
+
+        // sequence numbers seeded from the clock may wrap around
+        window = new ReliableRpcChannel.SequenceWindow(SyncConstants.RELIABLE_RPC_DUPLICATE_WINDOW);
+        long sequence = Long.MAX_VALUE - 2;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(window.add(sequence + i));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertFalse(window.add(sequence + i));
+        }
+        assertFalse(window.add(Long.MIN_VALUE + 1));
+        assertTrue(window.add(Long.MIN_VALUE + 2));
+    }
+
+    @Test
+    public void testRpcDispatcherLanes() throws InterruptedException {
+        Log.d(TAG, "testRpcDispatcherLanes");
+
+        final int slowMethod = 100_000;
+        final int otherMethod = 100_001;
+        final int unassignedMethod = 100_002;
+        RpcDispatcher dispatcher = new RpcDispatcher(System::nanoTime);
+        dispatcher.assignLane("slow", slowMethod);
+        dispatcher.assignLane("other", otherMethod);
+
+        // a blocked lane does not delay the other lanes
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        dispatcher.dispatch(slowMethod, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            order.add("slow");
+            done.countDown();
+        });
+        final CountDownLatch others = new CountDownLatch(2);
+        dispatcher.dispatch(otherMethod, () -> {
+            order.add("other");
+            others.countDown();
+            done.countDown();
+        });
+        dispatcher.dispatch(unassignedMethod, () -> {
+            order.add("default");
+            others.countDown();
+            done.countDown();
+        });
+        assertTrue(others.await(5, TimeUnit.SECONDS));
+        assertFalse(order.contains("slow"));
+
+        // RPCs of the same lane are handled in the order received, also after a failing handler
+        dispatcher.dispatch(slowMethod, () -> {
+            throw new IllegalStateException("handler failure");
+        });
+        dispatcher.dispatch(slowMethod, () -> {
+            order.add("slow 2");
+            done.countDown();
+        });
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(order.indexOf("slow") < order.indexOf("slow 2"));
+
+        // stats are recorded after the handler returns, so wait for a later RPC of each lane
+        final int markerMethod = 100_003;
+        dispatcher.assignLane("slow", markerMethod);
+        final CountDownLatch markers = new CountDownLatch(2);
+        dispatcher.dispatch(markerMethod, markers::countDown);
+        dispatcher.dispatch(unassignedMethod + 2, markers::countDown);
+        assertTrue(markers.await(5, TimeUnit.SECONDS));
+        dispatcher.close();
+        assertEquals(3, dispatcher.getLatencyStats().get(slowMethod).count());
+        assertEquals(1, dispatcher.getLatencyStats().get(unassignedMethod).count());
+        // closed lanes reject new RPCs without failing
+        dispatcher.dispatch(otherMethod, () -> fail());
+    }
+
+    @Test
+    public void testRpcFragments() throws IOException {
+        Log.d(TAG, "testRpcFragments");
+
+        final long[] nowNs = {0};
+        RpcFragments sender = new RpcFragments(() -> nowNs[0]);
+        RpcFragments receiver = new RpcFragments(() -> nowNs[0]);
+        InetAddress first = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+        InetAddress second = InetAddress.getByAddress(new byte[]{10, 0, 0, 2});
+
+        // random digits only deflate to about half their size, so still need several fragments
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 4 * SyncConstants.RPC_BUFFER_SIZE; i++) {
+            builder.append((char) ('0' + random.nextInt(10)));
+        }
+        final String payload = builder.toString();
+        List<byte[]> fragments = sender.split(1234, payload.getBytes());
+        Log.d(TAG, "fragments: " + fragments.size());
+        assertTrue(fragments.size() > 2);
+
+        // out of order, with duplicates: only the last missing fragment completes the message
+        for (int i = fragments.size() - 1; i > 0; i--) {
+            assertNull(receiver.onFragment(first, fragments.get(i), fragments.get(i).length));
+            assertNull(receiver.onFragment(first, fragments.get(i), fragments.get(i).length));
+        }
+        RpcFragments.Message message = receiver.onFragment(first, fragments.get(0), fragments.get(0).length);
+        assertNotNull(message);
+        assertEquals(1234, message.method);
+        assertEquals(payload, message.payload);
+
+        // fragments are reassembled per sender
+        fragments = sender.split(1234, payload.getBytes());
+        for (int i = 1; i < fragments.size(); i++) {
+            assertNull(receiver.onFragment(first, fragments.get(i), fragments.get(i).length));
+        }
+        assertNull(receiver.onFragment(second, fragments.get(0), fragments.get(0).length));
+        assertNotNull(receiver.onFragment(first, fragments.get(0), fragments.get(0).length));
+
+        // a message missing a fragment is dropped after the reassembly timeout
+        fragments = sender.split(1234, payload.getBytes());
+        for (int i = 1; i < fragments.size(); i++) {
+            assertNull(receiver.onFragment(first, fragments.get(i), fragments.get(i).length));
+        }
+        nowNs[0] += SyncConstants.RPC_REASSEMBLY_TIMEOUT_NS + 1;
+        assertNull(receiver.onFragment(first, fragments.get(0), fragments.get(0).length));
+        // within the timeout, a late fragment still completes the message
+        fragments = sender.split(1234, payload.getBytes());
+        for (int i = 1; i < fragments.size(); i++) {
+            assertNull(receiver.onFragment(first, fragments.get(i), fragments.get(i).length));
+        }
+        nowNs[0] += SyncConstants.RPC_REASSEMBLY_TIMEOUT_NS;
+        assertNotNull(receiver.onFragment(first, fragments.get(0), fragments.get(0).length));
+
+        // corrupt and truncated fragments are skipped
+        byte[] corrupt = sender.split(1234, payload.getBytes()).get(0).clone();
+        corrupt[4 + 8 + 4 + 2] = 0; // count
+        corrupt[4 + 8 + 4 + 2 + 1] = 0;
+        assertNull(receiver.onFragment(first, corrupt, corrupt.length));
+        assertNull(receiver.onFragment(first, corrupt, RpcFragments.HEADER_SIZE - 1));
+
+        // repetitive payloads are deflated into fewer fragments
+        builder = new StringBuilder();
+        for (int i = 0; i < 4 * SyncConstants.RPC_BUFFER_SIZE; i++) {
+            builder.append('a');
+        }
+        final String repetitive = builder.toString();
+        fragments = sender.split(5678, repetitive.getBytes());
+        assertEquals(1, fragments.size());
+        message = receiver.onFragment(first, fragments.get(0), fragments.get(0).length);
+        assertNotNull(message);
+        assertEquals(repetitive, message.payload);
+        sender.setCompressionEnabled(false);
+        assertTrue(sender.split(5678, repetitive.getBytes()).size() > 2);
+
+        // payloads needing too many fragments are refused
+        byte[] tooBig = new byte[SyncConstants.MAX_RPC_FRAGMENTS * SyncConstants.RPC_BUFFER_SIZE];
+        random.nextBytes(tooBig);
+        assertFalse(sender.canSend(tooBig));
+        try {
+            sender.split(1234, tooBig);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
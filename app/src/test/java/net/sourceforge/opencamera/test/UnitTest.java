@@ -3,21 +3,30 @@ package net.sourceforge.opencamera.test;
 import android.graphics.Camera;
 import android.media.CamcorderProfile;
 
+import com.googleresearch.capturesync.SoftwareSyncController;
+import com.googleresearch.capturesync.softwaresync.SyncConstants;
+import com.googleresearch.capturesync.softwaresync.TimeUtils;
+
 import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.MyApplicationInterface;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.cameracontroller.CameraController2;
+import net.sourceforge.opencamera.HDRJavaBackend;
 import net.sourceforge.opencamera.HDRProcessor;
 import net.sourceforge.opencamera.ImageSaver;
 import net.sourceforge.opencamera.LocationSupplier;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerException;
 import net.sourceforge.opencamera.preview.Preview;
+import net.sourceforge.opencamera.preview.PreviewAnalyzer;
+import net.sourceforge.opencamera.recsync.SyncSettingsContainer;
 import net.sourceforge.opencamera.preview.VideoQualityHandler;
 import net.sourceforge.opencamera.TextFormatter;
 import net.sourceforge.opencamera.ui.DrawPreview;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -27,6 +36,7 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -342,6 +352,270 @@ public class UnitTest {
 
     }
 
+    /** Test for choosing the size of the preview analysis stream.
+     */
+    @Test
+    public void testPreviewAnalysisSize() {
+        List<CameraController.Size> sizes = Arrays.asList(
+                new CameraController.Size(1920, 1080),
+                new CameraController.Size(640, 480),
+                new CameraController.Size(320, 180),
+                new CameraController.Size(854, 480),
+                new CameraController.Size(1280, 720)
+        );
+        // smallest size with matching aspect ratio that is at least 480 pixels wide
+        CameraController.Size size = CameraController2.choosePreviewAnalysisSize(sizes, 1920, 1080);
+        assertEquals(854, size.width);
+        assertEquals(480, size.height);
+
+        size = CameraController2.choosePreviewAnalysisSize(sizes, 1440, 1080);
+        assertEquals(640, size.width);
+        assertEquals(480, size.height);
+
+        // no matching aspect ratio
+        size = CameraController2.choosePreviewAnalysisSize(sizes, 1080, 1080);
+        assertNull(size);
+    }
+
+    /** Test for the preview quality metrics, and their encoding for RecSync.
+     */
+    @Test
+    public void testPreviewQualityMetrics() {
+        final int width = 8;
+        final int height = 6;
+        byte [] u = new byte[(width/2)*(height/2)];
+        byte [] v = new byte[(width/2)*(height/2)];
+        Arrays.fill(u, (byte)128);
+        Arrays.fill(v, (byte)128);
+
+        // flat frame: no detail, nothing clipped
+        byte [] y = new byte[width*height];
+        Arrays.fill(y, (byte)100);
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setFrame(y, u, v, width, height, 0, false);
+        PreviewAnalyzer.QualityMetrics metrics = analyzer.computeQualityMetrics();
+        assertEquals(100.0f, metrics.mean_luma, 1.0e-5f);
+        assertEquals(0.0f, metrics.clipped_fraction, 1.0e-5f);
+        assertEquals(0.0f, metrics.sharpness, 1.0e-5f);
+
+        // left half clipped, with a sharp edge in the middle
+        for(int j=0;j<height;j++) {
+            for(int i=0;i<width;i++) {
+                y[j*width+i] = (byte)(i < width/2 ? 255 : 0);
+            }
+        }
+        analyzer.setFrame(y, u, v, width, height, 90, false);
+        metrics = analyzer.computeQualityMetrics();
+        assertEquals(127.5f, metrics.mean_luma, 1.0e-5f);
+        assertEquals(0.5f, metrics.clipped_fraction, 1.0e-5f);
+        assertTrue(metrics.sharpness > 0.0f);
+
+        PreviewAnalyzer.QualityMetrics decoded = SoftwareSyncController.deserializePreviewMetrics(
+                SoftwareSyncController.serializePreviewMetrics(metrics));
+        assertNotNull(decoded);
+        assertEquals(metrics.mean_luma, decoded.mean_luma, 0.01f);
+        assertEquals(metrics.clipped_fraction, decoded.clipped_fraction, 1.0e-5f);
+        assertEquals(metrics.sharpness, decoded.sharpness, 0.01f);
+        assertNull(SoftwareSyncController.deserializePreviewMetrics("1.0,2.0"));
+        assertNull(SoftwareSyncController.deserializePreviewMetrics("1.0,x,2.0"));
+    }
+
+    /** Tests computing the quality metrics from a downscaled Y plane, as for the video frame
+     *  stream when video recording is prepared.
+     */
+    @Test
+    public void testPreviewQualityMetricsLuma() {
+        // the left half has 0 at even (x, y) and 255 otherwise, the right half is 254; the frame
+        // is cropped by one row and column, and the rows are padded
+        final int frame_width = 10;
+        final int frame_height = 5;
+        final int row_stride = 16;
+        byte [] data = new byte[row_stride*(frame_height+1)];
+        Arrays.fill(data, (byte)7);
+        for(int j=0;j<frame_height;j++) {
+            for(int i=0;i<frame_width;i++) {
+                int value;
+                if( i < frame_width/2 )
+                    value = (i % 2 == 0 && j % 2 == 0) ? 0 : 255;
+                else
+                    value = 254;
+                data[(j+1)*row_stride + 1 + i] = (byte)value;
+            }
+        }
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setLumaFrame(ByteBuffer.wrap(data), row_stride, 1, 1, frame_width, frame_height, 2);
+        PreviewAnalyzer.QualityMetrics metrics = analyzer.computeQualityMetrics();
+        // 5x2 blocks of 191, 191, 190 (straddling the halves), 254, 254; the last row is ignored
+        assertEquals(216.0f, metrics.mean_luma, 1.0e-5f);
+        assertEquals(0.4f, metrics.clipped_fraction, 1.0e-5f);
+        // too small for the laplacian
+        assertEquals(0.0f, metrics.sharpness, 1.0e-5f);
+
+        // a scale of 1 is a plain copy: 9 zeros, 16 of 255 and 25 of 254
+        analyzer.setLumaFrame(ByteBuffer.wrap(data), row_stride, 1, 1, frame_width, frame_height, 1);
+        metrics = analyzer.computeQualityMetrics();
+        assertEquals(208.6f, metrics.mean_luma, 1.0e-4f);
+        assertEquals(0.82f, metrics.clipped_fraction, 1.0e-5f);
+        assertTrue(metrics.sharpness > 0.0f);
+    }
+
+    /** Test for the histograms computed on the CPU, for every histogram type.
+     */
+    @Test
+    public void testPreviewHistogram() {
+        // left half grey (0 and 200), right half luma 100 with a red tint: rgb (240, 29, 100)
+        final int width = 4;
+        final int height = 2;
+        byte [] y = new byte[]{0, (byte)200, 100, 100, (byte)200, (byte)200, 100, 100};
+        byte [] u = new byte[]{(byte)128, (byte)128};
+        byte [] v = new byte[]{(byte)128, (byte)228};
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setFrame(y, u, v, width, height, 0, false);
+
+        int [] histogram = analyzer.computeHistogram(Preview.HistogramType.HISTOGRAM_TYPE_LUMINANCE);
+        assertEquals(256, histogram.length);
+        assertEquals(1, histogram[0]);
+        assertEquals(3, histogram[200]);
+        assertEquals(4, histogram[100]);
+
+        histogram = analyzer.computeHistogram(Preview.HistogramType.HISTOGRAM_TYPE_RGB);
+        assertEquals(3*256, histogram.length);
+        for(int channel=0;channel<3;channel++) {
+            assertEquals(1, histogram[256*channel]);
+            assertEquals(3, histogram[256*channel + 200]);
+        }
+        assertEquals(4, histogram[240]);
+        assertEquals(4, histogram[256 + 29]);
+        assertEquals(4, histogram[512 + 100]);
+
+        // grey pixels have the same value for every type, so only the tinted ones differ
+        Preview.HistogramType [] types = new Preview.HistogramType[]{
+                Preview.HistogramType.HISTOGRAM_TYPE_VALUE,
+                Preview.HistogramType.HISTOGRAM_TYPE_INTENSITY,
+                Preview.HistogramType.HISTOGRAM_TYPE_LIGHTNESS};
+        int [] tinted_values = new int[]{240, 123, 135}; // max, (r+g+b)/3 and (min+max)/2
+        for(int i=0;i<types.length;i++) {
+            histogram = analyzer.computeHistogram(types[i]);
+            assertEquals(256, histogram.length);
+            assertEquals(1, histogram[0]);
+            assertEquals(3, histogram[200]);
+            assertEquals(4, histogram[tinted_values[i]]);
+        }
+    }
+
+    /** Test for the zebra stripes computed on the CPU.
+     */
+    @Test
+    public void testPreviewZebraStripes() {
+        final int width = 4;
+        final int height = 4;
+        final int color_foreground = 0xFFFF0000;
+        final int color_background = 0xFF0000FF;
+        byte [] y = new byte[width*height];
+        byte [] u = new byte[(width/2)*(height/2)];
+        byte [] v = new byte[(width/2)*(height/2)];
+        for(int i=0;i<width*height;i++) {
+            y[i] = (byte)(16*i);
+        }
+        Arrays.fill(u, (byte)128);
+        Arrays.fill(v, (byte)128);
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        analyzer.setFrame(y, u, v, width, height, 0, false);
+
+        // pixels at the threshold are marked, with stripes 1 pixel wide for this size
+        final int threshold = 16*10;
+        int [] zebra = analyzer.computeZebraStripes(threshold, color_foreground, color_background);
+        for(int j=0;j<height;j++) {
+            for(int i=0;i<width;i++) {
+                int expected = 0;
+                if( j*width+i >= 10 )
+                    expected = (i+j) % 2 == 0 ? color_background : color_foreground;
+                assertEquals(expected, zebra[j*width+i]);
+            }
+        }
+
+        // nothing marked above the brightest pixel
+        zebra = analyzer.computeZebraStripes(16*15+1, color_foreground, color_background);
+        for(int i=0;i<width*height;i++) {
+            assertEquals(0, zebra[i]);
+        }
+    }
+
+    /** Test for the focus peaking computed on the CPU.
+     */
+    @Test
+    public void testPreviewFocusPeaking() {
+        final int width = 6;
+        final int height = 6;
+        byte [] y = new byte[width*height];
+        byte [] u = new byte[(width/2)*(height/2)];
+        byte [] v = new byte[(width/2)*(height/2)];
+        Arrays.fill(u, (byte)128);
+        Arrays.fill(v, (byte)128);
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+
+        // flat frame: no edges
+        Arrays.fill(y, (byte)100);
+        analyzer.setFrame(y, u, v, width, height, 0, false);
+        int [] peaking = analyzer.computeFocusPeaking();
+        for(int i=0;i<width*height;i++) {
+            assertEquals(0, peaking[i]);
+        }
+
+        // vertical edge between the black left half and the white right half, excluding the border
+        for(int j=0;j<height;j++) {
+            for(int i=0;i<width;i++) {
+                y[j*width+i] = (byte)(i < width/2 ? 0 : 255);
+            }
+        }
+        analyzer.setFrame(y, u, v, width, height, 0, false);
+        peaking = analyzer.computeFocusPeaking();
+        for(int j=0;j<height;j++) {
+            for(int i=0;i<width;i++) {
+                boolean edge = (i == width/2-1 || i == width/2) && j >= 1 && j < height-1;
+                assertEquals(edge ? 0xFFFFFFFF : 0, peaking[j*width+i]);
+            }
+        }
+    }
+
+    /** Test that the overlays are rotated clockwise and then mirrored, as for the preview display.
+     */
+    @Test
+    public void testPreviewAnalyzerOrientation() {
+        // a single bright pixel at (2, 0) in a 3x2 frame
+        final int width = 3;
+        final int height = 2;
+        byte [] y = new byte[width*height];
+        y[2] = (byte)255;
+        byte [] u = new byte[]{(byte)128};
+        byte [] v = new byte[]{(byte)128};
+        // rotation, mirror, output width and height, output position of the bright pixel
+        int [][] cases = new int[][]{
+                {0, 0, 3, 2, 2, 0},
+                {90, 0, 2, 3, 1, 2},
+                {180, 0, 3, 2, 0, 1},
+                {270, 0, 2, 3, 0, 0},
+                {0, 1, 3, 2, 0, 0},
+                {90, 1, 2, 3, 0, 2},
+                {180, 1, 3, 2, 2, 1},
+                {270, 1, 2, 3, 1, 0},
+        };
+        PreviewAnalyzer analyzer = new PreviewAnalyzer();
+        for(int [] test : cases) {
+            Log.d(TAG, "rotation " + test[0] + " mirror " + test[1]);
+            analyzer.setFrame(y, u, v, width, height, test[0], test[1] != 0);
+            assertEquals(test[2], analyzer.getOutputWidth());
+            assertEquals(test[3], analyzer.getOutputHeight());
+            int [] zebra = analyzer.computeZebraStripes(200, 0xFFFF0000, 0xFF0000FF);
+            for(int j=0;j<test[3];j++) {
+                for(int i=0;i<test[2];i++) {
+                    boolean bright = i == test[4] && j == test[5];
+                    assertEquals(bright, zebra[j*test[2]+i] != 0);
+                }
+            }
+        }
+    }
+
     /** Test for setting correct video resolutions and profiles.
      */
     @Test
@@ -599,30 +873,42 @@ public class UnitTest {
     }
 
     @Test
-    public void testImageSaverQueueSize() {
-        Log.d(TAG, "testImageSaverQueueSize");
+    public void testImageSaverQueueBudget() {
+        Log.d(TAG, "testImageSaverQueueBudget");
 
-        // if any of these values change, review the comments in ImageSaver.getQueueSize().
+        // if any of these values change, review the comments in ImageSaver.computeQueueBudget().
+        final long jpeg_size = 5*1024*1024;
 
-        assertTrue(ImageSaver.computeQueueSize(64) >= 6);
+        assertTrue(ImageSaver.computeQueueBudget(64) >= 6*jpeg_size);
 
-        assertTrue(ImageSaver.computeQueueSize(128) >= ImageSaver.computeQueueSize(64));
+        assertTrue(ImageSaver.computeQueueBudget(128) >= ImageSaver.computeQueueBudget(64));
 
-        assertTrue(ImageSaver.computeQueueSize(256) >= ImageSaver.computeQueueSize(128));
-        assertTrue(ImageSaver.computeQueueSize(256) <= 19);
+        assertTrue(ImageSaver.computeQueueBudget(256) >= ImageSaver.computeQueueBudget(128));
+        assertTrue(ImageSaver.computeQueueBudget(256) <= 19*jpeg_size);
 
-        assertTrue(ImageSaver.computeQueueSize(512) >= ImageSaver.computeQueueSize(256));
-        assertTrue(ImageSaver.computeQueueSize(512) >= 34);
-        assertTrue(ImageSaver.computeQueueSize(512) <= 70);
+        assertTrue(ImageSaver.computeQueueBudget(512) >= ImageSaver.computeQueueBudget(256));
+        assertTrue(ImageSaver.computeQueueBudget(512) >= 34*jpeg_size);
+        assertTrue(ImageSaver.computeQueueBudget(512) <= 70*jpeg_size);
     }
 
     @Test
-    public void testImageSaverRequestCost() {
-        Log.d(TAG, "testImageSaverRequestCost");
+    public void testImageSaverExceedsQueueBudget() {
+        Log.d(TAG, "testImageSaverExceedsQueueBudget");
+
+        final long budget = 100;
+        final long headroom = 1000;
 
-        assertTrue( ImageSaver.computeRequestCost(true, 1) > ImageSaver.computeRequestCost(false, 1));
-        assertEquals( ImageSaver.computeRequestCost(false, 3), 3*ImageSaver.computeRequestCost(false, 1));
+        // never block if the queue is empty
+        assertFalse( ImageSaver.exceedsQueueBudget(0, 200, budget, headroom));
+        assertFalse( ImageSaver.exceedsQueueBudget(0, 200, budget, 0));
 
+        assertFalse( ImageSaver.exceedsQueueBudget(50, 50, budget, headroom));
+        assertTrue( ImageSaver.exceedsQueueBudget(50, 51, budget, headroom));
+        // small photos allow more photos in the queue
+        assertFalse( ImageSaver.exceedsQueueBudget(90, 10, budget, headroom));
+
+        // block if the heap doesn't have room, even if within the budget
+        assertTrue( ImageSaver.exceedsQueueBudget(10, 20, budget, 19));
     }
 
     private static class float4 {
@@ -761,6 +1047,125 @@ public class UnitTest {
 
     }
 
+    private static int greyColor(int value) {
+        return 0xFF000000 | (value << 16) | (value << 8) | value;
+    }
+
+    @Test
+    public void testHDRJavaBackend() {
+        Log.d(TAG, "testHDRJavaBackend");
+
+        final int width = 320, height = 240, block_size = 6;
+        Random random = new Random(0);
+        boolean [] blocks = new boolean[(width/block_size+1)*(height/block_size+1)];
+        for(int i=0;i<blocks.length;i++)
+            blocks[i] = random.nextBoolean();
+        int [] image = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                boolean bright = blocks[(y/block_size)*(width/block_size+1) + x/block_size];
+                image[y*width+x] = greyColor(bright ? 210 : 40);
+            }
+        }
+
+        HDRJavaBackend backend = new HDRJavaBackend(4);
+        try {
+            int [] histogram = backend.computeHistogram(image, false);
+            assertEquals(256, histogram.length);
+            assertEquals(width*height, histogram[40] + histogram[210]);
+            assertArrayEquals(histogram, backend.computeHistogram(image, true));
+
+            // (x, y) on the base image corresponds to (x+3, y-2) on the shifted image
+            int [] shifted = new int[width*height];
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    int src_x = Math.min(Math.max(x-3, 0), width-1);
+                    int src_y = Math.min(Math.max(y+2, 0), height-1);
+                    shifted[y*width+x] = image[src_y*width+src_x];
+                }
+            }
+            int [] offsets_x = new int[2];
+            int [] offsets_y = new int[2];
+            backend.autoAlignment(offsets_x, offsets_y, new int[][]{image, shifted}, width, height, new int[]{127, 127}, 0, true, 4);
+            assertEquals(0, offsets_x[0]);
+            assertEquals(0, offsets_y[0]);
+            assertEquals(3, offsets_x[1]);
+            assertEquals(-2, offsets_y[1]);
+
+            // images not suitable for alignment are left unaligned
+            backend.autoAlignment(offsets_x, offsets_y, new int[][]{image, shifted}, width, height, new int[]{127, -1}, 0, true, 4);
+            assertEquals(0, offsets_x[1]);
+            assertEquals(0, offsets_y[1]);
+
+            // merging identical images with identity response functions and no tonemapping gives the same image
+            int [] output = new int[width*height];
+            backend.mergeHDR(new int[][]{image, image, image}, width, height, 1, new int[3], new int[3],
+                    new float[]{1.0f, 1.0f, 1.0f}, new float[]{0.0f, 0.0f, 0.0f},
+                    HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 255.0f, 1.0f, 11.2f, output);
+            assertArrayEquals(image, output);
+        }
+        finally {
+            backend.onDestroy();
+        }
+    }
+
+    @Test
+    public void testUseTiledHDR() {
+        Log.d(TAG, "testUseTiledHDR");
+
+        final long max_memory = 512L*1024*1024;
+        // 12MP expo bracketing fits
+        assertFalse(HDRProcessor.useTiledHDR(4000, 3000, 3, max_memory));
+        // 48MP expo bracketing doesn't
+        assertTrue(HDRProcessor.useTiledHDR(8000, 6000, 3, max_memory));
+        // nor does 12MP with a small heap
+        assertTrue(HDRProcessor.useTiledHDR(4000, 3000, 3, 128L*1024*1024));
+    }
+
+    @Test
+    public void testFitResponseFunction() {
+        Log.d(TAG, "testFitResponseFunction");
+
+        final int n_samples = 4096;
+        double [] x_samples = new double[n_samples];
+        double [] y_samples = new double[n_samples];
+        double [] weights = new double[n_samples];
+        Random random = new Random(0);
+        for(int i=0;i<n_samples;i++) {
+            x_samples[i] = 10.0 + 100.0*random.nextDouble();
+            y_samples[i] = 2.0*x_samples[i] + 10.0;
+            weights[i] = 1.0;
+        }
+
+        float [] parameters = HDRProcessor.fitResponseFunction(x_samples, y_samples, weights, n_samples, false);
+        assertEquals(2.0f, parameters[0], 1.0e-3f);
+        assertEquals(10.0f, parameters[1], 1.0e-2f);
+
+        // a decreasing response isn't allowed, so we fall back to y = Ax
+        double [] y_decreasing = new double[n_samples];
+        for(int i=0;i<n_samples;i++) {
+            y_decreasing[i] = 200.0 - x_samples[i];
+        }
+        parameters = HDRProcessor.fitResponseFunction(x_samples, y_decreasing, weights, n_samples, false);
+        assertEquals(0.0f, parameters[1], 0.0f);
+
+        // add noise, and make every 5th sample an outlier (e.g., due to movement)
+        for(int i=0;i<n_samples;i++) {
+            y_samples[i] += 2.0*random.nextGaussian();
+            if( i % 5 == 0 )
+                y_samples[i] = 255.0;
+        }
+        float [] least_squares = HDRProcessor.fitResponseFunction(x_samples, y_samples, weights, n_samples, false);
+        long time_s = System.nanoTime();
+        float [] robust = HDRProcessor.fitResponseFunction(x_samples, y_samples, weights, n_samples, true);
+        Log.d(TAG, "time for robust fit: " + (System.nanoTime() - time_s)/1000 + "us");
+        Log.d(TAG, "least squares: " + least_squares[0] + " , " + least_squares[1]);
+        Log.d(TAG, "robust: " + robust[0] + " , " + robust[1]);
+        assertEquals(2.0f, robust[0], 0.05f);
+        assertEquals(10.0f, robust[1], 2.0f);
+        assertTrue(Math.abs(robust[0] - 2.0f) < Math.abs(least_squares[0] - 2.0f));
+    }
+
     @Test
     public void testFocusBracketingDistances() {
         Log.d(TAG, "testFocusBracketingDistances");
@@ -1006,4 +1411,85 @@ public class UnitTest {
         assertEquals(luminanceInfos.get(2), luminanceInfosSorted.get(5));
 
     }
+
+    @Test
+    public void testSyncSettingsCodec() throws IOException {
+        Log.d(TAG, "testSyncSettingsCodec");
+
+        SyncSettingsContainer settings = new SyncSettingsContainer(true, false, true, false,
+                true, 33333333L, 400, 5500, "manual", "flash_off", "preference_video_output_format_default");
+        String encoded = settings.serializeToString();
+        Log.d(TAG, "encoded: " + encoded);
+        assertTrue(encoded.length() < 128);
+
+        SyncSettingsContainer decoded = SyncSettingsContainer.deserializeFromString(encoded);
+        assertTrue(decoded.syncISO);
+        assertFalse(decoded.syncWb);
+        assertTrue(decoded.syncFlash);
+        assertFalse(decoded.syncFormat);
+        assertTrue(decoded.isVideo);
+        assertEquals(33333333L, decoded.exposure);
+        assertEquals(400, decoded.iso);
+        assertEquals(5500, decoded.wbTemperature);
+        assertEquals("manual", decoded.wbMode);
+        assertEquals("flash_off", decoded.flash);
+        assertEquals("preference_video_output_format_default", decoded.format);
+        assertEquals(encoded, decoded.serializeToString());
+
+        // separators in string values
+        SyncSettingsContainer escaped = new SyncSettingsContainer(false, false, false, false,
+                false, 1, 2, 3, "a;b=c%3B", "", "jpeg");
+        assertEquals("a;b=c%3B", SyncSettingsContainer.deserializeFromString(escaped.serializeToString()).wbMode);
+
+        // delta contains only the changed fields, and needs the same base to be decoded
+        SyncSettingsContainer changed = new SyncSettingsContainer(true, false, true, false,
+                true, 10000000L, 800, 5500, "manual", "flash_off", "preference_video_output_format_default");
+        String delta = changed.serializeDeltaToString(settings);
+        Log.d(TAG, "delta: " + delta);
+        assertTrue(delta.length() < encoded.length());
+        assertFalse(delta.contains("flash_off"));
+        // only a delta is answered with a NACK when it can't be decoded
+        assertTrue(SyncSettingsContainer.isDeltaString(delta));
+        assertFalse(SyncSettingsContainer.isDeltaString(encoded));
+        assertFalse(SyncSettingsContainer.isDeltaString("corrupt"));
+        SyncSettingsContainer decodedDelta = SyncSettingsContainer.deserializeFromString(delta, decoded);
+        assertEquals(changed.serializeToString(), decodedDelta.serializeToString());
+        try {
+            SyncSettingsContainer.deserializeFromString(delta, escaped);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            SyncSettingsContainer.deserializeFromString(delta);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // unknown keys from newer versions are ignored
+        SyncSettingsContainer future = SyncSettingsContainer.deserializeFromString(encoded + ";z=42");
+        assertEquals(encoded, future.serializeToString());
+
+        // newer versions may change the meaning of keys, so are rejected, as are invalid versions
+        assertTrue(encoded.startsWith("1;F;"));
+        for (String version : new String[] {"2", "0", "x"}) {
+            try {
+                SyncSettingsContainer.deserializeFromString(version + encoded.substring(1));
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Test that scheduled triggers leave time for every retransmission of the reliable RPC.
+     */
+    @Test
+    public void testTriggerLeadTime() {
+        // retransmissions at 50, 150, 350 and 750ms
+        assertEquals(750, SyncConstants.RELIABLE_RPC_LAST_ATTEMPT_MS);
+        assertTrue(SyncConstants.TRIGGER_LEAD_TIME_NS > TimeUtils.millisToNanos(SyncConstants.RELIABLE_RPC_LAST_ATTEMPT_MS));
+        assertTrue(SyncConstants.TRIGGER_LEAD_TIME_NS > SyncConstants.TRIGGER_SPIN_WINDOW_NS);
+    }
 }